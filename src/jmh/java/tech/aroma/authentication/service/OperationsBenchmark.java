@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.thrift.TException;
+import org.openjdk.jmh.annotations.*;
+import tech.aroma.authentication.service.operations.ModuleAuthenticationOperations;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.data.memory.ModuleMemoryDataRepositories;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenType;
+import tech.aroma.thrift.authentication.service.*;
+import tech.sirwellington.alchemy.thrift.operations.ThriftOperation;
+
+/**
+ * Runs each ThriftOperation against the in-memory {@link TokenRepository}, wired the same way as
+ * the Server.
+ * <p>
+ * Reports throughput and sampled latency. Allocations per operation are reported by the {@code gc}
+ * profiler, which the {@code benchmarks} profile turns on.
+ *
+ * @author SirWellington
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OperationsBenchmark
+{
+
+    private static final int STORED_TOKENS = 10_000;
+
+    private final String ownerId = UUID.randomUUID().toString();
+    private final String createdOwnerId = UUID.randomUUID().toString();
+
+    private ThriftOperation<CreateTokenRequest, CreateTokenResponse> createToken;
+    private ThriftOperation<VerifyTokenRequest, VerifyTokenResponse> verifyToken;
+    private ThriftOperation<GetTokenInfoRequest, GetTokenInfoResponse> getTokenInfo;
+    private ThriftOperation<InvalidateTokenRequest, InvalidateTokenResponse> invalidateToken;
+    private TokenRepository repository;
+
+    private AuthenticationToken[] tokens;
+
+    @Setup
+    public void setUp() throws TException
+    {
+        Injector injector = Guice.createInjector(new ModuleMemoryDataRepositories(),
+                                                 new ModuleAuthenticationOperations(),
+                                                 new ModuleAuthenticationService());
+
+        createToken = injector.getInstance(Key.get(new TypeLiteral<ThriftOperation<CreateTokenRequest, CreateTokenResponse>>() {}));
+        verifyToken = injector.getInstance(Key.get(new TypeLiteral<ThriftOperation<VerifyTokenRequest, VerifyTokenResponse>>() {}));
+        getTokenInfo = injector.getInstance(Key.get(new TypeLiteral<ThriftOperation<GetTokenInfoRequest, GetTokenInfoResponse>>() {}));
+        invalidateToken = injector.getInstance(Key.get(new TypeLiteral<ThriftOperation<InvalidateTokenRequest, InvalidateTokenResponse>>() {}));
+        repository = injector.getInstance(TokenRepository.class);
+
+        tokens = new AuthenticationToken[STORED_TOKENS];
+
+        for (int i = 0; i < STORED_TOKENS; ++i)
+        {
+            tokens[i] = createToken.process(createRequest(ownerId)).getToken();
+        }
+    }
+
+    /**
+     * Created Tokens are removed after each iteration, so that the repository does not keep growing.
+     */
+    @TearDown(Level.Iteration)
+    public void deleteCreatedTokens() throws TException
+    {
+        repository.deleteTokensBelongingTo(createdOwnerId);
+    }
+
+    @Benchmark
+    public CreateTokenResponse createToken() throws TException
+    {
+        return createToken.process(createRequest(createdOwnerId));
+    }
+
+    @Benchmark
+    public VerifyTokenResponse verifyToken() throws TException
+    {
+        AuthenticationToken token = anyToken();
+
+        VerifyTokenRequest request = new VerifyTokenRequest()
+            .setTokenId(token.tokenId)
+            .setOwnerId(token.ownerId);
+
+        return verifyToken.process(request);
+    }
+
+    @Benchmark
+    public GetTokenInfoResponse getTokenInfo() throws TException
+    {
+        AuthenticationToken token = anyToken();
+
+        GetTokenInfoRequest request = new GetTokenInfoRequest()
+            .setTokenId(token.tokenId)
+            .setTokenType(token.tokenType);
+
+        return getTokenInfo.process(request);
+    }
+
+    /**
+     * Each invalidated Token has to be created first, so this also includes the cost of {@link #createToken() }.
+     */
+    @Benchmark
+    public InvalidateTokenResponse createThenInvalidateToken() throws TException
+    {
+        AuthenticationToken token = createToken.process(createRequest(createdOwnerId)).getToken();
+
+        return invalidateToken.process(new InvalidateTokenRequest().setToken(token));
+    }
+
+    private AuthenticationToken anyToken()
+    {
+        return tokens[ThreadLocalRandom.current().nextInt(tokens.length)];
+    }
+
+    private static CreateTokenRequest createRequest(String ownerId)
+    {
+        return new CreateTokenRequest()
+            .setOwnerId(ownerId)
+            .setDesiredTokenType(TokenType.APPLICATION);
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import java.io.ByteArrayOutputStream;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.openjdk.jmh.annotations.*;
+import tech.aroma.authentication.service.operations.ModuleAuthenticationOperations;
+import tech.aroma.data.memory.ModuleMemoryDataRepositories;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenType;
+import tech.aroma.thrift.authentication.service.*;
+
+/**
+ * Measures a full request through {@link AuthenticationService.Processor}: the client serializes a
+ * request with {@link TBinaryProtocol}, the Processor reads it and writes a response, and the
+ * response is read back. Transports are in memory, so no time is spent on the network.
+ *
+ * @author SirWellington
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark
+{
+
+    private static final int STORED_TOKENS = 10_000;
+
+    @State(Scope.Benchmark)
+    public static class Service
+    {
+
+        private AuthenticationService.Processor<AuthenticationService.Iface> processor;
+        private AuthenticationToken[] tokens;
+
+        @Setup
+        public void setUp() throws TException
+        {
+            Injector injector = Guice.createInjector(new ModuleMemoryDataRepositories(),
+                                                     new ModuleAuthenticationOperations(),
+                                                     new ModuleAuthenticationService());
+
+            AuthenticationService.Iface service = injector.getInstance(AuthenticationService.Iface.class);
+            processor = new AuthenticationService.Processor<>(service);
+
+            String ownerId = UUID.randomUUID().toString();
+            tokens = new AuthenticationToken[STORED_TOKENS];
+
+            for (int i = 0; i < STORED_TOKENS; ++i)
+            {
+                CreateTokenRequest request = new CreateTokenRequest()
+                    .setOwnerId(ownerId)
+                    .setDesiredTokenType(TokenType.APPLICATION);
+
+                tokens[i] = service.createToken(request).getToken();
+            }
+        }
+
+        AuthenticationToken anyToken()
+        {
+            return tokens[ThreadLocalRandom.current().nextInt(tokens.length)];
+        }
+
+    }
+
+    /**
+     * One client per thread, with buffers that are reused across requests.
+     */
+    @State(Scope.Thread)
+    public static class Connection
+    {
+
+        private final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream(1024);
+        private final ByteArrayOutputStream responseBytes = new ByteArrayOutputStream(1024);
+
+        private final TMemoryInputTransport serverInput = new TMemoryInputTransport();
+        private final TMemoryInputTransport clientInput = new TMemoryInputTransport();
+
+        private final TProtocol serverIn = new TBinaryProtocol(serverInput);
+        private final TProtocol serverOut = new TBinaryProtocol(new TIOStreamTransport(responseBytes));
+
+        private final TProtocol clientIn = new TBinaryProtocol(clientInput);
+
+        private final AuthenticationService.Client client = new AuthenticationService.Client(clientIn,
+                                                                                             new TBinaryProtocol(new TIOStreamTransport(requestBytes)));
+
+        /**
+         * Hands the request the client has written to the Processor, then reads its response into {@code result}.
+         * <p>
+         * The response is read here rather than with the Client's {@code recv_} methods, because libthrift 0.10
+         * prints every response the Client receives to standard out.
+         */
+        <R extends TBase<?, ?>> R exchange(AuthenticationService.Processor<?> processor, R result) throws TException
+        {
+            serverInput.reset(requestBytes.toByteArray());
+            requestBytes.reset();
+
+            processor.process(serverIn, serverOut);
+
+            clientInput.reset(responseBytes.toByteArray());
+            responseBytes.reset();
+
+            TMessage message = clientIn.readMessageBegin();
+
+            if (message.type == TMessageType.EXCEPTION)
+            {
+                TApplicationException failure = new TApplicationException();
+                failure.read(clientIn);
+                throw failure;
+            }
+
+            result.read(clientIn);
+            clientIn.readMessageEnd();
+
+            return result;
+        }
+
+    }
+
+    @Benchmark
+    public VerifyTokenResponse verifyToken(Service service, Connection connection) throws TException
+    {
+        AuthenticationToken token = service.anyToken();
+
+        connection.client.send_verifyToken(new VerifyTokenRequest()
+            .setTokenId(token.tokenId)
+            .setOwnerId(token.ownerId));
+
+        return connection.exchange(service.processor, new AuthenticationService.verifyToken_result()).getSuccess();
+    }
+
+    @Benchmark
+    public GetTokenInfoResponse getTokenInfo(Service service, Connection connection) throws TException
+    {
+        AuthenticationToken token = service.anyToken();
+
+        connection.client.send_getTokenInfo(new GetTokenInfoRequest()
+            .setTokenId(token.tokenId)
+            .setTokenType(token.tokenType));
+
+        return connection.exchange(service.processor, new AuthenticationService.getTokenInfo_result()).getSuccess();
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.StringGenerators.hexadecimalString;
+
+/**
+ * Measures Token IDs created per second by each {@link TokenCreator}, on one thread and on every
+ * processor. Other thread counts can be run with {@code -t <threads>}.
+ *
+ * @author SirWellington
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenCreatorBenchmark
+{
+
+    /**
+     * How {@link TokenCreator#UUID_PLUS_HEX} used to be created, kept for comparison. The generator
+     * relies on JAXB, so this only runs on Java 8.
+     */
+    private static final TokenCreator GENERATED_UUID_PLUS_HEX = () -> TokenCreator.UUID.create() + one(hexadecimalString(2000));
+
+    @Param({ "UUID", "BUFFERED_UUID", "UUID_PLUS_HEX", "GENERATED_UUID_PLUS_HEX" })
+    public String strategy;
+
+    private TokenCreator tokenCreator;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        if ("GENERATED_UUID_PLUS_HEX".equals(strategy))
+        {
+            tokenCreator = GENERATED_UUID_PLUS_HEX;
+        }
+        else
+        {
+            tokenCreator = (TokenCreator) TokenCreator.class.getField(strategy).get(null);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String singleThread()
+    {
+        return tokenCreator.create();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String allThreads()
+    {
+        return tokenCreator.create();
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import javax.inject.Inject;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.aroma.authentication.service.operations.AsyncThriftOperation;
+import tech.aroma.thrift.AromaConstants;
+import tech.aroma.thrift.authentication.service.AuthenticationService;
+import tech.aroma.thrift.authentication.service.CreateTokenRequest;
+import tech.aroma.thrift.authentication.service.CreateTokenResponse;
+import tech.aroma.thrift.authentication.service.GetTokenInfoRequest;
+import tech.aroma.thrift.authentication.service.GetTokenInfoResponse;
+import tech.aroma.thrift.authentication.service.InvalidateTokenRequest;
+import tech.aroma.thrift.authentication.service.InvalidateTokenResponse;
+import tech.aroma.thrift.authentication.service.VerifyTokenRequest;
+import tech.aroma.thrift.authentication.service.VerifyTokenResponse;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+import static tech.aroma.thrift.assertions.AromaAssertions.checkRequestNotNull;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * The non-blocking Implementation of the {@linkplain AuthenticationService.AsyncIface Aroma Authentication Service}.
+ * <p>
+ * Each call returns once its operation has started, and the response is written by whichever thread
+ * completes it, so the server's threads never wait on the repository.
+ *
+ * @author SirWellington
+ */
+@Internal
+@SuppressWarnings({ "rawtypes", "unchecked" })
+final class AsyncAuthenticationServiceImpl implements AuthenticationService.AsyncIface
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(AsyncAuthenticationServiceImpl.class);
+
+    private final AsyncThriftOperation<CreateTokenRequest, CreateTokenResponse> createTokenOperation;
+    private final AsyncThriftOperation<GetTokenInfoRequest, GetTokenInfoResponse> getTokenInfoOperation;
+    private final AsyncThriftOperation<InvalidateTokenRequest, InvalidateTokenResponse> invalidateTokenOperation;
+    private final AsyncThriftOperation<VerifyTokenRequest, VerifyTokenResponse> verifyTokenOperation;
+
+    @Inject
+    AsyncAuthenticationServiceImpl(AsyncThriftOperation<CreateTokenRequest, CreateTokenResponse> createTokenOperation,
+                                   AsyncThriftOperation<GetTokenInfoRequest, GetTokenInfoResponse> getTokenInfoOperation,
+                                   AsyncThriftOperation<InvalidateTokenRequest, InvalidateTokenResponse> invalidateTokenOperation,
+                                   AsyncThriftOperation<VerifyTokenRequest, VerifyTokenResponse> verifyTokenOperation)
+    {
+        checkThat(createTokenOperation,
+                  getTokenInfoOperation,
+                  invalidateTokenOperation,
+                  verifyTokenOperation)
+            .are(notNull());
+
+        this.createTokenOperation = createTokenOperation;
+        this.getTokenInfoOperation = getTokenInfoOperation;
+        this.invalidateTokenOperation = invalidateTokenOperation;
+        this.verifyTokenOperation = verifyTokenOperation;
+    }
+
+    @Override
+    public void getApiVersion(AsyncMethodCallback resultHandler) throws TException
+    {
+        resultHandler.onComplete(AromaConstants.API_VERSION);
+    }
+
+    @Override
+    public void createToken(CreateTokenRequest request, AsyncMethodCallback resultHandler) throws TException
+    {
+        checkRequestNotNull(request);
+
+        reply(createTokenOperation.processAsync(request), resultHandler);
+    }
+
+    @Override
+    public void getTokenInfo(GetTokenInfoRequest request, AsyncMethodCallback resultHandler) throws TException
+    {
+        checkRequestNotNull(request);
+
+        reply(getTokenInfoOperation.processAsync(request), resultHandler);
+    }
+
+    @Override
+    public void invalidateToken(InvalidateTokenRequest request, AsyncMethodCallback resultHandler) throws TException
+    {
+        checkRequestNotNull(request);
+
+        reply(invalidateTokenOperation.processAsync(request), resultHandler);
+    }
+
+    @Override
+    public void verifyToken(VerifyTokenRequest request, AsyncMethodCallback resultHandler) throws TException
+    {
+        checkRequestNotNull(request);
+
+        reply(verifyTokenOperation.processAsync(request), resultHandler);
+    }
+
+    private void reply(CompletableFuture<?> response, AsyncMethodCallback resultHandler)
+    {
+        response.whenComplete((result, ex) ->
+        {
+            if (ex == null)
+            {
+                resultHandler.onComplete(result);
+            }
+            else
+            {
+                resultHandler.onError(toException(ex));
+            }
+        });
+    }
+
+    /*
+     * Thrift only sends declared exceptions back to the caller, and drops the connection for anything else.
+     */
+    private static Exception toException(Throwable ex)
+    {
+        while ((ex instanceof CompletionException || ex instanceof ExecutionException) && ex.getCause() != null)
+        {
+            ex = ex.getCause();
+        }
+
+        if (ex instanceof TException)
+        {
+            return (TException) ex;
+        }
+
+        LOG.error("Unexpected failure while processing a request", ex);
+        return new OperationFailedException("Could not perform operation: " + ex.getMessage());
+    }
+
+}
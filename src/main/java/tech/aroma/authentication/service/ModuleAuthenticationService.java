@@ -18,14 +18,19 @@
 package tech.aroma.authentication.service;
 
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import javax.inject.Singleton;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.authentication.service.data.TokenCreator;
 import tech.aroma.thrift.authentication.service.AuthenticationService;
 
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
 /**
  *
  * @author SirWellington
@@ -34,17 +39,44 @@ public final class ModuleAuthenticationService extends AbstractModule
 {
     private final static Logger LOG = LoggerFactory.getLogger(ModuleAuthenticationService.class);
 
+    private final SignedTokens signedTokens;
+
+    public ModuleAuthenticationService()
+    {
+        this(SignedTokens.disabled());
+    }
+
+    /**
+     * @param signedTokens Used to issue and verify signed Tokens. Pass {@link SignedTokens#disabled() } to issue
+     *                     plain Token IDs.
+     */
+    public ModuleAuthenticationService(SignedTokens signedTokens)
+    {
+        checkThat(signedTokens).is(notNull());
+
+        this.signedTokens = signedTokens;
+    }
+
     @Override
     protected void configure()
     {
         bind(AuthenticationService.Iface.class).to(AuthenticationServiceImpl.class).in(Singleton.class);
+        bind(AuthenticationService.AsyncIface.class).to(AsyncAuthenticationServiceImpl.class).in(Singleton.class);
+        bind(SignedTokens.class).toInstance(signedTokens);
     }
     
     @Singleton
     @Provides
     TokenCreator provideTokenCreator()
     {
-        return TokenCreator.UUID;
+        return TokenCreator.BUFFERED_UUID;
+    }
+
+    @Singleton
+    @Provides
+    MetricRegistry provideMetricRegistry()
+    {
+        return new MetricRegistry();
     }
 
 }
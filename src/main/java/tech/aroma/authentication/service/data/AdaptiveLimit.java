@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.lessThanOrEqualTo;
+
+/**
+ * A limit on concurrent calls that adapts to how quickly they complete, in the manner of a gradient
+ * algorithm.
+ * <p>
+ * Once per window, the average latency of the window is compared with the long-term average. While
+ * calls are no slower than {@code tolerance} times the long-term average, the limit grows by its square
+ * root whenever at least half of it was in use. When they are slower, the limit shrinks in proportion,
+ * by up to half per window. A window in which calls failed shrinks the limit by at least a tenth, however
+ * fast they were.
+ * <p>
+ * The long-term average follows the windows slowly, so a sudden slowdown is acted on immediately,
+ * while a lasting change in latency is eventually accepted as the new normal.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class AdaptiveLimit
+{
+
+    static final int DEFAULT_MIN_LIMIT = 8;
+    static final double DEFAULT_TOLERANCE = 2.0;
+    static final Duration DEFAULT_WINDOW = Duration.ofSeconds(1);
+
+    /** How much each window moves the long-term average. */
+    private static final double LONG_TERM_WEIGHT = 0.05;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final long windowNanos;
+    private final Clock clock;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+
+    private final LongAdder windowLatency = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final AtomicInteger windowPeak = new AtomicInteger();
+    private volatile boolean windowFailed;
+    private volatile long windowStart;
+
+    private double longTermLatency = Double.NaN;
+
+    /**
+     * Starts at {@code maxLimit}, so that the limit stays out of the way until calls slow down.
+     */
+    AdaptiveLimit(int maxLimit)
+    {
+        this(Math.min(DEFAULT_MIN_LIMIT, maxLimit), maxLimit, DEFAULT_TOLERANCE, DEFAULT_WINDOW, Clock.defaultClock());
+    }
+
+    AdaptiveLimit(int minLimit, int maxLimit, double tolerance, Duration window, Clock clock)
+    {
+        checkThat(window, clock)
+            .are(notNull());
+
+        checkThat(minLimit)
+            .is(greaterThan(0))
+            .is(lessThanOrEqualTo(maxLimit));
+
+        checkThat(tolerance)
+            .usingMessage("tolerance must be > 1")
+            .is(greaterThan(1.0));
+
+        checkThat(window.toNanos())
+            .usingMessage("window must be > 0")
+            .is(greaterThan(0L));
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.windowNanos = window.toNanos();
+        this.clock = clock;
+        this.limit = maxLimit;
+        this.windowStart = clock.getTick();
+    }
+
+    /**
+     * @return Whether the call may start. Every call that may must {@linkplain #release(long, boolean) release}
+     *         once it completes.
+     */
+    boolean tryAcquire()
+    {
+        while (true)
+        {
+            int current = inFlight.get();
+
+            if (current >= limit)
+            {
+                return false;
+            }
+
+            if (inFlight.compareAndSet(current, current + 1))
+            {
+                windowPeak.accumulateAndGet(current + 1, Math::max);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param latencyNanos How long the call took.
+     * @param failed       Whether the call failed in a way that suggests storage is overloaded.
+     */
+    void release(long latencyNanos, boolean failed)
+    {
+        inFlight.decrementAndGet();
+
+        windowLatency.add(latencyNanos);
+        windowSamples.increment();
+
+        if (failed)
+        {
+            windowFailed = true;
+        }
+
+        if (clock.getTick() - windowStart >= windowNanos)
+        {
+            endWindow();
+        }
+    }
+
+    int limit()
+    {
+        return limit;
+    }
+
+    int inFlight()
+    {
+        return inFlight.get();
+    }
+
+    /**
+     * @return The time on the clock the limit measures windows with, in nanoseconds.
+     */
+    long now()
+    {
+        return clock.getTick();
+    }
+
+    private synchronized void endWindow()
+    {
+        long now = clock.getTick();
+
+        if (now - windowStart < windowNanos)
+        {
+            return;
+        }
+
+        windowStart = now;
+
+        long samples = windowSamples.sumThenReset();
+        long latency = windowLatency.sumThenReset();
+        int peak = windowPeak.getAndSet(inFlight.get());
+        boolean failed = windowFailed;
+        windowFailed = false;
+
+        if (samples == 0)
+        {
+            return;
+        }
+
+        double shortTermLatency = (double) latency / samples;
+
+        if (Double.isNaN(longTermLatency))
+        {
+            longTermLatency = shortTermLatency;
+        }
+
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, tolerance * longTermLatency / Math.max(1.0, shortTermLatency)));
+        double newLimit;
+
+        if (failed)
+        {
+            newLimit = limit * Math.min(gradient, BACKOFF_RATIO);
+        }
+        else if (gradient < 1.0)
+        {
+            newLimit = limit * gradient;
+        }
+        else if (peak * 2 >= limit)
+        {
+            newLimit = limit + Math.sqrt(limit);
+        }
+        else
+        {
+            newLimit = limit;
+        }
+
+        longTermLatency = longTermLatency * (1 - LONG_TERM_WEIGHT) + shortTermLatency * LONG_TERM_WEIGHT;
+        limit = (int) Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.google.inject.ImplementedBy;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+
+/**
+ * The non-blocking counterpart of {@link TokenRepository}. Each call returns as soon as the work is
+ * started, and its result completes once storage answers, so a few threads can keep many calls in flight.
+ * <p>
+ * Failures complete the result exceptionally, with the same exceptions {@link TokenRepository} would throw.
+ * Dependent stages run on whichever thread completes the result, such as a Cassandra I/O thread, and
+ * so must not block.
+ *
+ * @author SirWellington
+ */
+@ImplementedBy(BlockingAsyncTokenRepository.class)
+public interface AsyncTokenRepository
+{
+
+    /**
+     * @return The Token, or fails with an {@link tech.aroma.thrift.exceptions.InvalidTokenException} if it does not exist.
+     */
+    CompletableFuture<AuthenticationToken> getTokenAsync(String tokenId);
+
+    CompletableFuture<Void> saveTokenAsync(AuthenticationToken token);
+
+    CompletableFuture<Void> deleteTokenAsync(String tokenId);
+
+    CompletableFuture<List<AuthenticationToken>> getTokensBelongingToAsync(String ownerId);
+
+    default CompletableFuture<Boolean> doesTokenBelongToAsync(String tokenId, String ownerId)
+    {
+        return getTokenAsync(tokenId).thenApply(token -> Objects.equals(token.ownerId, ownerId));
+    }
+
+    default CompletableFuture<Void> deleteTokensBelongingToAsync(String ownerId)
+    {
+        return getTokensBelongingToAsync(ownerId).thenCompose(tokens ->
+        {
+            CompletableFuture<?>[] deletions = tokens.stream()
+                .map(token -> deleteTokenAsync(token.tokenId))
+                .toArray(CompletableFuture[]::new);
+
+            return CompletableFuture.allOf(deletions);
+        });
+    }
+
+}
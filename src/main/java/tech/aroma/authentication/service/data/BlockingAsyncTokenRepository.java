@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import javax.inject.Inject;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * Runs a blocking {@link TokenRepository} on an {@link Executor}, for storage that has no
+ * non-blocking client of its own.
+ * <p>
+ * Storage that never waits on the network, such as memory, can run on the calling thread instead,
+ * with {@link com.google.common.util.concurrent.MoreExecutors#directExecutor() }.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class BlockingAsyncTokenRepository implements AsyncTokenRepository
+{
+
+    static final int DEFAULT_THREADS = 32;
+
+    private static final ExecutorService DEFAULT_EXECUTOR = createDefaultExecutor();
+
+    private final TokenRepository repository;
+    private final Executor executor;
+
+    @Inject
+    BlockingAsyncTokenRepository(TokenRepository repository)
+    {
+        this(repository, DEFAULT_EXECUTOR);
+    }
+
+    BlockingAsyncTokenRepository(TokenRepository repository, Executor executor)
+    {
+        checkThat(repository, executor)
+            .are(notNull());
+
+        this.repository = repository;
+        this.executor = executor;
+    }
+
+    /**
+     * @return The repository, run on the calling thread. Only for repositories that never wait on the network.
+     */
+    static BlockingAsyncTokenRepository inline(TokenRepository repository)
+    {
+        return new BlockingAsyncTokenRepository(repository, MoreExecutors.directExecutor());
+    }
+
+    @Override
+    public CompletableFuture<AuthenticationToken> getTokenAsync(String tokenId)
+    {
+        return call(() -> repository.getToken(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveTokenAsync(AuthenticationToken token)
+    {
+        return call(() ->
+        {
+            repository.saveToken(token);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteTokenAsync(String tokenId)
+    {
+        return call(() ->
+        {
+            repository.deleteToken(tokenId);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<AuthenticationToken>> getTokensBelongingToAsync(String ownerId)
+    {
+        return call(() -> repository.getTokensBelongingTo(ownerId));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> doesTokenBelongToAsync(String tokenId, String ownerId)
+    {
+        return call(() -> repository.doesTokenBelongTo(tokenId, ownerId));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteTokensBelongingToAsync(String ownerId)
+    {
+        return call(() ->
+        {
+            repository.deleteTokensBelongingTo(ownerId);
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> call(RepositoryCall<T> call)
+    {
+        return CompletableFuture.supplyAsync(() ->
+        {
+            try
+            {
+                return call.run();
+            }
+            catch (Exception ex)
+            {
+                throw new CompletionException(ex);
+            }
+        }, executor);
+    }
+
+    private static ExecutorService createDefaultExecutor()
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREADS,
+                                                             DEFAULT_THREADS,
+                                                             60,
+                                                             SECONDS,
+                                                             new LinkedBlockingQueue<>(),
+                                                             new ThreadFactoryBuilder()
+                                                                 .setNameFormat("token-repository-%d")
+                                                                 .setDaemon(true)
+                                                                 .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @FunctionalInterface
+    private interface RepositoryCall<T>
+    {
+
+        T run() throws Exception;
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Reads and writes the file that the Token Cache's hot set is kept in across restarts.
+ * <p>
+ * Only each Token's ID and expiration are kept; the Tokens themselves are read again from storage
+ * when the snapshot is restored.
+ * <p>
+ * Layout, in bytes:
+ * <pre>
+ *  0  long  magic
+ *  8  int   version
+ * 12  int   number of Tokens
+ * 16  long  time the snapshot was written
+ * 24        for each Token: a short length of its ID, its ID in UTF-8, and a long time of expiration
+ * end int   CRC-32 of everything before it
+ * </pre>
+ * The file is written beside its final name and then moved into place, so a crash while writing
+ * leaves the previous snapshot intact. Since the IDs are enough to use the Tokens, the file is only
+ * readable by its owner, where the file system allows it.
+ *
+ * @author SirWellington
+ */
+@Internal
+final class CacheSnapshotFile
+{
+
+    private static final long MAGIC = 0x41524f4d41534e50L;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 24;
+    private static final int CHECKSUM_BYTES = 4;
+
+    private CacheSnapshotFile() throws IllegalAccessException
+    {
+        throw new IllegalAccessException("cannot instantiate");
+    }
+
+    /**
+     * Writes the ID and expiration of each Token. Tokens without an ID, or with an ID too long to
+     * record, are skipped.
+     *
+     * @return The number of Tokens written.
+     */
+    static int write(Path file, Collection<AuthenticationToken> tokens, long timeWritten) throws IOException
+    {
+        List<byte[]> ids = new ArrayList<>(tokens.size());
+        List<Long> expirations = new ArrayList<>(tokens.size());
+
+        for (AuthenticationToken token : tokens)
+        {
+            if (token.tokenId == null)
+            {
+                continue;
+            }
+
+            byte[] id = token.tokenId.getBytes(UTF_8);
+
+            if (id.length <= Short.MAX_VALUE)
+            {
+                ids.add(id);
+                expirations.add(token.timeOfExpiration);
+            }
+        }
+
+        Path temporary = createOwnerOnly(file.resolveSibling(file.getFileName() + ".tmp"));
+        CRC32 crc = new CRC32();
+
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)), crc)))
+        {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ids.size());
+            out.writeLong(timeWritten);
+
+            for (int i = 0; i < ids.size(); ++i)
+            {
+                out.writeShort(ids.get(i).length);
+                out.write(ids.get(i));
+                out.writeLong(expirations.get(i));
+            }
+
+            out.writeInt((int) crc.getValue());
+        }
+
+        Files.move(temporary, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        return ids.size();
+    }
+
+    /**
+     * Creates an empty file that only its owner can read and write, replacing any left over from before.
+     */
+    private static Path createOwnerOnly(Path file) throws IOException
+    {
+        Files.deleteIfExists(file);
+
+        if (!file.getFileSystem().supportedFileAttributeViews().contains("posix"))
+        {
+            return Files.createFile(file);
+        }
+
+        Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rw-------");
+        FileAttribute<Set<PosixFilePermission>> permissions = PosixFilePermissions.asFileAttribute(ownerOnly);
+
+        return Files.createFile(file, permissions);
+    }
+
+    /**
+     * @return Tokens holding only the ID and the time of expiration that were written.
+     * @throws IOException If the file is not a snapshot, or is damaged. Nothing is returned from a damaged file.
+     */
+    static List<AuthenticationToken> read(Path file) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(file);
+
+        if (bytes.length < HEADER_BYTES + CHECKSUM_BYTES)
+        {
+            throw new IOException("Not a Cache Snapshot: " + file);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        if (buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION)
+        {
+            throw new IOException("Not a Cache Snapshot: " + file);
+        }
+
+        int checksumPosition = bytes.length - CHECKSUM_BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, checksumPosition);
+
+        if ((int) crc.getValue() != buffer.getInt(checksumPosition))
+        {
+            throw new IOException("Cache Snapshot is damaged: " + file);
+        }
+
+        int count = buffer.getInt(12);
+        buffer.position(HEADER_BYTES);
+        buffer.limit(checksumPosition);
+
+        List<AuthenticationToken> tokens = new ArrayList<>(Math.max(0, Math.min(count, bytes.length / 10)));
+
+        try
+        {
+            for (int i = 0; i < count; ++i)
+            {
+                byte[] id = new byte[buffer.getShort()];
+                buffer.get(id);
+
+                tokens.add(new AuthenticationToken()
+                    .setTokenId(new String(id, UTF_8))
+                    .setTimeOfExpiration(buffer.getLong()));
+            }
+        }
+        catch (BufferUnderflowException | NegativeArraySizeException ex)
+        {
+            throw new IOException("Cache Snapshot is damaged: " + file, ex);
+        }
+
+        return tokens;
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.google.common.base.Strings;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.functions.TimeFunctions;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+
+/**
+ * Keeps the Token Cache's hot set across restarts, so that a restarted node does not send every read to
+ * storage until its cache fills up again.
+ * <p>
+ * The IDs of the cached Tokens are {@linkplain #save() saved} to a local file on shutdown, and
+ * {@linkplain #restoreInBackground() restored} at startup by reading each Token that has not expired
+ * through the cache. Reading them again, rather than restoring the saved copies, means that Tokens
+ * deleted while the node was down are not answered from memory.
+ *
+ * @author SirWellington
+ */
+@ThreadSafe
+public final class CacheSnapshots
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(CacheSnapshots.class);
+
+    static final int DEFAULT_PARALLELISM = 16;
+
+    private final Path file;
+    private final CachingTokenRepository cache;
+    private final int parallelism;
+
+    private CacheSnapshots()
+    {
+        this.file = null;
+        this.cache = null;
+        this.parallelism = 0;
+    }
+
+    /**
+     * @param parallelism How many Tokens are read from storage at once while restoring.
+     */
+    CacheSnapshots(Path file, CachingTokenRepository cache, int parallelism)
+    {
+        checkThat(file, cache).are(notNull());
+        checkThat(parallelism)
+            .usingMessage("parallelism must be > 0")
+            .is(greaterThan(0));
+
+        this.file = file;
+        this.cache = cache;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return An instance that neither saves nor restores anything.
+     */
+    public static CacheSnapshots disabled()
+    {
+        return new CacheSnapshots();
+    }
+
+    public boolean isEnabled()
+    {
+        return file != null;
+    }
+
+    /**
+     * Writes the IDs of the Tokens in the cache to the snapshot file, replacing the previous snapshot.
+     * Failures are logged, since there is nothing else to be done about them on shutdown.
+     */
+    public void save()
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+
+        try
+        {
+            int count = CacheSnapshotFile.write(file, cache.hotTokens(), System.currentTimeMillis());
+            LOG.info("Saved {} cached Tokens to {}", count, file);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            LOG.error("Failed to save the Token Cache to {}", file, ex);
+        }
+    }
+
+    /**
+     * Reads the Tokens in the snapshot file back into the cache, on a background thread, skipping those that
+     * have expired. A missing or damaged snapshot restores nothing.
+     *
+     * @return The number of Tokens restored, once the restore is done.
+     */
+    public CompletableFuture<Integer> restoreInBackground()
+    {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+
+        if (!isEnabled())
+        {
+            result.complete(0);
+            return result;
+        }
+
+        Thread thread = new Thread(() -> result.complete(restore()), "cache-snapshot-restore");
+        thread.setDaemon(true);
+        thread.start();
+
+        return result;
+    }
+
+    int restore()
+    {
+        List<AuthenticationToken> tokens;
+
+        try
+        {
+            tokens = CacheSnapshotFile.read(file);
+        }
+        catch (NoSuchFileException ex)
+        {
+            LOG.info("No Token Cache snapshot at {}. Starting with an empty cache.", file);
+            return 0;
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            LOG.warn("Could not read the Token Cache snapshot at {}. Starting with an empty cache.", file, ex);
+            return 0;
+        }
+
+        LOG.info("Restoring up to {} Tokens into the cache from {}", tokens.size(), file);
+
+        Semaphore inFlight = new Semaphore(parallelism);
+        AtomicInteger restored = new AtomicInteger();
+
+        try
+        {
+            for (AuthenticationToken token : tokens)
+            {
+                if (Strings.isNullOrEmpty(token.tokenId) || !TimeFunctions.isInTheFuture(token.timeOfExpiration))
+                {
+                    continue;
+                }
+
+                inFlight.acquire();
+
+                readQuietly(token.tokenId).whenComplete((read, ex) ->
+                {
+                    if (ex == null)
+                    {
+                        restored.incrementAndGet();
+                    }
+
+                    inFlight.release();
+                });
+            }
+
+            inFlight.acquire(parallelism);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while restoring the Token Cache");
+        }
+
+        LOG.info("Restored {} Tokens into the cache", restored.get());
+        return restored.get();
+    }
+
+    /*
+     * Tokens deleted since the snapshot fail to read, which is expected.
+     */
+    private CompletableFuture<AuthenticationToken> readQuietly(String tokenId)
+    {
+        try
+        {
+            return cache.getTokenAsync(tokenId);
+        }
+        catch (RuntimeException ex)
+        {
+            CompletableFuture<AuthenticationToken> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+import org.apache.thrift.TException;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.functions.TimeFunctions;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern.Role.DECORATOR;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+
+/**
+ * A bounded, read-through cache in front of a {@link TokenRepository}.
+ * <p>
+ * Entries are never served past their token's {@code timeOfExpiration}, nor longer than
+ * the {@code maximumAge} of the cache, which bounds how long another node's invalidation can go unseen
+ * when it is not received over the {@link InvalidationBus}. Saves and deletes that pass through here
+ * invalidate the entry.
+ * <p>
+ * Both the blocking and the non-blocking calls share the same entries.
+ *
+ * @author SirWellington
+ */
+@Internal
+@DecoratorPattern(role = DECORATOR)
+final class CachingTokenRepository implements TokenRepository, AsyncTokenRepository, InvalidationListener
+{
+
+    /** A power of two. */
+    private static final int INVALIDATION_STRIPES = 1024;
+
+    private final TokenRepository delegate;
+    private final AsyncTokenRepository asyncDelegate;
+    private final Cache<String, AuthenticationToken> cache;
+
+    /*
+     * Bumped on every invalidation, so that a read which raced with an invalidation
+     * does not put back a token that was just saved or deleted. Invalidations of a single Token
+     * only bump its stripe, so that they do not keep unrelated reads from being cached.
+     */
+    private final AtomicLongArray tokenInvalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+    private final AtomicLong invalidationsOfMany = new AtomicLong();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    CachingTokenRepository(TokenRepository delegate, long maximumSize, Duration maximumAge, MetricRegistry metrics)
+    {
+        this(delegate, BlockingAsyncTokenRepository.inline(delegate), maximumSize, maximumAge, metrics);
+    }
+
+    CachingTokenRepository(TokenRepository delegate,
+                           AsyncTokenRepository asyncDelegate,
+                           long maximumSize,
+                           Duration maximumAge,
+                           MetricRegistry metrics)
+    {
+        checkThat(delegate, asyncDelegate, maximumAge, metrics)
+            .are(notNull());
+
+        checkThat(maximumSize)
+            .usingMessage("cache size must be > 0")
+            .is(greaterThan(0L));
+
+        this.delegate = delegate;
+        this.asyncDelegate = asyncDelegate;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(maximumAge.toMillis(), MILLISECONDS)
+            .removalListener(this::onRemoval)
+            .build();
+
+        this.hits = metrics.counter(MetricRegistry.name(CachingTokenRepository.class, "hits"));
+        this.misses = metrics.counter(MetricRegistry.name(CachingTokenRepository.class, "misses"));
+        this.evictions = metrics.counter(MetricRegistry.name(CachingTokenRepository.class, "evictions"));
+        metrics.register(MetricRegistry.name(CachingTokenRepository.class, "size"), (Gauge<Long>) cache::size);
+    }
+
+    @Override
+    public boolean containsToken(String tokenId) throws TException
+    {
+        if (getFreshEntry(tokenId) != null)
+        {
+            return true;
+        }
+
+        return delegate.containsToken(tokenId);
+    }
+
+    @Override
+    public AuthenticationToken getToken(String tokenId) throws TException, InvalidTokenException
+    {
+        AuthenticationToken cached = getFreshEntry(tokenId);
+
+        if (cached != null)
+        {
+            hits.inc();
+            //Callers are free to modify the token they receive, so they never get the cached instance.
+            return cached.deepCopy();
+        }
+
+        misses.inc();
+
+        long invalidationsBeforeRead = invalidationsOf(tokenId);
+        AuthenticationToken token = delegate.getToken(tokenId);
+        populate(tokenId, token, invalidationsBeforeRead);
+
+        return token;
+    }
+
+    @Override
+    public void saveToken(AuthenticationToken token) throws TException
+    {
+        try
+        {
+            delegate.saveToken(token);
+        }
+        finally
+        {
+            if (token != null)
+            {
+                invalidate(token.tokenId);
+            }
+        }
+    }
+
+    @Override
+    public List<AuthenticationToken> getTokensBelongingTo(String ownerId) throws TException
+    {
+        return delegate.getTokensBelongingTo(ownerId);
+    }
+
+    @Override
+    public void deleteToken(String tokenId) throws TException
+    {
+        try
+        {
+            delegate.deleteToken(tokenId);
+        }
+        finally
+        {
+            invalidate(tokenId);
+        }
+    }
+
+    @Override
+    public CompletableFuture<AuthenticationToken> getTokenAsync(String tokenId)
+    {
+        AuthenticationToken cached = getFreshEntry(tokenId);
+
+        if (cached != null)
+        {
+            hits.inc();
+            return CompletableFuture.completedFuture(cached.deepCopy());
+        }
+
+        misses.inc();
+
+        long invalidationsBeforeRead = invalidationsOf(tokenId);
+
+        return asyncDelegate.getTokenAsync(tokenId)
+            .thenApply(token ->
+            {
+                populate(tokenId, token, invalidationsBeforeRead);
+                return token;
+            });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveTokenAsync(AuthenticationToken token)
+    {
+        return asyncDelegate.saveTokenAsync(token)
+            .whenComplete((result, ex) ->
+            {
+                if (token != null)
+                {
+                    invalidate(token.tokenId);
+                }
+            });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteTokenAsync(String tokenId)
+    {
+        return asyncDelegate.deleteTokenAsync(tokenId)
+            .whenComplete((result, ex) -> invalidate(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<List<AuthenticationToken>> getTokensBelongingToAsync(String ownerId)
+    {
+        return asyncDelegate.getTokensBelongingToAsync(ownerId);
+    }
+
+    @Override
+    public void onTokenInvalidated(String tokenId, long timeOfExpiration)
+    {
+        invalidate(tokenId);
+    }
+
+    @Override
+    public void onOwnerInvalidated(String ownerId)
+    {
+        if (Strings.isNullOrEmpty(ownerId))
+        {
+            return;
+        }
+
+        invalidationsOfMany.incrementAndGet();
+        cache.asMap().values().removeIf(token -> ownerId.equals(token.ownerId));
+    }
+
+    @Override
+    public void onInvalidationsMissed()
+    {
+        invalidationsOfMany.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    void invalidate(String tokenId)
+    {
+        if (Strings.isNullOrEmpty(tokenId))
+        {
+            return;
+        }
+
+        tokenInvalidations.incrementAndGet(stripeOf(tokenId));
+        cache.invalidate(tokenId);
+    }
+
+    long size()
+    {
+        return cache.size();
+    }
+
+    /**
+     * @return The cached Tokens that have not expired. They must not be modified.
+     */
+    List<AuthenticationToken> hotTokens()
+    {
+        return cache.asMap()
+            .values()
+            .stream()
+            .filter(token -> TimeFunctions.isInTheFuture(token.timeOfExpiration))
+            .collect(Collectors.toList());
+    }
+
+    private AuthenticationToken getFreshEntry(String tokenId)
+    {
+        if (Strings.isNullOrEmpty(tokenId))
+        {
+            return null;
+        }
+
+        AuthenticationToken token = cache.getIfPresent(tokenId);
+
+        if (token == null)
+        {
+            return null;
+        }
+
+        if (TimeFunctions.isInThePast(token.timeOfExpiration))
+        {
+            cache.invalidate(tokenId);
+            return null;
+        }
+
+        return token;
+    }
+
+    private void populate(String tokenId, AuthenticationToken token, long invalidationsBeforeRead)
+    {
+        if (!isCacheable(token))
+        {
+            return;
+        }
+
+        cache.put(tokenId, token.deepCopy());
+
+        if (invalidationsOf(tokenId) != invalidationsBeforeRead)
+        {
+            cache.invalidate(tokenId);
+        }
+    }
+
+    /**
+     * @return A count that changes whenever the Token may have been invalidated.
+     */
+    private long invalidationsOf(String tokenId)
+    {
+        return invalidationsOfMany.get() + tokenInvalidations.get(stripeOf(tokenId));
+    }
+
+    static int stripeOf(String tokenId)
+    {
+        int hash = Objects.hashCode(tokenId);
+        return (hash ^ (hash >>> 16)) & (INVALIDATION_STRIPES - 1);
+    }
+
+    private boolean isCacheable(AuthenticationToken token)
+    {
+        return token != null &&
+               !Strings.isNullOrEmpty(token.tokenId) &&
+               token.isSetTimeOfExpiration() &&
+               TimeFunctions.isInTheFuture(token.timeOfExpiration);
+    }
+
+    private void onRemoval(RemovalNotification<String, AuthenticationToken> notification)
+    {
+        if (notification.wasEvicted())
+        {
+            evictions.inc();
+        }
+    }
+
+}
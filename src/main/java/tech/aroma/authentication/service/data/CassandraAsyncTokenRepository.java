@@ -0,0 +1,407 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.PagingStateException;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.inject.Inject;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenStatus;
+import tech.aroma.thrift.authentication.TokenType;
+import tech.aroma.thrift.exceptions.InvalidArgumentException;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static com.datastax.driver.core.querybuilder.QueryBuilder.eq;
+import static tech.aroma.thrift.assertions.AromaAssertions.legalToken;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.nonEmptyString;
+import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.validUUID;
+
+/**
+ * Reads and writes the Tokens Tables with the Cassandra driver's {@code executeAsync}, so no thread
+ * waits on the Cluster.
+ * <p>
+ * Uses the same tables, columns, and statements as {@code tech.aroma.data.cassandra.CassandraTokenRepository},
+ * so Tokens written by either are read by the other.
+ * <p>
+ * Also pages through an Owner's partition of the {@code Tokens_By_Owner} Table, using the driver's
+ * paging state as the place to pick up from.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class CassandraAsyncTokenRepository implements AsyncTokenRepository, OwnerTokenPager
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(CassandraAsyncTokenRepository.class);
+
+    static final String TABLE_NAME = "Tokens";
+    static final String TABLE_NAME_BY_OWNER = "Tokens_By_Owner";
+
+    static final String TOKEN_ID = "token_id";
+    static final String OWNER_ID = "owner_id";
+    static final String OWNER_NAME = "owner_name";
+    static final String ORGANIZATION_ID = "organization_id";
+    static final String TIME_OF_CREATION = "time_of_creation";
+    static final String TIME_OF_EXPIRATION = "time_of_expiration";
+    static final String TOKEN_TYPE = "token_type";
+    static final String TOKEN_STATUS = "token_status";
+
+    private static final int MAX_TOKENS_PER_OWNER = 1000;
+    private static final int PAGE_SIZE = 500;
+
+    private final Session cassandra;
+
+    @Inject
+    CassandraAsyncTokenRepository(Session cassandra)
+    {
+        checkThat(cassandra).is(notNull());
+
+        this.cassandra = cassandra;
+    }
+
+    @Override
+    public CompletableFuture<AuthenticationToken> getTokenAsync(String tokenId)
+    {
+        UUID id;
+
+        try
+        {
+            id = checkTokenId(tokenId);
+        }
+        catch (TException ex)
+        {
+            return failed(ex);
+        }
+
+        Statement query = QueryBuilder
+            .select()
+            .all()
+            .from(TABLE_NAME)
+            .where(eq(TOKEN_ID, id));
+
+        return execute(query).thenApply(results ->
+        {
+            Row row = results.one();
+
+            if (row == null)
+            {
+                throw new CompletionException(new InvalidTokenException("Token does not exist"));
+            }
+
+            return toToken(row);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveTokenAsync(AuthenticationToken token)
+    {
+        Statement insert;
+
+        try
+        {
+            insert = createStatementToInsert(token);
+        }
+        catch (TException ex)
+        {
+            return failed(ex);
+        }
+
+        return execute(insert).thenApply(results -> null);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteTokenAsync(String tokenId)
+    {
+        return getTokenAsync(tokenId)
+            .thenCompose(token ->
+            {
+                UUID id = UUID.fromString(token.tokenId);
+                UUID ownerId = UUID.fromString(token.ownerId);
+
+                BatchStatement batch = new BatchStatement();
+
+                batch.add(QueryBuilder
+                    .delete()
+                    .all()
+                    .from(TABLE_NAME)
+                    .where(eq(TOKEN_ID, id)));
+
+                batch.add(QueryBuilder
+                    .delete()
+                    .all()
+                    .from(TABLE_NAME_BY_OWNER)
+                    .where(eq(OWNER_ID, ownerId))
+                    .and(eq(TOKEN_ID, id)));
+
+                return execute(batch);
+            })
+            .thenApply(results -> null);
+    }
+
+    @Override
+    public CompletableFuture<List<AuthenticationToken>> getTokensBelongingToAsync(String ownerId)
+    {
+        UUID owner;
+
+        try
+        {
+            owner = checkOwnerId(ownerId);
+        }
+        catch (TException ex)
+        {
+            return failed(ex);
+        }
+
+        //Fewer rows than a single page, so reading them never blocks on another fetch.
+        Statement query = QueryBuilder
+            .select()
+            .all()
+            .from(TABLE_NAME_BY_OWNER)
+            .where(eq(OWNER_ID, owner))
+            .limit(MAX_TOKENS_PER_OWNER);
+
+        return execute(query).thenApply(results ->
+        {
+            List<AuthenticationToken> tokens = new ArrayList<>();
+
+            for (Row row : results)
+            {
+                tokens.add(toToken(row));
+            }
+
+            LOG.debug("Found {} tokens owned by {}", tokens.size(), ownerId);
+            return tokens;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Page> getPage(String ownerId, String pagingState)
+    {
+        Statement query;
+
+        try
+        {
+            query = QueryBuilder
+                .select()
+                .all()
+                .from(TABLE_NAME_BY_OWNER)
+                .where(eq(OWNER_ID, checkOwnerId(ownerId)))
+                .setFetchSize(PAGE_SIZE);
+
+            if (pagingState != null)
+            {
+                query.setPagingState(PagingState.fromString(pagingState));
+            }
+        }
+        catch (TException ex)
+        {
+            return failed(ex);
+        }
+        catch (PagingStateException | IllegalArgumentException ex)
+        {
+            return failed(new InvalidArgumentException("Invalid paging state: " + ex.getMessage()));
+        }
+
+        return execute(query).thenApply(results ->
+        {
+            //Only the rows already fetched, so that reading them never blocks on the next page.
+            int available = results.getAvailableWithoutFetching();
+            List<AuthenticationToken> tokens = new ArrayList<>(available);
+
+            for (int i = 0; i < available; ++i)
+            {
+                tokens.add(toToken(results.one()));
+            }
+
+            PagingState next = results.getExecutionInfo().getPagingState();
+            return new Page(tokens, next == null ? null : next.toString());
+        });
+    }
+
+    private CompletableFuture<ResultSet> execute(Statement statement)
+    {
+        CompletableFuture<ResultSet> result = new CompletableFuture<>();
+
+        Futures.addCallback(cassandra.executeAsync(statement), new FutureCallback<ResultSet>()
+        {
+            @Override
+            public void onSuccess(ResultSet results)
+            {
+                result.complete(results);
+            }
+
+            @Override
+            public void onFailure(Throwable ex)
+            {
+                LOG.error("Failed to execute CQL Statement: {}", statement, ex);
+                result.completeExceptionally(new OperationFailedException("Could not perform operation: " + ex.getMessage()));
+            }
+        }, directExecutor());
+
+        return result;
+    }
+
+    private Statement createStatementToInsert(AuthenticationToken token) throws TException
+    {
+        checkThat(token)
+            .throwing(InvalidArgumentException.class)
+            .is(legalToken());
+
+        UUID tokenId = checkTokenId(token.tokenId);
+        UUID ownerId = UUID.fromString(token.ownerId);
+        UUID organizationId = null;
+
+        if (!Strings.isNullOrEmpty(token.organizationId))
+        {
+            checkThat(token.organizationId)
+                .throwing(InvalidArgumentException.class)
+                .usingMessage("token organizationId must be a UUID type")
+                .is(validUUID());
+
+            organizationId = UUID.fromString(token.organizationId);
+        }
+
+        String tokenType = token.tokenType == null ? null : token.tokenType.toString();
+        String tokenStatus = token.status == null ? null : token.status.toString();
+
+        BatchStatement batch = new BatchStatement();
+
+        batch.add(QueryBuilder
+            .insertInto(TABLE_NAME)
+            .value(TOKEN_ID, tokenId)
+            .value(OWNER_ID, ownerId)
+            .value(ORGANIZATION_ID, organizationId)
+            .value(OWNER_NAME, token.ownerName)
+            .value(TIME_OF_EXPIRATION, token.timeOfExpiration)
+            .value(TIME_OF_CREATION, token.timeOfCreation)
+            .value(TOKEN_TYPE, tokenType)
+            .value(TOKEN_STATUS, tokenStatus));
+
+        batch.add(QueryBuilder
+            .insertInto(TABLE_NAME_BY_OWNER)
+            .value(OWNER_ID, ownerId)
+            .value(TOKEN_ID, tokenId)
+            .value(ORGANIZATION_ID, organizationId)
+            .value(OWNER_NAME, token.ownerName)
+            .value(TIME_OF_EXPIRATION, token.timeOfExpiration)
+            .value(TIME_OF_CREATION, token.timeOfCreation)
+            .value(TOKEN_TYPE, tokenType)
+            .value(TOKEN_STATUS, tokenStatus));
+
+        return batch;
+    }
+
+    private static UUID checkOwnerId(String ownerId) throws InvalidArgumentException
+    {
+        checkThat(ownerId)
+            .throwing(InvalidArgumentException.class)
+            .usingMessage("ownerId missing")
+            .is(nonEmptyString())
+            .usingMessage("ownerId must be a UUID type")
+            .is(validUUID());
+
+        return UUID.fromString(ownerId);
+    }
+
+    private static UUID checkTokenId(String tokenId) throws InvalidArgumentException
+    {
+        checkThat(tokenId)
+            .throwing(InvalidArgumentException.class)
+            .usingMessage("missing tokenId")
+            .is(nonEmptyString())
+            .usingMessage("tokenId must be a UUID")
+            .is(validUUID());
+
+        return UUID.fromString(tokenId);
+    }
+
+    static AuthenticationToken toToken(Row row)
+    {
+        AuthenticationToken token = new AuthenticationToken();
+
+        Date timeOfCreation = row.getTimestamp(TIME_OF_CREATION);
+        if (timeOfCreation != null)
+        {
+            token.setTimeOfCreation(timeOfCreation.getTime());
+        }
+
+        Date timeOfExpiration = row.getTimestamp(TIME_OF_EXPIRATION);
+        if (timeOfExpiration != null)
+        {
+            token.setTimeOfExpiration(timeOfExpiration.getTime());
+        }
+
+        if (hasColumn(row, ORGANIZATION_ID) && row.getUUID(ORGANIZATION_ID) != null)
+        {
+            token.setOrganizationId(row.getUUID(ORGANIZATION_ID).toString());
+        }
+
+        String tokenType = row.getString(TOKEN_TYPE);
+        if (!Strings.isNullOrEmpty(tokenType))
+        {
+            token.setTokenType(TokenType.valueOf(tokenType));
+        }
+
+        if (hasColumn(row, TOKEN_STATUS) && !Strings.isNullOrEmpty(row.getString(TOKEN_STATUS)))
+        {
+            token.setStatus(TokenStatus.valueOf(row.getString(TOKEN_STATUS)));
+        }
+
+        return token
+            .setTokenId(row.getUUID(TOKEN_ID).toString())
+            .setOwnerId(row.getUUID(OWNER_ID).toString())
+            .setOwnerName(row.getString(OWNER_NAME));
+    }
+
+    private static boolean hasColumn(Row row, String column)
+    {
+        return row.getColumnDefinitions().contains(column);
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable ex)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(ex);
+        return result;
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import java.util.UUID;
+import java.util.function.Consumer;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * Pages through the Token ID column of the Tokens Table.
+ *
+ * @author SirWellington
+ */
+@Internal
+final class CassandraTokenIdScanner implements TokenIdScanner
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(CassandraTokenIdScanner.class);
+
+    static final String TABLE_NAME = "Tokens";
+    static final String TOKEN_ID = "token_id";
+
+    private static final int PAGE_SIZE = 5_000;
+
+    private final Session cassandra;
+
+    @Inject
+    CassandraTokenIdScanner(Session cassandra)
+    {
+        checkThat(cassandra).is(notNull());
+
+        this.cassandra = cassandra;
+    }
+
+    @Override
+    public void scan(Consumer<String> consumer) throws Exception
+    {
+        checkThat(consumer).is(notNull());
+
+        Statement query = QueryBuilder
+            .select(TOKEN_ID)
+            .from(TABLE_NAME)
+            .setFetchSize(PAGE_SIZE);
+
+        ResultSet results = cassandra.execute(query);
+
+        long count = 0;
+        for (Row row : results)
+        {
+            UUID tokenId = row.getUUID(TOKEN_ID);
+
+            if (tokenId != null)
+            {
+                consumer.accept(tokenId.toString());
+                ++count;
+            }
+        }
+
+        LOG.debug("Scanned {} Token IDs", count);
+    }
+
+}
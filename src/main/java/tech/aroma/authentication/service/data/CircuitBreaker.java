@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+
+/**
+ * Stops calls to a dependency after it fails {@code failureThreshold} times in a row, so that callers fail fast
+ * instead of each waiting out a timeout.
+ * <p>
+ * Once open, the breaker stays open for {@code openDuration}, then lets a single trial call through. The
+ * breaker closes if it succeeds, and opens again if it fails.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class CircuitBreaker
+{
+
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    static final Duration DEFAULT_OPEN_DURATION = Duration.ofSeconds(10);
+
+    enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final Clock clock;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAt;
+
+    CircuitBreaker()
+    {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION, Clock.defaultClock());
+    }
+
+    CircuitBreaker(int failureThreshold, Duration openDuration, Clock clock)
+    {
+        checkThat(openDuration, clock)
+            .are(notNull());
+
+        checkThat(failureThreshold)
+            .usingMessage("failure threshold must be > 0")
+            .is(greaterThan(0));
+
+        checkThat(openDuration.toNanos())
+            .usingMessage("open duration must be > 0")
+            .is(greaterThan(0L));
+
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.toNanos();
+        this.clock = clock;
+    }
+
+    /**
+     * @return Whether a call may be made. Every call that may must report its {@linkplain #onSuccess() success}
+     *         or {@linkplain #onFailure() failure}.
+     */
+    boolean allowRequest()
+    {
+        switch (state.get())
+        {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return clock.getTick() - openedAt >= openNanos && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+            default:
+                //A trial call is already under way.
+                return false;
+        }
+    }
+
+    void onSuccess()
+    {
+        consecutiveFailures.set(0);
+        state.compareAndSet(State.HALF_OPEN, State.CLOSED);
+    }
+
+    void onFailure()
+    {
+        if (state.get() == State.HALF_OPEN)
+        {
+            open(State.HALF_OPEN);
+        }
+        else if (consecutiveFailures.incrementAndGet() >= failureThreshold)
+        {
+            open(State.CLOSED);
+        }
+    }
+
+    State state()
+    {
+        return state.get();
+    }
+
+    private void open(State from)
+    {
+        long now = clock.getTick();
+
+        synchronized (this)
+        {
+            if (state.get() == from)
+            {
+                //Set before the state, so that whoever sees the breaker open also sees when it opened.
+                openedAt = now;
+                state.set(State.OPEN);
+                consecutiveFailures.set(0);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import org.apache.thrift.TException;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.aroma.thrift.functions.TimeFunctions;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+import tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern.Role.DECORATOR;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThanOrEqualTo;
+
+/**
+ * Places a {@link CircuitBreaker} around storage, and keeps answering reads for Tokens it has seen
+ * recently while storage is down.
+ * <p>
+ * Every Token read from or saved to storage is remembered as last known good for the {@code graceWindow}.
+ * When storage cannot answer, because the breaker is open or the call itself failed, a remembered Token is
+ * returned in its place, as long as it has not expired and has not been deleted through this node. Every
+ * other call fails with an {@link OperationFailedException}, without waiting on storage while the breaker
+ * is open.
+ * <p>
+ * A Token invalidated on another node may still be answered for up to the {@code graceWindow}, and only
+ * while storage is down, unless the invalidation is received over the {@link InvalidationBus}.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+@DecoratorPattern(role = DECORATOR)
+final class CircuitBreakingTokenRepository implements TokenRepository, AsyncTokenRepository, InvalidationListener
+{
+
+    static final long DEFAULT_LAST_KNOWN_GOOD_SIZE = 100_000;
+
+    private final TokenRepository delegate;
+    private final AsyncTokenRepository asyncDelegate;
+    private final CircuitBreaker breaker;
+    private final Cache<String, AuthenticationToken> lastKnownGood;
+
+    private final Counter staleAnswers;
+    private final Counter rejections;
+
+    CircuitBreakingTokenRepository(TokenRepository delegate,
+                                   CircuitBreaker breaker,
+                                   Duration graceWindow,
+                                   MetricRegistry metrics)
+    {
+        this(delegate, BlockingAsyncTokenRepository.inline(delegate), breaker, DEFAULT_LAST_KNOWN_GOOD_SIZE, graceWindow, metrics);
+    }
+
+    /**
+     * @param graceWindow How long after it was last read a Token may be answered while storage is down.
+     *                    0 fails every read while storage is down.
+     */
+    CircuitBreakingTokenRepository(TokenRepository delegate,
+                                   AsyncTokenRepository asyncDelegate,
+                                   CircuitBreaker breaker,
+                                   long maximumSize,
+                                   Duration graceWindow,
+                                   MetricRegistry metrics)
+    {
+        checkThat(delegate, asyncDelegate, breaker, graceWindow, metrics)
+            .are(notNull());
+
+        checkThat(maximumSize)
+            .usingMessage("maximum size must be > 0")
+            .is(greaterThan(0L));
+
+        checkThat(graceWindow.toMillis())
+            .usingMessage("grace window must be >= 0")
+            .is(greaterThanOrEqualTo(0L));
+
+        this.delegate = delegate;
+        this.asyncDelegate = asyncDelegate;
+        this.breaker = breaker;
+        this.lastKnownGood = CacheBuilder.newBuilder()
+            .maximumSize(graceWindow.isZero() ? 0 : maximumSize)
+            .expireAfterWrite(graceWindow.toMillis(), MILLISECONDS)
+            .build();
+
+        this.staleAnswers = metrics.counter(MetricRegistry.name(CircuitBreakingTokenRepository.class, "stale"));
+        this.rejections = metrics.counter(MetricRegistry.name(CircuitBreakingTokenRepository.class, "rejections"));
+        metrics.register(MetricRegistry.name(CircuitBreakingTokenRepository.class, "state"), (Gauge<String>) () -> breaker.state().name());
+    }
+
+    @Override
+    public boolean containsToken(String tokenId) throws TException
+    {
+        try
+        {
+            return guarded(() -> delegate.containsToken(tokenId));
+        }
+        catch (OperationFailedException ex)
+        {
+            if (staleTokenFor(tokenId) != null)
+            {
+                return true;
+            }
+
+            throw ex;
+        }
+    }
+
+    @Override
+    public AuthenticationToken getToken(String tokenId) throws TException, InvalidTokenException
+    {
+        AuthenticationToken token;
+
+        try
+        {
+            token = guarded(() -> delegate.getToken(tokenId));
+        }
+        catch (OperationFailedException ex)
+        {
+            AuthenticationToken stale = staleTokenFor(tokenId);
+
+            if (stale != null)
+            {
+                return stale;
+            }
+
+            throw ex;
+        }
+
+        remember(token);
+        return token;
+    }
+
+    @Override
+    public void saveToken(AuthenticationToken token) throws TException
+    {
+        guarded(() ->
+        {
+            delegate.saveToken(token);
+            return null;
+        });
+
+        remember(token);
+    }
+
+    @Override
+    public List<AuthenticationToken> getTokensBelongingTo(String ownerId) throws TException
+    {
+        return guarded(() -> delegate.getTokensBelongingTo(ownerId));
+    }
+
+    @Override
+    public void deleteToken(String tokenId) throws TException
+    {
+        //Forgotten first, so that a Token deleted here is never answered stale, even if storage missed the delete.
+        forget(tokenId);
+
+        guarded(() ->
+        {
+            delegate.deleteToken(tokenId);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<AuthenticationToken> getTokenAsync(String tokenId)
+    {
+        CompletableFuture<AuthenticationToken> result = new CompletableFuture<>();
+
+        guardedAsync(() -> asyncDelegate.getTokenAsync(tokenId))
+            .whenComplete((token, ex) ->
+            {
+                if (ex == null)
+                {
+                    remember(token);
+                    result.complete(token);
+                    return;
+                }
+
+                AuthenticationToken stale = unwrap(ex) instanceof OperationFailedException ? staleTokenFor(tokenId) : null;
+
+                if (stale != null)
+                {
+                    result.complete(stale);
+                }
+                else
+                {
+                    result.completeExceptionally(ex);
+                }
+            });
+
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Void> saveTokenAsync(AuthenticationToken token)
+    {
+        return guardedAsync(() -> asyncDelegate.saveTokenAsync(token))
+            .thenRun(() -> remember(token));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteTokenAsync(String tokenId)
+    {
+        forget(tokenId);
+
+        return guardedAsync(() -> asyncDelegate.deleteTokenAsync(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<List<AuthenticationToken>> getTokensBelongingToAsync(String ownerId)
+    {
+        return guardedAsync(() -> asyncDelegate.getTokensBelongingToAsync(ownerId));
+    }
+
+    @Override
+    public void onTokenInvalidated(String tokenId, long timeOfExpiration)
+    {
+        forget(tokenId);
+    }
+
+    @Override
+    public void onOwnerInvalidated(String ownerId)
+    {
+        if (!Strings.isNullOrEmpty(ownerId))
+        {
+            lastKnownGood.asMap().values().removeIf(token -> ownerId.equals(token.ownerId));
+        }
+    }
+
+    @Override
+    public void onInvalidationsMissed()
+    {
+        lastKnownGood.invalidateAll();
+    }
+
+    CircuitBreaker.State state()
+    {
+        return breaker.state();
+    }
+
+    /*
+     * Storage failures are surfaced as OperationFailedExceptions, so that a stale answer can take their place.
+     */
+    private <T> T guarded(StorageCall<T> call) throws TException
+    {
+        if (!breaker.allowRequest())
+        {
+            throw unavailable();
+        }
+
+        try
+        {
+            T result = call.call();
+            breaker.onSuccess();
+            return result;
+        }
+        catch (OperationFailedException ex)
+        {
+            breaker.onFailure();
+            throw ex;
+        }
+        catch (RuntimeException ex)
+        {
+            breaker.onFailure();
+            throw new OperationFailedException("Could not reach Token storage: " + ex.getMessage());
+        }
+        catch (TException ex)
+        {
+            //Storage answered, even if the answer was no.
+            breaker.onSuccess();
+            throw ex;
+        }
+    }
+
+    private <T> CompletableFuture<T> guardedAsync(Supplier<CompletableFuture<T>> call)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        if (!breaker.allowRequest())
+        {
+            result.completeExceptionally(unavailable());
+            return result;
+        }
+
+        CompletableFuture<T> pending;
+
+        try
+        {
+            pending = call.get();
+        }
+        catch (RuntimeException ex)
+        {
+            pending = new CompletableFuture<>();
+            pending.completeExceptionally(ex);
+        }
+
+        pending.whenComplete((value, ex) ->
+        {
+            if (ex == null)
+            {
+                breaker.onSuccess();
+                result.complete(value);
+                return;
+            }
+
+            Throwable cause = unwrap(ex);
+
+            if (cause instanceof OperationFailedException)
+            {
+                breaker.onFailure();
+                result.completeExceptionally(cause);
+            }
+            else if (cause instanceof TException)
+            {
+                breaker.onSuccess();
+                result.completeExceptionally(cause);
+            }
+            else
+            {
+                breaker.onFailure();
+                result.completeExceptionally(new OperationFailedException("Could not reach Token storage: " + cause.getMessage()));
+            }
+        });
+
+        return result;
+    }
+
+    private OperationFailedException unavailable()
+    {
+        rejections.inc();
+        return new OperationFailedException("Token storage is unavailable. Try again later.");
+    }
+
+    private AuthenticationToken staleTokenFor(String tokenId)
+    {
+        if (Strings.isNullOrEmpty(tokenId))
+        {
+            return null;
+        }
+
+        AuthenticationToken token = lastKnownGood.getIfPresent(tokenId);
+
+        if (token == null || TimeFunctions.isInThePast(token.timeOfExpiration))
+        {
+            return null;
+        }
+
+        staleAnswers.inc();
+
+        return token.deepCopy();
+    }
+
+    private void remember(AuthenticationToken token)
+    {
+        if (token == null || Strings.isNullOrEmpty(token.tokenId) || !token.isSetTimeOfExpiration())
+        {
+            return;
+        }
+
+        lastKnownGood.put(token.tokenId, token.deepCopy());
+    }
+
+    private void forget(String tokenId)
+    {
+        if (!Strings.isNullOrEmpty(tokenId))
+        {
+            lastKnownGood.invalidate(tokenId);
+        }
+    }
+
+    private static Throwable unwrap(Throwable ex)
+    {
+        while ((ex instanceof CompletionException || ex instanceof ExecutionException) && ex.getCause() != null)
+        {
+            ex = ex.getCause();
+        }
+
+        return ex;
+    }
+
+    @FunctionalInterface
+    private interface StorageCall<T>
+    {
+        T call() throws TException;
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import org.apache.thrift.TException;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+import tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern;
+
+import static tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern.Role.DECORATOR;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * Sheds load when storage slows down, by failing calls with an {@link OperationFailedException} right
+ * away once an {@link AdaptiveLimit} on concurrent calls is reached. The calls that are admitted are
+ * not queued behind the ones that are stuck, so their latency stays bounded.
+ * <p>
+ * Calls that fail with an {@link OperationFailedException} or a {@link RuntimeException}, such as
+ * Cassandra timeouts, count against storage. A missing Token does not.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+@DecoratorPattern(role = DECORATOR)
+final class ConcurrencyLimitedTokenRepository implements TokenRepository, AsyncTokenRepository
+{
+
+    private final TokenRepository delegate;
+    private final AsyncTokenRepository asyncDelegate;
+    private final AdaptiveLimit limit;
+    private final Counter rejections;
+
+    ConcurrencyLimitedTokenRepository(TokenRepository delegate, AdaptiveLimit limit, MetricRegistry metrics)
+    {
+        this(delegate, BlockingAsyncTokenRepository.inline(delegate), limit, metrics);
+    }
+
+    ConcurrencyLimitedTokenRepository(TokenRepository delegate,
+                                      AsyncTokenRepository asyncDelegate,
+                                      AdaptiveLimit limit,
+                                      MetricRegistry metrics)
+    {
+        checkThat(delegate, asyncDelegate, limit, metrics)
+            .are(notNull());
+
+        this.delegate = delegate;
+        this.asyncDelegate = asyncDelegate;
+        this.limit = limit;
+
+        this.rejections = metrics.counter(MetricRegistry.name(ConcurrencyLimitedTokenRepository.class, "rejections"));
+        metrics.register(MetricRegistry.name(ConcurrencyLimitedTokenRepository.class, "limit"), (Gauge<Integer>) limit::limit);
+        metrics.register(MetricRegistry.name(ConcurrencyLimitedTokenRepository.class, "in-flight"), (Gauge<Integer>) limit::inFlight);
+    }
+
+    @Override
+    public boolean containsToken(String tokenId) throws TException
+    {
+        return limited(() -> delegate.containsToken(tokenId));
+    }
+
+    @Override
+    public AuthenticationToken getToken(String tokenId) throws TException, InvalidTokenException
+    {
+        return limited(() -> delegate.getToken(tokenId));
+    }
+
+    @Override
+    public void saveToken(AuthenticationToken token) throws TException
+    {
+        limited(() ->
+        {
+            delegate.saveToken(token);
+            return null;
+        });
+    }
+
+    @Override
+    public List<AuthenticationToken> getTokensBelongingTo(String ownerId) throws TException
+    {
+        return limited(() -> delegate.getTokensBelongingTo(ownerId));
+    }
+
+    @Override
+    public void deleteToken(String tokenId) throws TException
+    {
+        limited(() ->
+        {
+            delegate.deleteToken(tokenId);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<AuthenticationToken> getTokenAsync(String tokenId)
+    {
+        return limitedAsync(() -> asyncDelegate.getTokenAsync(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveTokenAsync(AuthenticationToken token)
+    {
+        return limitedAsync(() -> asyncDelegate.saveTokenAsync(token));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteTokenAsync(String tokenId)
+    {
+        return limitedAsync(() -> asyncDelegate.deleteTokenAsync(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<List<AuthenticationToken>> getTokensBelongingToAsync(String ownerId)
+    {
+        return limitedAsync(() -> asyncDelegate.getTokensBelongingToAsync(ownerId));
+    }
+
+    private <T> T limited(StorageCall<T> call) throws TException
+    {
+        if (!limit.tryAcquire())
+        {
+            throw overloaded();
+        }
+
+        long start = limit.now();
+        boolean failed = false;
+
+        try
+        {
+            return call.call();
+        }
+        catch (TException | RuntimeException ex)
+        {
+            failed = isOverload(ex);
+            throw ex;
+        }
+        finally
+        {
+            limit.release(limit.now() - start, failed);
+        }
+    }
+
+    private <T> CompletableFuture<T> limitedAsync(Supplier<CompletableFuture<T>> call)
+    {
+        if (!limit.tryAcquire())
+        {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(overloaded());
+            return rejected;
+        }
+
+        long start = limit.now();
+        CompletableFuture<T> result;
+
+        try
+        {
+            result = call.get();
+        }
+        catch (RuntimeException ex)
+        {
+            limit.release(limit.now() - start, true);
+            throw ex;
+        }
+
+        result.whenComplete((value, ex) -> limit.release(limit.now() - start, ex != null && isOverload(unwrap(ex))));
+        return result;
+    }
+
+    private OperationFailedException overloaded()
+    {
+        rejections.inc();
+        return new OperationFailedException("Token storage is overloaded. Try again later.");
+    }
+
+    private static boolean isOverload(Throwable ex)
+    {
+        return ex instanceof OperationFailedException || ex instanceof RuntimeException;
+    }
+
+    private static Throwable unwrap(Throwable ex)
+    {
+        while ((ex instanceof CompletionException || ex instanceof ExecutionException) && ex.getCause() != null)
+        {
+            ex = ex.getCause();
+        }
+
+        return ex;
+    }
+
+    @FunctionalInterface
+    private interface StorageCall<T>
+    {
+        T call() throws TException;
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.apache.thrift.TException;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern;
+
+import static tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern.Role.DECORATOR;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * Turns away lookups for Token IDs that the {@link TokenIdFilter} knows do not exist,
+ * and records every newly saved Token in the filter.
+ * <p>
+ * The filter only hears of the Tokens saved through this node, and of the others at its next rebuild.
+ * So unless this is the only node creating Tokens, an ID missing from the filter is looked up in storage anyway,
+ * and added to the filter when it is found there.
+ *
+ * @author SirWellington
+ */
+@Internal
+@DecoratorPattern(role = DECORATOR)
+final class FilteredTokenRepository implements TokenRepository, AsyncTokenRepository
+{
+
+    private final TokenRepository delegate;
+    private final AsyncTokenRepository asyncDelegate;
+    private final TokenIdFilter filter;
+    private final boolean singleNode;
+    private final Counter rejections;
+    private final Counter createdElsewhere;
+
+    FilteredTokenRepository(TokenRepository delegate, TokenIdFilter filter, boolean singleNode, MetricRegistry metrics)
+    {
+        this(delegate, BlockingAsyncTokenRepository.inline(delegate), filter, singleNode, metrics);
+    }
+
+    /**
+     * @param singleNode Whether every Token is created through this node, so that the filter can be trusted
+     *                   when it has never heard of a Token ID.
+     */
+    FilteredTokenRepository(TokenRepository delegate,
+                            AsyncTokenRepository asyncDelegate,
+                            TokenIdFilter filter,
+                            boolean singleNode,
+                            MetricRegistry metrics)
+    {
+        checkThat(delegate, asyncDelegate, filter, metrics)
+            .are(notNull());
+
+        this.delegate = delegate;
+        this.asyncDelegate = asyncDelegate;
+        this.filter = filter;
+        this.singleNode = singleNode;
+        this.rejections = metrics.counter(MetricRegistry.name(TokenIdFilter.class, "rejections"));
+        this.createdElsewhere = metrics.counter(MetricRegistry.name(TokenIdFilter.class, "created-elsewhere"));
+    }
+
+    @Override
+    public boolean containsToken(String tokenId) throws TException
+    {
+        if (filter.mightContain(tokenId))
+        {
+            return delegate.containsToken(tokenId);
+        }
+
+        if (singleNode)
+        {
+            rejections.inc();
+            return false;
+        }
+
+        boolean exists = delegate.containsToken(tokenId);
+
+        if (exists)
+        {
+            addCreatedElsewhere(tokenId);
+        }
+
+        return exists;
+    }
+
+    @Override
+    public AuthenticationToken getToken(String tokenId) throws TException, InvalidTokenException
+    {
+        if (filter.mightContain(tokenId))
+        {
+            return delegate.getToken(tokenId);
+        }
+
+        if (singleNode)
+        {
+            rejections.inc();
+            throw new InvalidTokenException("Token does not exist");
+        }
+
+        AuthenticationToken token = delegate.getToken(tokenId);
+        addCreatedElsewhere(tokenId);
+
+        return token;
+    }
+
+    @Override
+    public void saveToken(AuthenticationToken token) throws TException
+    {
+        delegate.saveToken(token);
+
+        if (token != null)
+        {
+            filter.add(token.tokenId);
+        }
+    }
+
+    @Override
+    public List<AuthenticationToken> getTokensBelongingTo(String ownerId) throws TException
+    {
+        return delegate.getTokensBelongingTo(ownerId);
+    }
+
+    @Override
+    public void deleteToken(String tokenId) throws TException
+    {
+        delegate.deleteToken(tokenId);
+    }
+
+    @Override
+    public CompletableFuture<AuthenticationToken> getTokenAsync(String tokenId)
+    {
+        if (filter.mightContain(tokenId))
+        {
+            return asyncDelegate.getTokenAsync(tokenId);
+        }
+
+        if (singleNode)
+        {
+            rejections.inc();
+
+            CompletableFuture<AuthenticationToken> result = new CompletableFuture<>();
+            result.completeExceptionally(new InvalidTokenException("Token does not exist"));
+            return result;
+        }
+
+        return asyncDelegate.getTokenAsync(tokenId)
+            .thenApply(token ->
+            {
+                addCreatedElsewhere(tokenId);
+                return token;
+            });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveTokenAsync(AuthenticationToken token)
+    {
+        return asyncDelegate.saveTokenAsync(token)
+            .thenRun(() ->
+            {
+                if (token != null)
+                {
+                    filter.add(token.tokenId);
+                }
+            });
+    }
+
+    @Override
+    public CompletableFuture<List<AuthenticationToken>> getTokensBelongingToAsync(String ownerId)
+    {
+        return asyncDelegate.getTokensBelongingToAsync(ownerId);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteTokenAsync(String tokenId)
+    {
+        return asyncDelegate.deleteTokenAsync(tokenId);
+    }
+
+    private void addCreatedElsewhere(String tokenId)
+    {
+        filter.add(tokenId);
+        createdElsewhere.inc();
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.thrift.TException;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+import tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern.Role.DECORATOR;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.lessThan;
+
+/**
+ * Sends a second read for a Token when the first is slower than most, and answers with whichever
+ * completes first, so that one slow replica does not hold up the call.
+ * <p>
+ * The second read is sent once the first has taken longer than the {@code 1 - maxHedgeRate} percentile of
+ * recent reads. So that hedging stays cheap when storage slows down as a whole, each read earns
+ * {@code maxHedgeRate} of a hedge, and a hedge is only sent when a whole one has been earned.
+ * <p>
+ * Only {@link #getToken(java.lang.String) } is hedged; every other call goes straight to storage.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+@DecoratorPattern(role = DECORATOR)
+final class HedgedTokenRepository implements TokenRepository, AsyncTokenRepository
+{
+
+    /** Reads needed before there is a percentile to hedge after. */
+    static final long MIN_SAMPLES = 100;
+
+    /** Hedging reads faster than this saves too little to be worth the extra load. */
+    static final long MIN_DELAY_NANOS = MILLISECONDS.toNanos(1);
+
+    private static final long REFRESH_INTERVAL_NANOS = SECONDS.toNanos(1);
+
+    /** The hedge budget is counted in millionths of a hedge, and may be saved up to this many hedges. */
+    private static final long HEDGE = 1_000_000;
+    private static final long MAX_SAVED_HEDGES = 10;
+
+    private final TokenRepository delegate;
+    private final AsyncTokenRepository asyncDelegate;
+    private final ScheduledExecutorService scheduler;
+    private final Clock clock;
+
+    private final double percentile;
+    private final long earnedPerRead;
+    private final AtomicLong budget = new AtomicLong();
+
+    private final Timer latency;
+    private volatile long delayNanos = 0;
+    private final AtomicLong lastRefresh;
+
+    private final Counter hedges;
+    private final Counter hedgeWins;
+    private final Counter hedgesDenied;
+
+    /**
+     * @param maxHedgeRate The most hedged reads to send, as a fraction of all reads. For example, 0.02 adds at
+     *                     most 2% more reads.
+     * @param scheduler    Where hedged reads are sent from, once their delay passes.
+     */
+    HedgedTokenRepository(TokenRepository delegate,
+                          AsyncTokenRepository asyncDelegate,
+                          double maxHedgeRate,
+                          ScheduledExecutorService scheduler,
+                          Clock clock,
+                          MetricRegistry metrics)
+    {
+        checkThat(delegate, asyncDelegate, scheduler, clock, metrics)
+            .are(notNull());
+
+        checkThat(maxHedgeRate)
+            .usingMessage("hedge rate must be between 0 and 0.5")
+            .is(greaterThan(0.0))
+            .is(lessThan(0.5));
+
+        this.delegate = delegate;
+        this.asyncDelegate = asyncDelegate;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.percentile = 1.0 - maxHedgeRate;
+        this.earnedPerRead = Math.max(1, Math.round(maxHedgeRate * HEDGE));
+        this.lastRefresh = new AtomicLong(clock.getTick());
+
+        this.latency = metrics.timer(MetricRegistry.name(HedgedTokenRepository.class, "latency"));
+        this.hedges = metrics.counter(MetricRegistry.name(HedgedTokenRepository.class, "hedges"));
+        this.hedgeWins = metrics.counter(MetricRegistry.name(HedgedTokenRepository.class, "hedges", "won"));
+        this.hedgesDenied = metrics.counter(MetricRegistry.name(HedgedTokenRepository.class, "hedges", "denied"));
+        metrics.register(MetricRegistry.name(HedgedTokenRepository.class, "delay-us"), (Gauge<Long>) () -> NANOSECONDS.toMicros(delayNanos));
+    }
+
+    @Override
+    public boolean containsToken(String tokenId) throws TException
+    {
+        return delegate.containsToken(tokenId);
+    }
+
+    @Override
+    public AuthenticationToken getToken(String tokenId) throws TException, InvalidTokenException
+    {
+        return await(getTokenAsync(tokenId));
+    }
+
+    @Override
+    public void saveToken(AuthenticationToken token) throws TException
+    {
+        delegate.saveToken(token);
+    }
+
+    @Override
+    public List<AuthenticationToken> getTokensBelongingTo(String ownerId) throws TException
+    {
+        return delegate.getTokensBelongingTo(ownerId);
+    }
+
+    @Override
+    public void deleteToken(String tokenId) throws TException
+    {
+        delegate.deleteToken(tokenId);
+    }
+
+    @Override
+    public CompletableFuture<AuthenticationToken> getTokenAsync(String tokenId)
+    {
+        earn();
+
+        Race race = new Race();
+        long start = clock.getTick();
+
+        read(tokenId).whenComplete((token, ex) ->
+        {
+            //Only the first read is timed, so that hedging does not lower the delay it is based on.
+            latency.update(clock.getTick() - start, NANOSECONDS);
+            race.finish(token, ex, false);
+        });
+
+        long delay = hedgeDelay();
+
+        if (delay > 0 && !race.result.isDone())
+        {
+            ScheduledFuture<?> hedge = scheduler.schedule(() -> hedge(tokenId, race), delay, NANOSECONDS);
+            race.result.whenComplete((token, ex) -> hedge.cancel(false));
+        }
+
+        return race.result;
+    }
+
+    @Override
+    public CompletableFuture<Void> saveTokenAsync(AuthenticationToken token)
+    {
+        return asyncDelegate.saveTokenAsync(token);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteTokenAsync(String tokenId)
+    {
+        return asyncDelegate.deleteTokenAsync(tokenId);
+    }
+
+    @Override
+    public CompletableFuture<List<AuthenticationToken>> getTokensBelongingToAsync(String ownerId)
+    {
+        return asyncDelegate.getTokensBelongingToAsync(ownerId);
+    }
+
+    /**
+     * @return How long a read may take before it is hedged, or 0 if reads are not hedged yet.
+     */
+    long hedgeDelay()
+    {
+        long now = clock.getTick();
+        long last = lastRefresh.get();
+
+        if (now - last >= REFRESH_INTERVAL_NANOS && lastRefresh.compareAndSet(last, now))
+        {
+            delayNanos = latency.getCount() < MIN_SAMPLES
+                         ? 0
+                         : Math.max(MIN_DELAY_NANOS, (long) latency.getSnapshot().getValue(percentile));
+        }
+
+        return delayNanos;
+    }
+
+    private void hedge(String tokenId, Race race)
+    {
+        if (race.result.isDone())
+        {
+            return;
+        }
+
+        if (!spend())
+        {
+            hedgesDenied.inc();
+            return;
+        }
+
+        hedges.inc();
+        race.enter();
+        read(tokenId).whenComplete((token, ex) -> race.finish(token, ex, true));
+    }
+
+    private CompletableFuture<AuthenticationToken> read(String tokenId)
+    {
+        try
+        {
+            return asyncDelegate.getTokenAsync(tokenId);
+        }
+        catch (RuntimeException ex)
+        {
+            CompletableFuture<AuthenticationToken> failed = new CompletableFuture<>();
+            failed.completeExceptionally(ex);
+            return failed;
+        }
+    }
+
+    private void earn()
+    {
+        budget.accumulateAndGet(earnedPerRead, (saved, earned) -> Math.min(saved + earned, MAX_SAVED_HEDGES * HEDGE));
+    }
+
+    private boolean spend()
+    {
+        while (true)
+        {
+            long saved = budget.get();
+
+            if (saved < HEDGE)
+            {
+                return false;
+            }
+
+            if (budget.compareAndSet(saved, saved - HEDGE))
+            {
+                return true;
+            }
+        }
+    }
+
+    private static AuthenticationToken await(CompletableFuture<AuthenticationToken> result) throws TException
+    {
+        try
+        {
+            return result.join();
+        }
+        catch (CompletionException ex)
+        {
+            Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+
+            if (cause instanceof TException)
+            {
+                throw (TException) cause;
+            }
+
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+
+            throw new OperationFailedException("Could not read token: " + cause.getMessage());
+        }
+    }
+
+    /*
+     * The first answer wins. A failure only wins once no other read is left that could still answer.
+     */
+    private final class Race
+    {
+
+        private final CompletableFuture<AuthenticationToken> result = new CompletableFuture<>();
+        private final AtomicInteger reads = new AtomicInteger(1);
+
+        private void enter()
+        {
+            reads.incrementAndGet();
+        }
+
+        private void finish(AuthenticationToken token, Throwable ex, boolean hedged)
+        {
+            boolean lastRead = reads.decrementAndGet() == 0;
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+
+            //A missing Token is an answer too.
+            if (cause == null || cause instanceof InvalidTokenException)
+            {
+                boolean won = cause == null ? result.complete(token) : result.completeExceptionally(cause);
+
+                if (won && hedged)
+                {
+                    hedgeWins.inc();
+                }
+            }
+            else if (lastRead)
+            {
+                result.completeExceptionally(cause);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * Tells the other nodes of the Service about Tokens invalidated on this one, so that they stop answering
+ * them from memory. Nodes apply what they receive to their Token Cache, to the Tokens they keep for when
+ * storage is down, and to their revoked signed Tokens.
+ * <p>
+ * Publishing never blocks, and never fails the call that invalidated the Token. Delivery is best effort.
+ * A node that finds it missed an invalidation drops every Token it holds in memory instead.
+ *
+ * @author SirWellington
+ */
+@ImplementedBy(StandaloneInvalidationBus.class)
+public interface InvalidationBus
+{
+
+    /**
+     * @param tokenId          The ID the Token is stored under.
+     * @param timeOfExpiration When the Token expires, in epoch millis, or 0 if it is not known.
+     */
+    void publishToken(String tokenId, long timeOfExpiration);
+
+    /**
+     * Publishes that every Token belonging to the Owner was invalidated.
+     */
+    void publishOwner(String ownerId);
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+/**
+ * Receives the invalidations published by other nodes on the {@link InvalidationBus}.
+ *
+ * @author SirWellington
+ */
+@Internal
+interface InvalidationListener
+{
+
+    /**
+     * @param tokenId          The ID the Token is stored under.
+     * @param timeOfExpiration When the Token expires, in epoch millis, or 0 if it is not known.
+     */
+    void onTokenInvalidated(String tokenId, long timeOfExpiration);
+
+    void onOwnerInvalidated(String ownerId);
+
+    /**
+     * Called when invalidations from another node were lost, so that nothing they would have
+     * invalidated is answered any longer.
+     */
+    void onInvalidationsMissed();
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * Hands each invalidation to every layer that keeps Tokens in memory.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class InvalidationListeners implements InvalidationListener
+{
+
+    private final List<InvalidationListener> listeners = new CopyOnWriteArrayList<>();
+
+    void add(InvalidationListener listener)
+    {
+        checkThat(listener).is(notNull());
+
+        listeners.add(listener);
+    }
+
+    @Override
+    public void onTokenInvalidated(String tokenId, long timeOfExpiration)
+    {
+        listeners.forEach(listener -> listener.onTokenInvalidated(tokenId, timeOfExpiration));
+    }
+
+    @Override
+    public void onOwnerInvalidated(String ownerId)
+    {
+        listeners.forEach(listener -> listener.onOwnerInvalidated(ownerId));
+    }
+
+    @Override
+    public void onInvalidationsMissed()
+    {
+        listeners.forEach(InvalidationListener::onInvalidationsMissed);
+    }
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.LongPredicate;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadUnsafe;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Two open-addressing hash tables, kept in a memory-mapped file next to a {@link MappedTokenLog}:
+ * one from Token ID to the Token's record, and one from owner ID to the owner's newest record.
+ * <p>
+ * Slots hold a 64-bit hash of the key and the offset of a record. Keys themselves live only in the
+ * log, so callers confirm a match by comparing against the record. Removed entries are left as
+ * tombstones until the index is rebuilt, so lookups need not move other entries.
+ * <p>
+ * The header also keeps the log offset up to which the index is known to be complete, so that on
+ * restart only the records written after it are read again.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadUnsafe
+final class MappedTokenIndex implements Closeable
+{
+
+    static final int TOKENS = 0;
+    static final int OWNERS = 1;
+
+    static final int MIN_CAPACITY = 1024;
+
+    /** Keeps the file within a single mapping. */
+    static final int MAX_CAPACITY = 1 << 25;
+
+    private static final long MAGIC = 0x41524f4d41494458L;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 64;
+    private static final int CAPACITY_POSITION = 12;
+    private static final int GENERATION_POSITION = 16;
+    private static final int LOG_END_POSITION = 24;
+    private static final int USED_POSITION = 32;
+    private static final int DEAD_BYTES_POSITION = 48;
+
+    private static final int SLOT_BYTES = 16;
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+
+    private static final double MAX_LOAD = 0.7;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private MappedTokenIndex(FileChannel channel, MappedByteBuffer buffer, int capacity)
+    {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates a new, empty index. The file must not exist.
+     *
+     * @param capacity   The number of slots in each table. Must be a power of two.
+     * @param generation The generation of the log this indexes.
+     */
+    static MappedTokenIndex create(Path file, int capacity, long generation) throws IOException
+    {
+        if (Integer.bitCount(capacity) != 1 || capacity < MIN_CAPACITY || capacity > MAX_CAPACITY)
+        {
+            throw new IllegalArgumentException("capacity must be a power of two, between " + MIN_CAPACITY +
+                                               " and " + MAX_CAPACITY + ": " + capacity);
+        }
+
+        FileChannel channel = FileChannel.open(file, CREATE_NEW, READ, WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, sizeFor(capacity));
+
+        buffer.putLong(0, MAGIC);
+        buffer.putInt(8, VERSION);
+        buffer.putInt(CAPACITY_POSITION, capacity);
+        buffer.putLong(GENERATION_POSITION, generation);
+        buffer.putLong(LOG_END_POSITION, MappedTokenLog.HEADER_BYTES);
+
+        return new MappedTokenIndex(channel, buffer, capacity);
+    }
+
+    /**
+     * @return The existing index, or null if it is missing or not a valid index.
+     */
+    static MappedTokenIndex open(Path file) throws IOException
+    {
+        if (!Files.exists(file))
+        {
+            return null;
+        }
+
+        FileChannel channel = FileChannel.open(file, READ, WRITE);
+
+        if (channel.size() < HEADER_BYTES)
+        {
+            channel.close();
+            return null;
+        }
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        int capacity = header.getInt(CAPACITY_POSITION);
+
+        boolean isValid = header.getLong(0) == MAGIC
+                          && header.getInt(8) == VERSION
+                          && Integer.bitCount(capacity) == 1
+                          && capacity <= MAX_CAPACITY
+                          && channel.size() == sizeFor(capacity);
+
+        if (!isValid)
+        {
+            channel.close();
+            return null;
+        }
+
+        return new MappedTokenIndex(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, sizeFor(capacity)), capacity);
+    }
+
+    int capacity()
+    {
+        return capacity;
+    }
+
+    long generation()
+    {
+        return buffer.getLong(GENERATION_POSITION);
+    }
+
+    long logEnd()
+    {
+        return buffer.getLong(LOG_END_POSITION);
+    }
+
+    void setLogEnd(long logEnd)
+    {
+        buffer.putLong(LOG_END_POSITION, logEnd);
+    }
+
+    /**
+     * @return The bytes in the log taken up by deleted or replaced records.
+     */
+    long deadBytes()
+    {
+        return buffer.getLong(DEAD_BYTES_POSITION);
+    }
+
+    void addDeadBytes(long bytes)
+    {
+        buffer.putLong(DEAD_BYTES_POSITION, deadBytes() + bytes);
+    }
+
+    /**
+     * @return True once either table, counting tombstones, is too full for quick lookups.
+     */
+    boolean isFull()
+    {
+        return Math.max(used(TOKENS), used(OWNERS)) > capacity * MAX_LOAD;
+    }
+
+    /**
+     * @param matches Whether the record at an offset has the key being looked for.
+     * @return The offset stored for the key, or {@link MappedTokenLog#NONE}.
+     */
+    long find(int table, long hash, LongPredicate matches)
+    {
+        int slot = findSlot(table, hash, matches);
+        return slot < 0 ? MappedTokenLog.NONE : offsetAt(table, slot);
+    }
+
+    /**
+     * Stores the offset for the key, replacing any offset already stored for it.
+     */
+    void put(int table, long hash, long offset, LongPredicate matches)
+    {
+        hash = nonEmpty(hash);
+        int existing = findSlot(table, hash, matches);
+
+        if (existing >= 0)
+        {
+            buffer.putLong(slotPosition(table, existing) + 8, offset);
+            return;
+        }
+
+        if (used(table) >= capacity - 1)
+        {
+            throw new IllegalStateException("Token index is full: " + capacity);
+        }
+
+        int mask = capacity - 1;
+        int slot = (int) hash & mask;
+
+        while (hashAt(table, slot) != EMPTY && offsetAt(table, slot) != TOMBSTONE)
+        {
+            slot = (slot + 1) & mask;
+        }
+
+        if (hashAt(table, slot) == EMPTY)
+        {
+            buffer.putInt(usedPosition(table), used(table) + 1);
+        }
+
+        buffer.putLong(slotPosition(table, slot), hash);
+        buffer.putLong(slotPosition(table, slot) + 8, offset);
+    }
+
+    /**
+     * @return The offset that was stored for the key, or {@link MappedTokenLog#NONE}.
+     */
+    long remove(int table, long hash, LongPredicate matches)
+    {
+        int slot = findSlot(table, hash, matches);
+
+        if (slot < 0)
+        {
+            return MappedTokenLog.NONE;
+        }
+
+        long offset = offsetAt(table, slot);
+        buffer.putLong(slotPosition(table, slot) + 8, TOMBSTONE);
+        return offset;
+    }
+
+    /**
+     * Copies every entry into a new index, leaving the tombstones behind.
+     *
+     * @param file     Where to create the new index. The file must not exist.
+     * @param capacity The number of slots in each table of the new index.
+     */
+    MappedTokenIndex copyTo(Path file, int capacity) throws IOException
+    {
+        MappedTokenIndex copy = create(file, capacity, generation());
+
+        for (int table : new int[] { TOKENS, OWNERS })
+        {
+            for (int slot = 0; slot < this.capacity; ++slot)
+            {
+                long offset = offsetAt(table, slot);
+
+                if (hashAt(table, slot) != EMPTY && offset != TOMBSTONE)
+                {
+                    copy.put(table, hashAt(table, slot), offset, existing -> false);
+                }
+            }
+        }
+
+        copy.setLogEnd(logEnd());
+        copy.addDeadBytes(deadBytes());
+        return copy;
+    }
+
+    /**
+     * @return The capacity an index needs for its tables to be at most half full.
+     */
+    int capacityToHoldLive()
+    {
+        int live = Math.max(live(TOKENS), live(OWNERS));
+        int capacity = MIN_CAPACITY;
+
+        while (capacity < live * 2L && capacity < MAX_CAPACITY)
+        {
+            capacity *= 2;
+        }
+
+        return capacity;
+    }
+
+    void force()
+    {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    private int findSlot(int table, long hash, LongPredicate matches)
+    {
+        hash = nonEmpty(hash);
+        int mask = capacity - 1;
+
+        for (int slot = (int) hash & mask; hashAt(table, slot) != EMPTY; slot = (slot + 1) & mask)
+        {
+            long offset = offsetAt(table, slot);
+
+            if (hashAt(table, slot) == hash && offset != TOMBSTONE && matches.test(offset))
+            {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    private int used(int table)
+    {
+        return buffer.getInt(usedPosition(table));
+    }
+
+    private int live(int table)
+    {
+        int live = 0;
+
+        for (int slot = 0; slot < capacity; ++slot)
+        {
+            if (hashAt(table, slot) != EMPTY && offsetAt(table, slot) != TOMBSTONE)
+            {
+                ++live;
+            }
+        }
+
+        return live;
+    }
+
+    private long hashAt(int table, int slot)
+    {
+        return buffer.getLong(slotPosition(table, slot));
+    }
+
+    private long offsetAt(int table, int slot)
+    {
+        return buffer.getLong(slotPosition(table, slot) + 8);
+    }
+
+    private int slotPosition(int table, int slot)
+    {
+        return HEADER_BYTES + (table * capacity + slot) * SLOT_BYTES;
+    }
+
+    private static int usedPosition(int table)
+    {
+        return USED_POSITION + table * 4;
+    }
+
+    private static long sizeFor(int capacity)
+    {
+        return HEADER_BYTES + 2L * capacity * SLOT_BYTES;
+    }
+
+    private static long nonEmpty(long hash)
+    {
+        return hash == EMPTY ? 1 : hash;
+    }
+
+}
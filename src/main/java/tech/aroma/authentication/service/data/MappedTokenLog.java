@@ -0,0 +1,489 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadUnsafe;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append-only file of Token records, mapped into memory a region at a time.
+ * <p>
+ * Each record holds a Token's ID, owner ID, and expiration in the clear, so they can be compared
+ * without decoding the Token, followed by the Token itself in the compact Thrift encoding. Records
+ * are never moved or rewritten, apart from a byte that marks them deleted; space is only reclaimed
+ * by copying the live records into a new log.
+ * <p>
+ * Record layout, in bytes:
+ * <pre>
+ *  0  int   length of the record, padded to 8. 0 marks the end of the log.
+ *  4  byte  type: a Token, or padding up to the end of a region
+ *  5  byte  state: live or deleted. Not covered by the checksum.
+ *  6  short length of the Token ID
+ *  8  int   CRC-32 of bytes 12 to the end of the record
+ * 12  short length of the owner ID
+ * 16  long  time of expiration
+ * 24  long  offset of the owner's previous record, or -1
+ * 32  int   length of the Token
+ * 36        Token ID, owner ID, and Token
+ * </pre>
+ * Readers may share the log, but writes must be serialized with respect to everything else.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadUnsafe
+final class MappedTokenLog implements Closeable
+{
+
+    static final long NONE = -1;
+
+    private static final long MAGIC = 0x41524f4d414c4f47L;
+    private static final int VERSION = 1;
+
+    /** The first region starts with the file header. */
+    static final int HEADER_BYTES = 64;
+    private static final int GENERATION_POSITION = 16;
+    private static final int REGION_SIZE_POSITION = 24;
+
+    private static final int LENGTH = 0;
+    private static final int TYPE = 4;
+    private static final int STATE = 5;
+    private static final int TOKEN_ID_LENGTH = 6;
+    private static final int CHECKSUM = 8;
+    private static final int OWNER_ID_LENGTH = 12;
+    private static final int EXPIRATION = 16;
+    private static final int PREVIOUS_OF_OWNER = 24;
+    private static final int PAYLOAD_LENGTH = 32;
+    private static final int VARIABLE = 36;
+
+    private static final byte TYPE_TOKEN = 1;
+    private static final byte TYPE_PADDING = 2;
+
+    private static final byte STATE_LIVE = 1;
+    private static final byte STATE_DELETED = 2;
+
+    private final FileChannel channel;
+    private final int regionSize;
+    private final long generation;
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+
+    private long end = HEADER_BYTES;
+
+    private MappedTokenLog(FileChannel channel, int regionSize, long generation)
+    {
+        this.channel = channel;
+        this.regionSize = regionSize;
+        this.generation = generation;
+    }
+
+    /**
+     * Creates a new, empty log. The file must not exist.
+     *
+     * @param generation Identifies this log, so an index built for another one is not trusted.
+     */
+    static MappedTokenLog create(Path file, int regionSize, long generation) throws IOException
+    {
+        if (regionSize < 4096 || regionSize % 8 != 0)
+        {
+            throw new IllegalArgumentException("region size must be a multiple of 8, and at least 4096: " + regionSize);
+        }
+
+        MappedTokenLog log = new MappedTokenLog(FileChannel.open(file, CREATE_NEW, READ, WRITE), regionSize, generation);
+        ByteBuffer header = log.region(0);
+        header.putLong(0, MAGIC);
+        header.putInt(8, VERSION);
+        header.putLong(GENERATION_POSITION, generation);
+        header.putInt(REGION_SIZE_POSITION, regionSize);
+
+        return log;
+    }
+
+    /**
+     * Maps an existing log. Its {@linkplain #end() end} must then be found with {@link #recover(long) }.
+     */
+    static MappedTokenLog open(Path file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file, READ, WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0)
+        {
+            //Keep reading.
+        }
+
+        if (header.position() < HEADER_BYTES || header.getLong(0) != MAGIC || header.getInt(8) != VERSION)
+        {
+            channel.close();
+            throw new IOException("Not a Token log: " + file);
+        }
+
+        MappedTokenLog log = new MappedTokenLog(channel, header.getInt(REGION_SIZE_POSITION), header.getLong(GENERATION_POSITION));
+        long regionCount = (channel.size() + log.regionSize - 1) / log.regionSize;
+
+        for (int i = 0; i < regionCount; ++i)
+        {
+            log.region(i);
+        }
+
+        return log;
+    }
+
+    long generation()
+    {
+        return generation;
+    }
+
+    /**
+     * @return The offset the next record will be appended at.
+     */
+    long end()
+    {
+        return end;
+    }
+
+    long sizeInBytes()
+    {
+        return (long) regions.size() * regionSize;
+    }
+
+    /**
+     * @return The largest Token ID, owner ID, and Token, together, that fit in a record.
+     */
+    int maxRecordBytes()
+    {
+        return regionSize - HEADER_BYTES;
+    }
+
+    /**
+     * Finds the end of the log, starting from a record known to be complete. Whatever follows the
+     * last complete record, such as one cut short by a crash, is cleared.
+     *
+     * @param from      The offset of a complete record, or of the end of the log.
+     * @param onRecord Called with the offset of each complete Token record found, in order.
+     */
+    void recover(long from, RecordVisitor onRecord) throws IOException
+    {
+        long offset = from;
+
+        while (isComplete(offset))
+        {
+            if (buffer(offset).get(position(offset) + TYPE) == TYPE_TOKEN)
+            {
+                onRecord.visit(offset);
+            }
+
+            offset = next(offset);
+        }
+
+        end = offset;
+        clearFrom(offset);
+    }
+
+    /**
+     * Calls {@code visitor} with the offset of each Token record up to the {@linkplain #end() end}, in order.
+     */
+    void forEach(RecordVisitor visitor) throws IOException
+    {
+        for (long offset = HEADER_BYTES; offset < end; offset = next(offset))
+        {
+            if (buffer(offset).get(position(offset) + TYPE) == TYPE_TOKEN)
+            {
+                visitor.visit(offset);
+            }
+        }
+    }
+
+    /**
+     * @return The offset of the new record.
+     */
+    long append(byte[] tokenId, byte[] ownerId, long timeOfExpiration, long previousOfOwner, byte[] token) throws IOException
+    {
+        int length = align(VARIABLE + tokenId.length + ownerId.length + token.length);
+
+        if (length > maxRecordBytes() || tokenId.length > Short.MAX_VALUE || ownerId.length > Short.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Token is too large to store: " + length + " bytes");
+        }
+
+        if (position(end) + length > regionSize)
+        {
+            ByteBuffer padding = buffer(end);
+            padding.putInt(position(end) + LENGTH, regionSize - position(end));
+            padding.put(position(end) + TYPE, TYPE_PADDING);
+            end += regionSize - position(end);
+        }
+
+        long offset = end;
+        ByteBuffer buffer = buffer(offset).duplicate();
+        int position = position(offset);
+
+        buffer.put(position + TYPE, TYPE_TOKEN);
+        buffer.put(position + STATE, STATE_LIVE);
+        buffer.putShort(position + TOKEN_ID_LENGTH, (short) tokenId.length);
+        buffer.putShort(position + OWNER_ID_LENGTH, (short) ownerId.length);
+        buffer.putLong(position + EXPIRATION, timeOfExpiration);
+        buffer.putLong(position + PREVIOUS_OF_OWNER, previousOfOwner);
+        buffer.putInt(position + PAYLOAD_LENGTH, token.length);
+
+        buffer.position(position + VARIABLE);
+        buffer.put(tokenId);
+        buffer.put(ownerId);
+        buffer.put(token);
+
+        buffer.putInt(position + CHECKSUM, checksum(offset, length));
+
+        //Written last, so a record is never seen before it is whole.
+        buffer.putInt(position + LENGTH, length);
+
+        end = offset + length;
+        return offset;
+    }
+
+    int length(long offset)
+    {
+        return buffer(offset).getInt(position(offset) + LENGTH);
+    }
+
+    boolean isLive(long offset)
+    {
+        return buffer(offset).get(position(offset) + STATE) == STATE_LIVE;
+    }
+
+    void markDeleted(long offset)
+    {
+        buffer(offset).put(position(offset) + STATE, STATE_DELETED);
+    }
+
+    long timeOfExpiration(long offset)
+    {
+        return buffer(offset).getLong(position(offset) + EXPIRATION);
+    }
+
+    long previousOfOwner(long offset)
+    {
+        return buffer(offset).getLong(position(offset) + PREVIOUS_OF_OWNER);
+    }
+
+    boolean hasTokenId(long offset, byte[] tokenId)
+    {
+        ByteBuffer buffer = buffer(offset);
+        int position = position(offset);
+
+        return buffer.getShort(position + TOKEN_ID_LENGTH) == tokenId.length
+               && equals(buffer, position + VARIABLE, tokenId);
+    }
+
+    boolean hasOwnerId(long offset, byte[] ownerId)
+    {
+        ByteBuffer buffer = buffer(offset);
+        int position = position(offset);
+
+        return buffer.getShort(position + OWNER_ID_LENGTH) == ownerId.length
+               && equals(buffer, position + VARIABLE + buffer.getShort(position + TOKEN_ID_LENGTH), ownerId);
+    }
+
+    byte[] tokenId(long offset)
+    {
+        ByteBuffer buffer = buffer(offset);
+        int position = position(offset);
+
+        return copy(buffer, position + VARIABLE, buffer.getShort(position + TOKEN_ID_LENGTH));
+    }
+
+    byte[] ownerId(long offset)
+    {
+        ByteBuffer buffer = buffer(offset);
+        int position = position(offset);
+
+        return copy(buffer,
+                    position + VARIABLE + buffer.getShort(position + TOKEN_ID_LENGTH),
+                    buffer.getShort(position + OWNER_ID_LENGTH));
+    }
+
+    /**
+     * @return The Token, in the compact Thrift encoding.
+     */
+    byte[] token(long offset)
+    {
+        ByteBuffer buffer = buffer(offset);
+        int position = position(offset);
+        int start = position + VARIABLE + buffer.getShort(position + TOKEN_ID_LENGTH) + buffer.getShort(position + OWNER_ID_LENGTH);
+
+        return copy(buffer, start, buffer.getInt(position + PAYLOAD_LENGTH));
+    }
+
+    /**
+     * Writes the log out to disk. Without this, writes survive the process, but not the machine.
+     */
+    void force()
+    {
+        for (MappedByteBuffer region : regions)
+        {
+            region.force();
+        }
+    }
+
+    /**
+     * The regions stay mapped until they are garbage collected.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        regions.clear();
+        channel.close();
+    }
+
+    private boolean isComplete(long offset) throws IOException
+    {
+        if (offset + VARIABLE > sizeInBytes())
+        {
+            return false;
+        }
+
+        ByteBuffer buffer = buffer(offset);
+        int position = position(offset);
+        int length = buffer.getInt(position + LENGTH);
+        byte type = buffer.get(position + TYPE);
+
+        if (length < 8 || length % 8 != 0 || position + length > regionSize)
+        {
+            return false;
+        }
+
+        if (type == TYPE_PADDING)
+        {
+            return position + length == regionSize;
+        }
+
+        return type == TYPE_TOKEN
+               && length >= VARIABLE
+               && buffer.getInt(position + CHECKSUM) == checksum(offset, length);
+    }
+
+    private long next(long offset)
+    {
+        return offset + length(offset);
+    }
+
+    private void clearFrom(long offset) throws IOException
+    {
+        //Only touch what is not already clear, so that unused pages are not written out.
+        for (long position = offset; position < sizeInBytes(); position += 8)
+        {
+            ByteBuffer buffer = buffer(position);
+
+            if (buffer.getLong(position(position)) != 0L)
+            {
+                buffer.putLong(position(position), 0L);
+            }
+        }
+    }
+
+    private int checksum(long offset, int length)
+    {
+        ByteBuffer buffer = buffer(offset).duplicate();
+        int position = position(offset);
+        buffer.limit(position + length);
+        buffer.position(position + OWNER_ID_LENGTH);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return (int) crc.getValue();
+    }
+
+    private ByteBuffer buffer(long offset)
+    {
+        int index = (int) (offset / regionSize);
+
+        if (index >= regions.size())
+        {
+            try
+            {
+                return region(index);
+            }
+            catch (IOException ex)
+            {
+                throw new IllegalStateException("Could not extend the Token log", ex);
+            }
+        }
+
+        return regions.get(index);
+    }
+
+    private int position(long offset)
+    {
+        return (int) (offset % regionSize);
+    }
+
+    private MappedByteBuffer region(int index) throws IOException
+    {
+        while (regions.size() <= index)
+        {
+            regions.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) regions.size() * regionSize, regionSize));
+        }
+
+        return regions.get(index);
+    }
+
+    private static int align(int length)
+    {
+        return (length + 7) & ~7;
+    }
+
+    private static boolean equals(ByteBuffer buffer, int position, byte[] bytes)
+    {
+        for (int i = 0; i < bytes.length; ++i)
+        {
+            if (buffer.get(position + i) != bytes[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static byte[] copy(ByteBuffer buffer, int position, int length)
+    {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return bytes;
+    }
+
+    @FunctionalInterface
+    interface RecordVisitor
+    {
+
+        void visit(long offset) throws IOException;
+    }
+
+}
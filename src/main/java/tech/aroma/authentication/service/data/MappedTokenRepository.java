@@ -0,0 +1,605 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidArgumentException;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static tech.aroma.thrift.assertions.AromaAssertions.legalToken;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.nonEmptyString;
+
+/**
+ * Keeps Tokens in memory-mapped files on local disk, for nodes that run without a Cassandra Cluster.
+ * <p>
+ * Tokens are appended to a {@link MappedTokenLog}, and found through a {@link MappedTokenIndex}.
+ * Each record also points to the owner's previous record, so an owner's Tokens are found by
+ * following the chain from the newest one. Deleting a Token only marks its record; the space is
+ * reclaimed by {@linkplain #compact() compaction}, which also drops expired Tokens.
+ * Until then, expired Tokens are still returned, so callers can tell an expired Token from a
+ * missing one, as they can with Cassandra.
+ * <p>
+ * On restart, the files are mapped again and only records written after the index was last updated
+ * are read, so startup does not grow with the number of Tokens. A missing or mismatched index is
+ * rebuilt from the log.
+ * <p>
+ * Writes reach the operating system as soon as they are made, and survive the process crashing.
+ * They survive the machine crashing once {@linkplain #force() forced} to disk.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class MappedTokenRepository implements TokenRepository, Closeable
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(MappedTokenRepository.class);
+
+    static final String LOG_FILE = "tokens.log";
+    static final String INDEX_FILE = "tokens.index";
+    private static final String COMPACTING_SUFFIX = ".compacting";
+
+    static final int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final Path directory;
+    private final int regionSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Only used while holding the write lock. */
+    private final TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+
+    private MappedTokenLog log;
+    private MappedTokenIndex index;
+
+    /**
+     * Opens the Tokens stored in {@code directory}, or starts storing them there.
+     *
+     * @param regionSize How much of the log is mapped at a time. Also limits the size of a single Token.
+     */
+    MappedTokenRepository(Path directory, int regionSize) throws IOException
+    {
+        checkThat(directory)
+            .is(notNull());
+
+        this.directory = directory;
+        this.regionSize = regionSize;
+
+        Files.createDirectories(directory);
+        open();
+    }
+
+    @Override
+    public boolean containsToken(String tokenId) throws TException
+    {
+        byte[] id = bytesOf(tokenId);
+
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try
+        {
+            return findLive(id) != MappedTokenLog.NONE;
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public AuthenticationToken getToken(String tokenId) throws TException, InvalidTokenException
+    {
+        byte[] id = bytesOf(tokenId);
+
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try
+        {
+            long offset = findLive(id);
+
+            if (offset == MappedTokenLog.NONE)
+            {
+                throw new InvalidTokenException("token does not exists");
+            }
+
+            return read(offset);
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void saveToken(AuthenticationToken token) throws TException
+    {
+        checkThat(token)
+            .throwing(InvalidArgumentException.class)
+            .is(legalToken());
+
+        byte[] id = bytesOf(token.tokenId);
+        byte[] ownerId = bytesOf(token.ownerId);
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try
+        {
+            byte[] serialized = serializer.serialize(token);
+
+            if (serialized.length + id.length + ownerId.length >= log.maxRecordBytes())
+            {
+                throw new InvalidArgumentException("Token is too large to store");
+            }
+
+            long existing = index.find(MappedTokenIndex.TOKENS, hash(id), offset -> log.hasTokenId(offset, id));
+
+            if (existing != MappedTokenLog.NONE)
+            {
+                delete(existing);
+            }
+
+            long ownerHash = hash(ownerId);
+            long previousOfOwner = index.find(MappedTokenIndex.OWNERS, ownerHash, offset -> log.hasOwnerId(offset, ownerId));
+            long offset = log.append(id, ownerId, token.timeOfExpiration, previousOfOwner, serialized);
+
+            add(offset, id, ownerId);
+            index.setLogEnd(log.end());
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            LOG.error("Failed to save Token {}", token.tokenId, ex);
+            throw new OperationFailedException("Could not save Token: " + ex.getMessage());
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<AuthenticationToken> getTokensBelongingTo(String ownerId) throws TException
+    {
+        byte[] owner = bytesOf(ownerId);
+
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try
+        {
+            List<AuthenticationToken> tokens = new ArrayList<>();
+
+            for (long offset = newestOf(owner); offset != MappedTokenLog.NONE; offset = log.previousOfOwner(offset))
+            {
+                if (log.isLive(offset))
+                {
+                    tokens.add(read(offset));
+                }
+            }
+
+            return tokens;
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean doesTokenBelongTo(String tokenId, String ownerId) throws TException
+    {
+        byte[] id = bytesOf(tokenId);
+        byte[] owner = bytesOf(ownerId);
+
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try
+        {
+            long offset = findLive(id);
+
+            if (offset == MappedTokenLog.NONE)
+            {
+                throw new InvalidTokenException("token does not exists");
+            }
+
+            return log.hasOwnerId(offset, owner);
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteToken(String tokenId) throws TException
+    {
+        byte[] id = bytesOf(tokenId);
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try
+        {
+            long offset = index.remove(MappedTokenIndex.TOKENS, hash(id), existing -> log.hasTokenId(existing, id));
+
+            if (offset != MappedTokenLog.NONE)
+            {
+                markDeleted(offset);
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteTokensBelongingTo(String ownerId) throws TException
+    {
+        byte[] owner = bytesOf(ownerId);
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try
+        {
+            long newest = index.remove(MappedTokenIndex.OWNERS, hash(owner), offset -> log.hasOwnerId(offset, owner));
+
+            for (long offset = newest; offset != MappedTokenLog.NONE; offset = log.previousOfOwner(offset))
+            {
+                if (log.isLive(offset))
+                {
+                    delete(offset);
+                }
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the live Tokens into a new log and index, which then replace the current ones.
+     * Other operations wait until it completes.
+     */
+    void compact() throws IOException
+    {
+        Path compactingLog = directory.resolve(LOG_FILE + COMPACTING_SUFFIX);
+        Path compactingIndex = directory.resolve(INDEX_FILE + COMPACTING_SUFFIX);
+
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try
+        {
+            Files.deleteIfExists(compactingLog);
+            Files.deleteIfExists(compactingIndex);
+
+            long before = log.end();
+            long generation = newGeneration();
+            long now = System.currentTimeMillis();
+
+            MappedTokenLog newLog = MappedTokenLog.create(compactingLog, regionSize, generation);
+            MappedTokenIndex newIndex = MappedTokenIndex.create(compactingIndex, index.capacityToHoldLive(), generation);
+
+            log.forEach(offset ->
+            {
+                if (!log.isLive(offset) || log.timeOfExpiration(offset) <= now)
+                {
+                    return;
+                }
+
+                byte[] ownerId = log.ownerId(offset);
+                long ownerHash = hash(ownerId);
+                long previousOfOwner = newIndex.find(MappedTokenIndex.OWNERS, ownerHash, existing -> newLog.hasOwnerId(existing, ownerId));
+                long newOffset = newLog.append(log.tokenId(offset), ownerId, log.timeOfExpiration(offset), previousOfOwner, log.token(offset));
+
+                newIndex.put(MappedTokenIndex.TOKENS, hash(log.tokenId(offset)), newOffset, existing -> false);
+                newIndex.put(MappedTokenIndex.OWNERS, ownerHash, newOffset, existing -> newLog.hasOwnerId(existing, ownerId));
+            });
+
+            newIndex.setLogEnd(newLog.end());
+            newLog.force();
+            newIndex.force();
+
+            //The log is replaced first. If the index is not replaced with it, the generations differ, and it is rebuilt.
+            Files.move(compactingLog, directory.resolve(LOG_FILE), ATOMIC_MOVE, REPLACE_EXISTING);
+            Files.move(compactingIndex, directory.resolve(INDEX_FILE), ATOMIC_MOVE, REPLACE_EXISTING);
+
+            closeFiles();
+            log = newLog;
+            index = newIndex;
+
+            LOG.info("Compacted the Token log from {} to {} bytes", before, log.end());
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return The bytes in the log taken up by Tokens that were deleted, replaced, or have expired.
+     */
+    long garbageBytes() throws IOException
+    {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try
+        {
+            long now = System.currentTimeMillis();
+            long[] expired = { 0 };
+
+            log.forEach(offset ->
+            {
+                if (log.isLive(offset) && log.timeOfExpiration(offset) <= now)
+                {
+                    expired[0] += log.length(offset);
+                }
+            });
+
+            return index.deadBytes() + expired[0];
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    long logBytes()
+    {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try
+        {
+            return log.end();
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    int indexCapacity()
+    {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try
+        {
+            return index.capacity();
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Writes everything out to disk.
+     */
+    void force()
+    {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try
+        {
+            log.force();
+            index.force();
+        }
+        finally
+        {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try
+        {
+            log.force();
+            index.force();
+            closeFiles();
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    private void open() throws IOException
+    {
+        Path logFile = directory.resolve(LOG_FILE);
+        Path indexFile = directory.resolve(INDEX_FILE);
+
+        if (!Files.exists(logFile))
+        {
+            Files.deleteIfExists(indexFile);
+
+            long generation = newGeneration();
+            log = MappedTokenLog.create(logFile, regionSize, generation);
+            index = MappedTokenIndex.create(indexFile, MappedTokenIndex.MIN_CAPACITY, generation);
+            LOG.info("Storing Tokens in new files at {}", directory);
+            return;
+        }
+
+        log = MappedTokenLog.open(logFile);
+        index = MappedTokenIndex.open(indexFile);
+
+        if (index == null || index.generation() != log.generation())
+        {
+            LOG.warn("Token index at {} is missing or out of date. Rebuilding it from the log.", indexFile);
+
+            if (index != null)
+            {
+                index.close();
+            }
+
+            Files.deleteIfExists(indexFile);
+            index = MappedTokenIndex.create(indexFile, MappedTokenIndex.MIN_CAPACITY, log.generation());
+        }
+
+        long from = index.logEnd();
+        log.recover(from, this::replay);
+        index.setLogEnd(log.end());
+
+        LOG.info("Opened Tokens at {}, replaying {} bytes of the log", directory, log.end() - from);
+    }
+
+    /**
+     * Indexes a record found in the log after the point the index was known to cover.
+     */
+    private void replay(long offset) throws IOException
+    {
+        if (!log.isLive(offset))
+        {
+            return;
+        }
+
+        byte[] id = log.tokenId(offset);
+        long existing = index.find(MappedTokenIndex.TOKENS, hash(id), other -> log.hasTokenId(other, id));
+
+        if (existing != MappedTokenLog.NONE && existing != offset)
+        {
+            delete(existing);
+        }
+
+        add(offset, id, log.ownerId(offset));
+    }
+
+    private void add(long offset, byte[] id, byte[] ownerId) throws IOException
+    {
+        index.put(MappedTokenIndex.TOKENS, hash(id), offset, existing -> log.hasTokenId(existing, id));
+        index.put(MappedTokenIndex.OWNERS, hash(ownerId), offset, existing -> log.hasOwnerId(existing, ownerId));
+
+        if (index.isFull() && index.capacity() < MappedTokenIndex.MAX_CAPACITY)
+        {
+            rebuildIndex();
+        }
+    }
+
+    private void delete(long offset)
+    {
+        byte[] id = log.tokenId(offset);
+        index.remove(MappedTokenIndex.TOKENS, hash(id), existing -> existing == offset);
+        markDeleted(offset);
+    }
+
+    private void markDeleted(long offset)
+    {
+        log.markDeleted(offset);
+        index.addDeadBytes(log.length(offset));
+    }
+
+    /**
+     * Tombstones count towards a full index, so when they take up most of it, the index is rebuilt
+     * at the same capacity without them, and only grows when the live entries need the room.
+     */
+    private void rebuildIndex() throws IOException
+    {
+        int capacity = Math.max(index.capacity(), index.capacityToHoldLive());
+
+        Path indexFile = directory.resolve(INDEX_FILE);
+        Path growingIndex = directory.resolve(INDEX_FILE + COMPACTING_SUFFIX);
+        Files.deleteIfExists(growingIndex);
+
+        MappedTokenIndex grown = index.copyTo(growingIndex, capacity);
+        grown.force();
+        Files.move(growingIndex, indexFile, ATOMIC_MOVE, REPLACE_EXISTING);
+
+        index.close();
+        index = grown;
+
+        LOG.debug("Rebuilt the Token index with {} slots", capacity);
+    }
+
+    private long findLive(byte[] id)
+    {
+        long offset = index.find(MappedTokenIndex.TOKENS, hash(id), existing -> log.hasTokenId(existing, id));
+
+        if (offset == MappedTokenLog.NONE || !log.isLive(offset))
+        {
+            return MappedTokenLog.NONE;
+        }
+
+        return offset;
+    }
+
+    private long newestOf(byte[] ownerId)
+    {
+        return index.find(MappedTokenIndex.OWNERS, hash(ownerId), offset -> log.hasOwnerId(offset, ownerId));
+    }
+
+    private AuthenticationToken read(long offset) throws TException
+    {
+        AuthenticationToken token = new AuthenticationToken();
+        new TDeserializer(new TCompactProtocol.Factory()).deserialize(token, log.token(offset));
+        return token;
+    }
+
+    private void closeFiles() throws IOException
+    {
+        log.close();
+        index.close();
+    }
+
+    private static byte[] bytesOf(String id) throws InvalidArgumentException
+    {
+        checkThat(id)
+            .throwing(InvalidArgumentException.class)
+            .usingMessage("missing ID")
+            .is(nonEmptyString());
+
+        return id.getBytes(UTF_8);
+    }
+
+    private static long hash(byte[] id)
+    {
+        return HASH.hashBytes(id).asLong();
+    }
+
+    private static long newGeneration()
+    {
+        return new SecureRandom().nextLong();
+    }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.google.inject.AbstractModule;
+import javax.inject.Singleton;
+
+/**
+ * Binds an {@link AsyncTokenRepository} that talks to the Cassandra Cluster without blocking, and
+ * the {@link OwnerTokenPager} that pages through the same Tables.
+ * Combine it with the Module that binds the Cluster's {@link com.datastax.driver.core.Session}.
+ *
+ * @author SirWellington
+ */
+public final class ModuleCassandraAsyncTokenStorage extends AbstractModule
+{
+
+    @Override
+    protected void configure()
+    {
+        bind(CassandraAsyncTokenRepository.class).in(Singleton.class);
+        bind(AsyncTokenRepository.class).to(CassandraAsyncTokenRepository.class);
+        bind(OwnerTokenPager.class).to(CassandraAsyncTokenRepository.class);
+    }
+
+}
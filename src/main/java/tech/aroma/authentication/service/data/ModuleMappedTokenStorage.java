@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import javax.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.aroma.data.TokenRepository;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * Binds a {@link TokenRepository} that keeps Tokens in memory-mapped files in a local directory,
+ * for single-node deployments without a Cassandra Cluster. Only one process may use a directory
+ * at a time.
+ * <p>
+ * Writes are forced to disk every second, and the files are compacted once more than half of the
+ * log is taken up by deleted or expired Tokens.
+ *
+ * @author SirWellington
+ */
+public final class ModuleMappedTokenStorage extends AbstractModule
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(ModuleMappedTokenStorage.class);
+
+    /** Smaller logs are not worth compacting. */
+    private static final long MIN_COMPACTION_BYTES = 16 * 1024 * 1024;
+
+    private final Path directory;
+
+    public ModuleMappedTokenStorage(Path directory)
+    {
+        checkThat(directory)
+            .is(notNull());
+
+        this.directory = directory;
+    }
+
+    @Override
+    protected void configure()
+    {
+
+    }
+
+    @Provides
+    TokenRepository provideTokenRepository(MappedTokenRepository repository)
+    {
+        return repository;
+    }
+
+    /*
+     * Reads and writes go to mapped memory, but may still wait on the disk for a page fault, or on a
+     * compaction holding the lock. So asynchronous calls run on a small pool of their own, rather than
+     * on a thread that serves many connections.
+     */
+    @Provides
+    @Singleton
+    AsyncTokenRepository provideAsyncTokenRepository(MappedTokenRepository repository)
+    {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+                                                             threads,
+                                                             60,
+                                                             SECONDS,
+                                                             new LinkedBlockingQueue<>(),
+                                                             new ThreadFactoryBuilder()
+                                                                 .setNameFormat("token-files-io-%d")
+                                                                 .setDaemon(true)
+                                                                 .build());
+        executor.allowCoreThreadTimeOut(true);
+
+        return new BlockingAsyncTokenRepository(repository, executor);
+    }
+
+    @Provides
+    @Singleton
+    MappedTokenRepository provideMappedTokenRepository(MetricRegistry metrics) throws IOException
+    {
+        MappedTokenRepository repository = new MappedTokenRepository(directory, MappedTokenRepository.DEFAULT_REGION_SIZE);
+
+        metrics.register(MetricRegistry.name(MappedTokenRepository.class, "log-bytes"), (Gauge<Long>) repository::logBytes);
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("token-files-%d")
+            .setDaemon(true)
+            .build());
+
+        executor.scheduleWithFixedDelay(repository::force, 1, 1, SECONDS);
+        executor.scheduleWithFixedDelay(() -> tryCompact(repository), 10, 10, MINUTES);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> tryClose(repository), "token-files-close"));
+
+        return repository;
+    }
+
+    private void tryCompact(MappedTokenRepository repository)
+    {
+        try
+        {
+            long logBytes = repository.logBytes();
+
+            if (logBytes >= MIN_COMPACTION_BYTES && repository.garbageBytes() * 2 > logBytes)
+            {
+                repository.compact();
+            }
+        }
+        catch (Exception ex)
+        {
+            LOG.error("Failed to compact the Tokens at {}", directory, ex);
+        }
+    }
+
+    private void tryClose(MappedTokenRepository repository)
+    {
+        try
+        {
+            repository.close();
+        }
+        catch (Exception ex)
+        {
+            LOG.error("Failed to close the Tokens at {}", directory, ex);
+        }
+    }
+
+}
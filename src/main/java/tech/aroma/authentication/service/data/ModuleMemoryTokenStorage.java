@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import javax.inject.Singleton;
+import tech.aroma.data.TokenRepository;
+
+/**
+ * Binds a {@link TokenRepository} that keeps every Token in this process's memory, in a compact
+ * layout that holds tens of millions of Tokens per few gigabytes of heap. Tokens are lost when the
+ * process exits, and are not shared with other instances of the Service.
+ * <p>
+ * Token and owner IDs must be UUIDs.
+ *
+ * @author SirWellington
+ */
+public final class ModuleMemoryTokenStorage extends AbstractModule
+{
+
+    @Override
+    protected void configure()
+    {
+        bind(CompactTokenRepository.class).in(Singleton.class);
+        bind(TokenRepository.class).to(CompactTokenRepository.class);
+    }
+
+    /*
+     * Memory never waits on the network, so asynchronous calls simply run on the caller's thread.
+     */
+    @Provides
+    @Singleton
+    AsyncTokenRepository provideAsyncTokenRepository(CompactTokenRepository repository)
+    {
+        return BlockingAsyncTokenRepository.inline(repository);
+    }
+
+}
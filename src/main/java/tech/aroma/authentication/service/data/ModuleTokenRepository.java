@@ -0,0 +1,680 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.AbstractModule;
+import com.google.inject.Binding;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Provides;
+import com.google.inject.Scope;
+import com.google.inject.binder.LinkedBindingBuilder;
+import com.google.inject.binder.ScopedBindingBuilder;
+import com.google.inject.spi.DefaultBindingScopingVisitor;
+import com.google.inject.spi.DefaultBindingTargetVisitor;
+import com.google.inject.spi.Element;
+import com.google.inject.spi.Elements;
+import com.google.inject.spi.InstanceBinding;
+import com.google.inject.spi.LinkedKeyBinding;
+import com.google.inject.spi.ProviderInstanceBinding;
+import com.google.inject.spi.ProviderKeyBinding;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.aroma.data.TokenRepository;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.CollectionAssertions.nonEmptyList;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThanOrEqualTo;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.lessThan;
+
+/**
+ * Installs a storage Module (for example {@code ModuleCassandraDataRepositories}), and places the Service's
+ * own layers, such as the Token Cache, the Token ID Filter, the coalescing of concurrent reads, the
+ * limit on concurrent storage calls, hedged reads, and the circuit breaker, in front of the {@link TokenRepository}
+ * it binds.
+ * <p>
+ * It also binds the {@link InvalidationBus}, which keeps the Tokens these layers hold in memory in step with
+ * the other nodes of the Service.
+ * <p>
+ * The same layers are placed in front of the storage's {@link AsyncTokenRepository}. Storage that binds none
+ * has its blocking calls run on a shared pool instead.
+ * <p>
+ * Use this Module in place of the storage Module, not next to it.
+ *
+ * @author SirWellington
+ */
+public final class ModuleTokenRepository extends AbstractModule
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(ModuleTokenRepository.class);
+
+    public static final long DEFAULT_CACHE_SIZE = 100_000;
+    public static final Duration DEFAULT_CACHE_MAX_AGE = Duration.ofMinutes(1);
+    public static final Duration DEFAULT_FILTER_REBUILD_INTERVAL = Duration.ofHours(1);
+    public static final int DEFAULT_MAX_STORAGE_CONCURRENCY = 1024;
+    public static final Duration DEFAULT_STALE_GRACE_WINDOW = Duration.ofMinutes(10);
+
+    private static final double FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    private static final Key<TokenRepository> TOKEN_REPOSITORY = Key.get(TokenRepository.class);
+    private static final Key<TokenRepository> TOKEN_STORAGE = Key.get(TokenRepository.class, TokenStorage.class);
+    private static final Key<AsyncTokenRepository> ASYNC_TOKEN_REPOSITORY = Key.get(AsyncTokenRepository.class);
+    private static final Key<AsyncTokenRepository> ASYNC_TOKEN_STORAGE = Key.get(AsyncTokenRepository.class, TokenStorage.class);
+
+    private final Module storageModule;
+    private final long cacheSize;
+    private final Duration cacheMaxAge;
+
+    private long filterExpectedTokens = 0;
+    private Duration filterRebuildInterval = DEFAULT_FILTER_REBUILD_INTERVAL;
+    private boolean singleNode = false;
+    private int maxStorageConcurrency = DEFAULT_MAX_STORAGE_CONCURRENCY;
+    private Duration staleGraceWindow = DEFAULT_STALE_GRACE_WINDOW;
+    private double maxHedgeRate = 0;
+    private InetSocketAddress invalidationAddress = null;
+    private List<InetSocketAddress> invalidationPeers = new ArrayList<>();
+    private Path cacheSnapshotFile = null;
+
+    public ModuleTokenRepository(Module storageModule)
+    {
+        this(storageModule, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_MAX_AGE);
+    }
+
+    /**
+     * @param storageModule The Module that binds the underlying {@link TokenRepository}.
+     * @param cacheSize     The maximum number of Tokens to keep in memory. 0 turns the cache off.
+     * @param cacheMaxAge   How long a Token may be served from memory before it is read again.
+     */
+    public ModuleTokenRepository(Module storageModule, long cacheSize, Duration cacheMaxAge)
+    {
+        checkThat(storageModule, cacheMaxAge)
+            .are(notNull());
+
+        checkThat(cacheSize)
+            .usingMessage("cache size must be >= 0")
+            .is(greaterThanOrEqualTo(0L));
+
+        this.storageModule = storageModule;
+        this.cacheSize = cacheSize;
+        this.cacheMaxAge = cacheMaxAge;
+    }
+
+    /**
+     * Turns on the Token ID Filter, which rejects lookups for Token IDs that do not exist without reading storage.
+     * It is seeded from the Tokens Table in the background, and rebuilt periodically to drop deleted Tokens.
+     * <p>
+     * Tokens created elsewhere are unknown to the filter until its next rebuild, so unless this is
+     * {@linkplain #withSingleNode() the only node}, the IDs it has not heard of are still looked up in storage.
+     *
+     * @param expectedTokens  The number of Tokens the filter is sized for. 0 turns the filter off.
+     * @param rebuildInterval How often the filter is rebuilt from storage.
+     * @return this
+     */
+    public ModuleTokenRepository withTokenIdFilter(long expectedTokens, Duration rebuildInterval)
+    {
+        checkThat(rebuildInterval)
+            .is(notNull());
+
+        checkThat(expectedTokens)
+            .usingMessage("expected tokens must be >= 0")
+            .is(greaterThanOrEqualTo(0L));
+
+        checkThat(rebuildInterval.toMillis())
+            .usingMessage("rebuild interval must be > 0")
+            .is(greaterThan(0L));
+
+        this.filterExpectedTokens = expectedTokens;
+        this.filterRebuildInterval = rebuildInterval;
+        return this;
+    }
+
+    /**
+     * Declares that no other node creates Tokens in the same storage, so that the Token ID Filter
+     * can turn away the IDs it has not heard of without looking them up.
+     *
+     * @return this
+     */
+    public ModuleTokenRepository withSingleNode()
+    {
+        this.singleNode = true;
+        return this;
+    }
+
+    /**
+     * Sets the most calls that may be made to storage at once. Below this, the limit adapts to the latency of
+     * storage, and calls over it fail right away instead of waiting on a slow storage.
+     *
+     * @param maxConcurrency The upper bound of the limit. 0 turns the limit off.
+     * @return this
+     */
+    public ModuleTokenRepository withConcurrencyLimit(int maxConcurrency)
+    {
+        checkThat(maxConcurrency)
+            .usingMessage("max concurrency must be >= 0")
+            .is(greaterThanOrEqualTo(0));
+
+        this.maxStorageConcurrency = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * Sets how long a Token may still be answered from memory after storage becomes unreachable. Once storage
+     * fails repeatedly, calls to it are stopped for a while, and reads for Tokens seen within the grace window
+     * are answered with their last known state, unless they have expired or were deleted through this node.
+     *
+     * @param graceWindow How long after it was last read a Token may be answered. 0 fails every read instead.
+     * @return this
+     */
+    public ModuleTokenRepository withStaleGraceWindow(Duration graceWindow)
+    {
+        checkThat(graceWindow)
+            .is(notNull());
+
+        checkThat(graceWindow.toMillis())
+            .usingMessage("grace window must be >= 0")
+            .is(greaterThanOrEqualTo(0L));
+
+        this.staleGraceWindow = graceWindow;
+        return this;
+    }
+
+    /**
+     * Turns on hedged reads: a read of a Token that is slower than most is sent a second time, and the first
+     * answer is used. This trims the latency added by a single slow replica.
+     *
+     * @param maxHedgeRate The most reads to send a second time, as a fraction of all reads. Reads are hedged
+     *                     after the {@code 1 - maxHedgeRate} percentile of their recent latency. 0 turns hedging off.
+     * @return this
+     */
+    public ModuleTokenRepository withHedgedReads(double maxHedgeRate)
+    {
+        checkThat(maxHedgeRate)
+            .usingMessage("hedge rate must be >= 0 and < 0.5")
+            .is(greaterThanOrEqualTo(0.0))
+            .is(lessThan(0.5));
+
+        this.maxHedgeRate = maxHedgeRate;
+        return this;
+    }
+
+    /**
+     * Turns on the {@link InvalidationBus}: Tokens invalidated on this node are sent to the peers over UDP,
+     * and the Tokens they invalidate are dropped from this node's memory as soon as they arrive.
+     * <p>
+     * The bus also revokes signed Tokens, so the {@link SignedTokens} must be bound as well, as
+     * {@code ModuleAuthenticationService} does.
+     *
+     * @param address The address to receive invalidations at. It should only be reachable by the peers.
+     * @param peers   Every node to send invalidations to. The same list may be given to every node,
+     *                since a node ignores its own.
+     * @return this
+     */
+    public ModuleTokenRepository withInvalidationBus(InetSocketAddress address, List<InetSocketAddress> peers)
+    {
+        checkThat(address, peers)
+            .are(notNull());
+
+        checkThat(peers)
+            .usingMessage("peers are missing")
+            .is(nonEmptyList());
+
+        this.invalidationAddress = address;
+        this.invalidationPeers = new ArrayList<>(peers);
+        return this;
+    }
+
+    /**
+     * Keeps the Token Cache's hot set in a local file across restarts. The bound {@link CacheSnapshots} must be
+     * {@linkplain CacheSnapshots#save() saved} on shutdown and {@linkplain CacheSnapshots#restoreInBackground() restored}
+     * at startup, as {@code TcpServer} does. Has no effect when the cache is off.
+     *
+     * @param file Where the snapshot is kept. The directory must exist.
+     * @return this
+     */
+    public ModuleTokenRepository withCacheSnapshot(Path file)
+    {
+        checkThat(file)
+            .is(notNull());
+
+        this.cacheSnapshotFile = file;
+        return this;
+    }
+
+    @Override
+    protected void configure()
+    {
+        bind(InvalidationListeners.class).in(Singleton.class);
+
+        if (isInvalidationBusEnabled())
+        {
+            //Eager, so that invalidations are received from the start, rather than once the first is published.
+            bind(InvalidationBus.class)
+                .toProvider(new InvalidationBusProvider(invalidationAddress, invalidationPeers))
+                .asEagerSingleton();
+        }
+        else
+        {
+            bind(InvalidationBus.class).to(StandaloneInvalidationBus.class);
+        }
+
+        if (isFilterEnabled())
+        {
+            bind(TokenIdScanner.class).to(CassandraTokenIdScanner.class);
+        }
+        else
+        {
+            bind(TokenIdScanner.class).toInstance(TokenIdScanner.NONE);
+        }
+
+        boolean hasAsyncStorage = false;
+
+        for (Element element : Elements.getElements(storageModule))
+        {
+            Binding<TokenRepository> repositoryBinding = asBindingOf(element, TOKEN_REPOSITORY);
+            Binding<AsyncTokenRepository> asyncRepositoryBinding = asBindingOf(element, ASYNC_TOKEN_REPOSITORY);
+
+            if (repositoryBinding != null)
+            {
+                rebindAsStorage(repositoryBinding, TOKEN_STORAGE);
+            }
+            else if (asyncRepositoryBinding != null)
+            {
+                rebindAsStorage(asyncRepositoryBinding, ASYNC_TOKEN_STORAGE);
+                hasAsyncStorage = true;
+            }
+            else
+            {
+                element.applyTo(binder());
+            }
+        }
+
+        if (!hasAsyncStorage)
+        {
+            bind(ASYNC_TOKEN_STORAGE).toProvider(BlockingStorageProvider.class).in(Singleton.class);
+        }
+    }
+
+    @Provides
+    @Singleton
+    TokenRepository provideTokenRepository(@TokenStorage TokenRepository storage,
+                                           @TokenStorage AsyncTokenRepository asyncStorage,
+                                           TokenIdScanner scanner,
+                                           InvalidationListeners invalidations,
+                                           MetricRegistry metrics)
+    {
+        TokenRepository repository = storage;
+        AsyncTokenRepository asyncRepository = asyncStorage;
+
+        //Below the breaker, so that only calls that reach storage are limited, and only by its latency.
+        //The calls it turns away count as failures to the breaker, which answers reads with stale Tokens instead.
+        if (maxStorageConcurrency > 0)
+        {
+            LOG.info("Limiting storage to at most {} concurrent calls", maxStorageConcurrency);
+            ConcurrencyLimitedTokenRepository limited = new ConcurrencyLimitedTokenRepository(repository,
+                                                                                              asyncRepository,
+                                                                                              new AdaptiveLimit(maxStorageConcurrency),
+                                                                                              metrics);
+            repository = limited;
+            asyncRepository = limited;
+        }
+
+        LOG.info("Answering Tokens seen within the last {} while storage is down", staleGraceWindow);
+        CircuitBreakingTokenRepository breaker = new CircuitBreakingTokenRepository(repository,
+                                                                                    asyncRepository,
+                                                                                    new CircuitBreaker(),
+                                                                                    CircuitBreakingTokenRepository.DEFAULT_LAST_KNOWN_GOOD_SIZE,
+                                                                                    staleGraceWindow,
+                                                                                    metrics);
+        repository = breaker;
+        asyncRepository = breaker;
+        invalidations.add(breaker);
+
+        //Above the limit, so that hedged reads count against it.
+        if (maxHedgeRate > 0)
+        {
+            LOG.info("Hedging up to {}% of reads", maxHedgeRate * 100);
+            HedgedTokenRepository hedged = new HedgedTokenRepository(repository,
+                                                                     asyncRepository,
+                                                                     maxHedgeRate,
+                                                                     createHedgeScheduler(),
+                                                                     Clock.defaultClock(),
+                                                                     metrics);
+            repository = hedged;
+            asyncRepository = hedged;
+        }
+
+        if (isFilterEnabled())
+        {
+            LOG.info("Filtering Token IDs, sized for {} Tokens{}",
+                     filterExpectedTokens,
+                     singleNode ? "" : ", and looking up the unknown ones in case another node created them");
+            FilteredTokenRepository filtered = new FilteredTokenRepository(repository,
+                                                                           asyncRepository,
+                                                                           createFilter(scanner, metrics),
+                                                                           singleNode,
+                                                                           metrics);
+            repository = filtered;
+            asyncRepository = filtered;
+        }
+
+        //Below the cache, so that only its misses are coalesced.
+        SingleFlightTokenRepository singleFlight = new SingleFlightTokenRepository(repository, asyncRepository, metrics);
+        repository = singleFlight;
+        asyncRepository = singleFlight;
+
+        if (cacheSize == 0)
+        {
+            LOG.info("Token Cache is disabled");
+            return repository;
+        }
+
+        LOG.info("Caching up to {} Tokens for at most {}", cacheSize, cacheMaxAge);
+        CachingTokenRepository cache = new CachingTokenRepository(repository, asyncRepository, cacheSize, cacheMaxAge, metrics);
+        invalidations.add(cache);
+
+        return cache;
+    }
+
+    @Provides
+    @Singleton
+    CacheSnapshots provideCacheSnapshots(TokenRepository repository)
+    {
+        if (cacheSnapshotFile == null || !(repository instanceof CachingTokenRepository))
+        {
+            return CacheSnapshots.disabled();
+        }
+
+        LOG.info("Keeping the Token Cache in {} across restarts", cacheSnapshotFile);
+        return new CacheSnapshots(cacheSnapshotFile, (CachingTokenRepository) repository, CacheSnapshots.DEFAULT_PARALLELISM);
+    }
+
+    /*
+     * The decorators serve both kinds of calls, so the asynchronous path shares their cache and filter.
+     */
+    @Provides
+    @Singleton
+    AsyncTokenRepository provideAsyncTokenRepository(TokenRepository repository,
+                                                     @TokenStorage AsyncTokenRepository asyncStorage)
+    {
+        if (repository instanceof AsyncTokenRepository)
+        {
+            return (AsyncTokenRepository) repository;
+        }
+
+        return asyncStorage;
+    }
+
+    private boolean isFilterEnabled()
+    {
+        return filterExpectedTokens > 0;
+    }
+
+    private boolean isInvalidationBusEnabled()
+    {
+        return invalidationAddress != null;
+    }
+
+    private TokenIdFilter createFilter(TokenIdScanner scanner, MetricRegistry metrics)
+    {
+        TokenIdFilter filter = new TokenIdFilter(scanner, filterExpectedTokens, FILTER_FALSE_POSITIVE_RATE, metrics);
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("token-filter-%d")
+            .setDaemon(true)
+            .build());
+
+        executor.scheduleWithFixedDelay(() -> tryRebuild(filter),
+                                        0,
+                                        filterRebuildInterval.toMillis(),
+                                        MILLISECONDS);
+
+        return filter;
+    }
+
+    private ScheduledExecutorService createHedgeScheduler()
+    {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+            .setNameFormat("token-hedge-%d")
+            .setDaemon(true)
+            .build());
+
+        //Most hedges are cancelled, because the first read answers in time.
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    private void tryRebuild(TokenIdFilter filter)
+    {
+        try
+        {
+            filter.rebuild();
+        }
+        catch (Exception ex)
+        {
+            LOG.error("Failed to rebuild the Token ID Filter. Keeping the previous one.", ex);
+        }
+    }
+
+    /**
+     * @return The element, if it binds the key, or null.
+     */
+    @SuppressWarnings("unchecked") //A Binding is typed by its Key, which was just compared.
+    private static <T> Binding<T> asBindingOf(Element element, Key<T> key)
+    {
+        if (element instanceof Binding && key.equals(((Binding<?>) element).getKey()))
+        {
+            return (Binding<T>) element;
+        }
+
+        return null;
+    }
+
+    /*
+     * The storage Module's own repository bindings are moved under the @TokenStorage key,
+     * so the decorated repositories can take their place.
+     */
+    private <T> void rebindAsStorage(Binding<T> binding, Key<T> storageKey)
+    {
+        LinkedBindingBuilder<T> builder = binder()
+            .withSource(binding.getSource())
+            .bind(storageKey);
+
+        ScopedBindingBuilder scoped = binding.acceptTargetVisitor(new DefaultBindingTargetVisitor<T, ScopedBindingBuilder>()
+        {
+            @Override
+            public ScopedBindingBuilder visit(LinkedKeyBinding<? extends T> linked)
+            {
+                return builder.to(linked.getLinkedKey());
+            }
+
+            @Override
+            public ScopedBindingBuilder visit(ProviderKeyBinding<? extends T> provider)
+            {
+                return builder.toProvider(provider.getProviderKey());
+            }
+
+            @Override
+            public ScopedBindingBuilder visit(ProviderInstanceBinding<? extends T> provider)
+            {
+                return builder.toProvider(provider.getUserSuppliedProvider());
+            }
+
+            @Override
+            public ScopedBindingBuilder visit(InstanceBinding<? extends T> instance)
+            {
+                builder.toInstance(instance.getInstance());
+                return null;
+            }
+
+            @Override
+            protected ScopedBindingBuilder visitOther(Binding<? extends T> other)
+            {
+                throw new IllegalArgumentException("Unsupported storage binding: " + other);
+            }
+        });
+
+        if (scoped == null)
+        {
+            return;
+        }
+
+        binding.acceptScopingVisitor(new DefaultBindingScopingVisitor<Void>()
+        {
+            @Override
+            public Void visitEagerSingleton()
+            {
+                scoped.asEagerSingleton();
+                return null;
+            }
+
+            @Override
+            public Void visitScope(Scope scope)
+            {
+                scoped.in(scope);
+                return null;
+            }
+
+            @Override
+            public Void visitScopeAnnotation(Class<? extends Annotation> scopeAnnotation)
+            {
+                scoped.in(scopeAnnotation);
+                return null;
+            }
+        });
+    }
+
+    private static final class InvalidationBusProvider implements Provider<InvalidationBus>
+    {
+
+        private final InetSocketAddress address;
+        private final List<InetSocketAddress> peers;
+
+        @Inject
+        private InvalidationListeners invalidations;
+
+        @Inject
+        private SignedTokens signedTokens;
+
+        @Inject
+        private MetricRegistry metrics;
+
+        private InvalidationBusProvider(InetSocketAddress address, List<InetSocketAddress> peers)
+        {
+            this.address = address;
+            this.peers = peers;
+        }
+
+        @Override
+        public InvalidationBus get()
+        {
+            invalidations.add(new SignedTokenRevocations(signedTokens));
+
+            try
+            {
+                LOG.info("Exchanging invalidations with {} at {}", peers, address);
+                return UdpInvalidationBus.open(address, peers, invalidations, metrics);
+            }
+            catch (IOException ex)
+            {
+                throw new IllegalStateException("Could not receive invalidations at " + address, ex);
+            }
+        }
+
+    }
+
+    /*
+     * Signed Tokens are verified without storage, so each node keeps its own list of the ones revoked.
+     */
+    private static final class SignedTokenRevocations implements InvalidationListener
+    {
+
+        private final SignedTokens signedTokens;
+
+        private SignedTokenRevocations(SignedTokens signedTokens)
+        {
+            this.signedTokens = signedTokens;
+        }
+
+        @Override
+        public void onTokenInvalidated(String tokenId, long timeOfExpiration)
+        {
+            if (signedTokens.isEnabled())
+            {
+                signedTokens.revoke(tokenId, timeOfExpiration);
+            }
+        }
+
+        @Override
+        public void onOwnerInvalidated(String ownerId)
+        {
+            //Each of the Owner's signed Tokens is published on its own.
+        }
+
+        @Override
+        public void onInvalidationsMissed()
+        {
+            if (signedTokens.isEnabled())
+            {
+                LOG.warn("Missed invalidations from other nodes. Signed Tokens issued until now will be checked against storage");
+                signedTokens.revocationsMissed();
+            }
+        }
+
+    }
+
+    /*
+     * For storage without a non-blocking client of its own, whose calls instead run on a shared pool.
+     */
+    private static final class BlockingStorageProvider implements Provider<AsyncTokenRepository>
+    {
+
+        private final TokenRepository storage;
+
+        @Inject
+        BlockingStorageProvider(@TokenStorage TokenRepository storage)
+        {
+            this.storage = storage;
+        }
+
+        @Override
+        public AsyncTokenRepository get()
+        {
+            return new BlockingAsyncTokenRepository(storage);
+        }
+
+    }
+
+}
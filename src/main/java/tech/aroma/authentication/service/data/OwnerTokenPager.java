@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.google.inject.ImplementedBy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.sirwellington.alchemy.annotations.arguments.Optional;
+import tech.sirwellington.alchemy.annotations.concurrency.Immutable;
+
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * Reads the Tokens belonging to an Owner one page at a time, so that Owners with many Tokens can be
+ * walked without holding them all in memory, and a walk that stopped can be picked up from where it
+ * left off.
+ *
+ * @author SirWellington
+ */
+@ImplementedBy(RepositoryOwnerTokenPager.class)
+public interface OwnerTokenPager
+{
+
+    /**
+     * @param pagingState Where the previous page ended, or null to read the first page.
+     * @return The next page, which fails with the same exceptions as {@link AsyncTokenRepository} would.
+     */
+    CompletableFuture<Page> getPage(String ownerId, @Optional String pagingState);
+
+    @Immutable
+    final class Page
+    {
+
+        private final List<AuthenticationToken> tokens;
+        private final String nextPagingState;
+
+        /**
+         * @param nextPagingState Where the next page starts, or null if this is the last page.
+         */
+        public Page(List<AuthenticationToken> tokens, @Optional String nextPagingState)
+        {
+            checkThat(tokens).is(notNull());
+
+            this.tokens = Collections.unmodifiableList(new ArrayList<>(tokens));
+            this.nextPagingState = nextPagingState;
+        }
+
+        public List<AuthenticationToken> getTokens()
+        {
+            return tokens;
+        }
+
+        public String getNextPagingState()
+        {
+            return nextPagingState;
+        }
+
+        public boolean isLast()
+        {
+            return nextPagingState == null;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Page{" + "tokens=" + tokens.size() + ", last=" + isLast() + '}';
+        }
+
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+/**
+ * Creates random Token IDs from buffered, cryptographically strong entropy.
+ * <p>
+ * {@link java.util.UUID#randomUUID() } makes every caller share one {@link SecureRandom}, and reads
+ * only 16 bytes from it at a time. Here, entropy is split across stripes, each with its own generator,
+ * and read a few kilobytes at a time. The bytes are encoded straight into a reused character buffer.
+ * <p>
+ * Stripes are chosen by thread, rather than held in a {@link ThreadLocal}, so that running each
+ * request on a new virtual thread does not create a new generator per request.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class RandomTokens
+{
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int BUFFER_BYTES = 4096;
+    private static final int UUID_BYTES = 16;
+    private static final int UUID_CHARS = 36;
+
+    private static final Stripe[] STRIPES = createStripes();
+
+    private RandomTokens() throws IllegalAccessException
+    {
+        throw new IllegalAccessException("cannot instantiate");
+    }
+
+    /**
+     * @return A random, version 4 UUID, in the same format as {@link java.util.UUID#toString() }.
+     */
+    static String uuid()
+    {
+        Stripe stripe = stripe();
+
+        synchronized (stripe)
+        {
+            int start = stripe.take(UUID_BYTES);
+            byte[] bytes = stripe.buffer;
+
+            //Version 4, IETF variant.
+            bytes[start + 6] = (byte) ((bytes[start + 6] & 0x0f) | 0x40);
+            bytes[start + 8] = (byte) ((bytes[start + 8] & 0x3f) | 0x80);
+
+            char[] chars = stripe.chars(UUID_CHARS);
+            int position = 0;
+
+            for (int i = 0; i < UUID_BYTES; ++i)
+            {
+                if (i == 4 || i == 6 || i == 8 || i == 10)
+                {
+                    chars[position++] = '-';
+                }
+
+                position = writeHex(bytes[start + i], chars, position);
+            }
+
+            return new String(chars, 0, UUID_CHARS);
+        }
+    }
+
+    /**
+     * @param length The number of hexadecimal characters to return. Must be even.
+     * @return A random hexadecimal String.
+     */
+    static String hex(int length)
+    {
+        if (length < 0 || length % 2 != 0)
+        {
+            throw new IllegalArgumentException("length must be even and at least 0: " + length);
+        }
+
+        Stripe stripe = stripe();
+
+        synchronized (stripe)
+        {
+            char[] chars = stripe.chars(length);
+            int position = 0;
+
+            while (position < length)
+            {
+                int bytesNeeded = Math.min((length - position) / 2, BUFFER_BYTES);
+                int start = stripe.take(bytesNeeded);
+
+                for (int i = 0; i < bytesNeeded; ++i)
+                {
+                    position = writeHex(stripe.buffer[start + i], chars, position);
+                }
+            }
+
+            return new String(chars, 0, length);
+        }
+    }
+
+    private static int writeHex(byte value, char[] chars, int position)
+    {
+        chars[position] = HEX[(value >> 4) & 0x0f];
+        chars[position + 1] = HEX[value & 0x0f];
+        return position + 2;
+    }
+
+    private static Stripe stripe()
+    {
+        long threadId = Thread.currentThread().getId();
+        int hash = (int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32);
+
+        return STRIPES[hash & (STRIPES.length - 1)];
+    }
+
+    private static Stripe[] createStripes()
+    {
+        //The smallest power of two with at least two stripes per processor.
+        int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+        Stripe[] stripes = new Stripe[count];
+
+        for (int i = 0; i < count; ++i)
+        {
+            stripes[i] = new Stripe(newSecureRandom());
+        }
+
+        return stripes;
+    }
+
+    /**
+     * The platform default is backed by a single, process-wide source, so each stripe gets an
+     * independent generator instead, seeded by the platform.
+     */
+    private static SecureRandom newSecureRandom()
+    {
+        for (String algorithm : new String[] { "DRBG", "SHA1PRNG" })
+        {
+            try
+            {
+                return SecureRandom.getInstance(algorithm);
+            }
+            catch (NoSuchAlgorithmException ex)
+            {
+                //Try the next one.
+            }
+        }
+
+        return new SecureRandom();
+    }
+
+    private static final class Stripe
+    {
+
+        private final SecureRandom random;
+        private final byte[] buffer = new byte[BUFFER_BYTES];
+        private int position = BUFFER_BYTES;
+        private char[] chars = new char[UUID_CHARS];
+
+        private Stripe(SecureRandom random)
+        {
+            this.random = random;
+        }
+
+        /**
+         * @return The index in the buffer of {@code count} unused bytes.
+         */
+        private int take(int count)
+        {
+            if (position + count > BUFFER_BYTES)
+            {
+                random.nextBytes(buffer);
+                position = 0;
+            }
+
+            int start = position;
+            position += count;
+            return start;
+        }
+
+        private char[] chars(int length)
+        {
+            if (chars.length < length)
+            {
+                chars = new char[length];
+            }
+
+            return chars;
+        }
+
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.util.concurrent.CompletableFuture;
+import javax.inject.Inject;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * For storage that cannot page, whose Tokens for an Owner are all read as a single page.
+ *
+ * @author SirWellington
+ */
+@Internal
+final class RepositoryOwnerTokenPager implements OwnerTokenPager
+{
+
+    private final AsyncTokenRepository repository;
+
+    @Inject
+    RepositoryOwnerTokenPager(AsyncTokenRepository repository)
+    {
+        checkThat(repository).is(notNull());
+
+        this.repository = repository;
+    }
+
+    @Override
+    public CompletableFuture<Page> getPage(String ownerId, String pagingState)
+    {
+        return repository.getTokensBelongingToAsync(ownerId)
+            .thenApply(tokens -> new Page(tokens, null));
+    }
+
+}
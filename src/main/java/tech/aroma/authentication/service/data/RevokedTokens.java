@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+/**
+ * The Token IDs invalidated before their expiration. An entry is only kept until the Token would
+ * have expired anyway, so the set stays as small as the number of recent invalidations.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class RevokedTokens
+{
+
+    private static final int PURGE_EVERY = 1_000;
+
+    /** Token ID -> Time of Expiration, in epoch millis. */
+    private final ConcurrentMap<String, Long> revocations = new ConcurrentHashMap<>();
+    private final AtomicInteger revocationsSincePurge = new AtomicInteger();
+
+    void revoke(String tokenId, long timeOfExpiration)
+    {
+        if (timeOfExpiration <= System.currentTimeMillis())
+        {
+            return;
+        }
+
+        revocations.merge(tokenId, timeOfExpiration, Math::max);
+
+        if (revocationsSincePurge.incrementAndGet() >= PURGE_EVERY)
+        {
+            revocationsSincePurge.set(0);
+            purgeExpired();
+        }
+    }
+
+    boolean isRevoked(String tokenId)
+    {
+        return revocations.containsKey(tokenId);
+    }
+
+    int size()
+    {
+        return revocations.size();
+    }
+
+    void purgeExpired()
+    {
+        long now = System.currentTimeMillis();
+        revocations.values().removeIf(timeOfExpiration -> timeOfExpiration <= now);
+    }
+
+}
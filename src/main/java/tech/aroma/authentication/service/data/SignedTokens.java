@@ -0,0 +1,460 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenType;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.sirwellington.alchemy.annotations.concurrency.Immutable;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.nonEmptyString;
+
+/**
+ * Issues and checks Token IDs that carry their own claims, signed with HMAC-SHA256, so that a Token can be
+ * verified in memory instead of with a read from storage.
+ * <p>
+ * A signed Token ID looks like {@code s1.<key id>.<claims>.<signature>}. The claims hold the Token's storage ID,
+ * owner, type, creation, and expiration. The Token is still saved under its storage ID, a UUID, so every other
+ * operation works as before once the ID is {@linkplain #storageIdOf(java.lang.String) unwrapped}.
+ * <p>
+ * Any of the configured keys are accepted, but only the active key signs, so keys can be rotated
+ * by adding a new key, making it active, and removing the old key once its Tokens have expired.
+ * <p>
+ * Invalidated Tokens are remembered in memory until they expire, but only those heard of since the
+ * process started, or since some were last missed. Tokens invalidated on other nodes may not be heard
+ * of at all. So only recently issued Tokens are trusted from memory alone; any other Token
+ * {@linkplain #mayHaveMissedRevocation(Claims) may have been invalidated} without this node knowing,
+ * and is only accepted while it is still in storage, which invalidating removes it from.
+ *
+ * @author SirWellington
+ */
+@ThreadSafe
+public final class SignedTokens
+{
+
+    static final String PREFIX = "s1";
+
+    public static final Duration DEFAULT_TRUST_WINDOW = Duration.ofMinutes(1);
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int MINIMUM_KEY_BYTES = 32;
+    private static final int CLAIMS_BYTES = 16 + 16 + 8 + 8 + 4;
+    private static final Pattern KEY_ID = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final String activeKeyId;
+    private final Map<String, ThreadLocal<Mac>> macs;
+    private final long trustWindowMillis;
+    private final RevokedTokens revocations = new RevokedTokens();
+
+    /** Tokens issued from this time on are known to be revoked, if they have been. */
+    private volatile long revocationsKeptSince = System.currentTimeMillis();
+
+    /**
+     * @param activeKeyId The ID of the key new Tokens are signed with.
+     * @param keys        Every key a Token may be signed with, by key ID. Each must be at least 32 bytes.
+     */
+    public SignedTokens(String activeKeyId, Map<String, byte[]> keys) throws IllegalArgumentException
+    {
+        this(activeKeyId, keys, DEFAULT_TRUST_WINDOW);
+    }
+
+    /**
+     * @param activeKeyId The ID of the key new Tokens are signed with.
+     * @param keys        Every key a Token may be signed with, by key ID. Each must be at least 32 bytes.
+     * @param trustWindow How long after it is issued a Token is accepted without checking storage.
+     *                    This bounds how long a Token invalidated on another node is still accepted here.
+     */
+    public SignedTokens(String activeKeyId, Map<String, byte[]> keys, Duration trustWindow) throws IllegalArgumentException
+    {
+        checkThat(activeKeyId)
+            .usingMessage("missing active key ID")
+            .is(nonEmptyString());
+
+        checkThat(keys, trustWindow).are(notNull());
+
+        if (trustWindow.isNegative())
+        {
+            throw new IllegalArgumentException("trust window cannot be negative");
+        }
+
+        if (!keys.containsKey(activeKeyId))
+        {
+            throw new IllegalArgumentException("No key with ID: " + activeKeyId);
+        }
+
+        Map<String, ThreadLocal<Mac>> macs = new HashMap<>();
+
+        for (Map.Entry<String, byte[]> key : keys.entrySet())
+        {
+            String keyId = key.getKey();
+            byte[] secret = key.getValue();
+
+            if (Strings.isNullOrEmpty(keyId) || !KEY_ID.matcher(keyId).matches())
+            {
+                throw new IllegalArgumentException("Key IDs may only contain letters, digits, '-' and '_': " + keyId);
+            }
+
+            if (secret == null || secret.length < MINIMUM_KEY_BYTES)
+            {
+                throw new IllegalArgumentException("Key " + keyId + " must be at least " + MINIMUM_KEY_BYTES + " bytes");
+            }
+
+            SecretKeySpec spec = new SecretKeySpec(secret.clone(), ALGORITHM);
+            macs.put(keyId, ThreadLocal.withInitial(() -> newMac(spec)));
+        }
+
+        this.activeKeyId = activeKeyId;
+        this.macs = Collections.unmodifiableMap(macs);
+        this.trustWindowMillis = trustWindow.toMillis();
+    }
+
+    private SignedTokens()
+    {
+        this.activeKeyId = null;
+        this.macs = Collections.emptyMap();
+        this.trustWindowMillis = 0;
+    }
+
+    /**
+     * @return An instance that signs nothing and accepts no signed Tokens.
+     */
+    public static SignedTokens disabled()
+    {
+        return new SignedTokens();
+    }
+
+    /**
+     * @param activeKeyId The ID of the key new Tokens are signed with.
+     * @param keys        Keys in the form {@code <key id>:<base64 secret>}, separated by commas.
+     */
+    public static SignedTokens fromKeys(String activeKeyId, String keys) throws IllegalArgumentException
+    {
+        return fromKeys(activeKeyId, keys, DEFAULT_TRUST_WINDOW);
+    }
+
+    /**
+     * @param activeKeyId The ID of the key new Tokens are signed with.
+     * @param keys        Keys in the form {@code <key id>:<base64 secret>}, separated by commas.
+     * @param trustWindow How long after it is issued a Token is accepted without checking storage.
+     */
+    public static SignedTokens fromKeys(String activeKeyId, String keys, Duration trustWindow) throws IllegalArgumentException
+    {
+        checkThat(keys)
+            .usingMessage("missing signing keys")
+            .is(nonEmptyString());
+
+        Map<String, byte[]> secrets = new HashMap<>();
+
+        for (String key : Splitter.on(',').trimResults().omitEmptyStrings().split(keys))
+        {
+            List<String> parts = Splitter.on(':').limit(2).splitToList(key);
+
+            if (parts.size() != 2)
+            {
+                throw new IllegalArgumentException("Signing keys must look like <key id>:<base64 secret>");
+            }
+
+            secrets.put(parts.get(0), Base64.getDecoder().decode(parts.get(1)));
+        }
+
+        return new SignedTokens(activeKeyId, secrets, trustWindow);
+    }
+
+    public boolean isEnabled()
+    {
+        return activeKeyId != null;
+    }
+
+    /**
+     * @return True if the Token ID has the shape of a signed Token. The signature is not checked.
+     */
+    public boolean isSigned(String tokenId)
+    {
+        return tokenId != null && tokenId.startsWith(PREFIX + ".");
+    }
+
+    /**
+     * Creates a signed Token ID for the Token.
+     *
+     * @param token A Token whose ID and owner ID are UUIDs, with a type and an expiration.
+     */
+    public String sign(AuthenticationToken token) throws IllegalArgumentException
+    {
+        checkThat(token).is(notNull());
+
+        if (!isEnabled())
+        {
+            throw new IllegalStateException("Signed Tokens are disabled");
+        }
+
+        checkThat(token.tokenType)
+            .usingMessage("token type is required")
+            .is(notNull());
+
+        UUID tokenId = UUID.fromString(token.tokenId);
+        UUID ownerId = UUID.fromString(token.ownerId);
+
+        byte[] claims = ByteBuffer.allocate(CLAIMS_BYTES)
+            .putLong(tokenId.getMostSignificantBits())
+            .putLong(tokenId.getLeastSignificantBits())
+            .putLong(ownerId.getMostSignificantBits())
+            .putLong(ownerId.getLeastSignificantBits())
+            .putLong(token.timeOfCreation)
+            .putLong(token.timeOfExpiration)
+            .putInt(token.tokenType.getValue())
+            .array();
+
+        String signedPart = PREFIX + "." + activeKeyId + "." + ENCODER.encodeToString(claims);
+        byte[] signature = macs.get(activeKeyId).get().doFinal(signedPart.getBytes(UTF_8));
+
+        return signedPart + "." + ENCODER.encodeToString(signature);
+    }
+
+    /**
+     * Checks the signature of a signed Token ID, and reads its claims. Expiration and revocation are
+     * not checked; see {@link #checkValid(java.lang.String) }.
+     *
+     * @throws InvalidTokenException If the Token is malformed, or its signature does not match.
+     */
+    public Claims verify(String tokenId) throws InvalidTokenException
+    {
+        if (!isSigned(tokenId))
+        {
+            throw new InvalidTokenException("Token is not signed");
+        }
+
+        int signatureStart = tokenId.lastIndexOf('.');
+        int claimsStart = tokenId.lastIndexOf('.', signatureStart - 1);
+
+        if (claimsStart <= PREFIX.length())
+        {
+            throw new InvalidTokenException("Malformed Token");
+        }
+
+        String keyId = tokenId.substring(PREFIX.length() + 1, claimsStart);
+        ThreadLocal<Mac> mac = macs.get(keyId);
+
+        if (mac == null)
+        {
+            throw new InvalidTokenException("Token was signed with an unknown key");
+        }
+
+        byte[] claims;
+        byte[] signature;
+
+        try
+        {
+            claims = DECODER.decode(tokenId.substring(claimsStart + 1, signatureStart));
+            signature = DECODER.decode(tokenId.substring(signatureStart + 1));
+        }
+        catch (IllegalArgumentException ex)
+        {
+            throw new InvalidTokenException("Malformed Token");
+        }
+
+        byte[] expected = mac.get().doFinal(tokenId.substring(0, signatureStart).getBytes(UTF_8));
+
+        if (!MessageDigest.isEqual(expected, signature))
+        {
+            throw new InvalidTokenException("Token signature does not match");
+        }
+
+        if (claims.length != CLAIMS_BYTES)
+        {
+            throw new InvalidTokenException("Malformed Token");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(claims);
+        UUID storageId = new UUID(buffer.getLong(), buffer.getLong());
+        UUID ownerId = new UUID(buffer.getLong(), buffer.getLong());
+        long timeOfCreation = buffer.getLong();
+        long timeOfExpiration = buffer.getLong();
+        TokenType tokenType = TokenType.findByValue(buffer.getInt());
+
+        return new Claims(storageId.toString(), ownerId.toString(), tokenType, timeOfCreation, timeOfExpiration);
+    }
+
+    /**
+     * Checks the signature, the expiration, and whether the Token is known to have been invalidated.
+     * Unless the Token {@linkplain #mayHaveMissedRevocation(Claims) was issued too early},
+     * that is enough to accept it.
+     *
+     * @throws InvalidTokenException If the Token should not be accepted.
+     */
+    public Claims checkValid(String tokenId) throws InvalidTokenException
+    {
+        Claims claims = verify(tokenId);
+
+        if (claims.getTimeOfExpiration() <= System.currentTimeMillis())
+        {
+            throw new InvalidTokenException("Token has expired.");
+        }
+
+        if (revocations.isRevoked(claims.getStorageId()))
+        {
+            throw new InvalidTokenException("Token has been invalidated");
+        }
+
+        return claims;
+    }
+
+    /**
+     * @return The ID the Token is saved under. For unsigned Tokens, this is the Token ID itself.
+     * @throws InvalidTokenException If the Token is signed, but its signature does not match.
+     */
+    public String storageIdOf(String tokenId) throws InvalidTokenException
+    {
+        if (!isSigned(tokenId))
+        {
+            return tokenId;
+        }
+
+        return verify(tokenId).getStorageId();
+    }
+
+    /**
+     * Remembers that the Token has been invalidated, so its signed ID is no longer accepted.
+     *
+     * @param storageId        The ID the Token is saved under.
+     * @param timeOfExpiration When the Token expires, after which it need not be remembered.
+     */
+    public void revoke(String storageId, long timeOfExpiration)
+    {
+        checkThat(storageId).is(nonEmptyString());
+
+        revocations.revoke(storageId, timeOfExpiration);
+    }
+
+    public boolean isRevoked(String storageId)
+    {
+        return revocations.isRevoked(storageId);
+    }
+
+    /**
+     * @return True if the Token was issued longer ago than the trust window, or before this node began keeping
+     *         track of revocations, at startup or when some were last missed. Such a Token is only accepted if it
+     *         is still in storage.
+     */
+    public boolean mayHaveMissedRevocation(Claims claims)
+    {
+        checkThat(claims).is(notNull());
+
+        long trustedSince = Math.max(revocationsKeptSince, System.currentTimeMillis() - trustWindowMillis);
+        return claims.getTimeOfCreation() < trustedSince;
+    }
+
+    /**
+     * Records that revocations made elsewhere may not have been heard of, so the Tokens issued until now
+     * are checked against storage.
+     */
+    public void revocationsMissed()
+    {
+        revocationsKeptSince = System.currentTimeMillis();
+    }
+
+    private static Mac newMac(SecretKeySpec key)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException("Could not create " + ALGORITHM, ex);
+        }
+    }
+
+    /**
+     * What a signed Token says about itself.
+     */
+    @Immutable
+    public static final class Claims
+    {
+
+        private final String storageId;
+        private final String ownerId;
+        private final TokenType tokenType;
+        private final long timeOfCreation;
+        private final long timeOfExpiration;
+
+        Claims(String storageId, String ownerId, TokenType tokenType, long timeOfCreation, long timeOfExpiration)
+        {
+            this.storageId = storageId;
+            this.ownerId = ownerId;
+            this.tokenType = tokenType;
+            this.timeOfCreation = timeOfCreation;
+            this.timeOfExpiration = timeOfExpiration;
+        }
+
+        public String getStorageId()
+        {
+            return storageId;
+        }
+
+        public String getOwnerId()
+        {
+            return ownerId;
+        }
+
+        public TokenType getTokenType()
+        {
+            return tokenType;
+        }
+
+        public long getTimeOfCreation()
+        {
+            return timeOfCreation;
+        }
+
+        public long getTimeOfExpiration()
+        {
+            return timeOfExpiration;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Claims{" + "storageId=" + storageId + ", ownerId=" + ownerId + ", tokenType=" + tokenType + ", timeOfCreation=" + timeOfCreation + ", timeOfExpiration=" + timeOfExpiration + '}';
+        }
+
+    }
+
+}
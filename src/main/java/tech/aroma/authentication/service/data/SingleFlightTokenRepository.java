@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.thrift.TException;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+import tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern;
+
+import static tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern.Role.DECORATOR;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * Coalesces concurrent reads of the same Token, so that only one read per Token ID is in flight, and
+ * every caller that arrives while it is receives its result.
+ * <p>
+ * Blocking and non-blocking reads share the same flights. Saves and deletes end the flight for their
+ * Token, so reads that begin after a write never receive a result read before it.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+@DecoratorPattern(role = DECORATOR)
+final class SingleFlightTokenRepository implements TokenRepository, AsyncTokenRepository
+{
+
+    private final TokenRepository delegate;
+    private final AsyncTokenRepository asyncDelegate;
+
+    /*
+     * The token each flight completes with is never handed out directly, since callers are free
+     * to modify the token they receive.
+     */
+    private final ConcurrentMap<String, CompletableFuture<AuthenticationToken>> flights = new ConcurrentHashMap<>();
+
+    private final Counter coalesced;
+
+    SingleFlightTokenRepository(TokenRepository delegate, MetricRegistry metrics)
+    {
+        this(delegate, BlockingAsyncTokenRepository.inline(delegate), metrics);
+    }
+
+    SingleFlightTokenRepository(TokenRepository delegate, AsyncTokenRepository asyncDelegate, MetricRegistry metrics)
+    {
+        checkThat(delegate, asyncDelegate, metrics)
+            .are(notNull());
+
+        this.delegate = delegate;
+        this.asyncDelegate = asyncDelegate;
+
+        this.coalesced = metrics.counter(MetricRegistry.name(SingleFlightTokenRepository.class, "coalesced"));
+        metrics.register(MetricRegistry.name(SingleFlightTokenRepository.class, "in-flight"), (Gauge<Integer>) flights::size);
+    }
+
+    @Override
+    public boolean containsToken(String tokenId) throws TException
+    {
+        return delegate.containsToken(tokenId);
+    }
+
+    @Override
+    public AuthenticationToken getToken(String tokenId) throws TException, InvalidTokenException
+    {
+        if (Strings.isNullOrEmpty(tokenId))
+        {
+            return delegate.getToken(tokenId);
+        }
+
+        CompletableFuture<AuthenticationToken> flight = new CompletableFuture<>();
+        CompletableFuture<AuthenticationToken> existing = flights.putIfAbsent(tokenId, flight);
+
+        if (existing != null)
+        {
+            coalesced.inc();
+            return copyOf(await(existing));
+        }
+
+        try
+        {
+            AuthenticationToken token = delegate.getToken(tokenId);
+            flight.complete(copyOf(token));
+            return token;
+        }
+        catch (Throwable ex)
+        {
+            //Errors too, or the callers waiting on this flight would wait forever.
+            flight.completeExceptionally(ex);
+            throw ex;
+        }
+        finally
+        {
+            flights.remove(tokenId, flight);
+        }
+    }
+
+    @Override
+    public void saveToken(AuthenticationToken token) throws TException
+    {
+        delegate.saveToken(token);
+
+        if (token != null)
+        {
+            land(token.tokenId);
+        }
+    }
+
+    @Override
+    public List<AuthenticationToken> getTokensBelongingTo(String ownerId) throws TException
+    {
+        return delegate.getTokensBelongingTo(ownerId);
+    }
+
+    @Override
+    public void deleteToken(String tokenId) throws TException
+    {
+        delegate.deleteToken(tokenId);
+        land(tokenId);
+    }
+
+    @Override
+    public CompletableFuture<AuthenticationToken> getTokenAsync(String tokenId)
+    {
+        if (Strings.isNullOrEmpty(tokenId))
+        {
+            return asyncDelegate.getTokenAsync(tokenId);
+        }
+
+        CompletableFuture<AuthenticationToken> flight = new CompletableFuture<>();
+        CompletableFuture<AuthenticationToken> existing = flights.putIfAbsent(tokenId, flight);
+
+        if (existing != null)
+        {
+            coalesced.inc();
+            return existing.thenApply(SingleFlightTokenRepository::copyOf);
+        }
+
+        CompletableFuture<AuthenticationToken> pending;
+
+        try
+        {
+            pending = asyncDelegate.getTokenAsync(tokenId);
+        }
+        catch (Throwable ex)
+        {
+            flights.remove(tokenId, flight);
+            flight.completeExceptionally(ex);
+            throw ex;
+        }
+
+        pending.whenComplete((token, ex) ->
+        {
+            flights.remove(tokenId, flight);
+
+            if (ex != null)
+            {
+                flight.completeExceptionally(ex);
+            }
+            else
+            {
+                flight.complete(token);
+            }
+        });
+
+        return flight.thenApply(SingleFlightTokenRepository::copyOf);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveTokenAsync(AuthenticationToken token)
+    {
+        return asyncDelegate.saveTokenAsync(token)
+            .thenRun(() ->
+            {
+                if (token != null)
+                {
+                    land(token.tokenId);
+                }
+            });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteTokenAsync(String tokenId)
+    {
+        return asyncDelegate.deleteTokenAsync(tokenId)
+            .thenRun(() -> land(tokenId));
+    }
+
+    @Override
+    public CompletableFuture<List<AuthenticationToken>> getTokensBelongingToAsync(String ownerId)
+    {
+        return asyncDelegate.getTokensBelongingToAsync(ownerId);
+    }
+
+    int flightsInProgress()
+    {
+        return flights.size();
+    }
+
+    /*
+     * Callers already waiting keep the result of the read they joined; later ones start a new read.
+     */
+    private void land(String tokenId)
+    {
+        if (!Strings.isNullOrEmpty(tokenId))
+        {
+            flights.remove(tokenId);
+        }
+    }
+
+    private static AuthenticationToken await(CompletableFuture<AuthenticationToken> flight) throws TException
+    {
+        try
+        {
+            return flight.join();
+        }
+        catch (CompletionException ex)
+        {
+            Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+
+            if (cause instanceof TException)
+            {
+                throw (TException) cause;
+            }
+
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+
+            throw new OperationFailedException("Could not read token: " + cause.getMessage());
+        }
+    }
+
+    private static AuthenticationToken copyOf(AuthenticationToken token)
+    {
+        return token == null ? null : token.deepCopy();
+    }
+
+}
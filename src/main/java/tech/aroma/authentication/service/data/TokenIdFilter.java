@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+
+/**
+ * A Bloom Filter of every Token ID known to storage, used to turn away IDs that certainly do not exist
+ * without a trip to the database.
+ * <p>
+ * The filter answers "maybe" for everything until the first {@linkplain #rebuild() rebuild} completes.
+ * Deleted Tokens stay in the filter until the next rebuild, which only costs a database read.
+ * <p>
+ * Between rebuilds, the filter only knows about the Tokens passed to {@link #add(java.lang.String) }, so a
+ * Token created on another node may be missing from it until the next rebuild.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class TokenIdFilter
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(TokenIdFilter.class);
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final TokenIdScanner scanner;
+    private final long expectedTokens;
+    private final double falsePositiveRate;
+
+    /** Null until the first rebuild completes. */
+    private volatile Bits bits;
+
+    /** Receives new IDs while a rebuild is in progress, so they are not lost in the swap. */
+    private volatile Bits rebuilding;
+
+    TokenIdFilter(TokenIdScanner scanner, long expectedTokens, double falsePositiveRate, MetricRegistry metrics)
+    {
+        checkThat(scanner, metrics)
+            .are(notNull());
+
+        checkThat(expectedTokens)
+            .usingMessage("expected tokens must be > 0")
+            .is(greaterThan(0L));
+
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+        {
+            throw new IllegalArgumentException("false positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+
+        this.scanner = scanner;
+        this.expectedTokens = expectedTokens;
+        this.falsePositiveRate = falsePositiveRate;
+
+        metrics.register(MetricRegistry.name(TokenIdFilter.class, "bytes"), (Gauge<Long>) this::sizeInBytes);
+        metrics.register(MetricRegistry.name(TokenIdFilter.class, "tokens"), (Gauge<Long>) this::approximateCount);
+        metrics.register(MetricRegistry.name(TokenIdFilter.class, "false-positive-rate"), (Gauge<Double>) this::currentFalsePositiveRate);
+    }
+
+    boolean isReady()
+    {
+        return bits != null;
+    }
+
+    /**
+     * @return False only if the Token ID is certainly not in storage.
+     */
+    boolean mightContain(String tokenId)
+    {
+        Bits current = bits;
+
+        if (current == null || Strings.isNullOrEmpty(tokenId))
+        {
+            return true;
+        }
+
+        return current.mightContain(tokenId);
+    }
+
+    void add(String tokenId)
+    {
+        if (Strings.isNullOrEmpty(tokenId))
+        {
+            return;
+        }
+
+        //Read in the opposite order to the swap in rebuild(), so an add is never lost between the two.
+        Bits next = rebuilding;
+        Bits current = bits;
+
+        if (next != null)
+        {
+            next.put(tokenId);
+        }
+
+        if (current != null)
+        {
+            current.put(tokenId);
+        }
+    }
+
+    /**
+     * Builds a fresh filter from storage and swaps it in. Deleted Tokens are dropped in the process.
+     */
+    synchronized void rebuild() throws Exception
+    {
+        Bits next = new Bits(Math.max(expectedTokens, approximateCount() * 2), falsePositiveRate);
+        rebuilding = next;
+
+        long start = System.currentTimeMillis();
+
+        try
+        {
+            scanner.scan(next::put);
+            bits = next;
+        }
+        finally
+        {
+            rebuilding = null;
+        }
+
+        LOG.info("Rebuilt Token ID Filter with ~{} Tokens, {} bytes, in {}ms",
+                 next.approximateCount(),
+                 next.sizeInBytes(),
+                 System.currentTimeMillis() - start);
+    }
+
+    long sizeInBytes()
+    {
+        Bits current = bits;
+        return current != null ? current.sizeInBytes() : 0L;
+    }
+
+    long approximateCount()
+    {
+        Bits current = bits;
+        return current != null ? current.approximateCount() : 0L;
+    }
+
+    /**
+     * @return The expected false-positive rate for the number of Tokens currently in the filter.
+     */
+    double currentFalsePositiveRate()
+    {
+        Bits current = bits;
+        return current != null ? current.falsePositiveRate() : 1.0;
+    }
+
+    /**
+     * A fixed-size bit array that is safe to read and write from many threads at once.
+     */
+    private static final class Bits
+    {
+
+        private final AtomicLongArray words;
+        private final long bitCount;
+        private final int hashes;
+        private final LongAdder insertions = new LongAdder();
+
+        Bits(long expectedInsertions, double falsePositiveRate)
+        {
+            long optimalBits = (long) (-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            int wordCount = Math.toIntExact(Math.max(1L, (optimalBits + 63) / 64));
+
+            this.words = new AtomicLongArray(wordCount);
+            this.bitCount = wordCount * 64L;
+            this.hashes = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+        }
+
+        void put(String tokenId)
+        {
+            byte[] hash = HASH.hashString(tokenId, UTF_8).asBytes();
+            long first = lowerLong(hash);
+            long second = upperLong(hash);
+
+            boolean changed = false;
+            long combined = first;
+
+            for (int i = 0; i < hashes; ++i)
+            {
+                changed |= setBit((combined & Long.MAX_VALUE) % bitCount);
+                combined += second;
+            }
+
+            if (changed)
+            {
+                insertions.increment();
+            }
+        }
+
+        boolean mightContain(String tokenId)
+        {
+            byte[] hash = HASH.hashString(tokenId, UTF_8).asBytes();
+            long first = lowerLong(hash);
+            long second = upperLong(hash);
+
+            long combined = first;
+
+            for (int i = 0; i < hashes; ++i)
+            {
+                if (!getBit((combined & Long.MAX_VALUE) % bitCount))
+                {
+                    return false;
+                }
+
+                combined += second;
+            }
+
+            return true;
+        }
+
+        long sizeInBytes()
+        {
+            return bitCount / 8;
+        }
+
+        long approximateCount()
+        {
+            return insertions.sum();
+        }
+
+        double falsePositiveRate()
+        {
+            double fractionSet = 1 - Math.exp(-(double) hashes * approximateCount() / bitCount);
+            return Math.pow(fractionSet, hashes);
+        }
+
+        private boolean setBit(long index)
+        {
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+
+            long current;
+            do
+            {
+                current = words.get(word);
+
+                if ((current & mask) != 0)
+                {
+                    return false;
+                }
+            }
+            while (!words.compareAndSet(word, current, current | mask));
+
+            return true;
+        }
+
+        private boolean getBit(long index)
+        {
+            return (words.get((int) (index >>> 6)) & (1L << index)) != 0;
+        }
+
+        private static long lowerLong(byte[] hash)
+        {
+            return Longs.fromBytes(hash[7], hash[6], hash[5], hash[4], hash[3], hash[2], hash[1], hash[0]);
+        }
+
+        private static long upperLong(byte[] hash)
+        {
+            return Longs.fromBytes(hash[15], hash[14], hash[13], hash[12], hash[11], hash[10], hash[9], hash[8]);
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.util.function.Consumer;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+/**
+ * Walks every Token ID currently in storage.
+ *
+ * @author SirWellington
+ */
+@Internal
+@FunctionalInterface
+interface TokenIdScanner
+{
+
+    /**
+     * Hands every stored Token ID to the consumer.
+     *
+     * @param consumer Receives each Token ID.
+     * @throws Exception If storage cannot be read. The scan is then incomplete.
+     */
+    void scan(Consumer<String> consumer) throws Exception;
+
+    TokenIdScanner NONE = consumer -> {};
+
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * Sends invalidations to a fixed list of peers in UDP datagrams, and receives theirs.
+ * <p>
+ * Invalidations published while a batch is being sent are sent together in the next one, so a busy node
+ * sends fewer, fuller datagrams, and a quiet one sends each invalidation as soon as it is published.
+ * A batch is kept small enough to fit in one Ethernet frame.
+ * <p>
+ * Each batch carries the ID of the node that sent it, chosen at random on startup, and a sequence number
+ * that grows by one with every batch. A peer that sees a sequence number skipped has lost a batch, and
+ * drops every Token it holds in memory, since it cannot know which of them were invalidated. Batches that
+ * could not be queued or sent skip their sequence number too. Invalidations are safe to apply more than
+ * once, and in any order, so duplicate and late batches are applied as they are.
+ * <p>
+ * A node that has nothing to send for a {@linkplain #HEARTBEAT_INTERVAL while} sends an empty batch carrying
+ * the sequence number of its last one, so that the loss of a node's last batch is noticed within that time,
+ * instead of whenever it next has something to send.
+ * <p>
+ * Datagrams are neither encrypted nor authenticated, so the port should only be reachable from the
+ * other nodes of the Service.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class UdpInvalidationBus implements InvalidationBus, Closeable
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(UdpInvalidationBus.class);
+
+    /** "ARMA" */
+    private static final int MAGIC = 0x41524D41;
+    private static final byte VERSION = 1;
+
+    private static final byte TOKEN = 1;
+    private static final byte OWNER = 2;
+
+    static final Duration HEARTBEAT_INTERVAL = Duration.ofSeconds(1);
+
+    /** Magic, version, node ID, sequence number, and the number of invalidations. */
+    private static final int HEADER_BYTES = 4 + 1 + 8 + 8 + 2;
+
+    /** Small enough that a batch is not fragmented on an Ethernet network. */
+    static final int BATCH_BYTES = 1_400;
+
+    /** The largest UDP payload. An invalidation larger than this on its own cannot be sent. */
+    private static final int MAX_DATAGRAM_BYTES = 65_507;
+
+    /** Room for bursts of batches, such as when an Owner with many signed Tokens is invalidated. */
+    private static final int RECEIVE_BUFFER_BYTES = 1 << 20;
+
+    private static final int MAX_QUEUED = 100_000;
+    private static final int MAX_KNOWN_NODES = 1_000;
+
+    private final DatagramChannel channel;
+    private final List<InetSocketAddress> peers;
+    private final InvalidationListener listener;
+    private final long nodeId = new SecureRandom().nextLong();
+
+    private final BlockingQueue<Invalidation> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+
+    //Only used by the sending thread.
+    private final ByteBuffer outgoing = ByteBuffer.allocate(MAX_DATAGRAM_BYTES);
+    private long sequence = 0;
+
+    //Only used by the receiving thread.
+    private final ByteBuffer incoming = ByteBuffer.allocate(MAX_DATAGRAM_BYTES);
+    private final Map<Long, Long> lastSequences = new LinkedHashMap<Long, Long>()
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest)
+        {
+            return size() > MAX_KNOWN_NODES;
+        }
+    };
+
+    private final Thread sender = new Thread(this::sendBatches, "token-invalidations-sender");
+    private final Thread receiver = new Thread(this::receiveBatches, "token-invalidations-receiver");
+
+    private final Counter published;
+    private final Counter dropped;
+    private final Counter datagramsSent;
+    private final Counter received;
+    private final Counter missed;
+    private final Counter rejected;
+
+    /**
+     * @param channel  A channel bound to the port peers send to. It is closed along with the bus.
+     * @param peers    Every node to send invalidations to. This node may be among them, and ignores its own.
+     * @param listener Receives the invalidations of other nodes.
+     */
+    UdpInvalidationBus(DatagramChannel channel,
+                       List<InetSocketAddress> peers,
+                       InvalidationListener listener,
+                       MetricRegistry metrics)
+    {
+        checkThat(channel, peers, listener, metrics)
+            .are(notNull());
+
+        this.channel = channel;
+        this.peers = new ArrayList<>(peers);
+        this.listener = listener;
+
+        this.published = metrics.counter(MetricRegistry.name(UdpInvalidationBus.class, "published"));
+        this.dropped = metrics.counter(MetricRegistry.name(UdpInvalidationBus.class, "dropped"));
+        this.datagramsSent = metrics.counter(MetricRegistry.name(UdpInvalidationBus.class, "datagrams", "sent"));
+        this.received = metrics.counter(MetricRegistry.name(UdpInvalidationBus.class, "received"));
+        this.missed = metrics.counter(MetricRegistry.name(UdpInvalidationBus.class, "missed"));
+        this.rejected = metrics.counter(MetricRegistry.name(UdpInvalidationBus.class, "rejected"));
+
+        sender.setDaemon(true);
+        receiver.setDaemon(true);
+    }
+
+    /**
+     * Binds a channel to the address, and starts sending and receiving.
+     */
+    static UdpInvalidationBus open(InetSocketAddress address,
+                                   List<InetSocketAddress> peers,
+                                   InvalidationListener listener,
+                                   MetricRegistry metrics) throws IOException
+    {
+        checkThat(address).is(notNull());
+
+        DatagramChannel channel = DatagramChannel.open()
+            .setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES)
+            .bind(address);
+        return new UdpInvalidationBus(channel, peers, listener, metrics).start();
+    }
+
+    UdpInvalidationBus start()
+    {
+        sender.start();
+        receiver.start();
+        return this;
+    }
+
+    @Override
+    public void publishToken(String tokenId, long timeOfExpiration)
+    {
+        publish(TOKEN, tokenId, timeOfExpiration);
+    }
+
+    @Override
+    public void publishOwner(String ownerId)
+    {
+        publish(OWNER, ownerId, 0);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        sender.interrupt();
+        channel.close();
+    }
+
+    SocketAddress getLocalAddress() throws IOException
+    {
+        return channel.getLocalAddress();
+    }
+
+    private void publish(byte kind, String id, long timeOfExpiration)
+    {
+        if (Strings.isNullOrEmpty(id))
+        {
+            return;
+        }
+
+        if (queue.offer(new Invalidation(kind, id.getBytes(UTF_8), timeOfExpiration)))
+        {
+            published.inc();
+        }
+        else
+        {
+            dropped.inc();
+            overflowed.set(true);
+        }
+    }
+
+    private void sendBatches()
+    {
+        List<Invalidation> batch = new ArrayList<>();
+
+        while (channel.isOpen())
+        {
+            try
+            {
+                Invalidation first = queue.poll(HEARTBEAT_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+
+                if (first == null)
+                {
+                    sendHeartbeat();
+                    continue;
+                }
+
+                batch.add(first);
+                queue.drainTo(batch);
+                send(batch);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (RuntimeException ex)
+            {
+                LOG.error("Failed to send {} invalidations", batch.size(), ex);
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(List<Invalidation> batch)
+    {
+        if (overflowed.getAndSet(false))
+        {
+            skipSequence();
+        }
+
+        outgoing.clear().position(HEADER_BYTES);
+        int count = 0;
+
+        for (Invalidation invalidation : batch)
+        {
+            int size = invalidation.size();
+
+            if (HEADER_BYTES + size > MAX_DATAGRAM_BYTES)
+            {
+                LOG.warn("Invalidation of {} bytes is too large to send", size);
+                dropped.inc();
+                skipSequence();
+                continue;
+            }
+
+            if (count > 0 && outgoing.position() + size > BATCH_BYTES)
+            {
+                flush(count);
+                count = 0;
+            }
+
+            invalidation.writeTo(outgoing);
+            ++count;
+        }
+
+        if (count > 0)
+        {
+            flush(count);
+        }
+    }
+
+    private void flush(int count)
+    {
+        sendToPeers(++sequence, count);
+        outgoing.clear().position(HEADER_BYTES);
+    }
+
+    /**
+     * Sends an empty batch with the last sequence number used, so that peers notice if they missed it.
+     */
+    private void sendHeartbeat()
+    {
+        if (overflowed.getAndSet(false))
+        {
+            skipSequence();
+        }
+
+        outgoing.clear().position(HEADER_BYTES);
+        sendToPeers(sequence, 0);
+    }
+
+    private void sendToPeers(long batchSequence, int count)
+    {
+        outgoing.putInt(0, MAGIC)
+            .put(4, VERSION)
+            .putLong(5, nodeId)
+            .putLong(13, batchSequence)
+            .putShort(21, (short) count)
+            .flip();
+
+        for (InetSocketAddress peer : peers)
+        {
+            try
+            {
+                outgoing.rewind();
+                channel.send(outgoing, peer);
+                datagramsSent.inc();
+            }
+            catch (ClosedChannelException ex)
+            {
+                return;
+            }
+            catch (IOException ex)
+            {
+                //The peer notices the skipped sequence number once the next batch or heartbeat arrives.
+                LOG.debug("Failed to send invalidations to {}", peer, ex);
+            }
+        }
+    }
+
+    private void skipSequence()
+    {
+        ++sequence;
+    }
+
+    private void receiveBatches()
+    {
+        while (channel.isOpen())
+        {
+            try
+            {
+                incoming.clear();
+                channel.receive(incoming);
+                incoming.flip();
+                receive(incoming);
+            }
+            catch (ClosedChannelException ex)
+            {
+                return;
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                LOG.error("Failed to receive invalidations", ex);
+            }
+        }
+    }
+
+    /**
+     * Applies the invalidations in a datagram sent by another node. A datagram without any is a heartbeat.
+     */
+    void receive(ByteBuffer datagram)
+    {
+        long node;
+        long batchSequence;
+        List<Invalidation> invalidations;
+
+        try
+        {
+            if (datagram.getInt() != MAGIC || datagram.get() != VERSION)
+            {
+                rejected.inc();
+                return;
+            }
+
+            node = datagram.getLong();
+            batchSequence = datagram.getLong();
+            invalidations = readInvalidations(datagram, datagram.getShort() & 0xFFFF);
+        }
+        catch (BufferUnderflowException | IllegalArgumentException ex)
+        {
+            //Its sequence number is never seen, so the next batch from the same node shows it as lost.
+            LOG.debug("Ignoring a malformed datagram", ex);
+            rejected.inc();
+            return;
+        }
+
+        if (node == nodeId)
+        {
+            return;
+        }
+
+        Long lastSequence = lastSequences.get(node);
+        long lastSeen = lastSequence == null ? 0 : lastSequence;
+
+        //A heartbeat carries the sequence number of the last batch, rather than a new one.
+        long expectedSequence = invalidations.isEmpty() ? lastSeen : lastSeen + 1;
+
+        if (batchSequence > expectedSequence)
+        {
+            LOG.warn("Lost {} batches of invalidations. Dropping every Token held in memory.", batchSequence - expectedSequence);
+            missed.inc();
+            listener.onInvalidationsMissed();
+        }
+
+        if (lastSequence == null || batchSequence > lastSequence)
+        {
+            lastSequences.put(node, batchSequence);
+        }
+
+        for (Invalidation invalidation : invalidations)
+        {
+            String id = new String(invalidation.id, UTF_8);
+
+            if (invalidation.kind == TOKEN)
+            {
+                listener.onTokenInvalidated(id, invalidation.timeOfExpiration);
+            }
+            else
+            {
+                listener.onOwnerInvalidated(id);
+            }
+
+            received.inc();
+        }
+    }
+
+    private static List<Invalidation> readInvalidations(ByteBuffer datagram, int count)
+    {
+        List<Invalidation> invalidations = new ArrayList<>(count);
+
+        for (int i = 0; i < count; ++i)
+        {
+            byte kind = datagram.get();
+
+            if (kind != TOKEN && kind != OWNER)
+            {
+                throw new IllegalArgumentException("Unknown kind of invalidation: " + kind);
+            }
+
+            byte[] id = new byte[datagram.getShort() & 0xFFFF];
+            datagram.get(id);
+
+            long timeOfExpiration = kind == TOKEN ? datagram.getLong() : 0;
+            invalidations.add(new Invalidation(kind, id, timeOfExpiration));
+        }
+
+        return invalidations;
+    }
+
+    private static final class Invalidation
+    {
+
+        private final byte kind;
+        private final byte[] id;
+        private final long timeOfExpiration;
+
+        private Invalidation(byte kind, byte[] id, long timeOfExpiration)
+        {
+            this.kind = kind;
+            this.id = id;
+            this.timeOfExpiration = timeOfExpiration;
+        }
+
+        private int size()
+        {
+            return 1 + 2 + id.length + (kind == TOKEN ? 8 : 0);
+        }
+
+        private void writeTo(ByteBuffer buffer)
+        {
+            buffer.put(kind)
+                .putShort((short) id.length)
+                .put(id);
+
+            if (kind == TOKEN)
+            {
+                buffer.putLong(timeOfExpiration);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThanOrEqualTo;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.lessThanOrEqualTo;
+
+/**
+ * Keeps one record of a sample of the calls to each operation, with a fixed schema:
+ * <pre>
+ * time=2017-08-02T12:31:00.123Z op=VerifyToken token=5f3a9c21 latency_us=412 outcome=InvalidTokenException
+ * </pre>
+ * Token IDs are never written; only a short hash of them, enough to tell calls for the same Token apart.
+ * <p>
+ * Requests only place a record in a bounded, lock-free buffer. Records are formatted and written by a
+ * single background thread, so neither the formatting nor the appenders are on the path of a request.
+ * When the buffer is full, records are dropped and counted instead.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class AccessLog
+{
+
+    /**
+     * Access records are written to this logger, which logback sends to its own file.
+     */
+    static final String LOGGER_NAME = "tech.aroma.authentication.service.access";
+
+    static final double DEFAULT_SAMPLE_RATE = 0.01;
+    static final int DEFAULT_CAPACITY = 8_192;
+    static final Duration DEFAULT_DRAIN_INTERVAL = Duration.ofMillis(250);
+
+    static final String SUCCESS = "OK";
+
+    private final static Logger LOG = LoggerFactory.getLogger(AccessLog.class);
+
+    private static final HashFunction TOKEN_HASH = Hashing.murmur3_32();
+
+    private final double sampleRate;
+    private final Logger output;
+    private final AtomicReferenceArray<Record> buffer;
+    private final int capacity;
+
+    /*
+     * Producers claim a slot by advancing the tail, then publish their record into it. Only the
+     * draining thread advances the head, once it has taken the record out of its slot.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private final Counter dropped;
+
+    /**
+     * Creates an Access Log that writes its records to {@link #LOGGER_NAME} in the background.
+     */
+    AccessLog(double sampleRate, MetricRegistry metrics)
+    {
+        this(sampleRate, DEFAULT_CAPACITY, LoggerFactory.getLogger(LOGGER_NAME), metrics);
+
+        if (sampleRate > 0)
+        {
+            startDraining(DEFAULT_DRAIN_INTERVAL);
+        }
+    }
+
+    /**
+     * Creates an Access Log that only writes when {@link #drain() } is called.
+     *
+     * @param sampleRate The fraction of calls to record, from 0 to 1.
+     * @param capacity   The number of records kept while waiting to be written.
+     */
+    AccessLog(double sampleRate, int capacity, Logger output, MetricRegistry metrics)
+    {
+        checkThat(output, metrics)
+            .are(notNull());
+
+        checkThat(sampleRate)
+            .usingMessage("sample rate must be between 0 and 1")
+            .is(greaterThanOrEqualTo(0.0))
+            .is(lessThanOrEqualTo(1.0));
+
+        checkThat(capacity)
+            .is(greaterThan(0));
+
+        this.sampleRate = sampleRate;
+        this.output = output;
+        this.capacity = capacity;
+        this.buffer = new AtomicReferenceArray<>(capacity);
+
+        this.dropped = metrics.counter(MetricRegistry.name(AccessLog.class, "dropped"));
+        metrics.register(MetricRegistry.name(AccessLog.class, "pending"), (Gauge<Integer>) this::pendingCount);
+    }
+
+    /**
+     * @return An Access Log that records nothing.
+     */
+    static AccessLog disabled()
+    {
+        return new AccessLog(0, 1, LOG, new MetricRegistry());
+    }
+
+    private void startDraining(Duration drainInterval)
+    {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("access-log-%d")
+            .setDaemon(true)
+            .build());
+
+        executor.scheduleWithFixedDelay(this::drain,
+                                        drainInterval.toMillis(),
+                                        drainInterval.toMillis(),
+                                        MILLISECONDS);
+    }
+
+    /**
+     * Decides whether the current call is recorded. Checked first, so that calls which are not
+     * recorded do not pay for building their record.
+     */
+    boolean sample()
+    {
+        if (sampleRate >= 1.0)
+        {
+            return true;
+        }
+
+        return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * @param operation    The name of the operation called.
+     * @param tokenId      The Token the call was about, or null if there was none.
+     * @param latencyNanos How long the call took.
+     * @param outcome      {@link #SUCCESS}, or the name of the exception the call failed with.
+     */
+    void record(String operation, String tokenId, long latencyNanos, String outcome)
+    {
+        Record record = new Record(System.currentTimeMillis(), operation, tokenId, latencyNanos, outcome);
+
+        long slot;
+
+        do
+        {
+            slot = tail.get();
+
+            if (slot - head >= capacity)
+            {
+                dropped.inc();
+                return;
+            }
+        }
+        while (!tail.compareAndSet(slot, slot + 1));
+
+        buffer.lazySet(indexOf(slot), record);
+    }
+
+    int pendingCount()
+    {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * Writes every record that has been published so far. Only one thread may drain at a time.
+     *
+     * @return The number of records written.
+     */
+    synchronized int drain()
+    {
+        int written = 0;
+
+        try
+        {
+            while (head < tail.get())
+            {
+                int index = indexOf(head);
+                Record record = buffer.get(index);
+
+                //Claimed, but not yet published.
+                if (record == null)
+                {
+                    break;
+                }
+
+                buffer.lazySet(index, null);
+                head = head + 1;
+
+                write(record);
+                ++written;
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            LOG.error("Unexpected failure while writing the Access Log", ex);
+        }
+
+        return written;
+    }
+
+    private void write(Record record)
+    {
+        output.info("time={} op={} token={} latency_us={} outcome={}",
+                    Instant.ofEpochMilli(record.timeMillis),
+                    record.operation,
+                    hashOf(record.tokenId),
+                    NANOSECONDS.toMicros(record.latencyNanos),
+                    record.outcome);
+    }
+
+    static String hashOf(String tokenId)
+    {
+        if (tokenId == null || tokenId.isEmpty())
+        {
+            return "-";
+        }
+
+        return TOKEN_HASH.hashUnencodedChars(tokenId).toString();
+    }
+
+    private int indexOf(long slot)
+    {
+        return (int) (slot % capacity);
+    }
+
+    private static final class Record
+    {
+
+        private final long timeMillis;
+        private final String operation;
+        private final String tokenId;
+        private final long latencyNanos;
+        private final String outcome;
+
+        private Record(long timeMillis, String operation, String tokenId, long latencyNanos, String outcome)
+        {
+            this.timeMillis = timeMillis;
+            this.operation = operation;
+            this.tokenId = tokenId;
+            this.latencyNanos = latencyNanos;
+            this.outcome = outcome;
+        }
+
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The non-blocking counterpart of a {@link tech.sirwellington.alchemy.thrift.operations.ThriftOperation}.
+ * The response completes once the repository answers, so no thread waits on storage in the meantime.
+ * <p>
+ * Bad requests and storage failures complete the response exceptionally, with the same
+ * {@link org.apache.thrift.TException TExceptions} that {@code process} would throw.
+ *
+ * @param <Request>  The Thrift Request
+ * @param <Response> The Thrift Response
+ * @author SirWellington
+ */
+@FunctionalInterface
+public interface AsyncThriftOperation<Request, Response>
+{
+
+    CompletableFuture<Response> processAsync(Request request);
+
+}
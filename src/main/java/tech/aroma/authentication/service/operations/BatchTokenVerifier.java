@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import java.util.List;
+import org.apache.thrift.TException;
+import tech.aroma.thrift.authentication.service.VerifyTokenRequest;
+
+/**
+ * Verifies many Tokens at once, with the same rules as a single {@code verifyToken} call.
+ *
+ * @author SirWellington
+ */
+public interface BatchTokenVerifier
+{
+
+    /**
+     * @param requests The Tokens to verify, each with an optional owner.
+     * @return One result per request, in the same order.
+     * @throws TException If the batch itself is malformed. Problems with a single Token are reported in its result.
+     */
+    List<TokenVerification> verifyTokens(List<VerifyTokenRequest> requests) throws TException;
+
+}
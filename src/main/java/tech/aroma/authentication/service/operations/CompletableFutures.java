@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+/**
+ * Helpers for {@link AsyncThriftOperation AsyncThriftOperations}, which are limited to Java 8's
+ * {@link CompletableFuture}.
+ *
+ * @author SirWellington
+ */
+@Internal
+final class CompletableFutures
+{
+
+    private CompletableFutures() throws IllegalAccessException
+    {
+        throw new IllegalAccessException("cannot instantiate");
+    }
+
+    static <T> CompletableFuture<T> failed(Throwable ex)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(ex);
+        return result;
+    }
+
+    /**
+     * @return The exception a stage actually failed with, without the wrappers added as it passed through
+     *         dependent stages.
+     */
+    static Throwable unwrap(Throwable ex)
+    {
+        while ((ex instanceof CompletionException || ex instanceof ExecutionException) && ex.getCause() != null)
+        {
+            ex = ex.getCause();
+        }
+
+        return ex;
+    }
+
+    /**
+     * Fails the current stage with {@code ex}, for use inside stages that cannot throw checked exceptions.
+     */
+    static CompletionException rethrow(Throwable ex)
+    {
+        return ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+    }
+
+}
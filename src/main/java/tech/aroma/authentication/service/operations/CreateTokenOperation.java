@@ -18,11 +18,14 @@ package tech.aroma.authentication.service.operations;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 import javax.inject.Inject;
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import tech.aroma.authentication.service.data.AsyncTokenRepository;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.authentication.service.data.TokenCreator;
 import tech.aroma.data.TokenRepository;
 import tech.aroma.thrift.LengthOfTime;
@@ -36,6 +39,7 @@ import tech.sirwellington.alchemy.annotations.access.Internal;
 import tech.sirwellington.alchemy.thrift.operations.ThriftOperation;
 
 import static java.time.Instant.now;
+import static tech.aroma.authentication.service.operations.CompletableFutures.failed;
 import static tech.aroma.thrift.assertions.AromaAssertions.checkRequestNotNull;
 import static tech.aroma.thrift.assertions.AromaAssertions.withMessage;
 import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
@@ -49,7 +53,8 @@ import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.v
  * @author SirWellington
  */
 @Internal
-final class CreateTokenOperation implements ThriftOperation<CreateTokenRequest, CreateTokenResponse>
+final class CreateTokenOperation implements ThriftOperation<CreateTokenRequest, CreateTokenResponse>,
+                                           AsyncThriftOperation<CreateTokenRequest, CreateTokenResponse>
 {
 
     private final static Logger LOG = LoggerFactory.getLogger(CreateTokenOperation.class);
@@ -58,25 +63,59 @@ final class CreateTokenOperation implements ThriftOperation<CreateTokenRequest,
     private final Function<LengthOfTime, Duration> lengthOfTimeConverter;
     private final TokenCreator tokenCreator;
     private final TokenRepository repository;
+    private final AsyncTokenRepository asyncRepository;
+    private final SignedTokens signedTokens;
+    private final CreationQuotas quotas;
 
     @Inject
     CreateTokenOperation(Function<LengthOfTime, Duration> lengthOfTimeConverter,
                          TokenCreator tokenCreator,
-                         TokenRepository repository)
+                         TokenRepository repository,
+                         AsyncTokenRepository asyncRepository,
+                         SignedTokens signedTokens,
+                         CreationQuotas quotas)
     {
-        checkThat(lengthOfTimeConverter, tokenCreator, repository)
+        checkThat(lengthOfTimeConverter, tokenCreator, repository, asyncRepository, signedTokens, quotas)
             .are(notNull());
 
         this.lengthOfTimeConverter = lengthOfTimeConverter;
         this.tokenCreator = tokenCreator;
         this.repository = repository;
+        this.asyncRepository = asyncRepository;
+        this.signedTokens = signedTokens;
+        this.quotas = quotas;
     }
 
     @Override
     public CreateTokenResponse process(CreateTokenRequest request) throws TException
     {
-        LOG.debug("Received request to create an  Token: {}", request);
+        AuthenticationToken token = createToken(request);
 
+        repository.saveToken(token);
+
+        return toResponse(token);
+    }
+
+    @Override
+    public CompletableFuture<CreateTokenResponse> processAsync(CreateTokenRequest request)
+    {
+        AuthenticationToken token;
+
+        try
+        {
+            token = createToken(request);
+        }
+        catch (TException ex)
+        {
+            return failed(ex);
+        }
+
+        return asyncRepository.saveTokenAsync(token)
+            .thenApply(saved -> toResponse(token));
+    }
+
+    private AuthenticationToken createToken(CreateTokenRequest request) throws TException
+    {
         checkRequestNotNull(request);
 
         checkThat(request.desiredTokenType)
@@ -91,6 +130,8 @@ final class CreateTokenOperation implements ThriftOperation<CreateTokenRequest,
             .usingMessage("ownerId must be a UUID type")
             .is(validUUID());
 
+        quotas.checkQuotas(request.ownerId, request.organizationId);
+
         if (!request.isSetLifetime())
         {
             LOG.debug("Token Lifetime not set. Defaulting to {}", DEFAULT_LIFETIME);
@@ -116,8 +157,16 @@ final class CreateTokenOperation implements ThriftOperation<CreateTokenRequest,
             .setTimeOfExpiration(timeOfExpiration.toEpochMilli())
             .setStatus(TokenStatus.ACTIVE);
 
-        repository.saveToken(token);
-        LOG.debug("Saved token to repository: {}", token);
+        return token;
+    }
+
+    private CreateTokenResponse toResponse(AuthenticationToken token)
+    {
+        if (signedTokens.isEnabled())
+        {
+            //The Token is stored under its plain ID; the caller receives the signed one.
+            token = token.deepCopy().setTokenId(signedTokens.sign(token));
+        }
 
         return new CreateTokenResponse().setToken(token);
     }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * Limits how quickly Tokens are created for each Owner, and for each Organization, so that a client stuck in a
+ * loop cannot fill the Token tables.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class CreationQuotas
+{
+
+    private final KeyedRateLimiter owners;
+    private final KeyedRateLimiter organizations;
+    private final Counter ownerRejections;
+    private final Counter organizationRejections;
+
+    CreationQuotas(KeyedRateLimiter owners, KeyedRateLimiter organizations, MetricRegistry metrics)
+    {
+        checkThat(owners, organizations, metrics)
+            .are(notNull());
+
+        this.owners = owners;
+        this.organizations = organizations;
+        this.ownerRejections = metrics.counter(MetricRegistry.name(CreationQuotas.class, "rejected", "owner"));
+        this.organizationRejections = metrics.counter(MetricRegistry.name(CreationQuotas.class, "rejected", "organization"));
+    }
+
+    static CreationQuotas unlimited()
+    {
+        return new CreationQuotas(KeyedRateLimiter.unlimited(), KeyedRateLimiter.unlimited(), new MetricRegistry());
+    }
+
+    /**
+     * Takes one Token from the quotas of the Owner and, if there is one, the Organization.
+     *
+     * @throws OperationFailedException If either has been used up.
+     */
+    void checkQuotas(String ownerId, String organizationId) throws OperationFailedException
+    {
+        if (!owners.tryAcquire(ownerId))
+        {
+            ownerRejections.inc();
+            throw new OperationFailedException("Too many Tokens created for Owner. Try again later.");
+        }
+
+        if (organizationId != null && !organizationId.isEmpty() && !organizations.tryAcquire(organizationId))
+        {
+            organizationRejections.inc();
+            throw new OperationFailedException("Too many Tokens created for Organization. Try again later.");
+        }
+    }
+
+}
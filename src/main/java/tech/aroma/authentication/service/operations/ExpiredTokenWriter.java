@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenStatus;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+
+/**
+ * Saves the {@link TokenStatus#EXPIRED} status of Tokens in the background, so that the read which discovers
+ * an expired Token does not have to wait on a write.
+ * <p>
+ * Writes are de-duplicated by Token ID and drained in batches. When more than {@code maxPending} Tokens are
+ * waiting, new ones are dropped; this is safe because expiration is always re-derived from the Token's
+ * {@code timeOfExpiration}, and the next read will schedule the write again.
+ * <p>
+ * Saving a Token that was deleted in the meantime would bring it back, so a Token is only saved while it
+ * still exists, and deletions {@linkplain #cancel(java.lang.String) cancel} its write first.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class ExpiredTokenWriter implements Closeable
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(ExpiredTokenWriter.class);
+
+    static final int DEFAULT_MAX_PENDING = 10_000;
+    static final int DEFAULT_BATCH_SIZE = 500;
+    static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofMillis(250);
+
+    private final TokenRepository repository;
+    private final int maxPending;
+    private final int batchSize;
+
+    private final ConcurrentMap<String, AuthenticationToken> pending = new ConcurrentHashMap<>();
+
+    /** Held while a Token is saved, so that a cancellation waits for a save already under way. */
+    private final Object saving = new Object();
+
+    private final Counter written;
+    private final Counter dropped;
+    private final Counter failures;
+
+    private ScheduledExecutorService flusher;
+
+    @Inject
+    ExpiredTokenWriter(TokenRepository repository, MetricRegistry metrics)
+    {
+        this(repository, metrics, DEFAULT_MAX_PENDING, DEFAULT_BATCH_SIZE);
+
+        startFlushing(DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Creates a writer that only writes when {@link #flush() } is called.
+     */
+    ExpiredTokenWriter(TokenRepository repository, MetricRegistry metrics, int maxPending, int batchSize)
+    {
+        checkThat(repository, metrics)
+            .are(notNull());
+
+        checkThat(maxPending, batchSize)
+            .are(greaterThan(0));
+
+        this.repository = repository;
+        this.maxPending = maxPending;
+        this.batchSize = batchSize;
+
+        this.written = metrics.counter(MetricRegistry.name(ExpiredTokenWriter.class, "written"));
+        this.dropped = metrics.counter(MetricRegistry.name(ExpiredTokenWriter.class, "dropped"));
+        this.failures = metrics.counter(MetricRegistry.name(ExpiredTokenWriter.class, "failures"));
+        metrics.register(MetricRegistry.name(ExpiredTokenWriter.class, "pending"), (Gauge<Integer>) pending::size);
+    }
+
+    private void startFlushing(Duration flushInterval)
+    {
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("expired-token-writer-%d")
+            .setDaemon(true)
+            .build());
+
+        flusher.scheduleWithFixedDelay(this::flush,
+                                        flushInterval.toMillis(),
+                                        flushInterval.toMillis(),
+                                        MILLISECONDS);
+    }
+
+    /**
+     * Marks the Token as {@linkplain TokenStatus#EXPIRED Expired} right away, and saves it to the repository
+     * at a later time.
+     */
+    void markExpired(AuthenticationToken token)
+    {
+        checkThat(token).is(notNull());
+
+        token.setStatus(TokenStatus.EXPIRED);
+
+        String tokenId = token.tokenId;
+
+        if (Strings.isNullOrEmpty(tokenId))
+        {
+            return;
+        }
+
+        if (pending.size() >= maxPending && !pending.containsKey(tokenId))
+        {
+            dropped.inc();
+            return;
+        }
+
+        pending.put(tokenId, token.deepCopy());
+    }
+
+    /**
+     * Drops the Token's pending write, and waits for one already under way. Call it before deleting
+     * the Token, so that the write does not bring it back.
+     */
+    void cancel(String tokenId)
+    {
+        if (Strings.isNullOrEmpty(tokenId))
+        {
+            return;
+        }
+
+        synchronized (saving)
+        {
+            pending.remove(tokenId);
+        }
+    }
+
+    int pendingCount()
+    {
+        return pending.size();
+    }
+
+    /**
+     * Writes everything that is currently waiting, one batch at a time.
+     */
+    void flush()
+    {
+        try
+        {
+            while (!pending.isEmpty())
+            {
+                writeBatch();
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            LOG.error("Unexpected failure while saving expired Tokens", ex);
+        }
+    }
+
+    /**
+     * Stops writing in the background, after writing everything that is waiting.
+     */
+    @Override
+    public void close()
+    {
+        if (flusher != null)
+        {
+            flusher.shutdownNow();
+        }
+
+        flush();
+    }
+
+    private void writeBatch()
+    {
+        int count = 0;
+        Iterator<String> tokenIds = pending.keySet().iterator();
+
+        while (tokenIds.hasNext() && count < batchSize)
+        {
+            String tokenId = tokenIds.next();
+            AuthenticationToken token = pending.remove(tokenId);
+
+            if (token == null)
+            {
+                continue;
+            }
+
+            ++count;
+            trySave(token);
+        }
+
+        LOG.debug("Saved a batch of {} expired Tokens", count);
+    }
+
+    private void trySave(AuthenticationToken token)
+    {
+        try
+        {
+            synchronized (saving)
+            {
+                if (!repository.containsToken(token.tokenId))
+                {
+                    return;
+                }
+
+                repository.saveToken(token);
+            }
+
+            written.inc();
+        }
+        catch (Exception ex)
+        {
+            failures.inc();
+            LOG.warn("Failed to save Token {} as expired", AccessLog.hashOf(token.tokenId), ex);
+        }
+    }
+
+}
@@ -16,13 +16,13 @@
 
 package tech.aroma.authentication.service.operations;
 
+import java.util.concurrent.CompletableFuture;
 import javax.inject.Inject;
 import org.apache.thrift.TException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import tech.aroma.authentication.service.data.AsyncTokenRepository;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.data.TokenRepository;
 import tech.aroma.thrift.authentication.AuthenticationToken;
-import tech.aroma.thrift.authentication.TokenStatus;
 import tech.aroma.thrift.authentication.service.GetTokenInfoRequest;
 import tech.aroma.thrift.authentication.service.GetTokenInfoResponse;
 import tech.aroma.thrift.exceptions.InvalidArgumentException;
@@ -31,6 +31,9 @@ import tech.aroma.thrift.functions.TimeFunctions;
 import tech.sirwellington.alchemy.annotations.access.Internal;
 import tech.sirwellington.alchemy.thrift.operations.ThriftOperation;
 
+import static tech.aroma.authentication.service.operations.CompletableFutures.failed;
+import static tech.aroma.authentication.service.operations.CompletableFutures.rethrow;
+import static tech.aroma.authentication.service.operations.CompletableFutures.unwrap;
 import static tech.aroma.thrift.assertions.AromaAssertions.checkRequestNotNull;
 import static tech.aroma.thrift.assertions.AromaAssertions.withMessage;
 import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
@@ -42,31 +45,82 @@ import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.n
  * @author SirWellington
  */
 @Internal
-final class GetTokenInfoOperation implements ThriftOperation<GetTokenInfoRequest, GetTokenInfoResponse>
+final class GetTokenInfoOperation implements ThriftOperation<GetTokenInfoRequest, GetTokenInfoResponse>,
+                                            AsyncThriftOperation<GetTokenInfoRequest, GetTokenInfoResponse>
 {
 
-    private final static Logger LOG = LoggerFactory.getLogger(GetTokenInfoOperation.class);
-
     private final TokenRepository tokenRepository;
+    private final AsyncTokenRepository asyncRepository;
+    private final ExpiredTokenWriter expiredTokens;
+    private final SignedTokens signedTokens;
 
     @Inject
-    GetTokenInfoOperation(TokenRepository tokenRepository)
+    GetTokenInfoOperation(TokenRepository tokenRepository,
+                          AsyncTokenRepository asyncRepository,
+                          ExpiredTokenWriter expiredTokens,
+                          SignedTokens signedTokens)
     {
-        checkThat(tokenRepository).is(notNull());
+        checkThat(tokenRepository, asyncRepository, expiredTokens, signedTokens)
+            .are(notNull());
 
         this.tokenRepository = tokenRepository;
+        this.asyncRepository = asyncRepository;
+        this.expiredTokens = expiredTokens;
+        this.signedTokens = signedTokens;
     }
 
     @Override
     public GetTokenInfoResponse process(GetTokenInfoRequest request) throws TException
     {
-        LOG.debug("Received request to get token info: {}", request);
-
-        checkRequestNotNull(request);
+        checkRequest(request);
 
         String tokenId = request.tokenId;
+        String storageId = signedTokens.storageIdOf(tokenId);
+        AuthenticationToken token = tryGetToken(storageId);
+
+        return toResponse(tokenId, storageId, token);
+    }
+
+    @Override
+    public CompletableFuture<GetTokenInfoResponse> processAsync(GetTokenInfoRequest request)
+    {
+        String tokenId;
+        String storageId;
+
+        try
+        {
+            checkRequest(request);
+
+            tokenId = request.tokenId;
+            storageId = signedTokens.storageIdOf(tokenId);
+        }
+        catch (TException ex)
+        {
+            return failed(ex);
+        }
 
-        checkThat(tokenId)
+        return asyncRepository.getTokenAsync(storageId)
+            .handle((token, ex) ->
+            {
+                if (ex != null)
+                {
+                    throw rethrow(new OperationFailedException("Failed to load token from repository: " + unwrap(ex).getMessage()));
+                }
+
+                if (token == null)
+                {
+                    throw rethrow(new OperationFailedException());
+                }
+
+                return toResponse(tokenId, storageId, token);
+            });
+    }
+
+    private static void checkRequest(GetTokenInfoRequest request) throws TException
+    {
+        checkRequestNotNull(request);
+
+        checkThat(request.tokenId)
             .throwing(InvalidArgumentException.class)
             .usingMessage("tokenId is required")
             .is(nonEmptyString());
@@ -74,12 +128,19 @@ final class GetTokenInfoOperation implements ThriftOperation<GetTokenInfoRequest
         checkThat(request.tokenType)
             .throwing(withMessage("token type is required"))
             .is(notNull());
+    }
 
-        AuthenticationToken token = tryGetToken(tokenId);
-        
+    private GetTokenInfoResponse toResponse(String tokenId, String storageId, AuthenticationToken token)
+    {
         if (expirationDateHasPassed(token))
         {
-            saveAsExpired(token);
+            expiredTokens.markExpired(token);
+        }
+
+        if (!storageId.equals(tokenId))
+        {
+            //Callers know the Token by its signed ID.
+            token = token.deepCopy().setTokenId(tokenId);
         }
         
         return new GetTokenInfoResponse().setToken(token);
@@ -95,7 +156,7 @@ final class GetTokenInfoOperation implements ThriftOperation<GetTokenInfoRequest
         }
         catch (Exception ex)
         {
-            throw new OperationFailedException("Failed to load token from repository" + ex.getMessage());
+            throw new OperationFailedException("Failed to load token from repository: " + ex.getMessage());
         }
 
         checkThat(token)
@@ -110,10 +171,4 @@ final class GetTokenInfoOperation implements ThriftOperation<GetTokenInfoRequest
         return TimeFunctions.isInThePast(token.timeOfExpiration);
     }
 
-    private void saveAsExpired(AuthenticationToken token) throws TException
-    {
-        token.setStatus(TokenStatus.EXPIRED);
-        tokenRepository.saveToken(token);
-    }
-
 }
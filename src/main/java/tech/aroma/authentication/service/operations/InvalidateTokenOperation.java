@@ -16,10 +16,15 @@
  */
 package tech.aroma.authentication.service.operations;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import javax.inject.Inject;
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import tech.aroma.authentication.service.data.AsyncTokenRepository;
+import tech.aroma.authentication.service.data.InvalidationBus;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.data.TokenRepository;
 import tech.aroma.thrift.authentication.AuthenticationToken;
 import tech.aroma.thrift.authentication.service.InvalidateTokenRequest;
@@ -29,6 +34,9 @@ import tech.aroma.thrift.exceptions.OperationFailedException;
 import tech.sirwellington.alchemy.annotations.access.Internal;
 import tech.sirwellington.alchemy.thrift.operations.ThriftOperation;
 
+import static tech.aroma.authentication.service.operations.CompletableFutures.failed;
+import static tech.aroma.authentication.service.operations.CompletableFutures.rethrow;
+import static tech.aroma.authentication.service.operations.CompletableFutures.unwrap;
 import static tech.aroma.thrift.assertions.AromaAssertions.checkRequestNotNull;
 import static tech.aroma.thrift.assertions.AromaAssertions.legalToken;
 import static tech.aroma.thrift.assertions.AromaAssertions.withMessage;
@@ -38,43 +46,109 @@ import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.n
 import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.validUUID;
 
 /**
+ * Deletes Tokens, revokes their signed IDs, and publishes their invalidation to the other nodes on the
+ * {@link InvalidationBus}, whether or not storage could delete them.
+ * <p>
+ * All of an Owner's Tokens are deleted by a job of {@link OwnerTokenDeletions}, whose progress is
+ * answered in the Response's message.
  *
  * @author SirWellington
  */
 @Internal
-final class InvalidateTokenOperation implements ThriftOperation<InvalidateTokenRequest, InvalidateTokenResponse>
+final class InvalidateTokenOperation implements ThriftOperation<InvalidateTokenRequest, InvalidateTokenResponse>,
+                                               AsyncThriftOperation<InvalidateTokenRequest, InvalidateTokenResponse>
 {
 
     private final static Logger LOG = LoggerFactory.getLogger(InvalidateTokenOperation.class);
 
     private final TokenRepository tokenRepo;
+    private final AsyncTokenRepository asyncTokenRepo;
+    private final ExpiredTokenWriter expiredTokens;
+    private final SignedTokens signedTokens;
+    private final InvalidationBus invalidationBus;
+    private final OwnerTokenDeletions ownerDeletions;
 
     @Inject
-    InvalidateTokenOperation(TokenRepository repository)
+    InvalidateTokenOperation(TokenRepository repository,
+                             AsyncTokenRepository asyncRepository,
+                             ExpiredTokenWriter expiredTokens,
+                             SignedTokens signedTokens,
+                             InvalidationBus invalidationBus,
+                             OwnerTokenDeletions ownerDeletions)
     {
-        checkThat(repository).is(notNull());
+        checkThat(repository, asyncRepository, expiredTokens, signedTokens, invalidationBus, ownerDeletions).are(notNull());
 
         this.tokenRepo = repository;
+        this.asyncTokenRepo = asyncRepository;
+        this.expiredTokens = expiredTokens;
+        this.signedTokens = signedTokens;
+        this.invalidationBus = invalidationBus;
+        this.ownerDeletions = ownerDeletions;
     }
 
     @Override
     public InvalidateTokenResponse process(InvalidateTokenRequest request) throws TException
     {
-        LOG.debug("Received request to invalidate token: {}", request);
+        checkRequest(request);
 
+        if (request.isSetBelongingTo())
+        {
+            return new InvalidateTokenResponse().setMessage(deleteAllTokensBelongingTo(request.belongingTo));
+        }
+        else
+        {
+            AuthenticationToken stored = revokeIfSigned(request.token);
+
+            try
+            {
+                tryDelete(stored.tokenId);
+            }
+            finally
+            {
+                invalidationBus.publishToken(stored.tokenId, stored.timeOfExpiration);
+            }
+        }
+
+        return new InvalidateTokenResponse();
+    }
+
+    @Override
+    public CompletableFuture<InvalidateTokenResponse> processAsync(InvalidateTokenRequest request)
+    {
+        try
+        {
+            checkRequest(request);
+
+            if (request.isSetBelongingTo())
+            {
+                return ownerDeletions.deleteTokensBelongingTo(request.belongingTo)
+                    .thenApply(message -> new InvalidateTokenResponse().setMessage(message));
+            }
+
+            AuthenticationToken stored = revokeIfSigned(request.token);
+
+            return tryDeleteAsync(stored.tokenId)
+                .whenComplete((deleted, ex) -> invalidationBus.publishToken(stored.tokenId, stored.timeOfExpiration))
+                .thenApply(deleted -> new InvalidateTokenResponse());
+        }
+        catch (TException ex)
+        {
+            return failed(ex);
+        }
+    }
+
+    private static void checkRequest(InvalidateTokenRequest request) throws TException
+    {
         checkRequestNotNull(request);
 
         if (request.isSetBelongingTo())
         {
-            String ownerId = request.belongingTo;
-            checkThat(ownerId)
+            checkThat(request.belongingTo)
                 .throwing(InvalidArgumentException.class)
                 .usingMessage("belongingToSet, but ownerId is missing")
                 .is(nonEmptyString())
                 .usingMessage("belongingToSet, but owner is not a valid UUID")
                 .is(validUUID());
-
-            deleteAllTokensBelongingTo(ownerId);
         }
         else
         {
@@ -82,30 +156,61 @@ final class InvalidateTokenOperation implements ThriftOperation<InvalidateTokenR
                 .throwing(InvalidArgumentException.class)
                 .usingMessage("request is missing token")
                 .is(legalToken());
-
-            deleteToken(request.token);
         }
-
-        return new InvalidateTokenResponse();
     }
 
-    private void deleteAllTokensBelongingTo(String ownerId) throws TException
+    private String deleteAllTokensBelongingTo(String ownerId) throws TException
     {
-        tokenRepo.deleteTokensBelongingTo(ownerId);
+        try
+        {
+            return ownerDeletions.deleteTokensBelongingTo(ownerId).get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new OperationFailedException("Interrupted while deleting Tokens belonging to " + ownerId);
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = unwrap(ex);
+
+            if (cause instanceof TException)
+            {
+                throw (TException) cause;
+            }
+
+            throw new OperationFailedException("Could not remove tokens: " + cause.getMessage());
+        }
     }
 
-    private void deleteToken(AuthenticationToken token) throws InvalidArgumentException, TException
+    /**
+     * @return The ID the Token is stored under, and, if it was signed, the time of expiration it was revoked until.
+     */
+    private AuthenticationToken revokeIfSigned(AuthenticationToken token) throws InvalidArgumentException, TException
     {
         String tokenId = token.tokenId;
         checkThat(tokenId)
             .throwing(withMessage("missing tokenId"))
             .is(nonEmptyString());
 
-        tryDelete(tokenId);
+        AuthenticationToken stored = new AuthenticationToken().setTokenId(tokenId);
+
+        if (signedTokens.isSigned(tokenId))
+        {
+            SignedTokens.Claims claims = signedTokens.verify(tokenId);
+            signedTokens.revoke(claims.getStorageId(), claims.getTimeOfExpiration());
+
+            stored.setTokenId(claims.getStorageId())
+                .setTimeOfExpiration(claims.getTimeOfExpiration());
+        }
+
+        return stored;
     }
 
     private void tryDelete(String tokenId) throws TException
     {
+        expiredTokens.cancel(tokenId);
+
         try
         {
             tokenRepo.deleteToken(tokenId);
@@ -124,4 +229,23 @@ final class InvalidateTokenOperation implements ThriftOperation<InvalidateTokenR
         }
     }
 
+    private CompletableFuture<Void> tryDeleteAsync(String tokenId)
+    {
+        expiredTokens.cancel(tokenId);
+
+        return asyncTokenRepo.deleteTokenAsync(tokenId)
+            .exceptionally(ex ->
+            {
+                Throwable cause = unwrap(ex);
+                LOG.debug("Failed to delete token from Repository: {}", tokenId, cause);
+
+                if (cause instanceof TException)
+                {
+                    throw rethrow(cause);
+                }
+
+                throw rethrow(new OperationFailedException("Could not remove token: " + cause.getMessage()));
+            });
+    }
+
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.Clock;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThanOrEqualTo;
+
+/**
+ * A token bucket for each key, such as an Owner ID, which holds up to {@code burst} tokens and
+ * refills at {@code tokensPerMinute}.
+ * <p>
+ * Memory is fixed, however many keys are seen: keys are hashed onto a table of buckets, and each bucket is a
+ * single {@code long} updated by compare-and-set. A bucket holds the time at which it will be full again,
+ * which is all a token bucket needs.
+ * <p>
+ * Each key is spread over two buckets, and is limited by the fuller of them, so a key is only slowed down by
+ * others when it collides with them in both. As in a Count-Min Sketch with conservative updates, taking a token
+ * only drains each bucket as far as that key's own estimate.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class KeyedRateLimiter
+{
+
+    static final int DEFAULT_BUCKETS = 1 << 16;
+
+    private static final HashFunction KEY_HASH = Hashing.murmur3_128();
+
+    private final long emissionNanos;
+    private final long toleranceNanos;
+    private final Clock clock;
+    private final long origin;
+
+    private final AtomicLongArray buckets;
+    private final int mask;
+
+    /**
+     * @param tokensPerMinute How quickly a key may take tokens, once its burst is spent. 0 means without limit.
+     * @param burst           How many tokens a key that has been idle may take at once.
+     * @param buckets         The number of buckets keys are spread over. Rounded up to a power of two.
+     * @param clock           Where the time is read from.
+     */
+    KeyedRateLimiter(int tokensPerMinute, int burst, int buckets, Clock clock)
+    {
+        checkThat(clock)
+            .is(notNull());
+
+        checkThat(tokensPerMinute)
+            .usingMessage("tokens per minute must be >= 0")
+            .is(greaterThanOrEqualTo(0));
+
+        checkThat(burst)
+            .usingMessage("burst must be > 0")
+            .is(greaterThan(0));
+
+        checkThat(buckets)
+            .usingMessage("buckets must be > 0")
+            .is(greaterThan(0));
+
+        int size = tokensPerMinute == 0 ? 1 : Integer.highestOneBit(Math.max(1, buckets * 2 - 1));
+
+        this.emissionNanos = tokensPerMinute == 0 ? 0 : TimeUnit.MINUTES.toNanos(1) / tokensPerMinute;
+        this.toleranceNanos = emissionNanos * (burst - 1);
+        this.clock = clock;
+        this.origin = clock.getTick();
+        this.buckets = new AtomicLongArray(size);
+        this.mask = size - 1;
+    }
+
+    static KeyedRateLimiter unlimited()
+    {
+        return new KeyedRateLimiter(0, 1, 1, Clock.defaultClock());
+    }
+
+    boolean isEnabled()
+    {
+        return emissionNanos > 0;
+    }
+
+    /**
+     * @return Whether the key may take a token, in which case it is taken.
+     */
+    boolean tryAcquire(String key)
+    {
+        if (!isEnabled())
+        {
+            return true;
+        }
+
+        //Relative to the origin, so that an empty bucket, 0, is always full.
+        long now = clock.getTick() - origin;
+
+        HashCode hash = KEY_HASH.hashUnencodedChars(String.valueOf(key));
+        ByteBuffer bytes = ByteBuffer.wrap(hash.asBytes());
+        int first = (int) bytes.getLong(0) & mask;
+        int second = (int) bytes.getLong(8) & mask;
+
+        while (true)
+        {
+            long firstFullAt = buckets.get(first);
+            long secondFullAt = buckets.get(second);
+            long fullAt = Math.min(firstFullAt, secondFullAt);
+
+            if (fullAt - now > toleranceNanos)
+            {
+                return false;
+            }
+
+            long next = Math.max(fullAt, now) + emissionNanos;
+
+            //The token is taken from the fuller bucket, then the other is caught up to it.
+            int taken = firstFullAt <= secondFullAt ? first : second;
+            int other = taken == first ? second : first;
+
+            if (buckets.compareAndSet(taken, fullAt, next))
+            {
+                drainTo(other, next);
+                return true;
+            }
+        }
+    }
+
+    private void drainTo(int bucket, long fullAt)
+    {
+        while (true)
+        {
+            long current = buckets.get(bucket);
+
+            if (current >= fullAt || buckets.compareAndSet(bucket, current, fullAt))
+            {
+                return;
+            }
+        }
+    }
+
+}
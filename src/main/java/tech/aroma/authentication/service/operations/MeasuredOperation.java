@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+import tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern;
+import tech.sirwellington.alchemy.thrift.operations.ThriftOperation;
+
+import static tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern.Role.DECORATOR;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * Times every request an operation processes, whether blocking or not, and counts the requests
+ * that fail by the type of exception they fail with. A sample of the requests is also written to
+ * the {@link AccessLog}.
+ * <p>
+ * Metrics are named after the decorated operation, for example
+ * {@code tech.aroma.authentication.service.operations.VerifyTokenOperation.latency} and
+ * {@code tech.aroma.authentication.service.operations.VerifyTokenOperation.errors.InvalidTokenException}.
+ *
+ * @param <Request>  The Thrift Request
+ * @param <Response> The Thrift Response
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+@DecoratorPattern(role = DECORATOR)
+@SuppressWarnings("rawtypes")
+final class MeasuredOperation<Request extends TBase, Response extends TBase> implements ThriftOperation<Request, Response>,
+                                                                                      AsyncThriftOperation<Request, Response>
+{
+
+    private final ThriftOperation<Request, Response> operation;
+    private final AsyncThriftOperation<Request, Response> asyncOperation;
+    private final BiFunction<Request, Response, String> tokenIdOf;
+    private final AccessLog accessLog;
+    private final MetricRegistry metrics;
+    private final String name;
+    private final String accessLogName;
+    private final Timer latency;
+
+    /**
+     * Creates an operation that is measured, but not written to the {@link AccessLog}.
+     */
+    MeasuredOperation(ThriftOperation<Request, Response> operation,
+                      AsyncThriftOperation<Request, Response> asyncOperation,
+                      MetricRegistry metrics)
+    {
+        this(operation, asyncOperation, (request, response) -> null, AccessLog.disabled(), metrics);
+    }
+
+    /**
+     * @param operation      Processes blocking requests, and names the metrics.
+     * @param asyncOperation Processes non-blocking requests. Usually the same object as {@code operation}.
+     * @param tokenIdOf      Finds the Token a call was about, given its request, and its response if it succeeded.
+     *                       May return null.
+     */
+    MeasuredOperation(ThriftOperation<Request, Response> operation,
+                      AsyncThriftOperation<Request, Response> asyncOperation,
+                      BiFunction<Request, Response, String> tokenIdOf,
+                      AccessLog accessLog,
+                      MetricRegistry metrics)
+    {
+        checkThat(operation, asyncOperation, tokenIdOf, accessLog, metrics)
+            .are(notNull());
+
+        this.operation = operation;
+        this.asyncOperation = asyncOperation;
+        this.tokenIdOf = tokenIdOf;
+        this.accessLog = accessLog;
+        this.metrics = metrics;
+        this.name = operation.getClass().getName();
+        this.accessLogName = operation.getClass().getSimpleName().replaceFirst("Operation$", "");
+        this.latency = register(MetricRegistry.name(name, "latency"), new Timer(new LatencyReservoir()));
+    }
+
+    @Override
+    public Response process(Request request) throws TException
+    {
+        Timer.Context timing = latency.time();
+        Response response = null;
+        Throwable failure = null;
+
+        try
+        {
+            response = operation.process(request);
+            return response;
+        }
+        catch (TException | RuntimeException ex)
+        {
+            failure = ex;
+            countError(ex);
+            throw ex;
+        }
+        finally
+        {
+            finish(timing, request, response, failure);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Response> processAsync(Request request)
+    {
+        Timer.Context timing = latency.time();
+        CompletableFuture<Response> response;
+
+        try
+        {
+            response = asyncOperation.processAsync(request);
+        }
+        catch (RuntimeException ex)
+        {
+            countError(ex);
+            finish(timing, request, null, ex);
+            throw ex;
+        }
+
+        return response.whenComplete((result, ex) ->
+        {
+            Throwable failure = ex == null ? null : CompletableFutures.unwrap(ex);
+
+            if (failure != null)
+            {
+                countError(failure);
+            }
+
+            finish(timing, request, result, failure);
+        });
+    }
+
+    private void finish(Timer.Context timing, Request request, Response response, Throwable failure)
+    {
+        long latencyNanos = timing.stop();
+
+        if (accessLog.sample())
+        {
+            String outcome = failure == null ? AccessLog.SUCCESS : failure.getClass().getSimpleName();
+            accessLog.record(accessLogName, tokenIdOf.apply(request, response), latencyNanos, outcome);
+        }
+    }
+
+    private void countError(Throwable ex)
+    {
+        metrics.counter(MetricRegistry.name(name, "errors", ex.getClass().getSimpleName())).inc();
+    }
+
+    /**
+     * Metrics outlive the operations that report them, so a second instance reports into the first one's.
+     */
+    @SuppressWarnings("unchecked")
+    private <M extends Metric> M register(String metricName, M metric)
+    {
+        Metric existing = metrics.getMetrics().get(metricName);
+
+        if (existing != null)
+        {
+            return (M) existing;
+        }
+
+        return metrics.register(metricName, metric);
+    }
+
+}
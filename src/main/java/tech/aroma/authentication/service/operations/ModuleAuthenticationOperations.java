@@ -18,17 +18,33 @@
 package tech.aroma.authentication.service.operations;
 
 
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Function;
 
 import com.google.inject.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.NOPLogger;
+import tech.aroma.authentication.service.data.AsyncTokenRepository;
+import tech.aroma.authentication.service.data.InvalidationBus;
+import tech.aroma.authentication.service.data.OwnerTokenPager;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.thrift.LengthOfTime;
 import tech.aroma.thrift.authentication.service.*;
 import tech.aroma.thrift.functions.TimeFunctions;
 import tech.sirwellington.alchemy.thrift.operations.ThriftOperation;
 
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThanOrEqualTo;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.lessThanOrEqualTo;
+
 /**
  *
  * @author SirWellington
@@ -37,22 +53,170 @@ public final class ModuleAuthenticationOperations extends AbstractModule
 {
     private final static Logger LOG = LoggerFactory.getLogger(ModuleAuthenticationOperations.class);
 
+    public static final double DEFAULT_ACCESS_LOG_SAMPLE_RATE = AccessLog.DEFAULT_SAMPLE_RATE;
+
+    public static final int DEFAULT_OWNER_TOKENS_PER_MINUTE = 0;
+    public static final int DEFAULT_OWNER_BURST = 100;
+    public static final int DEFAULT_ORGANIZATION_TOKENS_PER_MINUTE = 0;
+    public static final int DEFAULT_ORGANIZATION_BURST = 1_000;
+
+    public static final int DEFAULT_OWNER_DELETION_PARALLELISM = OwnerTokenDeletions.DEFAULT_PARALLELISM;
+
+    private double accessLogSampleRate = DEFAULT_ACCESS_LOG_SAMPLE_RATE;
+
+    private int ownerTokensPerMinute = DEFAULT_OWNER_TOKENS_PER_MINUTE;
+    private int ownerBurst = DEFAULT_OWNER_BURST;
+    private int organizationTokensPerMinute = DEFAULT_ORGANIZATION_TOKENS_PER_MINUTE;
+    private int organizationBurst = DEFAULT_ORGANIZATION_BURST;
+
+    private int ownerDeletionParallelism = DEFAULT_OWNER_DELETION_PARALLELISM;
+    private Duration ownerDeletionMaxWait = null;
+    private boolean ownerDeletionLogged = true;
+
+    /**
+     * Sets how many calls are written to the Access Log. Calls are never logged in full.
+     *
+     * @param sampleRate The fraction of calls to record, from 0 to 1. 0 turns the Access Log off.
+     * @return this
+     */
+    public ModuleAuthenticationOperations withAccessLog(double sampleRate)
+    {
+        checkThat(sampleRate)
+            .usingMessage("sample rate must be between 0 and 1")
+            .is(greaterThanOrEqualTo(0.0))
+            .is(lessThanOrEqualTo(1.0));
+
+        this.accessLogSampleRate = sampleRate;
+        return this;
+    }
+
+    /**
+     * Sets how quickly Tokens may be created for a single Owner. Creating Tokens faster fails with an
+     * {@link tech.aroma.thrift.exceptions.OperationFailedException}. There is no quota unless one is set.
+     *
+     * @param tokensPerMinute The sustained rate. 0 turns the quota off.
+     * @param burst           How many Tokens an Owner may create at once, after creating none for a while.
+     * @return this
+     */
+    public ModuleAuthenticationOperations withOwnerQuota(int tokensPerMinute, int burst)
+    {
+        checkQuota(tokensPerMinute, burst);
+
+        this.ownerTokensPerMinute = tokensPerMinute;
+        this.ownerBurst = burst;
+        return this;
+    }
+
+    /**
+     * Sets how quickly Tokens may be created for a single Organization, across all of its Owners.
+     *
+     * @param tokensPerMinute The sustained rate. 0 turns the quota off.
+     * @param burst           How many Tokens an Organization may create at once, after creating none for a while.
+     * @return this
+     * @see #withOwnerQuota(int, int)
+     */
+    public ModuleAuthenticationOperations withOrganizationQuota(int tokensPerMinute, int burst)
+    {
+        checkQuota(tokensPerMinute, burst);
+
+        this.organizationTokensPerMinute = tokensPerMinute;
+        this.organizationBurst = burst;
+        return this;
+    }
+
+    /**
+     * Sets how many of an Owner's Tokens are deleted at once, when all of them are invalidated.
+     *
+     * @param parallelism Deletes in flight per Owner. Must be > 0.
+     * @return this
+     */
+    public ModuleAuthenticationOperations withOwnerDeletionParallelism(int parallelism)
+    {
+        checkThat(parallelism)
+            .usingMessage("parallelism must be > 0")
+            .is(greaterThan(0));
+
+        this.ownerDeletionParallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Answers requests to invalidate all of an Owner's Tokens after at most {@code maxWait}, while the
+     * Tokens left carry on being deleted in the background. The Response's message names the deletion
+     * job and how far it got; invalidating the Owner again joins the same job.
+     * <p>
+     * By default, requests wait until every Token is deleted.
+     *
+     * @param maxWait How long to wait for the deletion. {@link Duration#ZERO} answers right away.
+     * @return this
+     */
+    public ModuleAuthenticationOperations withBackgroundOwnerDeletion(Duration maxWait)
+    {
+        checkThat(maxWait).is(notNull());
+
+        checkThat(maxWait.toMillis())
+            .usingMessage("max wait must be >= 0")
+            .is(greaterThanOrEqualTo(0L));
+
+        this.ownerDeletionMaxWait = maxWait;
+        return this;
+    }
+
+    /**
+     * Stops recording each finished or failed deletion of an Owner's Tokens, for traffic that is not
+     * worth recording, such as a warm-up.
+     *
+     * @return this
+     */
+    public ModuleAuthenticationOperations withoutOwnerDeletionLog()
+    {
+        this.ownerDeletionLogged = false;
+        return this;
+    }
+
+    private void checkQuota(int tokensPerMinute, int burst)
+    {
+        checkThat(tokensPerMinute)
+            .usingMessage("tokens per minute must be >= 0")
+            .is(greaterThanOrEqualTo(0));
+
+        checkThat(burst)
+            .usingMessage("burst must be > 0")
+            .is(greaterThan(0));
+    }
+
     @Override
     protected void configure()
     {
+        //The blocking and non-blocking bindings of an operation share one MeasuredOperation, and so its metrics.
         bind(new TypeLiteral<ThriftOperation<CreateTokenRequest, CreateTokenResponse>>() {})
-            .to(CreateTokenOperation.class);
+            .to(new TypeLiteral<MeasuredOperation<CreateTokenRequest, CreateTokenResponse>>() {});
         
         bind(new TypeLiteral<ThriftOperation<GetTokenInfoRequest, GetTokenInfoResponse>>() {})
-            .to(GetTokenInfoOperation.class);
+            .to(new TypeLiteral<MeasuredOperation<GetTokenInfoRequest, GetTokenInfoResponse>>() {});
         
         
         bind(new TypeLiteral<ThriftOperation<InvalidateTokenRequest, InvalidateTokenResponse>>() {})
-            .to(InvalidateTokenOperation.class);
+            .to(new TypeLiteral<MeasuredOperation<InvalidateTokenRequest, InvalidateTokenResponse>>() {});
         
         bind(new TypeLiteral<ThriftOperation<VerifyTokenRequest, VerifyTokenResponse>>() {})
-            .to(VerifyTokenOperation.class);
+            .to(new TypeLiteral<MeasuredOperation<VerifyTokenRequest, VerifyTokenResponse>>() {});
         
+        bind(new TypeLiteral<AsyncThriftOperation<CreateTokenRequest, CreateTokenResponse>>() {})
+            .to(new TypeLiteral<MeasuredOperation<CreateTokenRequest, CreateTokenResponse>>() {});
+
+        bind(new TypeLiteral<AsyncThriftOperation<GetTokenInfoRequest, GetTokenInfoResponse>>() {})
+            .to(new TypeLiteral<MeasuredOperation<GetTokenInfoRequest, GetTokenInfoResponse>>() {});
+
+        bind(new TypeLiteral<AsyncThriftOperation<InvalidateTokenRequest, InvalidateTokenResponse>>() {})
+            .to(new TypeLiteral<MeasuredOperation<InvalidateTokenRequest, InvalidateTokenResponse>>() {});
+
+        bind(new TypeLiteral<AsyncThriftOperation<VerifyTokenRequest, VerifyTokenResponse>>() {})
+            .to(new TypeLiteral<MeasuredOperation<VerifyTokenRequest, VerifyTokenResponse>>() {});
+        
+        bind(BatchTokenVerifier.class).to(VerifyTokensOperation.class).in(Singleton.class);
+        
+        bind(ExpiredTokenWriter.class).in(Singleton.class);
     }
     
     @Provides
@@ -60,5 +224,117 @@ public final class ModuleAuthenticationOperations extends AbstractModule
     {
         return TimeFunctions.lengthOfTimeToDuration();
     }
+
+    @Singleton
+    @Provides
+    AccessLog provideAccessLog(MetricRegistry metrics)
+    {
+        LOG.info("Recording {}% of calls in the Access Log", accessLogSampleRate * 100);
+        return new AccessLog(accessLogSampleRate, metrics);
+    }
+
+    @Singleton
+    @Provides
+    CreationQuotas provideCreationQuotas(MetricRegistry metrics)
+    {
+        if (ownerTokensPerMinute == 0 && organizationTokensPerMinute == 0)
+        {
+            LOG.info("Token creation quotas are off");
+            return CreationQuotas.unlimited();
+        }
+
+        LOG.info("Creating at most {} Tokens per minute per Owner, and {} per Organization. 0 is unlimited.",
+                 ownerTokensPerMinute,
+                 organizationTokensPerMinute);
+
+        Clock clock = Clock.defaultClock();
+
+        return new CreationQuotas(new KeyedRateLimiter(ownerTokensPerMinute, ownerBurst, KeyedRateLimiter.DEFAULT_BUCKETS, clock),
+                                  new KeyedRateLimiter(organizationTokensPerMinute, organizationBurst, KeyedRateLimiter.DEFAULT_BUCKETS, clock),
+                                  metrics);
+    }
+
+    @Singleton
+    @Provides
+    OwnerTokenDeletions provideOwnerTokenDeletions(OwnerTokenPager pager,
+                                                   AsyncTokenRepository repository,
+                                                   ExpiredTokenWriter expiredTokens,
+                                                   SignedTokens signedTokens,
+                                                   InvalidationBus invalidationBus,
+                                                   MetricRegistry metrics)
+    {
+        if (ownerDeletionMaxWait != null)
+        {
+            LOG.info("Deleting an Owner's Tokens in the background after {}ms", ownerDeletionMaxWait.toMillis());
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("owner-token-deletions-%d")
+            .setDaemon(true)
+            .build());
+
+        return new OwnerTokenDeletions(pager,
+                                       repository,
+                                       expiredTokens,
+                                       signedTokens,
+                                       invalidationBus,
+                                       ownerDeletionParallelism,
+                                       ownerDeletionMaxWait,
+                                       scheduler,
+                                       ownerDeletionLogged ? LoggerFactory.getLogger(OwnerTokenDeletions.class) : NOPLogger.NOP_LOGGER,
+                                       metrics);
+    }
+
+    @Singleton
+    @Provides
+    MeasuredOperation<CreateTokenRequest, CreateTokenResponse> provideCreateTokenOperation(CreateTokenOperation operation,
+                                                                                           AccessLog accessLog,
+                                                                                           MetricRegistry metrics)
+    {
+        return new MeasuredOperation<>(operation,
+                                       operation,
+                                       (request, response) -> response != null && response.token != null ? response.token.tokenId : null,
+                                       accessLog,
+                                       metrics);
+    }
+
+    @Singleton
+    @Provides
+    MeasuredOperation<GetTokenInfoRequest, GetTokenInfoResponse> provideGetTokenInfoOperation(GetTokenInfoOperation operation,
+                                                                                              AccessLog accessLog,
+                                                                                              MetricRegistry metrics)
+    {
+        return new MeasuredOperation<>(operation,
+                                       operation,
+                                       (request, response) -> request != null ? request.tokenId : null,
+                                       accessLog,
+                                       metrics);
+    }
+
+    @Singleton
+    @Provides
+    MeasuredOperation<InvalidateTokenRequest, InvalidateTokenResponse> provideInvalidateTokenOperation(InvalidateTokenOperation operation,
+                                                                                                       AccessLog accessLog,
+                                                                                                       MetricRegistry metrics)
+    {
+        return new MeasuredOperation<>(operation,
+                                       operation,
+                                       (request, response) -> request != null && request.token != null ? request.token.tokenId : null,
+                                       accessLog,
+                                       metrics);
+    }
+
+    @Singleton
+    @Provides
+    MeasuredOperation<VerifyTokenRequest, VerifyTokenResponse> provideVerifyTokenOperation(VerifyTokenOperation operation,
+                                                                                           AccessLog accessLog,
+                                                                                           MetricRegistry metrics)
+    {
+        return new MeasuredOperation<>(operation,
+                                       operation,
+                                       (request, response) -> request != null ? request.tokenId : null,
+                                       accessLog,
+                                       metrics);
+    }
     
 }
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.aroma.authentication.service.data.AsyncTokenRepository;
+import tech.aroma.authentication.service.data.InvalidationBus;
+import tech.aroma.authentication.service.data.OwnerTokenPager;
+import tech.aroma.authentication.service.data.SignedTokens;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidArgumentException;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.arguments.Optional;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static tech.aroma.authentication.service.operations.CompletableFutures.failed;
+import static tech.aroma.authentication.service.operations.CompletableFutures.rethrow;
+import static tech.aroma.authentication.service.operations.CompletableFutures.unwrap;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThanOrEqualTo;
+
+/**
+ * Deletes all of the Tokens belonging to an Owner, one page at a time, with a bounded number of
+ * deletes in flight.
+ * <p>
+ * Each Owner has at most one deletion job. Asking again while it runs joins it. A job that fails
+ * remembers the page it stopped on, and the next request for the same Owner resumes it from there,
+ * rather than reading the pages it already emptied again. Jobs are only kept in memory, so after a
+ * restart, a request starts over from the first page.
+ * <p>
+ * Tokens are deleted through the Service's {@link AsyncTokenRepository}, so they leave its caches as
+ * well. Signed Tokens are revoked, and each emptied page is published on the {@link InvalidationBus},
+ * so that other nodes stop accepting the Tokens while a long job is still running.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class OwnerTokenDeletions
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(OwnerTokenDeletions.class);
+
+    static final int DEFAULT_PARALLELISM = 16;
+
+    /**
+     * How long a failed job can be resumed for.
+     */
+    static final Duration RESUMABLE_FOR = Duration.ofHours(1);
+
+    private final OwnerTokenPager pager;
+    private final AsyncTokenRepository repository;
+    private final ExpiredTokenWriter expiredTokens;
+    private final SignedTokens signedTokens;
+    private final InvalidationBus invalidationBus;
+    private final int parallelism;
+    private final Duration maxWait;
+    private final ScheduledExecutorService scheduler;
+    private final Logger log;
+
+    /** Running jobs are kept until they finish, however long they take. */
+    private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<>();
+
+    private final Cache<String, Job> failedJobs = CacheBuilder.newBuilder()
+        .expireAfterWrite(RESUMABLE_FOR.toMillis(), MILLISECONDS)
+        .build();
+
+    private final Counter deleted;
+    private final Counter failures;
+    private final Counter resumed;
+
+    /**
+     * @param parallelism How many Tokens are deleted at once, per job.
+     * @param maxWait     How long to wait for a job before answering with its progress instead, while it
+     *                    carries on in the background. Null waits until the job is done.
+     * @param scheduler   Answers callers whose wait is over. Only used when there is a {@code maxWait}.
+     */
+    OwnerTokenDeletions(OwnerTokenPager pager,
+                        AsyncTokenRepository repository,
+                        ExpiredTokenWriter expiredTokens,
+                        SignedTokens signedTokens,
+                        InvalidationBus invalidationBus,
+                        int parallelism,
+                        @Optional Duration maxWait,
+                        ScheduledExecutorService scheduler,
+                        MetricRegistry metrics)
+    {
+        this(pager, repository, expiredTokens, signedTokens, invalidationBus, parallelism, maxWait, scheduler, LOG, metrics);
+    }
+
+    /**
+     * @param log Where finished and failed jobs are recorded.
+     */
+    OwnerTokenDeletions(OwnerTokenPager pager,
+                        AsyncTokenRepository repository,
+                        ExpiredTokenWriter expiredTokens,
+                        SignedTokens signedTokens,
+                        InvalidationBus invalidationBus,
+                        int parallelism,
+                        @Optional Duration maxWait,
+                        ScheduledExecutorService scheduler,
+                        Logger log,
+                        MetricRegistry metrics)
+    {
+        checkThat(pager, repository, expiredTokens, signedTokens, invalidationBus, scheduler, log, metrics).are(notNull());
+        checkThat(parallelism)
+            .usingMessage("parallelism must be > 0")
+            .is(greaterThan(0));
+
+        if (maxWait != null)
+        {
+            checkThat(maxWait.toMillis())
+                .usingMessage("max wait must be >= 0")
+                .is(greaterThanOrEqualTo(0L));
+        }
+
+        this.pager = pager;
+        this.repository = repository;
+        this.expiredTokens = expiredTokens;
+        this.signedTokens = signedTokens;
+        this.invalidationBus = invalidationBus;
+        this.parallelism = parallelism;
+        this.maxWait = maxWait;
+        this.scheduler = scheduler;
+        this.log = log;
+
+        this.deleted = metrics.counter(MetricRegistry.name(OwnerTokenDeletions.class, "deleted"));
+        this.failures = metrics.counter(MetricRegistry.name(OwnerTokenDeletions.class, "failed"));
+        this.resumed = metrics.counter(MetricRegistry.name(OwnerTokenDeletions.class, "resumed"));
+        metrics.register(MetricRegistry.name(OwnerTokenDeletions.class, "running"), (Gauge<Long>) this::countRunning);
+    }
+
+    /**
+     * Starts, joins, or resumes the deletion job for the Owner.
+     *
+     * @return A description of the job, once it is done, or once {@code maxWait} has passed. Fails with an
+     *         {@link OperationFailedException} holding the job's progress if the job fails.
+     */
+    CompletableFuture<String> deleteTokensBelongingTo(String ownerId)
+    {
+        checkThat(ownerId).is(notNull());
+
+        Job job = start(ownerId);
+
+        CompletableFuture<String> result = new CompletableFuture<>();
+
+        job.completion.whenComplete((done, ex) ->
+        {
+            if (ex == null)
+            {
+                result.complete("Deleted " + job.describe());
+            }
+            else
+            {
+                result.completeExceptionally(toTException(job, unwrap(ex)));
+            }
+        });
+
+        if (maxWait != null && !result.isDone())
+        {
+            scheduler.schedule(() -> result.complete("Still running. Deleted " + job.describe() + " so far"),
+                               maxWait.toMillis(),
+                               MILLISECONDS);
+        }
+
+        return result;
+    }
+
+    private Job start(String ownerId)
+    {
+        Job[] started = new Job[1];
+
+        Job job = jobs.compute(ownerId, (owner, existing) ->
+        {
+            if (existing != null)
+            {
+                return existing;
+            }
+
+            Job failed = failedJobs.asMap().remove(owner);
+            Job next = failed != null ? failed : new Job(owner);
+
+            if (failed != null)
+            {
+                resumed.inc();
+            }
+
+            next.completion = new CompletableFuture<>();
+            started[0] = next;
+            return next;
+        });
+
+        if (started[0] != null)
+        {
+            run(started[0]);
+        }
+
+        return job;
+    }
+
+    private void run(Job job)
+    {
+        //Read first, since a failed job may be resumed with a new one as soon as it leaves the running jobs.
+        CompletableFuture<Void> completion = job.completion;
+        CompletableFuture<Void> pages;
+
+        try
+        {
+            pages = deletePages(job);
+        }
+        catch (RuntimeException ex)
+        {
+            pages = failed(ex);
+        }
+
+        pages.whenComplete((done, ex) ->
+        {
+            if (ex == null)
+            {
+                jobs.remove(job.ownerId, job);
+                log.info("Deleted {}", job.describe());
+                completion.complete(null);
+            }
+            else
+            {
+                //Moved in one step, so that a request arriving meanwhile finds the job in one place or the other.
+                jobs.computeIfPresent(job.ownerId, (owner, existing) ->
+                {
+                    if (existing != job)
+                    {
+                        return existing;
+                    }
+
+                    failedJobs.put(owner, job);
+                    return null;
+                });
+
+                failures.inc();
+                log.warn("Stopped after deleting {}", job.describe(), unwrap(ex));
+                completion.completeExceptionally(unwrap(ex));
+            }
+        });
+    }
+
+    private CompletableFuture<Void> deletePages(Job job)
+    {
+        return pager.getPage(job.ownerId, job.pagingState)
+            .thenCompose(page -> deletePage(job, page.getTokens())
+                .thenCompose(done ->
+                {
+                    invalidationBus.publishOwner(job.ownerId);
+                    job.pagingState = page.getNextPagingState();
+
+                    return page.isLast() ? CompletableFuture.completedFuture(null) : deletePages(job);
+                }));
+    }
+
+    private CompletableFuture<Void> deletePage(Job job, List<AuthenticationToken> tokens)
+    {
+        CompletableFuture<Void> page = new CompletableFuture<>();
+
+        if (tokens.isEmpty())
+        {
+            page.complete(null);
+            return page;
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(tokens.size());
+
+        for (int i = 0; i < Math.min(parallelism, tokens.size()); ++i)
+        {
+            deleteNext(job, tokens, next, remaining, page);
+        }
+
+        return page;
+    }
+
+    /*
+     * Deletes that finish right away are looped over rather than chained, so that storage which
+     * completes synchronously cannot overflow the stack on a large page.
+     */
+    private void deleteNext(Job job,
+                            List<AuthenticationToken> tokens,
+                            AtomicInteger next,
+                            AtomicInteger remaining,
+                            CompletableFuture<Void> page)
+    {
+        while (!page.isDone())
+        {
+            int index = next.getAndIncrement();
+
+            if (index >= tokens.size())
+            {
+                return;
+            }
+
+            CompletableFuture<Void> deletion = delete(job, tokens.get(index));
+
+            if (deletion.isDone() && !deletion.isCompletedExceptionally())
+            {
+                if (remaining.decrementAndGet() == 0)
+                {
+                    page.complete(null);
+                }
+
+                continue;
+            }
+
+            deletion.whenComplete((done, ex) ->
+            {
+                if (ex != null)
+                {
+                    page.completeExceptionally(unwrap(ex));
+                }
+                else if (remaining.decrementAndGet() == 0)
+                {
+                    page.complete(null);
+                }
+                else
+                {
+                    deleteNext(job, tokens, next, remaining, page);
+                }
+            });
+
+            return;
+        }
+    }
+
+    private CompletableFuture<Void> delete(Job job, AuthenticationToken token)
+    {
+        CompletableFuture<Void> deletion;
+
+        try
+        {
+            if (signedTokens.isEnabled())
+            {
+                //Signed Tokens are verified without the repository, so they must be revoked as well.
+                signedTokens.revoke(token.tokenId, token.timeOfExpiration);
+                invalidationBus.publishToken(token.tokenId, token.timeOfExpiration);
+            }
+
+            expiredTokens.cancel(token.tokenId);
+            deletion = repository.deleteTokenAsync(token.tokenId);
+        }
+        catch (RuntimeException ex)
+        {
+            deletion = failed(ex);
+        }
+
+        return deletion.handle((done, ex) ->
+        {
+            if (ex == null)
+            {
+                deleted.inc();
+                job.deleted.incrementAndGet();
+                return null;
+            }
+
+            Throwable cause = unwrap(ex);
+
+            //Already deleted by another request.
+            if (cause instanceof InvalidTokenException)
+            {
+                return null;
+            }
+
+            throw rethrow(cause);
+        });
+    }
+
+    private static TException toTException(Job job, Throwable ex)
+    {
+        if (ex instanceof InvalidArgumentException)
+        {
+            return (InvalidArgumentException) ex;
+        }
+
+        return new OperationFailedException("Stopped after deleting " + job.describe() +
+                                            ". Invalidate them again to resume. Cause: " + ex.getMessage());
+    }
+
+    private long countRunning()
+    {
+        return jobs.size();
+    }
+
+    private static final class Job
+    {
+
+        private final String id = UUID.randomUUID().toString();
+        private final String ownerId;
+        private final AtomicLong deleted = new AtomicLong();
+
+        /*
+         * Where the next page starts. Only advanced once every Token on the page before it is deleted.
+         */
+        private volatile String pagingState;
+        private volatile CompletableFuture<Void> completion;
+
+        private Job(String ownerId)
+        {
+            this.ownerId = ownerId;
+        }
+
+        private String describe()
+        {
+            return deleted.get() + " Tokens belonging to " + ownerId + " in job " + id;
+        }
+
+    }
+
+}
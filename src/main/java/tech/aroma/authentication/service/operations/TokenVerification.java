@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import java.util.Objects;
+import org.apache.thrift.TException;
+import tech.sirwellington.alchemy.annotations.concurrency.Immutable;
+
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * The outcome of verifying a single Token as part of a batch.
+ *
+ * @author SirWellington
+ * @see BatchTokenVerifier
+ */
+@Immutable
+public final class TokenVerification
+{
+
+    private final String tokenId;
+    private final TException failure;
+
+    private TokenVerification(String tokenId, TException failure)
+    {
+        this.tokenId = tokenId;
+        this.failure = failure;
+    }
+
+    static TokenVerification valid(String tokenId)
+    {
+        return new TokenVerification(tokenId, null);
+    }
+
+    static TokenVerification invalid(String tokenId, TException failure)
+    {
+        checkThat(failure).is(notNull());
+
+        return new TokenVerification(tokenId, failure);
+    }
+
+    public String getTokenId()
+    {
+        return tokenId;
+    }
+
+    public boolean isValid()
+    {
+        return failure == null;
+    }
+
+    /**
+     * @return The exception a single {@code verifyToken} call would have thrown for this Token, or null if it is valid.
+     */
+    public TException getFailure()
+    {
+        return failure;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(tokenId, failure);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+
+        if (obj == null || getClass() != obj.getClass())
+        {
+            return false;
+        }
+
+        TokenVerification other = (TokenVerification) obj;
+        return Objects.equals(this.tokenId, other.tokenId) &&
+               Objects.equals(this.failure, other.failure);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TokenVerification{" + "tokenId=" + tokenId + ", failure=" + failure + '}';
+    }
+
+}
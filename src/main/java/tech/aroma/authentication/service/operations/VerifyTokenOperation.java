@@ -17,13 +17,14 @@
 package tech.aroma.authentication.service.operations;
 
 import com.google.common.base.Strings;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import javax.inject.Inject;
 import org.apache.thrift.TException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import tech.aroma.authentication.service.data.AsyncTokenRepository;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.data.TokenRepository;
 import tech.aroma.thrift.authentication.AuthenticationToken;
-import tech.aroma.thrift.authentication.TokenStatus;
 import tech.aroma.thrift.authentication.service.VerifyTokenRequest;
 import tech.aroma.thrift.authentication.service.VerifyTokenResponse;
 import tech.aroma.thrift.exceptions.InvalidTokenException;
@@ -34,6 +35,8 @@ import tech.sirwellington.alchemy.arguments.AlchemyAssertion;
 import tech.sirwellington.alchemy.arguments.FailedAssertionException;
 import tech.sirwellington.alchemy.thrift.operations.ThriftOperation;
 
+import static tech.aroma.authentication.service.operations.CompletableFutures.failed;
+import static tech.aroma.authentication.service.operations.CompletableFutures.rethrow;
 import static tech.aroma.thrift.assertions.AromaAssertions.checkRequestNotNull;
 import static tech.aroma.thrift.assertions.AromaAssertions.withMessage;
 import static tech.aroma.thrift.authentication.TokenStatus.EXPIRED;
@@ -46,46 +49,51 @@ import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.n
  * @author SirWellington
  */
 @Internal
-final class VerifyTokenOperation implements ThriftOperation<VerifyTokenRequest, VerifyTokenResponse>
+final class VerifyTokenOperation implements ThriftOperation<VerifyTokenRequest, VerifyTokenResponse>,
+                                           AsyncThriftOperation<VerifyTokenRequest, VerifyTokenResponse>
 {
 
-    private final static Logger LOG = LoggerFactory.getLogger(VerifyTokenOperation.class);
-
     private final TokenRepository repository;
+    private final AsyncTokenRepository asyncRepository;
+    private final ExpiredTokenWriter expiredTokens;
+    private final SignedTokens signedTokens;
 
     @Inject
-    VerifyTokenOperation(TokenRepository repository)
+    VerifyTokenOperation(TokenRepository repository,
+                         AsyncTokenRepository asyncRepository,
+                         ExpiredTokenWriter expiredTokens,
+                         SignedTokens signedTokens)
     {
-        checkThat(repository).is(notNull());
+        checkThat(repository, asyncRepository, expiredTokens, signedTokens)
+            .are(notNull());
 
         this.repository = repository;
+        this.asyncRepository = asyncRepository;
+        this.expiredTokens = expiredTokens;
+        this.signedTokens = signedTokens;
     }
 
     @Override
     public VerifyTokenResponse process(VerifyTokenRequest request) throws TException
     {
-        LOG.debug("Received request to verify an  token: {}", request);
-
-        checkRequestNotNull(request);
+        checkRequest(request);
 
         String tokenId = request.tokenId;
-        checkThat(tokenId)
-            .throwing(withMessage("missing tokenId"))
-            .is(nonEmptyString());
-        
-        AuthenticationToken token = repository.getToken(tokenId);
-        
-        checkThat(token)
-            .throwing(InvalidTokenException.class)
-            .usingMessage("Token is expired")
-            .is(notExpired());
 
-        //Update and check if the token is expired.
-        if(expirationDateHasPassed(token))
+        if (signedTokens.isSigned(tokenId))
         {
-            saveAsExpired(token);
-            throw new InvalidTokenException("Token has expired.");
+            SignedTokens.Claims claims = checkSignedToken(tokenId, request, signedTokens);
+
+            if (signedTokens.mayHaveMissedRevocation(claims) && !repository.containsToken(claims.getStorageId()))
+            {
+                throw new InvalidTokenException("Token has been invalidated");
+            }
+
+            return new VerifyTokenResponse();
         }
+        
+        AuthenticationToken token = repository.getToken(tokenId);
+        checkNotExpired(token, expiredTokens);
 
         if (shouldCheckAgainstOwner(request))
         {
@@ -98,7 +106,81 @@ final class VerifyTokenOperation implements ThriftOperation<VerifyTokenRequest,
 
     }
 
-    private boolean shouldCheckAgainstOwner(VerifyTokenRequest request)
+    @Override
+    public CompletableFuture<VerifyTokenResponse> processAsync(VerifyTokenRequest request)
+    {
+        try
+        {
+            checkRequest(request);
+
+            if (signedTokens.isSigned(request.tokenId))
+            {
+                SignedTokens.Claims claims = checkSignedToken(request.tokenId, request, signedTokens);
+
+                if (!signedTokens.mayHaveMissedRevocation(claims))
+                {
+                    return CompletableFuture.completedFuture(new VerifyTokenResponse());
+                }
+
+                //Fails with an InvalidTokenException once the Token has been invalidated and removed.
+                return asyncRepository.getTokenAsync(claims.getStorageId())
+                    .thenApply(token -> new VerifyTokenResponse());
+            }
+        }
+        catch (TException ex)
+        {
+            return failed(ex);
+        }
+
+        return asyncRepository.getTokenAsync(request.tokenId)
+            .thenApply(token ->
+            {
+                try
+                {
+                    checkNotExpired(token, expiredTokens);
+                }
+                catch (InvalidTokenException ex)
+                {
+                    throw rethrow(ex);
+                }
+
+                //The Token is already at hand, so its owner is compared directly instead of reading it again.
+                if (shouldCheckAgainstOwner(request) && !Objects.equals(token.ownerId, request.ownerId))
+                {
+                    throw rethrow(new InvalidTokenException());
+                }
+
+                return new VerifyTokenResponse();
+            });
+    }
+
+    private static void checkRequest(VerifyTokenRequest request) throws TException
+    {
+        checkRequestNotNull(request);
+
+        checkThat(request.tokenId)
+            .throwing(withMessage("missing tokenId"))
+            .is(nonEmptyString());
+    }
+
+    /**
+     * Verifies a signed Token from its claims alone, without reading the repository. If it
+     * {@linkplain SignedTokens#mayHaveMissedRevocation(SignedTokens.Claims) may have been invalidated}
+     * without this node knowing, the caller must still find it in the repository.
+     */
+    static SignedTokens.Claims checkSignedToken(String tokenId, VerifyTokenRequest request, SignedTokens signedTokens) throws InvalidTokenException
+    {
+        SignedTokens.Claims claims = signedTokens.checkValid(tokenId);
+
+        if (shouldCheckAgainstOwner(request) && !Objects.equals(claims.getOwnerId(), request.ownerId))
+        {
+            throw new InvalidTokenException();
+        }
+
+        return claims;
+    }
+
+    static boolean shouldCheckAgainstOwner(VerifyTokenRequest request)
     {
         return request.isSetOwnerId() && !Strings.isNullOrEmpty(request.ownerId);
     }
@@ -130,7 +212,26 @@ final class VerifyTokenOperation implements ThriftOperation<VerifyTokenRequest,
         return match;
     }
     
-    private AlchemyAssertion<AuthenticationToken> notExpired()
+    /**
+     * Fails if the Token is marked as expired, or has just expired. Newly expired Tokens are
+     * handed to the {@link ExpiredTokenWriter}.
+     */
+    static void checkNotExpired(AuthenticationToken token, ExpiredTokenWriter expiredTokens) throws InvalidTokenException
+    {
+        checkThat(token)
+            .throwing(InvalidTokenException.class)
+            .usingMessage("Token is expired")
+            .is(notExpired());
+
+        //Update and check if the token is expired.
+        if (expirationDateHasPassed(token))
+        {
+            expiredTokens.markExpired(token);
+            throw new InvalidTokenException("Token has expired.");
+        }
+    }
+
+    private static AlchemyAssertion<AuthenticationToken> notExpired()
     {
         return token ->
         {
@@ -141,14 +242,7 @@ final class VerifyTokenOperation implements ThriftOperation<VerifyTokenRequest,
         };
     }
 
-    private void saveAsExpired(AuthenticationToken token) throws TException
-    {
-        token.setStatus(TokenStatus.EXPIRED);
-        
-        repository.saveToken(token);
-    }
-
-    private boolean expirationDateHasPassed(AuthenticationToken token)
+    private static boolean expirationDateHasPassed(AuthenticationToken token)
     {
         return TimeFunctions.isInThePast(token.timeOfExpiration);
     }
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import javax.inject.Inject;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.aroma.authentication.service.data.SignedTokens;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.service.VerifyTokenRequest;
+import tech.aroma.thrift.exceptions.InvalidArgumentException;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static tech.aroma.authentication.service.operations.VerifyTokenOperation.checkNotExpired;
+import static tech.aroma.authentication.service.operations.VerifyTokenOperation.checkSignedToken;
+import static tech.aroma.authentication.service.operations.VerifyTokenOperation.shouldCheckAgainstOwner;
+import static tech.aroma.thrift.assertions.AromaAssertions.withMessage;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.lessThanOrEqualTo;
+
+/**
+ * Verifies a batch of Tokens by reading every distinct Token ID from the repository in parallel,
+ * then applying the same checks as {@link VerifyTokenOperation} to each request. Signed Tokens are
+ * checked in memory and are never read.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class VerifyTokensOperation implements BatchTokenVerifier
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(VerifyTokensOperation.class);
+
+    static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * Beyond this many reads at once, the calling thread runs the reads itself.
+     */
+    private static final int MAX_PARALLEL_READS = 32;
+
+    private final TokenRepository repository;
+    private final ExpiredTokenWriter expiredTokens;
+    private final SignedTokens signedTokens;
+    private final Executor reads;
+
+    @Inject
+    VerifyTokensOperation(TokenRepository repository, ExpiredTokenWriter expiredTokens, SignedTokens signedTokens)
+    {
+        this(repository, expiredTokens, signedTokens, new ThreadPoolExecutor(0,
+                                                               MAX_PARALLEL_READS,
+                                                               60, SECONDS,
+                                                               new SynchronousQueue<>(),
+                                                               new ThreadFactoryBuilder()
+                                                                   .setNameFormat("verify-tokens-%d")
+                                                                   .setDaemon(true)
+                                                                   .build(),
+                                                               new ThreadPoolExecutor.CallerRunsPolicy()));
+    }
+
+    VerifyTokensOperation(TokenRepository repository,
+                          ExpiredTokenWriter expiredTokens,
+                          SignedTokens signedTokens,
+                          Executor reads)
+    {
+        checkThat(repository, expiredTokens, signedTokens, reads)
+            .are(notNull());
+
+        this.repository = repository;
+        this.expiredTokens = expiredTokens;
+        this.signedTokens = signedTokens;
+        this.reads = reads;
+    }
+
+    @Override
+    public List<TokenVerification> verifyTokens(List<VerifyTokenRequest> requests) throws TException
+    {
+        checkThat(requests)
+            .throwing(withMessage("requests missing"))
+            .is(notNull());
+
+        checkThat(requests.size())
+            .throwing(withMessage("Cannot verify more than " + MAX_BATCH_SIZE + " Tokens at once"))
+            .is(lessThanOrEqualTo(MAX_BATCH_SIZE));
+
+        LOG.debug("Received request to verify {} tokens", requests.size());
+
+        Map<String, CompletableFuture<AuthenticationToken>> lookups = new HashMap<>();
+
+        for (VerifyTokenRequest request : requests)
+        {
+            String idToRead = idToRead(request);
+
+            if (idToRead != null)
+            {
+                lookups.computeIfAbsent(idToRead, this::lookup);
+            }
+        }
+
+        List<TokenVerification> results = new ArrayList<>(requests.size());
+
+        for (VerifyTokenRequest request : requests)
+        {
+            results.add(verify(request, lookups));
+        }
+
+        return results;
+    }
+
+    /**
+     * @return The ID the request's Token must be read by, or null if it is not read. Signed Tokens are only read
+     *         when they may have been invalidated without this node knowing.
+     */
+    private String idToRead(VerifyTokenRequest request)
+    {
+        if (request == null || Strings.isNullOrEmpty(request.tokenId))
+        {
+            return null;
+        }
+
+        if (!signedTokens.isSigned(request.tokenId))
+        {
+            return request.tokenId;
+        }
+
+        try
+        {
+            SignedTokens.Claims claims = signedTokens.verify(request.tokenId);
+            return signedTokens.mayHaveMissedRevocation(claims) ? claims.getStorageId() : null;
+        }
+        catch (InvalidTokenException ex)
+        {
+            //Rejected again when the request is verified.
+            return null;
+        }
+    }
+
+    private CompletableFuture<AuthenticationToken> lookup(String tokenId)
+    {
+        CompletableFuture<AuthenticationToken> future = new CompletableFuture<>();
+
+        reads.execute(() ->
+        {
+            try
+            {
+                future.complete(repository.getToken(tokenId));
+            }
+            catch (Exception ex)
+            {
+                future.completeExceptionally(ex);
+            }
+        });
+
+        return future;
+    }
+
+    private TokenVerification verify(VerifyTokenRequest request, Map<String, CompletableFuture<AuthenticationToken>> lookups)
+    {
+        if (request == null)
+        {
+            return TokenVerification.invalid(null, new InvalidArgumentException("request missing"));
+        }
+
+        String tokenId = request.tokenId;
+
+        if (Strings.isNullOrEmpty(tokenId))
+        {
+            return TokenVerification.invalid(tokenId, new InvalidArgumentException("missing tokenId"));
+        }
+
+        try
+        {
+            if (signedTokens.isSigned(tokenId))
+            {
+                SignedTokens.Claims claims = checkSignedToken(tokenId, request, signedTokens);
+
+                if (signedTokens.mayHaveMissedRevocation(claims))
+                {
+                    await(lookups.get(claims.getStorageId()));
+                }
+
+                return TokenVerification.valid(tokenId);
+            }
+
+            AuthenticationToken token = await(lookups.get(tokenId));
+            checkNotExpired(token, expiredTokens);
+
+            if (shouldCheckAgainstOwner(request) && !Objects.equals(token.ownerId, request.ownerId))
+            {
+                throw new InvalidTokenException();
+            }
+
+            return TokenVerification.valid(tokenId);
+        }
+        catch (TException ex)
+        {
+            return TokenVerification.invalid(tokenId, ex);
+        }
+    }
+
+    private AuthenticationToken await(CompletableFuture<AuthenticationToken> lookup) throws TException
+    {
+        AuthenticationToken token;
+
+        try
+        {
+            token = lookup.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new OperationFailedException("Interrupted while reading token repository");
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+
+            if (cause instanceof TException)
+            {
+                throw (TException) cause;
+            }
+
+            throw new OperationFailedException("Could not read token repository: " + cause.getMessage());
+        }
+
+        if (token == null)
+        {
+            throw new InvalidTokenException("Token does not exist");
+        }
+
+        return token;
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.apache.thrift.AsyncProcessFunction;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TBaseAsyncProcessor;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializable;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.server.AbstractNonblockingServer.AsyncFrameBuffer;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.aroma.thrift.authentication.service.AuthenticationService;
+import tech.aroma.thrift.authentication.service.AuthenticationService.createToken_args;
+import tech.aroma.thrift.authentication.service.AuthenticationService.createToken_result;
+import tech.aroma.thrift.authentication.service.AuthenticationService.getApiVersion_args;
+import tech.aroma.thrift.authentication.service.AuthenticationService.getApiVersion_result;
+import tech.aroma.thrift.authentication.service.AuthenticationService.getTokenInfo_args;
+import tech.aroma.thrift.authentication.service.AuthenticationService.getTokenInfo_result;
+import tech.aroma.thrift.authentication.service.AuthenticationService.invalidateToken_args;
+import tech.aroma.thrift.authentication.service.AuthenticationService.invalidateToken_result;
+import tech.aroma.thrift.authentication.service.AuthenticationService.verifyToken_args;
+import tech.aroma.thrift.authentication.service.AuthenticationService.verifyToken_result;
+import tech.aroma.thrift.authentication.service.CreateTokenResponse;
+import tech.aroma.thrift.authentication.service.GetTokenInfoResponse;
+import tech.aroma.thrift.authentication.service.InvalidateTokenResponse;
+import tech.aroma.thrift.authentication.service.VerifyTokenResponse;
+import tech.aroma.thrift.exceptions.InvalidArgumentException;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+/**
+ * Dispatches requests to an {@link AuthenticationService.AsyncIface}, and writes each response once
+ * it completes. Only the non-blocking servers can run it.
+ * <p>
+ * This takes the place of the generated {@link AuthenticationService.AsyncProcessor}, which was
+ * built against an older Thrift runtime and cannot be linked against the current one. Requests
+ * and responses use the same generated structs, so the two are the same on the wire.
+ *
+ * @author SirWellington
+ */
+@Internal
+final class AsyncAuthenticationProcessor extends TBaseAsyncProcessor<AuthenticationService.AsyncIface>
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(AsyncAuthenticationProcessor.class);
+
+    AsyncAuthenticationProcessor(AuthenticationService.AsyncIface service)
+    {
+        super(service, createFunctions());
+    }
+
+    /*
+     * TBaseAsyncProcessor takes its functions keyed by a raw TBase, so the Map has to be declared the same way.
+     */
+    @SuppressWarnings("rawtypes")
+    private static Map<String, AsyncProcessFunction<AuthenticationService.AsyncIface, ? extends TBase, ?>> createFunctions()
+    {
+        Map<String, AsyncProcessFunction<AuthenticationService.AsyncIface, ? extends TBase, ?>> functions = new HashMap<>();
+
+        functions.put("getApiVersion", new Call<getApiVersion_args, Double>(
+            "getApiVersion",
+            getApiVersion_args::new,
+            (service, args, callback) -> service.getApiVersion(callback),
+            version -> new getApiVersion_result().setSuccess(version),
+            ex -> null));
+
+        functions.put("createToken", new Call<createToken_args, CreateTokenResponse>(
+            "createToken",
+            createToken_args::new,
+            (service, args, callback) -> service.createToken(args.request, callback),
+            response -> new createToken_result().setSuccess(response),
+            ex ->
+            {
+                if (ex instanceof OperationFailedException)
+                {
+                    return new createToken_result().setEx1((OperationFailedException) ex);
+                }
+
+                if (ex instanceof InvalidArgumentException)
+                {
+                    return new createToken_result().setEx2((InvalidArgumentException) ex);
+                }
+
+                return null;
+            }));
+
+        functions.put("getTokenInfo", new Call<getTokenInfo_args, GetTokenInfoResponse>(
+            "getTokenInfo",
+            getTokenInfo_args::new,
+            (service, args, callback) -> service.getTokenInfo(args.request, callback),
+            response -> new getTokenInfo_result().setSuccess(response),
+            ex ->
+            {
+                if (ex instanceof OperationFailedException)
+                {
+                    return new getTokenInfo_result().setEx1((OperationFailedException) ex);
+                }
+
+                if (ex instanceof InvalidTokenException)
+                {
+                    return new getTokenInfo_result().setEx2((InvalidTokenException) ex);
+                }
+
+                if (ex instanceof InvalidArgumentException)
+                {
+                    return new getTokenInfo_result().setEx3((InvalidArgumentException) ex);
+                }
+
+                return null;
+            }));
+
+        functions.put("invalidateToken", new Call<invalidateToken_args, InvalidateTokenResponse>(
+            "invalidateToken",
+            invalidateToken_args::new,
+            (service, args, callback) -> service.invalidateToken(args.request, callback),
+            response -> new invalidateToken_result().setSuccess(response),
+            ex ->
+            {
+                if (ex instanceof OperationFailedException)
+                {
+                    return new invalidateToken_result().setEx1((OperationFailedException) ex);
+                }
+
+                if (ex instanceof InvalidTokenException)
+                {
+                    return new invalidateToken_result().setEx2((InvalidTokenException) ex);
+                }
+
+                if (ex instanceof InvalidArgumentException)
+                {
+                    return new invalidateToken_result().setEx3((InvalidArgumentException) ex);
+                }
+
+                return null;
+            }));
+
+        functions.put("verifyToken", new Call<verifyToken_args, VerifyTokenResponse>(
+            "verifyToken",
+            verifyToken_args::new,
+            (service, args, callback) -> service.verifyToken(args.request, callback),
+            response -> new verifyToken_result().setSuccess(response),
+            ex ->
+            {
+                if (ex instanceof OperationFailedException)
+                {
+                    return new verifyToken_result().setEx1((OperationFailedException) ex);
+                }
+
+                if (ex instanceof InvalidTokenException)
+                {
+                    return new verifyToken_result().setEx2((InvalidTokenException) ex);
+                }
+
+                if (ex instanceof InvalidArgumentException)
+                {
+                    return new verifyToken_result().setEx3((InvalidArgumentException) ex);
+                }
+
+                return null;
+            }));
+
+        return functions;
+    }
+
+    @FunctionalInterface
+    private interface Start<Args, Response>
+    {
+
+        void start(AuthenticationService.AsyncIface service, Args args, AsyncMethodCallback<Response> callback) throws TException;
+    }
+
+    /**
+     * One method of the Service.
+     *
+     * @param <Args>     The generated struct the request arrives in.
+     * @param <Response> What the Service completes the call with.
+     */
+    private static final class Call<Args extends TBase<Args, ?>, Response> extends AsyncProcessFunction<AuthenticationService.AsyncIface, Args, Response>
+    {
+
+        private final Supplier<Args> emptyArgs;
+        private final Start<Args, Response> start;
+        private final Function<Response, TBase<?, ?>> toResult;
+        private final Function<Exception, TBase<?, ?>> toDeclaredFailure;
+
+        private Call(String methodName,
+                     Supplier<Args> emptyArgs,
+                     Start<Args, Response> start,
+                     Function<Response, TBase<?, ?>> toResult,
+                     Function<Exception, TBase<?, ?>> toDeclaredFailure)
+        {
+            super(methodName);
+
+            this.emptyArgs = emptyArgs;
+            this.start = start;
+            this.toResult = toResult;
+            this.toDeclaredFailure = toDeclaredFailure;
+        }
+
+        @Override
+        protected boolean isOneway()
+        {
+            return false;
+        }
+
+        @Override
+        public Args getEmptyArgsInstance()
+        {
+            return emptyArgs.get();
+        }
+
+        @Override
+        public void start(AuthenticationService.AsyncIface service, Args args, AsyncMethodCallback<Response> callback) throws TException
+        {
+            start.start(service, args, callback);
+        }
+
+        @Override
+        public AsyncMethodCallback<Response> getResultHandler(AsyncFrameBuffer frameBuffer, int sequenceId)
+        {
+            return new AsyncMethodCallback<Response>()
+            {
+                @Override
+                public void onComplete(Response response)
+                {
+                    send(frameBuffer, toResult.apply(response), TMessageType.REPLY, sequenceId);
+                }
+
+                @Override
+                public void onError(Exception ex)
+                {
+                    TBase<?, ?> declaredFailure = toDeclaredFailure.apply(ex);
+
+                    if (declaredFailure != null)
+                    {
+                        send(frameBuffer, declaredFailure, TMessageType.REPLY, sequenceId);
+                    }
+                    else if (ex instanceof TTransportException)
+                    {
+                        LOG.error("Transport failed while processing {}", getMethodName(), ex);
+                        frameBuffer.close();
+                    }
+                    else
+                    {
+                        LOG.error("Unexpected failure while processing {}", getMethodName(), ex);
+
+                        TApplicationException failure = ex instanceof TApplicationException
+                                                        ? (TApplicationException) ex
+                                                        : new TApplicationException(TApplicationException.INTERNAL_ERROR, ex.getMessage());
+
+                        send(frameBuffer, failure, TMessageType.EXCEPTION, sequenceId);
+                    }
+                }
+            };
+        }
+
+        private void send(AsyncFrameBuffer frameBuffer, TSerializable message, byte type, int sequenceId)
+        {
+            try
+            {
+                sendResponse(frameBuffer, message, type, sequenceId);
+            }
+            catch (Exception ex)
+            {
+                LOG.error("Failed to write the response to {}", getMethodName(), ex);
+                frameBuffer.close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+import tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern.Role.DECORATOR;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+
+/**
+ * Caps the number of requests processed at once with a {@link Semaphore}, independently of how many
+ * threads the server runs them on. Requests over the limit wait for a permit, up to {@code maxWait},
+ * after which the connection is failed.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+@DecoratorPattern(role = DECORATOR)
+final class ConcurrencyLimitedProcessor implements TProcessor
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(ConcurrencyLimitedProcessor.class);
+
+    /**
+     * The DataStax Driver allows 1024 requests in flight on a connection, and opens a single
+     * connection per local host by default. Waiting here beyond that is cheaper than having
+     * the driver reject requests with a {@code BusyPoolException}.
+     */
+    static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 1024;
+
+    private final TProcessor delegate;
+    private final int maxConcurrentRequests;
+    private final long maxWaitMillis;
+    private final Semaphore permits;
+    private final Counter rejections;
+
+    ConcurrencyLimitedProcessor(TProcessor delegate, int maxConcurrentRequests, Duration maxWait, MetricRegistry metrics)
+    {
+        checkThat(delegate, maxWait, metrics)
+            .are(notNull());
+
+        checkThat(maxConcurrentRequests)
+            .is(greaterThan(0));
+
+        this.delegate = delegate;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxWaitMillis = maxWait.toMillis();
+        this.permits = new Semaphore(maxConcurrentRequests, true);
+
+        this.rejections = metrics.counter(MetricRegistry.name(ConcurrencyLimitedProcessor.class, "rejections"));
+        metrics.register(MetricRegistry.name(ConcurrencyLimitedProcessor.class, "in-flight"), (Gauge<Integer>) this::inFlight);
+        metrics.register(MetricRegistry.name(ConcurrencyLimitedProcessor.class, "waiting"), (Gauge<Integer>) permits::getQueueLength);
+    }
+
+    @Override
+    public boolean process(TProtocol in, TProtocol out) throws TException
+    {
+        acquirePermit();
+
+        try
+        {
+            return delegate.process(in, out);
+        }
+        finally
+        {
+            permits.release();
+        }
+    }
+
+    int inFlight()
+    {
+        return maxConcurrentRequests - permits.availablePermits();
+    }
+
+    private void acquirePermit() throws TException
+    {
+        boolean acquired;
+
+        try
+        {
+            acquired = permits.tryAcquire(maxWaitMillis, MILLISECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new TException("Interrupted while waiting to process request", ex);
+        }
+
+        if (!acquired)
+        {
+            rejections.inc();
+            LOG.warn("Gave up on a request after waiting {}ms behind {} others", maxWaitMillis, maxConcurrentRequests);
+            throw new TException("Server is too busy to process request");
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern;
+
+import static tech.sirwellington.alchemy.annotations.designs.patterns.DecoratorPattern.Role.DECORATOR;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+
+/**
+ * Counts the bytes read from, and written to, the transport it wraps.
+ *
+ * @author SirWellington
+ */
+@Internal
+@DecoratorPattern(role = DECORATOR)
+final class CountingTransport extends TTransport
+{
+
+    private final TTransport delegate;
+    private final Meter bytesReceived;
+    private final Meter bytesSent;
+
+    CountingTransport(TTransport delegate, Meter bytesReceived, Meter bytesSent)
+    {
+        checkThat(delegate, bytesReceived, bytesSent)
+            .are(notNull());
+
+        this.delegate = delegate;
+        this.bytesReceived = bytesReceived;
+        this.bytesSent = bytesSent;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public boolean peek()
+    {
+        return delegate.peek();
+    }
+
+    @Override
+    public void open() throws TTransportException
+    {
+        delegate.open();
+    }
+
+    @Override
+    public void close()
+    {
+        delegate.close();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws TTransportException
+    {
+        int read = delegate.read(buffer, offset, length);
+
+        if (read > 0)
+        {
+            bytesReceived.mark(read);
+        }
+
+        return read;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws TTransportException
+    {
+        delegate.write(buffer, offset, length);
+        bytesSent.mark(length);
+    }
+
+    @Override
+    public void flush() throws TTransportException
+    {
+        delegate.flush();
+    }
+
+    /**
+     * Wraps every transport in a {@link CountingTransport}, reporting to
+     * {@code CountingTransport.<protocol>.bytes-received} and {@code CountingTransport.<protocol>.bytes-sent}.
+     */
+    static final class Factory extends TTransportFactory
+    {
+
+        private final Meter bytesReceived;
+        private final Meter bytesSent;
+
+        Factory(WireProtocol protocol, MetricRegistry metrics)
+        {
+            checkThat(protocol, metrics)
+                .are(notNull());
+
+            this.bytesReceived = metrics.meter(MetricRegistry.name(CountingTransport.class, protocol.toString(), "bytes-received"));
+            this.bytesSent = metrics.meter(MetricRegistry.name(CountingTransport.class, protocol.toString(), "bytes-sent"));
+        }
+
+        @Override
+        public TTransport getTransport(TTransport base)
+        {
+            return new CountingTransport(base, bytesReceived, bytesSent);
+        }
+
+    }
+
+}
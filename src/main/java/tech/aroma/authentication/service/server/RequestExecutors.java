@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+/**
+ * Creates the {@link ExecutorService} the Thrift Server runs requests on.
+ *
+ * @author SirWellington
+ */
+@Internal
+final class RequestExecutors
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(RequestExecutors.class);
+
+    private RequestExecutors() throws IllegalAccessException
+    {
+        throw new IllegalAccessException("cannot instantiate");
+    }
+
+    /**
+     * Starts a new virtual thread for every task. Virtual threads only exist on Java 21 and later;
+     * the service is still built for Java 8, so they are looked up reflectively.
+     * <p>
+     * The executor does not limit concurrency, so pair it with a {@link ConcurrencyLimitedProcessor}.
+     *
+     * @throws IllegalStateException On runtimes older than Java 21.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() throws IllegalStateException
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) factory.invoke(null);
+            LOG.info("Running requests on virtual threads");
+            return executor;
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new IllegalStateException("Virtual threads require Java 21+. Use --executor platform instead.", ex);
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.server.THsHaServer;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * The Thrift Server engines the {@link TcpServer} can run with.
+ * <p>
+ * The non-blocking engines read requests with a selector, so idle connections do not hold a thread.
+ * Clients of these engines must use {@link TFramedTransport}.
+ *
+ * @author SirWellington
+ */
+@Internal
+enum ServerMode
+{
+    /**
+     * One thread per connection. Clients use a plain socket, unless the settings ask for framing.
+     */
+    THREAD_POOL("threadpool")
+    {
+        @Override
+        TServer createServer(TProcessor processor, int port, ServerSettings settings) throws TTransportException,
+                                                                                           SocketException
+        {
+            TServerSocket socket = new TServerSocket(port);
+            socket.getServerSocket().setSoTimeout((int) SECONDS.toMillis(CLIENT_TIMEOUT_SECONDS));
+
+            TTransportFactory transportFactory = settings.transportFactory();
+
+            if (settings.isFramed())
+            {
+                transportFactory = framedOver(transportFactory);
+            }
+
+            TThreadPoolServer.Args args = new TThreadPoolServer.Args(socket)
+                .protocolFactory(settings.protocol().createFactory())
+                .transportFactory(transportFactory)
+                .processor(processor)
+                .requestTimeout(60)
+                .requestTimeoutUnit(SECONDS)
+                .executorService(executorFor(settings));
+
+            return withTelemetry(new TThreadPoolServer(args), settings);
+        }
+
+        /**
+         * The same pool Thrift creates: idle connections are never queued, so the queue is always empty.
+         */
+        @Override
+        ExecutorService createWorkerPool(ServerSettings settings)
+        {
+            return new ThreadPoolExecutor(Math.min(MIN_WORKER_THREADS, settings.workerThreads()),
+                                          settings.workerThreads(),
+                                          60, SECONDS,
+                                          new SynchronousQueue<>());
+        }
+    },
+
+    /**
+     * Several selector threads accept and read framed requests, and hand them to a pool of workers.
+     */
+    THREADED_SELECTOR("threaded-selector")
+    {
+        @Override
+        TServer createServer(TProcessor processor, int port, ServerSettings settings) throws TTransportException
+        {
+            TNonblockingServerSocket socket = new TNonblockingServerSocket(port, (int) SECONDS.toMillis(CLIENT_TIMEOUT_SECONDS));
+
+            TThreadedSelectorServer.Args args = new TThreadedSelectorServer.Args(socket)
+                .protocolFactory(settings.protocol().createFactory())
+                .transportFactory(framedOver(settings.transportFactory()))
+                .processor(processor)
+                .selectorThreads(settings.selectorThreads())
+                .executorService(executorFor(settings));
+
+            return withTelemetry(new TThreadedSelectorServer(args), settings);
+        }
+
+        @Override
+        ExecutorService createWorkerPool(ServerSettings settings)
+        {
+            return Executors.newFixedThreadPool(settings.workerThreads());
+        }
+    },
+
+    /**
+     * A single selector thread reads framed requests, and hands them to a pool of workers.
+     */
+    HSHA("hsha")
+    {
+        @Override
+        TServer createServer(TProcessor processor, int port, ServerSettings settings) throws TTransportException
+        {
+            if (settings.selectorThreads() != 1)
+            {
+                LOG.info("The {} Server always uses a single selector thread", this);
+            }
+
+            TNonblockingServerSocket socket = new TNonblockingServerSocket(port, (int) SECONDS.toMillis(CLIENT_TIMEOUT_SECONDS));
+
+            THsHaServer.Args args = new THsHaServer.Args(socket)
+                .protocolFactory(settings.protocol().createFactory())
+                .transportFactory(framedOver(settings.transportFactory()))
+                .processor(processor)
+                .executorService(executorFor(settings));
+
+            return withTelemetry(new THsHaServer(args), settings);
+        }
+
+        /**
+         * The same pool Thrift creates. Its queue is unbounded, so it never grows past the minimum
+         * number of threads, and the queue depth shows how far behind the workers are.
+         */
+        @Override
+        ExecutorService createWorkerPool(ServerSettings settings)
+        {
+            return new ThreadPoolExecutor(Math.min(MIN_WORKER_THREADS, settings.workerThreads()),
+                                          settings.workerThreads(),
+                                          60, SECONDS,
+                                          new LinkedBlockingQueue<>());
+        }
+    };
+
+    private final static Logger LOG = LoggerFactory.getLogger(ServerMode.class);
+
+    private static final int MIN_WORKER_THREADS = 5;
+    private static final int CLIENT_TIMEOUT_SECONDS = 30;
+
+    private final String optionName;
+
+    private ServerMode(String optionName)
+    {
+        this.optionName = optionName;
+    }
+
+    /**
+     * Creates the server, bound to the port, but not yet serving.
+     *
+     * @param processor The Processor requests are dispatched to.
+     * @param port      The port to listen on.
+     * @param settings  How to build the server.
+     */
+    abstract TServer createServer(TProcessor processor, int port, ServerSettings settings) throws TTransportException,
+                                                                                                SocketException;
+
+    /**
+     * Creates the worker threads requests run on, when the settings do not supply an executor.
+     * The engines would create the same pool themselves, but it could not be measured then.
+     */
+    abstract ExecutorService createWorkerPool(ServerSettings settings);
+
+    /**
+     * @param name The name used on the command line, for example "threaded-selector".
+     * @throws IllegalArgumentException If no mode goes by that name.
+     */
+    static ServerMode fromName(String name) throws IllegalArgumentException
+    {
+        for (ServerMode mode : values())
+        {
+            if (mode.optionName.equalsIgnoreCase(name))
+            {
+                return mode;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown server mode: " + name);
+    }
+
+    @Override
+    public String toString()
+    {
+        return optionName;
+    }
+
+    /**
+     * @return The executor from the settings, or else a new pool of workers, measured by the settings' telemetry.
+     */
+    ExecutorService executorFor(ServerSettings settings)
+    {
+        ExecutorService executor = settings.executor() != null ? settings.executor() : createWorkerPool(settings);
+        return settings.telemetry().instrument(executor);
+    }
+
+    private static TServer withTelemetry(TServer server, ServerSettings settings)
+    {
+        server.setServerEventHandler(settings.telemetry());
+        return server;
+    }
+
+    /**
+     * The framing sits on top of the given Factory, so anything it does sees the bytes on the wire.
+     */
+    private static TTransportFactory framedOver(TTransportFactory inner)
+    {
+        return new TTransportFactory()
+        {
+            @Override
+            public TTransport getTransport(TTransport base)
+            {
+                return new TFramedTransport(inner.getTransport(base));
+            }
+        };
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.ExecutorService;
+import org.apache.thrift.transport.TTransportFactory;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+
+/**
+ * How a {@link ServerMode} should build its Server. Follows the style of Thrift's own Server Args.
+ *
+ * @author SirWellington
+ */
+@Internal
+final class ServerSettings
+{
+
+    static final int DEFAULT_SELECTOR_THREADS = 2;
+    static final int DEFAULT_WORKER_THREADS = 100;
+
+    private int selectorThreads = DEFAULT_SELECTOR_THREADS;
+    private int workerThreads = DEFAULT_WORKER_THREADS;
+    private ExecutorService executor;
+    private WireProtocol protocol = WireProtocol.BINARY;
+    private boolean framed = false;
+    private TTransportFactory transportFactory = new TTransportFactory();
+    private ServerTelemetry telemetry = new ServerTelemetry("server", new MetricRegistry());
+
+    /**
+     * @param selectorThreads The number of threads that accept and read connections. Ignored by the blocking engine.
+     */
+    ServerSettings selectorThreads(int selectorThreads)
+    {
+        checkThat(selectorThreads).is(greaterThan(0));
+
+        this.selectorThreads = selectorThreads;
+        return this;
+    }
+
+    /**
+     * @param workerThreads The maximum number of threads processing requests at once.
+     */
+    ServerSettings workerThreads(int workerThreads)
+    {
+        checkThat(workerThreads).is(greaterThan(0));
+
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    /**
+     * @param executor Runs the requests in place of the engine's own pool of worker threads.
+     *                 The blocking engine runs each connection, rather than each request, as one task.
+     */
+    ServerSettings executor(ExecutorService executor)
+    {
+        checkThat(executor).is(notNull());
+
+        this.executor = executor;
+        return this;
+    }
+
+    ServerSettings protocol(WireProtocol protocol)
+    {
+        checkThat(protocol).is(notNull());
+
+        this.protocol = protocol;
+        return this;
+    }
+
+    /**
+     * @param framed Whether the blocking engine should expect framed connections.
+     *               The non-blocking engines always expect them.
+     */
+    ServerSettings framed(boolean framed)
+    {
+        this.framed = framed;
+        return this;
+    }
+
+    /**
+     * @param transportFactory Applied to the transport closest to the socket, for example to count bytes.
+     */
+    ServerSettings transportFactory(TTransportFactory transportFactory)
+    {
+        checkThat(transportFactory).is(notNull());
+
+        this.transportFactory = transportFactory;
+        return this;
+    }
+
+    /**
+     * @param telemetry Reports the connections and worker threads of the server.
+     */
+    ServerSettings telemetry(ServerTelemetry telemetry)
+    {
+        checkThat(telemetry).is(notNull());
+
+        this.telemetry = telemetry;
+        return this;
+    }
+
+    int selectorThreads()
+    {
+        return selectorThreads;
+    }
+
+    int workerThreads()
+    {
+        return workerThreads;
+    }
+
+    /**
+     * @return The executor to run requests on, or null if the engine should create its own.
+     */
+    ExecutorService executor()
+    {
+        return executor;
+    }
+
+    WireProtocol protocol()
+    {
+        return protocol;
+    }
+
+    boolean isFramed()
+    {
+        return framed;
+    }
+
+    TTransportFactory transportFactory()
+    {
+        return transportFactory;
+    }
+
+    ServerTelemetry telemetry()
+    {
+        return telemetry;
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.server.ServerContext;
+import org.apache.thrift.server.TServerEventHandler;
+import org.apache.thrift.transport.TTransport;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.nonEmptyString;
+
+/**
+ * Reports how saturated a Thrift Server is: the connections it accepts and holds open, and how busy
+ * its pool of worker threads is.
+ * <p>
+ * Every engine tells its {@link TServerEventHandler} when a connection is accepted and when it is
+ * closed. The worker pool is reported only when it is a {@link ThreadPoolExecutor}; requests on
+ * virtual threads are reported by the {@link ConcurrencyLimitedProcessor} instead.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class ServerTelemetry implements TServerEventHandler
+{
+
+    private final MetricRegistry metrics;
+    private final String serverName;
+    private final Meter acceptedConnections;
+    private final Counter openConnections;
+
+    /**
+     * @param serverName Distinguishes this server's metrics from those of the other servers in the process.
+     */
+    ServerTelemetry(String serverName, MetricRegistry metrics)
+    {
+        checkThat(serverName)
+            .is(nonEmptyString());
+
+        checkThat(metrics)
+            .is(notNull());
+
+        this.metrics = metrics;
+        this.serverName = serverName;
+        this.acceptedConnections = metrics.meter(nameOf("connections", "accepted"));
+        this.openConnections = metrics.counter(nameOf("connections", "open"));
+    }
+
+    /**
+     * @return The same executor, after registering gauges of its threads and queue.
+     */
+    ExecutorService instrument(ExecutorService executor)
+    {
+        checkThat(executor)
+            .is(notNull());
+
+        if (!(executor instanceof ThreadPoolExecutor))
+        {
+            return executor;
+        }
+
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+
+        metrics.register(nameOf("workers", "busy"), (Gauge<Integer>) pool::getActiveCount);
+        metrics.register(nameOf("workers", "size"), (Gauge<Integer>) pool::getPoolSize);
+        metrics.register(nameOf("workers", "queue-depth"), (Gauge<Integer>) () -> pool.getQueue().size());
+        metrics.register(nameOf("workers", "occupancy"), new RatioGauge()
+        {
+            @Override
+            protected RatioGauge.Ratio getRatio()
+            {
+                return RatioGauge.Ratio.of(pool.getActiveCount(), pool.getMaximumPoolSize());
+            }
+        });
+
+        return executor;
+    }
+
+    @Override
+    public void preServe()
+    {
+    }
+
+    @Override
+    public ServerContext createContext(TProtocol input, TProtocol output)
+    {
+        acceptedConnections.mark();
+        openConnections.inc();
+        return null;
+    }
+
+    @Override
+    public void deleteContext(ServerContext serverContext, TProtocol input, TProtocol output)
+    {
+        openConnections.dec();
+    }
+
+    @Override
+    public void processContext(ServerContext serverContext, TTransport inputTransport, TTransport outputTransport)
+    {
+    }
+
+    private String nameOf(String... names)
+    {
+        return MetricRegistry.name(TcpServer.class.getName() + "." + serverName, names);
+    }
+
+}
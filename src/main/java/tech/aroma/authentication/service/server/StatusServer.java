@@ -0,0 +1,275 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.concurrency.ThreadSafe;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThanOrEqualTo;
+import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.nonEmptyString;
+
+/**
+ * Answers health checks and metrics scrapes over plain HTTP, on a port of its own, so that
+ * they need not open Thrift connections and occupy the Service's workers.
+ * <ul>
+ * <li>{@code GET /health} answers 200 for as long as the process is up.</li>
+ * <li>{@code GET /ready} answers 200 once every readiness check passes, and 503 until then, with the
+ * state of each check.</li>
+ * <li>{@code GET /metrics} answers every metric in the {@link MetricRegistry} as text, one value per line.</li>
+ * </ul>
+ * Connections are accepted by the HTTP server's own selector thread, and answered on a single
+ * thread of their own.
+ *
+ * @author SirWellington
+ */
+@Internal
+@ThreadSafe
+final class StatusServer
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(StatusServer.class);
+
+    private static final String TEXT = "text/plain; charset=utf-8";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final MetricRegistry metrics;
+    private final Map<String, BooleanSupplier> readinessChecks = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param port The port to listen at. 0 picks any free port.
+     */
+    StatusServer(int port, MetricRegistry metrics) throws IOException
+    {
+        checkThat(port).is(greaterThanOrEqualTo(0));
+        checkThat(metrics).is(notNull());
+
+        this.metrics = metrics;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("status-server-%d")
+            .setDaemon(true)
+            .build());
+
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    /**
+     * Adds a check that must pass before {@code /ready} answers 200. Checks are called on every request,
+     * so they must be quick and must not block.
+     */
+    void addReadinessCheck(String name, BooleanSupplier check)
+    {
+        checkThat(name).is(nonEmptyString());
+        checkThat(check).is(notNull());
+
+        readinessChecks.put(name, check);
+    }
+
+    void start()
+    {
+        server.start();
+        LOG.info("Answering health checks and metrics over HTTP at port {}", port());
+    }
+
+    void stop()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    int port()
+    {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            String method = exchange.getRequestMethod();
+
+            if (!"GET".equals(method) && !"HEAD".equals(method))
+            {
+                respond(exchange, 405, "Method Not Allowed\n");
+                return;
+            }
+
+            switch (exchange.getRequestURI().getPath())
+            {
+                case "/health":
+                    respond(exchange, 200, "OK\n");
+                    break;
+                case "/ready":
+                    respondToReady(exchange);
+                    break;
+                case "/metrics":
+                    respond(exchange, 200, metricsText());
+                    break;
+                default:
+                    respond(exchange, 404, "Not Found\n");
+                    break;
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            LOG.warn("Failed to answer {}", exchange.getRequestURI(), ex);
+            respond(exchange, 500, "Internal Server Error\n");
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    private void respondToReady(HttpExchange exchange) throws IOException
+    {
+        StringBuilder body = new StringBuilder();
+        boolean ready = true;
+
+        for (Map.Entry<String, BooleanSupplier> check : readinessChecks.entrySet())
+        {
+            boolean passed = isPassing(check.getValue());
+            ready &= passed;
+
+            body.append(check.getKey()).append(' ').append(passed ? "ready" : "not ready").append('\n');
+        }
+
+        respond(exchange, ready ? 200 : 503, body.toString());
+    }
+
+    private static boolean isPassing(BooleanSupplier check)
+    {
+        try
+        {
+            return check.getAsBoolean();
+        }
+        catch (RuntimeException ex)
+        {
+            LOG.debug("Readiness check failed", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Gauges and counters are written as they are; meters, histograms, and timers as one line per
+     * statistic, with timers in milliseconds and rates per second.
+     */
+    String metricsText()
+    {
+        StringBuilder text = new StringBuilder();
+
+        metrics.getGauges().forEach((name, gauge) -> line(text, name, valueOf(gauge)));
+
+        for (Map.Entry<String, Counter> counter : metrics.getCounters().entrySet())
+        {
+            line(text, counter.getKey(), counter.getValue().getCount());
+        }
+
+        for (Map.Entry<String, Meter> meter : metrics.getMeters().entrySet())
+        {
+            line(text, meter.getKey() + ".count", meter.getValue().getCount());
+            line(text, meter.getKey() + ".m1_rate", meter.getValue().getOneMinuteRate());
+        }
+
+        for (Map.Entry<String, Histogram> histogram : metrics.getHistograms().entrySet())
+        {
+            line(text, histogram.getKey() + ".count", histogram.getValue().getCount());
+            snapshot(text, histogram.getKey(), histogram.getValue().getSnapshot(), 1);
+        }
+
+        double nanosPerMilli = MILLISECONDS.toNanos(1);
+
+        for (Map.Entry<String, Timer> timer : metrics.getTimers().entrySet())
+        {
+            line(text, timer.getKey() + ".count", timer.getValue().getCount());
+            line(text, timer.getKey() + ".m1_rate", timer.getValue().getOneMinuteRate());
+            snapshot(text, timer.getKey() + ".ms", timer.getValue().getSnapshot(), nanosPerMilli);
+        }
+
+        return text.toString();
+    }
+
+    private static Object valueOf(Gauge<?> gauge)
+    {
+        try
+        {
+            return gauge.getValue();
+        }
+        catch (RuntimeException ex)
+        {
+            return "error";
+        }
+    }
+
+    private static void snapshot(StringBuilder text, String name, Snapshot snapshot, double divisor)
+    {
+        line(text, name + ".mean", snapshot.getMean() / divisor);
+        line(text, name + ".p50", snapshot.getMedian() / divisor);
+        line(text, name + ".p99", snapshot.get99thPercentile() / divisor);
+        line(text, name + ".p999", snapshot.get999thPercentile() / divisor);
+        line(text, name + ".max", snapshot.getMax() / divisor);
+    }
+
+    private static void line(StringBuilder text, String name, Object value)
+    {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+
+        exchange.getResponseHeaders().set("Content-Type", TEXT);
+        exchange.sendResponseHeaders(status, head ? -1 : bytes.length);
+
+        if (!head)
+        {
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write(bytes);
+            }
+        }
+    }
+
+}
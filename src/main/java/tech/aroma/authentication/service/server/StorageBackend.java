@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.datastax.driver.core.Session;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.util.Modules;
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+import tech.aroma.authentication.service.data.ModuleCassandraAsyncTokenStorage;
+import tech.aroma.authentication.service.data.ModuleMappedTokenStorage;
+import tech.aroma.authentication.service.data.ModuleMemoryTokenStorage;
+import tech.aroma.data.cassandra.ModuleCassandraDataRepositories;
+import tech.aroma.data.cassandra.ModuleCassandraDevCluster;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+/**
+ * Where the {@link TcpServer} keeps its Tokens.
+ *
+ * @author SirWellington
+ */
+@Internal
+enum StorageBackend
+{
+    /**
+     * The shared Cassandra Cluster, and the default.
+     */
+    CASSANDRA("cassandra")
+    {
+        @Override
+        Module createModule(Path directory)
+        {
+            return Modules.combine(new ModuleCassandraDataRepositories(),
+                                   new ModuleCassandraAsyncTokenStorage(),
+                                   new ModuleCassandraDevCluster());
+        }
+
+        /**
+         * Reachable while the driver holds a connection to at least one host.
+         */
+        @Override
+        BooleanSupplier createReachabilityCheck(Injector injector)
+        {
+            Session session = injector.getInstance(Session.class);
+            return () -> !session.getState().getConnectedHosts().isEmpty();
+        }
+    },
+
+    /**
+     * This process's own memory. For single-node deployments, tests, and benchmarks, where Tokens
+     * need not outlive the process.
+     */
+    MEMORY("memory")
+    {
+        @Override
+        Module createModule(Path directory)
+        {
+            return new ModuleMemoryTokenStorage();
+        }
+    },
+
+    /**
+     * Memory-mapped files in a local directory. For single-node deployments that must keep their
+     * Tokens across restarts, but cannot run Cassandra.
+     */
+    FILE("file")
+    {
+        @Override
+        Module createModule(Path directory)
+        {
+            return new ModuleMappedTokenStorage(directory);
+        }
+    };
+
+    private final String optionName;
+
+    private StorageBackend(String optionName)
+    {
+        this.optionName = optionName;
+    }
+
+    /**
+     * @param directory Where backends that keep local files store them.
+     * @return The Module that binds the {@link tech.aroma.data.TokenRepository} and anything it needs.
+     */
+    abstract Module createModule(Path directory);
+
+    /**
+     * Backends that live in this process are always reachable.
+     *
+     * @param injector The Injector created with this backend's Module.
+     * @return Whether the storage can be reached right now, without blocking.
+     */
+    BooleanSupplier createReachabilityCheck(Injector injector)
+    {
+        return () -> true;
+    }
+
+    /**
+     * @param name The name used on the command line, for example "memory".
+     * @throws IllegalArgumentException If no backend goes by that name.
+     */
+    static StorageBackend fromName(String name) throws IllegalArgumentException
+    {
+        for (StorageBackend backend : values())
+        {
+            if (backend.optionName.equalsIgnoreCase(name))
+            {
+                return backend;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown storage: " + name);
+    }
+
+    @Override
+    public String toString()
+    {
+        return optionName;
+    }
+
+}
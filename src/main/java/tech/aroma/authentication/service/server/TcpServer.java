@@ -19,26 +19,43 @@ package tech.aroma.authentication.service.server;
 
 
 
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Slf4jReporter;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.net.HostAndPort;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
-import java.net.SocketException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.server.TThreadPoolServer;
-import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.server.TServer;
 import org.apache.thrift.transport.TTransportException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import tech.aroma.authentication.service.ModuleAuthenticationService;
+import tech.aroma.authentication.service.data.CacheSnapshots;
+import tech.aroma.authentication.service.data.ModuleTokenRepository;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.authentication.service.operations.ModuleAuthenticationOperations;
-import tech.aroma.data.cassandra.ModuleCassandraDataRepositories;
-import tech.aroma.data.cassandra.ModuleCassandraDevCluster;
 import tech.aroma.thrift.authentication.service.AuthenticationService;
 import tech.aroma.thrift.authentication.service.AuthenticationServiceConstants;
 import tech.sirwellington.alchemy.annotations.access.Internal;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
@@ -52,44 +69,334 @@ public final class TcpServer
 
     private final static Logger LOG = LoggerFactory.getLogger(TcpServer.class);
     private static final int DEFAULT_PORT = AuthenticationServiceConstants.SERVICE_PORT;
+    private static final int DEFAULT_INVALIDATION_PORT = DEFAULT_PORT + 2;
 
-    public static void main(String[] args) throws TTransportException, SocketException
+    /**
+     * Every metric is published over JMX under this domain, alongside logback's own MBeans.
+     */
+    static final String JMX_DOMAIN = "tech.aroma.authentication";
+
+    /**
+     * Signing keys are read from the environment rather than the command line, so that they do not
+     * show up in process listings.
+     */
+    static final String SIGNING_KEYS_VARIABLE = "AROMA_TOKEN_SIGNING_KEYS";
+
+    public static void main(String[] args) throws TTransportException, IOException
     {
-        int port = getPortFromArgs(args);
-        
-        
-        Injector injector = Guice.createInjector(new ModuleAuthenticationOperations(),
-                                                 new ModuleAuthenticationService(),
-                                                 new ModuleCassandraDataRepositories(),
-                                                 new ModuleCassandraDevCluster());
+        OptionSet options = parseArgs(args);
+        int port = getPortFrom(options);
+        long cacheSize = getLongFrom(options, "cache-size", ModuleTokenRepository.DEFAULT_CACHE_SIZE);
+        long cacheMaxAge = getLongFrom(options, "cache-max-age", ModuleTokenRepository.DEFAULT_CACHE_MAX_AGE.getSeconds());
 
-        AuthenticationService.Iface authenticationService = injector.getInstance(AuthenticationService.Iface.class);
-        AuthenticationService.Processor processor = new AuthenticationService.Processor<>(authenticationService);
-
-        TServerSocket socket = new TServerSocket(port);
-        socket.getServerSocket().setSoTimeout((int) SECONDS.toMillis(30));
-
-        TThreadPoolServer.Args serverArgs = new TThreadPoolServer.Args(socket)
-            .protocolFactory(new TBinaryProtocol.Factory())
-            .processor(processor)
-            .requestTimeout(60)
-            .requestTimeoutUnit(SECONDS)
-            .minWorkerThreads(5)
-            .maxWorkerThreads(100);
-        
-        LOG.info("Starting Authentication Service at port {}", port);
-        
-        TThreadPoolServer server = new TThreadPoolServer(serverArgs);
+        StorageBackend storage = getStorageFrom(options);
+        long filterSize = getLongFrom(options, "token-filter", 0);
+        long filterRebuildInterval = getLongFrom(options, "token-filter-rebuild-interval",
+                                                 ModuleTokenRepository.DEFAULT_FILTER_REBUILD_INTERVAL.getSeconds());
+        int maxStorageConcurrency = getIntFrom(options, "max-storage-concurrency",
+                                               ModuleTokenRepository.DEFAULT_MAX_STORAGE_CONCURRENCY);
+        long staleGraceWindow = getLongFrom(options, "stale-grace-window",
+                                            ModuleTokenRepository.DEFAULT_STALE_GRACE_WINDOW.getSeconds());
+        double hedgeRate = getFractionFrom(options, "hedge-rate", 0);
+
+        if (hedgeRate >= 0.5)
+        {
+            LOG.warn("--hedge-rate must be below 0.5. Turning hedged reads off.");
+            hedgeRate = 0;
+        }
+
+        if (storage != StorageBackend.CASSANDRA && filterSize > 0)
+        {
+            LOG.warn("The Token ID Filter is built from Cassandra, and is disabled with {} storage", storage);
+            filterSize = 0;
+        }
+
+        LOG.info("Storing Tokens in {}", storage);
+        Path storageDirectory = Paths.get(options.valueOf("storage-directory").toString());
+        ModuleTokenRepository tokenRepositoryModule = new ModuleTokenRepository(storage.createModule(storageDirectory),
+                                                                                cacheSize,
+                                                                                Duration.ofSeconds(cacheMaxAge))
+            .withTokenIdFilter(filterSize, Duration.ofSeconds(Math.max(1, filterRebuildInterval)))
+            .withConcurrencyLimit(maxStorageConcurrency)
+            .withStaleGraceWindow(Duration.ofSeconds(staleGraceWindow))
+            .withHedgedReads(hedgeRate);
+
+        if (options.has("single-node"))
+        {
+            tokenRepositoryModule.withSingleNode();
+        }
+
+        if (options.has("cache-snapshot"))
+        {
+            tokenRepositoryModule.withCacheSnapshot(Paths.get(options.valueOf("cache-snapshot").toString()));
+        }
+
+        int invalidationPort = getPositiveIntFrom(options, "invalidation-port", DEFAULT_INVALIDATION_PORT);
+        List<InetSocketAddress> invalidationPeers = getPeersFrom(options, invalidationPort);
+
+        if (!invalidationPeers.isEmpty())
+        {
+            tokenRepositoryModule.withInvalidationBus(new InetSocketAddress(invalidationPort), invalidationPeers);
+        }
+
+        SignedTokens signedTokens = getSignedTokensFrom(options, System.getenv(SIGNING_KEYS_VARIABLE));
+
+        double accessLogSampleRate = getFractionFrom(options,
+                                                     "access-log-sample-rate",
+                                                     ModuleAuthenticationOperations.DEFAULT_ACCESS_LOG_SAMPLE_RATE);
+
+        ModuleAuthenticationOperations operationsModule = new ModuleAuthenticationOperations()
+            .withAccessLog(accessLogSampleRate)
+            .withOwnerQuota(getIntFrom(options, "owner-quota", ModuleAuthenticationOperations.DEFAULT_OWNER_TOKENS_PER_MINUTE),
+                            getPositiveIntFrom(options, "owner-quota-burst", ModuleAuthenticationOperations.DEFAULT_OWNER_BURST))
+            .withOrganizationQuota(getIntFrom(options, "organization-quota", ModuleAuthenticationOperations.DEFAULT_ORGANIZATION_TOKENS_PER_MINUTE),
+                                   getPositiveIntFrom(options, "organization-quota-burst", ModuleAuthenticationOperations.DEFAULT_ORGANIZATION_BURST))
+            .withOwnerDeletionParallelism(getPositiveIntFrom(options,
+                                                             "owner-deletion-parallelism",
+                                                             ModuleAuthenticationOperations.DEFAULT_OWNER_DELETION_PARALLELISM));
+
+        if (options.has("owner-deletion-wait"))
+        {
+            operationsModule.withBackgroundOwnerDeletion(Duration.ofSeconds(getIntFrom(options, "owner-deletion-wait", 0)));
+        }
+
+        Injector injector = Guice.createInjector(operationsModule,
+                                                 new ModuleAuthenticationService(signedTokens),
+                                                 tokenRepositoryModule);
+
+        CacheSnapshots cacheSnapshots = injector.getInstance(CacheSnapshots.class);
+        cacheSnapshots.restoreInBackground();
+        Runtime.getRuntime().addShutdownHook(new Thread(cacheSnapshots::save, "cache-snapshot-save"));
+
+        MetricRegistry metrics = injector.getInstance(MetricRegistry.class);
+        ServerMode mode = getServerModeFrom(options);
+        WireProtocol protocol = getProtocolFrom(options);
+        int selectorThreads = getPositiveIntFrom(options, "selector-threads", ServerSettings.DEFAULT_SELECTOR_THREADS);
+        int workerThreads = getPositiveIntFrom(options, "worker-threads", ServerSettings.DEFAULT_WORKER_THREADS);
+        boolean async = options.has("async");
+
+        AtomicBoolean warmedUp = new AtomicBoolean();
+        AtomicReference<TServer> serving = new AtomicReference<>();
+
+        if (options.has("status-port"))
+        {
+            StatusServer statusServer = new StatusServer(getIntFrom(options, "status-port", 0), metrics);
+            statusServer.addReadinessCheck("storage", storage.createReachabilityCheck(injector));
+            statusServer.addReadinessCheck("warm-up", warmedUp::get);
+            statusServer.addReadinessCheck("thrift", () -> serving.get() != null && serving.get().isServing());
+            statusServer.start();
+        }
+
+        if (async && mode == ServerMode.THREAD_POOL)
+        {
+            LOG.warn("The {} Server cannot process requests asynchronously. Using the {} Server instead.",
+                     mode,
+                     ServerMode.THREADED_SELECTOR);
+            mode = ServerMode.THREADED_SELECTOR;
+        }
+
+        TProcessor processor = createProcessor(injector, async);
+        ExecutorService executor = null;
+
+        if (async)
+        {
+            if (useVirtualThreads(options))
+            {
+                LOG.warn("Asynchronous requests do not hold a thread while they wait. Ignoring --executor.");
+            }
+
+            LOG.info("Processing requests asynchronously");
+        }
+        else if (useVirtualThreads(options))
+        {
+            int maxConcurrentRequests = getPositiveIntFrom(options,
+                                                           "max-concurrent-requests",
+                                                           ConcurrencyLimitedProcessor.DEFAULT_MAX_CONCURRENT_REQUESTS);
+
+            LOG.info("Limiting the Authentication Service to {} concurrent requests", maxConcurrentRequests);
+
+            executor = RequestExecutors.newVirtualThreadPerTaskExecutor();
+            processor = new ConcurrencyLimitedProcessor(processor,
+                                                        maxConcurrentRequests,
+                                                        Duration.ofSeconds(60),
+                                                        metrics);
+        }
+
+        if (options.has("warm-up"))
+        {
+            warmUp(getLongFrom(options, "warm-up", 0), signedTokens, protocol, async, metrics);
+        }
+
+        warmedUp.set(true);
+
+        ServerSettings settings = createSettings(port, selectorThreads, workerThreads, executor, protocol, metrics)
+            .framed(options.has("framed"));
+
+        if (options.has("compact-port"))
+        {
+            int compactPort = getPositiveIntFrom(options, "compact-port", DEFAULT_PORT + 1);
+            ServerSettings compactSettings = createSettings(compactPort,
+                                                            selectorThreads,
+                                                            workerThreads,
+                                                            executor,
+                                                            WireProtocol.COMPACT,
+                                                            metrics)
+                .framed(true);
+
+            LOG.info("Starting Authentication Service at port {} with a {} Server, speaking framed {}", compactPort, mode, WireProtocol.COMPACT);
+
+            TServer compactServer = mode.createServer(processor, compactPort, compactSettings);
+            new Thread(compactServer::serve, "compact-server").start();
+        }
+
+        Slf4jReporter.forRegistry(metrics)
+            .outputTo(LOG)
+            .filter((name, metric) -> name.startsWith(CountingTransport.class.getName()))
+            .build()
+            .start(1, MINUTES);
+
+        JmxReporter.forRegistry(metrics)
+            .inDomain(JMX_DOMAIN)
+            .convertDurationsTo(MILLISECONDS)
+            .convertRatesTo(SECONDS)
+            .build()
+            .start();
+
+        LOG.info("Starting Authentication Service at port {} with a {} Server, speaking {}, {} selector threads and {} worker threads",
+                 port,
+                 mode,
+                 protocol,
+                 selectorThreads,
+                 workerThreads);
+
+        TServer server = mode.createServer(processor, port, settings);
+        serving.set(server);
         server.serve();
         server.stop();
     }
 
-    private static int getPortFromArgs(String[] args)
+    private static OptionSet parseArgs(String[] args)
     {
         OptionParser parser = new OptionParser();
         parser.accepts("port").withRequiredArg();
-        OptionSet options = parser.parse(args);
+        parser.accepts("protocol", "Either binary (default) or compact.").withRequiredArg();
+        parser.accepts("framed", "Expect framed connections on --port. The selector modes always do.");
+        parser.accepts("compact-port", "An additional port that speaks the compact protocol over framed connections.").withRequiredArg();
+        parser.accepts("server-mode", "One of threadpool (default), threaded-selector, or hsha. " +
+                                       "The selector modes require clients to use a framed transport.").withRequiredArg();
+        parser.accepts("selector-threads", "Threads accepting and reading connections, for threaded-selector.").withRequiredArg();
+        parser.accepts("worker-threads", "Maximum number of requests processed at once.").withRequiredArg();
+        parser.accepts("executor", "Either platform (default), or virtual to run each request on a new virtual thread. " +
+                                    "Virtual threads require Java 21+.").withRequiredArg();
+        parser.accepts("max-concurrent-requests", "Maximum number of requests processed at once with the virtual executor. " +
+                                                   "Replaces --worker-threads.").withRequiredArg();
+        parser.accepts("async", "Process requests without holding a thread while waiting on storage. " +
+                                 "Requires a selector --server-mode, and switches to threaded-selector otherwise.");
+        parser.accepts("storage", "One of cassandra (default), memory to keep Tokens in this process only, " +
+                                   "or file to keep them in local files.").withRequiredArg();
+        parser.accepts("storage-directory", "Where file storage keeps its files.").withRequiredArg().defaultsTo("tokens");
+        parser.accepts("cache-size", "Maximum number of Tokens to cache. 0 disables the cache.").withRequiredArg();
+        parser.accepts("cache-max-age", "Seconds a cached Token may be served before it is read again.").withRequiredArg();
+        parser.accepts("cache-snapshot", "A file to save the cached Tokens to on shutdown. They are read back into the cache " +
+                                          "in the background at the next startup.").withRequiredArg();
+        parser.accepts("token-filter", "Number of Tokens to size the Token ID Filter for. 0 disables it. " +
+                                        "Only saves storage reads with --single-node.").withRequiredArg();
+        parser.accepts("token-filter-rebuild-interval", "Seconds between rebuilds of the Token ID Filter.").withRequiredArg();
+        parser.accepts("single-node", "Declares that no other node creates Tokens in the same storage, so that the Token ID Filter " +
+                                      "may turn away the Token IDs it has not heard of without reading storage.");
+        parser.accepts("max-storage-concurrency", "Maximum number of calls made to storage at once. The limit adapts below this " +
+                                                   "as storage slows down, and calls over it fail fast. 0 disables it.").withRequiredArg();
+        parser.accepts("stale-grace-window", "Seconds after it was last read that a Token may still be verified " +
+                                              "while storage is down. 0 fails verifications instead.").withRequiredArg();
+        parser.accepts("hedge-rate", "The most Token reads to send a second time when the first is slow, as a fraction " +
+                                     "of all reads, such as 0.02. 0 (default) disables hedging.").withRequiredArg();
+        parser.accepts("invalidation-peers", "Comma-separated host:port of every node to send invalidated Tokens to, " +
+                                             "so that they stop answering them from memory. May include this node.").withRequiredArg();
+        parser.accepts("invalidation-port", "The UDP port invalidations are received at from the peers. Should not be reachable " +
+                                            "from anywhere else. Defaults to " + DEFAULT_INVALIDATION_PORT + ".").withRequiredArg();
+        parser.accepts("owner-quota", "Tokens that may be created per minute for each Owner. 0 (default) disables the quota.").withRequiredArg();
+        parser.accepts("owner-quota-burst", "Tokens an Owner may create at once, after creating none for a while.").withRequiredArg();
+        parser.accepts("organization-quota", "Tokens that may be created per minute for each Organization. 0 (default) disables " +
+                                             "the quota.").withRequiredArg();
+        parser.accepts("organization-quota-burst", "Tokens an Organization may create at once, after creating none for a while.").withRequiredArg();
+        parser.accepts("owner-deletion-parallelism", "Tokens deleted at once when all of an Owner's Tokens are invalidated. " +
+                                                      "Defaults to " + ModuleAuthenticationOperations.DEFAULT_OWNER_DELETION_PARALLELISM + ".").withRequiredArg();
+        parser.accepts("owner-deletion-wait", "Seconds to wait for all of an Owner's Tokens to be invalidated before answering with " +
+                                               "the progress of the job, which carries on in the background. 0 answers right away. " +
+                                               "Waits until done by default.").withRequiredArg();
+        parser.accepts("warm-up", "Seconds to spend at most sending synthetic requests through the Service before its ports are " +
+                                  "opened, until compilation settles. 0 turns it off.").withRequiredArg();
+        parser.accepts("status-port", "A port that answers /health, /ready, and /metrics over HTTP, for orchestrators " +
+                                      "and metrics scrapers.").withRequiredArg();
+        parser.accepts("access-log-sample-rate", "The fraction of calls recorded in the Access Log, from 0 to 1. " +
+                                                  "0 turns it off.").withRequiredArg();
+        parser.accepts("token-signing-key-id", "The key new Tokens are signed with, out of those in $" + SIGNING_KEYS_VARIABLE + ". " +
+                                        "Defaults to the first one.").withRequiredArg();
+        parser.accepts("signed-token-trust-window", "Seconds after it was issued that a signed Token is accepted without " +
+                                                    "checking storage. A Token invalidated on another node may be accepted " +
+                                                    "here for this long. Defaults to " +
+                                                    SignedTokens.DEFAULT_TRUST_WINDOW.getSeconds() + ".").withRequiredArg();
+
+        return parser.parse(args);
+    }
+
+    private static TProcessor createProcessor(Injector injector, boolean async)
+    {
+        if (async)
+        {
+            AuthenticationService.AsyncIface authenticationService = injector.getInstance(AuthenticationService.AsyncIface.class);
+            return new AsyncAuthenticationProcessor(authenticationService);
+        }
+
+        AuthenticationService.Iface authenticationService = injector.getInstance(AuthenticationService.Iface.class);
+        return new AuthenticationService.Processor<>(authenticationService);
+    }
+
+    /**
+     * Warms up a copy of the Service, backed by memory, so that no synthetic Tokens reach the real one.
+     * The Server starts even if the warm-up fails.
+     */
+    private static void warmUp(long maxSeconds,
+                               SignedTokens signedTokens,
+                               WireProtocol protocol,
+                               boolean async,
+                               MetricRegistry metrics)
+    {
+        if (maxSeconds <= 0)
+        {
+            return;
+        }
+
+        Injector warmUpInjector = WarmUp.createIsolatedInjector(signedTokens);
+        TProcessor warmUpProcessor = createProcessor(warmUpInjector, false);
+        AuthenticationService.AsyncIface warmUpAsyncService = async
+                                                              ? warmUpInjector.getInstance(AuthenticationService.AsyncIface.class)
+                                                              : null;
+
+        WarmUp warmUp = new WarmUp(warmUpProcessor,
+                                   warmUpAsyncService,
+                                   protocol.createFactory(),
+                                   Duration.ofSeconds(maxSeconds),
+                                   WarmUp.jitCompilationMillis());
+
+        LOG.info("Warming up for at most {} seconds", maxSeconds);
+
+        try
+        {
+            warmUp.run(metrics);
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Failed to warm up. Starting anyway.", ex);
+        }
+        finally
+        {
+            WarmUp.shutDown(warmUpInjector);
+        }
+    }
 
+    private static int getPortFrom(OptionSet options)
+    {
         Integer port = DEFAULT_PORT;
         if (!options.has("port"))
         {
@@ -108,4 +415,229 @@ public final class TcpServer
 
         return port;
     }
+
+    /**
+     * Signed Tokens are issued only when signing keys are configured, as
+     * {@code <key id>:<base64 secret>,<key id>:<base64 secret>...}. Bad keys stop the server from starting.
+     */
+    private static SignedTokens getSignedTokensFrom(OptionSet options, String signingKeys)
+    {
+        if (Strings.isNullOrEmpty(signingKeys))
+        {
+            LOG.info("${} is not set. Issuing unsigned Tokens.", SIGNING_KEYS_VARIABLE);
+            return SignedTokens.disabled();
+        }
+
+        String activeKeyId = options.has("token-signing-key-id")
+                             ? options.valueOf("token-signing-key-id").toString()
+                             : Splitter.on(':').split(signingKeys.trim()).iterator().next();
+
+        Duration trustWindow = Duration.ofSeconds(getLongFrom(options,
+                                                             "signed-token-trust-window",
+                                                             SignedTokens.DEFAULT_TRUST_WINDOW.getSeconds()));
+
+        SignedTokens signedTokens = SignedTokens.fromKeys(activeKeyId, signingKeys, trustWindow);
+        LOG.info("Issuing signed Tokens with key {}, trusted without storage for {}", activeKeyId, trustWindow);
+
+        return signedTokens;
+    }
+
+    /**
+     * Peers given without a port are assumed to receive at the same port as this node.
+     */
+    private static List<InetSocketAddress> getPeersFrom(OptionSet options, int defaultPort)
+    {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        if (!options.has("invalidation-peers"))
+        {
+            return peers;
+        }
+
+        for (String peer : Splitter.on(',').trimResults().omitEmptyStrings().split(options.valueOf("invalidation-peers").toString()))
+        {
+            try
+            {
+                HostAndPort hostAndPort = HostAndPort.fromString(peer).withDefaultPort(defaultPort);
+                InetSocketAddress address = new InetSocketAddress(hostAndPort.getHost(), hostAndPort.getPort());
+                Preconditions.checkArgument(!address.isUnresolved(), "Unknown host");
+                peers.add(address);
+            }
+            catch (Exception ex)
+            {
+                LOG.warn("Bad --invalidation-peers entry {}. Leaving it out.", peer, ex);
+            }
+        }
+
+        return peers;
+    }
+
+    private static ServerMode getServerModeFrom(OptionSet options)
+    {
+        ServerMode mode = ServerMode.THREAD_POOL;
+        if (!options.has("server-mode"))
+        {
+            return mode;
+        }
+
+        try
+        {
+            mode = ServerMode.fromName(options.valueOf("server-mode").toString());
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Bad --server-mode argument. Using default {}", mode, ex);
+        }
+
+        return mode;
+    }
+
+    private static StorageBackend getStorageFrom(OptionSet options)
+    {
+        StorageBackend storage = StorageBackend.CASSANDRA;
+        if (!options.has("storage"))
+        {
+            return storage;
+        }
+
+        try
+        {
+            storage = StorageBackend.fromName(options.valueOf("storage").toString());
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Bad --storage argument. Using default {}", storage, ex);
+        }
+
+        return storage;
+    }
+
+    private static boolean useVirtualThreads(OptionSet options)
+    {
+        if (!options.has("executor"))
+        {
+            return false;
+        }
+
+        String executor = options.valueOf("executor").toString();
+
+        if ("virtual".equalsIgnoreCase(executor))
+        {
+            return true;
+        }
+
+        if (!"platform".equalsIgnoreCase(executor))
+        {
+            LOG.warn("Bad --executor argument {}. Using platform threads.", executor);
+        }
+
+        return false;
+    }
+
+    private static ServerSettings createSettings(int port,
+                                                 int selectorThreads,
+                                                 int workerThreads,
+                                                 ExecutorService executor,
+                                                 WireProtocol protocol,
+                                                 MetricRegistry metrics)
+    {
+        ServerSettings settings = new ServerSettings()
+            .selectorThreads(selectorThreads)
+            .workerThreads(workerThreads)
+            .protocol(protocol)
+            .transportFactory(new CountingTransport.Factory(protocol, metrics))
+            .telemetry(new ServerTelemetry("port-" + port, metrics));
+
+        if (executor != null)
+        {
+            settings.executor(executor);
+        }
+
+        return settings;
+    }
+
+    private static WireProtocol getProtocolFrom(OptionSet options)
+    {
+        WireProtocol protocol = WireProtocol.BINARY;
+        if (!options.has("protocol"))
+        {
+            return protocol;
+        }
+
+        try
+        {
+            protocol = WireProtocol.fromName(options.valueOf("protocol").toString());
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Bad --protocol argument. Using default {}", protocol, ex);
+        }
+
+        return protocol;
+    }
+
+    private static int getPositiveIntFrom(OptionSet options, String option, int defaultValue)
+    {
+        long value = getLongFrom(options, option, defaultValue);
+
+        if (value < 1 || value > Integer.MAX_VALUE)
+        {
+            LOG.warn("--{} must be at least 1. Using default {}", option, defaultValue);
+            return defaultValue;
+        }
+
+        return (int) value;
+    }
+
+    private static int getIntFrom(OptionSet options, String option, int defaultValue)
+    {
+        long value = getLongFrom(options, option, defaultValue);
+
+        if (value > Integer.MAX_VALUE)
+        {
+            LOG.warn("--{} is too large. Using default {}", option, defaultValue);
+            return defaultValue;
+        }
+
+        return (int) value;
+    }
+
+    private static double getFractionFrom(OptionSet options, String option, double defaultValue)
+    {
+        if (!options.has(option))
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            double value = Double.valueOf(options.valueOf(option).toString());
+            Preconditions.checkArgument(value >= 0 && value <= 1, "--%s must be between 0 and 1", option);
+            return value;
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Bad --{} argument. Using default {}", option, defaultValue, ex);
+            return defaultValue;
+        }
+    }
+
+    private static long getLongFrom(OptionSet options, String option, long defaultValue)
+    {
+        if (!options.has(option))
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            long value = Long.valueOf(options.valueOf(option).toString());
+            Preconditions.checkArgument(value >= 0, "--%s must be at least 0", option);
+            return value;
+        }
+        catch (Exception ex)
+        {
+            LOG.warn("Bad --{} argument. Using default {}", option, defaultValue, ex);
+            return defaultValue;
+        }
+    }
 }
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Binding;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Scopes;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.aroma.authentication.service.ModuleAuthenticationService;
+import tech.aroma.authentication.service.data.ModuleMemoryTokenStorage;
+import tech.aroma.authentication.service.data.ModuleTokenRepository;
+import tech.aroma.authentication.service.data.SignedTokens;
+import tech.aroma.authentication.service.operations.ModuleAuthenticationOperations;
+import tech.aroma.thrift.LengthOfTime;
+import tech.aroma.thrift.TimeUnit;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenType;
+import tech.aroma.thrift.authentication.service.AuthenticationService;
+import tech.aroma.thrift.authentication.service.AuthenticationService.createToken_args;
+import tech.aroma.thrift.authentication.service.AuthenticationService.createToken_result;
+import tech.aroma.thrift.authentication.service.AuthenticationService.getTokenInfo_args;
+import tech.aroma.thrift.authentication.service.AuthenticationService.getTokenInfo_result;
+import tech.aroma.thrift.authentication.service.AuthenticationService.invalidateToken_args;
+import tech.aroma.thrift.authentication.service.AuthenticationService.invalidateToken_result;
+import tech.aroma.thrift.authentication.service.AuthenticationService.verifyToken_args;
+import tech.aroma.thrift.authentication.service.AuthenticationService.verifyToken_result;
+import tech.aroma.thrift.authentication.service.CreateTokenRequest;
+import tech.aroma.thrift.authentication.service.CreateTokenResponse;
+import tech.aroma.thrift.authentication.service.GetTokenInfoRequest;
+import tech.aroma.thrift.authentication.service.InvalidateTokenRequest;
+import tech.aroma.thrift.authentication.service.VerifyTokenRequest;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+import tech.sirwellington.alchemy.annotations.arguments.Optional;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
+import static tech.sirwellington.alchemy.arguments.assertions.Assertions.notNull;
+import static tech.sirwellington.alchemy.arguments.assertions.NumberAssertions.greaterThan;
+
+/**
+ * Sends synthetic traffic through the Service before its ports are opened, so that the first real
+ * requests do not run in the interpreter.
+ * <p>
+ * Tokens are created, verified, read, and invalidated through the same {@link AuthenticationService.Processor},
+ * operations, and repository layers the Server uses, but in a separate Injector with in-memory storage, so that
+ * nothing reaches the real storage, caches, or peers. Servers that process requests asynchronously have their
+ * {@link AuthenticationService.AsyncIface} exercised as well.
+ * <p>
+ * Traffic is sent in rounds, until the JIT compiler has been mostly idle for a few rounds in a row, or until
+ * the time allowed runs out. It is sent from the thread that calls {@link #run(MetricRegistry) }, one request
+ * at a time.
+ *
+ * @author SirWellington
+ */
+@Internal
+final class WarmUp
+{
+
+    private final static Logger LOG = LoggerFactory.getLogger(WarmUp.class);
+
+    /** When the JVM does not report compilation time, this many rounds are sent instead. */
+    static final int ROUNDS_WITHOUT_COMPILER = 50;
+
+    /** Compilation time spent during a round, below which the compiler is considered idle. */
+    static final long IDLE_COMPILATION_MILLIS = 5;
+
+    /** Rounds in a row with an idle compiler, after which compilation has settled. */
+    static final int IDLE_ROUNDS = 3;
+
+    private static final int ITERATIONS_PER_ROUND = 250;
+
+    private final TProcessor processor;
+    private final AuthenticationService.AsyncIface asyncService;
+    private final TProtocolFactory protocolFactory;
+    private final Duration maxDuration;
+    private final LongSupplier compilationMillis;
+    private final Exchange exchange;
+
+    /**
+     * @param asyncService      Exercised alongside the processor when not null.
+     * @param maxDuration       The most time to spend warming up.
+     * @param compilationMillis The total time the JIT compiler has spent, or -1 if it is unknown.
+     */
+    WarmUp(TProcessor processor,
+           @Optional AuthenticationService.AsyncIface asyncService,
+           TProtocolFactory protocolFactory,
+           Duration maxDuration,
+           LongSupplier compilationMillis)
+    {
+        checkThat(processor, protocolFactory, maxDuration, compilationMillis).are(notNull());
+        checkThat(maxDuration.toMillis())
+            .usingMessage("max duration must be > 0")
+            .is(greaterThan(0L));
+
+        this.processor = processor;
+        this.asyncService = asyncService;
+        this.protocolFactory = protocolFactory;
+        this.maxDuration = maxDuration;
+        this.compilationMillis = compilationMillis;
+        this.exchange = new Exchange();
+    }
+
+    /**
+     * Creates the Injector traffic is sent to, with in-memory storage, and its own signing key if
+     * Tokens are signed.
+     */
+    static Injector createIsolatedInjector(SignedTokens signedTokens)
+    {
+        SignedTokens warmUpTokens = SignedTokens.disabled();
+
+        if (signedTokens.isEnabled())
+        {
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            warmUpTokens = new SignedTokens("warm-up", Collections.singletonMap("warm-up", key));
+        }
+
+        ModuleAuthenticationOperations operations = new ModuleAuthenticationOperations()
+            .withAccessLog(0)
+            .withOwnerQuota(0, 1)
+            .withOrganizationQuota(0, 1)
+            .withoutOwnerDeletionLog();
+
+        return Guice.createInjector(operations,
+                                    new ModuleAuthenticationService(warmUpTokens),
+                                    new ModuleTokenRepository(new ModuleMemoryTokenStorage()));
+    }
+
+    /**
+     * Stops the background threads of an Injector created by {@link #createIsolatedInjector(SignedTokens) },
+     * by closing each of its singletons that can be closed.
+     */
+    static void shutDown(Injector injector)
+    {
+        checkThat(injector).is(notNull());
+
+        for (Binding<?> binding : injector.getAllBindings().values())
+        {
+            Class<?> type = binding.getKey().getTypeLiteral().getRawType();
+
+            if (!Scopes.isSingleton(binding) || !Closeable.class.isAssignableFrom(type))
+            {
+                continue;
+            }
+
+            try
+            {
+                ((Closeable) binding.getProvider().get()).close();
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                LOG.warn("Failed to close {} after warming up", binding.getKey(), ex);
+            }
+        }
+    }
+
+    /**
+     * @return The total time the JIT compiler has spent, or -1 if the JVM does not report it.
+     */
+    static LongSupplier jitCompilationMillis()
+    {
+        CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+
+        if (compiler == null || !compiler.isCompilationTimeMonitoringSupported())
+        {
+            return () -> -1;
+        }
+
+        return compiler::getTotalCompilationTime;
+    }
+
+    /**
+     * Sends traffic until compilation settles, or the time allowed runs out. The time taken is published
+     * as {@code WarmUp.time-to-steady-state}, in milliseconds.
+     *
+     * @return The time taken.
+     */
+    Duration run(MetricRegistry metrics) throws TException
+    {
+        checkThat(metrics).is(notNull());
+
+        long start = System.nanoTime();
+        long deadline = start + maxDuration.toNanos();
+        long compilationAtStart = compilationMillis.getAsLong();
+        long previousCompilation = compilationAtStart;
+        boolean hasCompiler = compilationAtStart >= 0;
+
+        double firstRoundMicros = 0;
+        double lastRoundMicros = 0;
+        int rounds = 0;
+        int idleRounds = 0;
+
+        while (System.nanoTime() < deadline)
+        {
+            long roundStart = System.nanoTime();
+            runRound();
+            ++rounds;
+
+            lastRoundMicros = (System.nanoTime() - roundStart) / 1_000.0 / ITERATIONS_PER_ROUND;
+            if (rounds == 1)
+            {
+                firstRoundMicros = lastRoundMicros;
+            }
+
+            if (!hasCompiler)
+            {
+                if (rounds >= ROUNDS_WITHOUT_COMPILER)
+                {
+                    break;
+                }
+
+                continue;
+            }
+
+            long compilation = compilationMillis.getAsLong();
+            idleRounds = compilation - previousCompilation < IDLE_COMPILATION_MILLIS ? idleRounds + 1 : 0;
+            previousCompilation = compilation;
+
+            if (idleRounds >= IDLE_ROUNDS)
+            {
+                break;
+            }
+        }
+
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+        boolean settled = !hasCompiler ? rounds >= ROUNDS_WITHOUT_COMPILER : idleRounds >= IDLE_ROUNDS;
+
+        LOG.info("Warm-up {} after {}ms and {} rounds. Each round went from {} to {} microseconds per Token. JIT compilation took {}ms.",
+                 settled ? "reached a steady state" : "ran out of time",
+                 elapsed.toMillis(),
+                 rounds,
+                 Math.round(firstRoundMicros),
+                 Math.round(lastRoundMicros),
+                 hasCompiler ? previousCompilation - compilationAtStart : "an unknown");
+
+        long elapsedMillis = elapsed.toMillis();
+        metrics.register(MetricRegistry.name(WarmUp.class, "time-to-steady-state"), (Gauge<Long>) () -> elapsedMillis);
+
+        return elapsed;
+    }
+
+    /*
+     * Each iteration follows a Token through its life, including a verification that fails,
+     * and every few iterations, all of an Owner's Tokens are invalidated at once.
+     */
+    private void runRound() throws TException
+    {
+        for (int i = 0; i < ITERATIONS_PER_ROUND; ++i)
+        {
+            boolean invalidateOwner = i % 8 == 0;
+
+            runIteration(invalidateOwner);
+
+            if (asyncService != null)
+            {
+                runAsyncIteration(invalidateOwner);
+            }
+        }
+    }
+
+    private void runIteration(boolean invalidateOwner) throws TException
+    {
+        AuthenticationToken token = exchange.call("createToken",
+                                                  new createToken_args(createRequest()),
+                                                  new createToken_result())
+            .getSuccess()
+            .getToken();
+
+        exchange.call("verifyToken",
+                      new verifyToken_args(new VerifyTokenRequest(token.tokenId).setOwnerId(token.ownerId)),
+                      new verifyToken_result());
+
+        exchange.call("getTokenInfo",
+                      new getTokenInfo_args(new GetTokenInfoRequest(token.tokenId, token.tokenType)),
+                      new getTokenInfo_result());
+
+        exchange.call("invalidateToken",
+                      new invalidateToken_args(invalidationOf(token, invalidateOwner)),
+                      new invalidateToken_result());
+
+        try
+        {
+            exchange.call("verifyToken",
+                          new verifyToken_args(new VerifyTokenRequest(token.tokenId)),
+                          new verifyToken_result());
+        }
+        catch (InvalidTokenException expected)
+        {
+            //The Token was just invalidated.
+        }
+    }
+
+    private void runAsyncIteration(boolean invalidateOwner) throws TException
+    {
+        CreateTokenResponse created = await(callback -> asyncService.createToken(createRequest(), callback));
+        AuthenticationToken token = created.getToken();
+
+        await(callback -> asyncService.verifyToken(new VerifyTokenRequest(token.tokenId).setOwnerId(token.ownerId), callback));
+        await(callback -> asyncService.getTokenInfo(new GetTokenInfoRequest(token.tokenId, token.tokenType), callback));
+        await(callback -> asyncService.invalidateToken(invalidationOf(token, invalidateOwner), callback));
+
+        try
+        {
+            await(callback -> asyncService.verifyToken(new VerifyTokenRequest(token.tokenId), callback));
+        }
+        catch (InvalidTokenException expected)
+        {
+            //The Token was just invalidated.
+        }
+    }
+
+    private static CreateTokenRequest createRequest()
+    {
+        return new CreateTokenRequest()
+            .setOwnerId(UUID.randomUUID().toString())
+            .setOwnerName("Warm-Up")
+            .setOrganizationId(UUID.randomUUID().toString())
+            .setDesiredTokenType(TokenType.USER)
+            .setLifetime(new LengthOfTime(TimeUnit.HOURS, 1));
+    }
+
+    private static InvalidateTokenRequest invalidationOf(AuthenticationToken token, boolean invalidateOwner)
+    {
+        return invalidateOwner
+               ? new InvalidateTokenRequest().setBelongingTo(token.ownerId)
+               : new InvalidateTokenRequest().setToken(token);
+    }
+
+    private static <T> T await(AsyncCall<T> call) throws TException
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        call.start(new AsyncMethodCallback<T>()
+        {
+            @Override
+            public void onComplete(T response)
+            {
+                result.complete(response);
+            }
+
+            @Override
+            public void onError(Exception ex)
+            {
+                result.completeExceptionally(ex);
+            }
+        });
+
+        try
+        {
+            return result.get(10, SECONDS);
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof TException)
+            {
+                throw (TException) ex.getCause();
+            }
+
+            throw new TException(ex.getCause());
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new TException("Interrupted while warming up", ex);
+        }
+        catch (TimeoutException ex)
+        {
+            throw new TException("Timed out while warming up", ex);
+        }
+    }
+
+    @FunctionalInterface
+    private interface AsyncCall<T>
+    {
+
+        void start(AsyncMethodCallback<T> callback) throws TException;
+
+    }
+
+    /**
+     * Passes requests to the processor, and reads its responses back, in memory rather than over a socket.
+     * <p>
+     * Requests and responses are written and read here rather than with an {@link AuthenticationService.Client},
+     * because libthrift 0.10 prints every response the Client receives to standard out.
+     */
+    private final class Exchange
+    {
+
+        private final ByteArrayOutputStream requestBytes = new ByteArrayOutputStream(1024);
+        private final ByteArrayOutputStream responseBytes = new ByteArrayOutputStream(1024);
+
+        private final TMemoryInputTransport serverInput = new TMemoryInputTransport();
+        private final TMemoryInputTransport clientInput = new TMemoryInputTransport();
+
+        private final TProtocol clientOut = protocolFactory.getProtocol(new TIOStreamTransport(requestBytes));
+        private final TProtocol serverIn = protocolFactory.getProtocol(serverInput);
+        private final TProtocol serverOut = protocolFactory.getProtocol(new TIOStreamTransport(responseBytes));
+        private final TProtocol clientIn = protocolFactory.getProtocol(clientInput);
+
+        private int sequenceId;
+
+        /**
+         * @return The result, once it has succeeded.
+         * @throws TException The exception the method declares, when the result holds one.
+         */
+        private <R extends TBase<R, F>, F extends TFieldIdEnum> R call(String method, TBase<?, ?> args, R result) throws TException
+        {
+            clientOut.writeMessageBegin(new TMessage(method, TMessageType.CALL, ++sequenceId));
+            args.write(clientOut);
+            clientOut.writeMessageEnd();
+
+            serverInput.reset(requestBytes.toByteArray());
+            requestBytes.reset();
+
+            processor.process(serverIn, serverOut);
+
+            clientInput.reset(responseBytes.toByteArray());
+            responseBytes.reset();
+
+            TMessage message = clientIn.readMessageBegin();
+
+            if (message.type == TMessageType.EXCEPTION)
+            {
+                TApplicationException failure = new TApplicationException();
+                failure.read(clientIn);
+                throw failure;
+            }
+
+            result.read(clientIn);
+            clientIn.readMessageEnd();
+
+            //The success field is 0, and the declared exceptions follow it.
+            for (short id = 1; result.fieldForId(id) != null; ++id)
+            {
+                F field = result.fieldForId(id);
+
+                if (result.isSet(field))
+                {
+                    throw (TException) result.getFieldValue(field);
+                }
+            }
+
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import tech.sirwellington.alchemy.annotations.access.Internal;
+
+/**
+ * The Thrift Protocols the {@link TcpServer} can speak.
+ *
+ * @author SirWellington
+ */
+@Internal
+enum WireProtocol
+{
+    /**
+     * The original encoding, and the one existing clients use.
+     */
+    BINARY("binary")
+    {
+        @Override
+        TProtocolFactory createFactory()
+        {
+            return new TBinaryProtocol.Factory();
+        }
+    },
+
+    /**
+     * Encodes field headers as deltas and integers as varints, which makes Tokens noticeably smaller.
+     */
+    COMPACT("compact")
+    {
+        @Override
+        TProtocolFactory createFactory()
+        {
+            return new TCompactProtocol.Factory();
+        }
+    };
+
+    private final String optionName;
+
+    private WireProtocol(String optionName)
+    {
+        this.optionName = optionName;
+    }
+
+    abstract TProtocolFactory createFactory();
+
+    /**
+     * @param name The name used on the command line, for example "compact".
+     * @throws IllegalArgumentException If no protocol goes by that name.
+     */
+    static WireProtocol fromName(String name) throws IllegalArgumentException
+    {
+        for (WireProtocol protocol : values())
+        {
+            if (protocol.optionName.equalsIgnoreCase(name))
+            {
+                return protocol;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown protocol: " + name);
+    }
+
+    @Override
+    public String toString()
+    {
+        return optionName;
+    }
+
+}
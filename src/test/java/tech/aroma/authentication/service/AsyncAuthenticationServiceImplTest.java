@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.aroma.authentication.service.operations.AsyncThriftOperation;
+import tech.aroma.thrift.AromaConstants;
+import tech.aroma.thrift.authentication.service.*;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.*;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class AsyncAuthenticationServiceImplTest
+{
+
+    @Mock
+    private AsyncThriftOperation<CreateTokenRequest, CreateTokenResponse> createTokenOperation;
+    @GeneratePojo
+    private CreateTokenRequest createTokenRequest;
+    @GeneratePojo
+    private CreateTokenResponse createTokenResponse;
+
+    @Mock
+    private AsyncThriftOperation<GetTokenInfoRequest, GetTokenInfoResponse> getTokenInfoOperation;
+    @GeneratePojo
+    private GetTokenInfoRequest getTokenInfoRequest;
+    @GeneratePojo
+    private GetTokenInfoResponse getTokenInfoResponse;
+
+    @Mock
+    private AsyncThriftOperation<InvalidateTokenRequest, InvalidateTokenResponse> invalidateTokenOperation;
+    @GeneratePojo
+    private InvalidateTokenRequest invalidateTokenRequest;
+
+    @Mock
+    private AsyncThriftOperation<VerifyTokenRequest, VerifyTokenResponse> verifyTokenOperation;
+    @GeneratePojo
+    private VerifyTokenRequest verifyTokenRequest;
+
+    @Mock
+    private AsyncMethodCallback callback;
+
+    private AsyncAuthenticationServiceImpl instance;
+
+    @Before
+    public void setUp()
+    {
+        instance = new AsyncAuthenticationServiceImpl(createTokenOperation,
+                                                      getTokenInfoOperation,
+                                                      invalidateTokenOperation,
+                                                      verifyTokenOperation);
+
+        verifyZeroInteractions(createTokenOperation,
+                               getTokenInfoOperation,
+                               invalidateTokenOperation,
+                               verifyTokenOperation);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructWithNullArgument()
+    {
+        assertThrows(() -> new AsyncAuthenticationServiceImpl(null,
+                                                              getTokenInfoOperation,
+                                                              invalidateTokenOperation,
+                                                              verifyTokenOperation))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new AsyncAuthenticationServiceImpl(createTokenOperation,
+                                                              getTokenInfoOperation,
+                                                              invalidateTokenOperation,
+                                                              null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @DontRepeat
+    @Test
+    public void testGetApiVersion() throws Exception
+    {
+        instance.getApiVersion(callback);
+
+        verify(callback).onComplete(AromaConstants.API_VERSION);
+    }
+
+    @Test
+    public void testCreateToken() throws Exception
+    {
+        when(createTokenOperation.processAsync(createTokenRequest))
+            .thenReturn(CompletableFuture.completedFuture(createTokenResponse));
+
+        instance.createToken(createTokenRequest, callback);
+
+        verify(callback).onComplete(createTokenResponse);
+        verify(callback, never()).onError(any());
+    }
+
+    @Test
+    public void testCreateTokenWhenCompletedLater() throws Exception
+    {
+        CompletableFuture<CreateTokenResponse> response = new CompletableFuture<>();
+
+        when(createTokenOperation.processAsync(createTokenRequest))
+            .thenReturn(response);
+
+        instance.createToken(createTokenRequest, callback);
+        verifyZeroInteractions(callback);
+
+        response.complete(createTokenResponse);
+        verify(callback).onComplete(createTokenResponse);
+    }
+
+    @Test
+    public void testGetTokenInfo() throws Exception
+    {
+        when(getTokenInfoOperation.processAsync(getTokenInfoRequest))
+            .thenReturn(CompletableFuture.completedFuture(getTokenInfoResponse));
+
+        instance.getTokenInfo(getTokenInfoRequest, callback);
+
+        verify(callback).onComplete(getTokenInfoResponse);
+    }
+
+    @Test
+    public void testInvalidateToken() throws Exception
+    {
+        InvalidateTokenResponse response = new InvalidateTokenResponse();
+
+        when(invalidateTokenOperation.processAsync(invalidateTokenRequest))
+            .thenReturn(CompletableFuture.completedFuture(response));
+
+        instance.invalidateToken(invalidateTokenRequest, callback);
+
+        verify(callback).onComplete(response);
+    }
+
+    @Test
+    public void testVerifyTokenWhenOperationFails() throws Exception
+    {
+        CompletableFuture<VerifyTokenResponse> response = new CompletableFuture<>();
+        response.completeExceptionally(new CompletionException(new InvalidTokenException()));
+
+        when(verifyTokenOperation.processAsync(verifyTokenRequest))
+            .thenReturn(response);
+
+        instance.verifyToken(verifyTokenRequest, callback);
+
+        verify(callback).onError(isA(InvalidTokenException.class));
+        verify(callback, never()).onComplete(any());
+    }
+
+    @Test
+    public void testVerifyTokenWhenOperationFailsUnexpectedly() throws Exception
+    {
+        CompletableFuture<VerifyTokenResponse> response = new CompletableFuture<>();
+        response.completeExceptionally(new RuntimeException());
+
+        when(verifyTokenOperation.processAsync(verifyTokenRequest))
+            .thenReturn(response);
+
+        instance.verifyToken(verifyTokenRequest, callback);
+
+        verify(callback).onError(isA(OperationFailedException.class));
+    }
+
+    @DontRepeat
+    @Test
+    public void testWithNullRequests() throws Exception
+    {
+        assertThrows(() -> instance.createToken(null, callback));
+        assertThrows(() -> instance.getTokenInfo(null, callback));
+        assertThrows(() -> instance.invalidateToken(null, callback));
+        assertThrows(() -> instance.verifyToken(null, callback));
+
+        verifyZeroInteractions(createTokenOperation,
+                               getTokenInfoOperation,
+                               invalidateTokenOperation,
+                               verifyTokenOperation);
+    }
+
+}
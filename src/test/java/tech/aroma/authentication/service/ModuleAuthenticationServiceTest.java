@@ -16,17 +16,20 @@
 
 package tech.aroma.authentication.service;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.authentication.service.data.TokenCreator;
 import tech.aroma.authentication.service.operations.ModuleAuthenticationOperations;
 import tech.aroma.data.memory.ModuleMemoryDataRepositories;
 import tech.aroma.thrift.authentication.service.AuthenticationService;
 import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
 
+import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertThat;
 
@@ -63,6 +66,17 @@ public class ModuleAuthenticationServiceTest
         assertThat(service, notNullValue());
     }
 
+    @Test
+    public void testBindsSignedTokens()
+    {
+        Injector injector = Guice.createInjector(dataModule,
+                                                 operationsModule,
+                                                 instance);
+
+        SignedTokens signedTokens = injector.getInstance(SignedTokens.class);
+        assertThat(signedTokens.isEnabled(), is(false));
+    }
+
     @Test
     public void testProvideTokenCreator()
     {
@@ -70,4 +84,11 @@ public class ModuleAuthenticationServiceTest
         assertThat(tokenCreator, notNullValue());
     }
 
+    @Test
+    public void testProvideMetricRegistry()
+    {
+        MetricRegistry metrics = instance.provideMetricRegistry();
+        assertThat(metrics, notNullValue());
+    }
+
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+
+/**
+ *
+ * @author SirWellington
+ */
+@RunWith(AlchemyTestRunner.class)
+public class AdaptiveLimitTest
+{
+
+    private static final int MIN_LIMIT = 2;
+    private static final int MAX_LIMIT = 100;
+    private static final Duration WINDOW = Duration.ofSeconds(1);
+
+    private static final long FAST = MILLISECONDS.toNanos(1);
+    private static final long SLOW = MILLISECONDS.toNanos(10);
+
+    private AtomicLong tick;
+    private Clock clock;
+
+    private AdaptiveLimit instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        tick = new AtomicLong();
+
+        clock = new Clock()
+        {
+            @Override
+            public long getTick()
+            {
+                return tick.get();
+            }
+        };
+
+        instance = new AdaptiveLimit(MIN_LIMIT, MAX_LIMIT, 2.0, WINDOW, clock);
+    }
+
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new AdaptiveLimit(0))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new AdaptiveLimit(MAX_LIMIT + 1, MAX_LIMIT, 2.0, WINDOW, clock))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new AdaptiveLimit(MIN_LIMIT, MAX_LIMIT, 1.0, WINDOW, clock))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new AdaptiveLimit(MIN_LIMIT, MAX_LIMIT, 2.0, Duration.ZERO, clock))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new AdaptiveLimit(MIN_LIMIT, MAX_LIMIT, 2.0, WINDOW, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testStartsAtTheMaximum()
+    {
+        assertThat(instance.limit(), is(MAX_LIMIT));
+        assertThat(new AdaptiveLimit(4).limit(), is(4));
+    }
+
+    @Test
+    public void testTryAcquire()
+    {
+        for (int i = 0; i < MAX_LIMIT; ++i)
+        {
+            assertThat(instance.tryAcquire(), is(true));
+        }
+
+        assertThat(instance.tryAcquire(), is(false));
+        assertThat(instance.inFlight(), is(MAX_LIMIT));
+
+        instance.release(FAST, false);
+        assertThat(instance.inFlight(), is(MAX_LIMIT - 1));
+        assertThat(instance.tryAcquire(), is(true));
+    }
+
+    @Test
+    public void testSteadyLatencyKeepsTheLimit()
+    {
+        for (int i = 0; i < 10; ++i)
+        {
+            runWindow(10, FAST, false);
+        }
+
+        assertThat(instance.limit(), is(MAX_LIMIT));
+    }
+
+    @Test
+    public void testShrinksWhenCallsSlowDown()
+    {
+        runWindow(10, FAST, false);
+        runWindow(10, SLOW, false);
+
+        assertThat(instance.limit(), is(MAX_LIMIT / 2));
+    }
+
+    @Test
+    public void testShrinksWhenCallsFail()
+    {
+        runWindow(10, FAST, true);
+
+        assertThat(instance.limit(), is(90));
+    }
+
+    @Test
+    public void testNeverShrinksBelowTheMinimum()
+    {
+        runWindow(10, FAST, false);
+
+        for (int i = 0; i < 20; ++i)
+        {
+            runWindow(1, SLOW, true);
+        }
+
+        assertThat(instance.limit(), is(MIN_LIMIT));
+        assertThat(instance.tryAcquire(), is(true));
+    }
+
+    @Test
+    public void testGrowsBackWhenBusyAndFast()
+    {
+        runWindow(10, FAST, false);
+        runWindow(10, SLOW, false);
+        assertThat(instance.limit(), is(50));
+
+        runWindow(30, FAST, false);
+        assertThat(instance.limit(), is(57));
+
+        for (int i = 0; i < 20; ++i)
+        {
+            runWindow(instance.limit(), FAST, false);
+        }
+
+        assertThat(instance.limit(), is(MAX_LIMIT));
+    }
+
+    @Test
+    public void testDoesNotGrowWhenIdle()
+    {
+        runWindow(10, FAST, false);
+        runWindow(10, SLOW, false);
+        runWindow(5, FAST, false);
+
+        assertThat(instance.limit(), is(50));
+    }
+
+    /**
+     * Runs {@code calls} concurrent calls, the last of which completes once the window is over.
+     */
+    private void runWindow(int calls, long latencyNanos, boolean failed)
+    {
+        for (int i = 0; i < calls; ++i)
+        {
+            assertThat(instance.tryAcquire(), is(true));
+        }
+
+        for (int i = 0; i < calls - 1; ++i)
+        {
+            instance.release(latencyNanos, failed);
+        }
+
+        tick.addAndGet(WINDOW.toNanos());
+        instance.release(latencyNanos, failed);
+    }
+
+}
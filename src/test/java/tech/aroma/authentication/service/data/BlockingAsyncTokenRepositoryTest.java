@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class BlockingAsyncTokenRepositoryTest
+{
+
+    @Mock
+    private TokenRepository repository;
+
+    @Mock
+    private Executor executor;
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    @GenerateString(UUID)
+    private String ownerId;
+
+    private AuthenticationToken token;
+
+    private BlockingAsyncTokenRepository instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        instance = BlockingAsyncTokenRepository.inline(repository);
+
+        token = one(authenticationTokens())
+            .setTokenId(tokenId)
+            .setOwnerId(ownerId);
+
+        when(repository.getToken(tokenId)).thenReturn(token);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new BlockingAsyncTokenRepository(null, executor))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new BlockingAsyncTokenRepository(repository, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testGetTokenAsync() throws Exception
+    {
+        assertThat(instance.getTokenAsync(tokenId).join(), is(token));
+    }
+
+    @Test
+    public void testGetTokenAsyncWhenRepositoryFails() throws Exception
+    {
+        when(repository.getToken(tokenId)).thenThrow(new InvalidTokenException());
+
+        assertThrows(instance.getTokenAsync(tokenId)::join)
+            .isInstanceOf(CompletionException.class)
+            .hasCauseThatIsExactly(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testSaveTokenAsync() throws Exception
+    {
+        instance.saveTokenAsync(token).join();
+        verify(repository).saveToken(token);
+    }
+
+    @Test
+    public void testDeleteTokenAsync() throws Exception
+    {
+        instance.deleteTokenAsync(tokenId).join();
+        verify(repository).deleteToken(tokenId);
+    }
+
+    @Test
+    public void testGetTokensBelongingToAsync() throws Exception
+    {
+        List<AuthenticationToken> tokens = Collections.singletonList(token);
+        when(repository.getTokensBelongingTo(ownerId)).thenReturn(tokens);
+
+        assertThat(instance.getTokensBelongingToAsync(ownerId).join(), is(tokens));
+    }
+
+    @Test
+    public void testRunsOnExecutor() throws Exception
+    {
+        instance = new BlockingAsyncTokenRepository(repository, executor);
+
+        CompletableFuture<AuthenticationToken> result = instance.getTokenAsync(tokenId);
+
+        assertThat(result.isDone(), is(false));
+        verify(executor).execute(any());
+        verifyZeroInteractions(repository);
+    }
+
+}
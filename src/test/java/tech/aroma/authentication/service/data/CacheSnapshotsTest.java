@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.MetricRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenStatus;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.futureInstants;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.pastInstants;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(10)
+@RunWith(AlchemyTestRunner.class)
+public class CacheSnapshotsTest
+{
+
+    @Mock
+    private TokenRepository delegate;
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    @GenerateString(UUID)
+    private String otherTokenId;
+
+    private AuthenticationToken token;
+
+    private Path directory;
+    private Path file;
+
+    private CachingTokenRepository cache;
+
+    private CacheSnapshots instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = Files.createTempDirectory("snapshots");
+        file = directory.resolve("cache.snapshot");
+
+        cache = newCache();
+        instance = new CacheSnapshots(file, cache, 4);
+
+        token = one(authenticationTokens())
+            .setTokenId(tokenId)
+            .setTimeOfExpiration(one(futureInstants()).toEpochMilli())
+            .setStatus(TokenStatus.ACTIVE);
+
+        when(delegate.getToken(tokenId)).thenReturn(token);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        try (Stream<Path> files = Files.walk(directory))
+        {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private CachingTokenRepository newCache()
+    {
+        return new CachingTokenRepository(delegate, 100, Duration.ofMinutes(1), new MetricRegistry());
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor() throws Exception
+    {
+        assertThrows(() -> new CacheSnapshots(null, cache, 4))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CacheSnapshots(file, null, 4))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CacheSnapshots(file, cache, 0))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testSaveThenRestore() throws Exception
+    {
+        cache.getToken(tokenId);
+        instance.save();
+
+        CachingTokenRepository restartedCache = newCache();
+        CacheSnapshots restarted = new CacheSnapshots(file, restartedCache, 4);
+
+        assertThat(restarted.restore(), is(1));
+        assertThat(restartedCache.size(), is(1L));
+
+        //Read again from storage, rather than restored from the file.
+        verify(delegate, times(2)).getToken(tokenId);
+
+        restartedCache.getToken(tokenId);
+        verify(delegate, times(2)).getToken(tokenId);
+    }
+
+    @Test
+    public void testRestoreInBackground() throws Exception
+    {
+        CacheSnapshotFile.write(file, Collections.singletonList(token), System.currentTimeMillis());
+
+        assertThat(instance.restoreInBackground().join(), is(1));
+        assertThat(cache.size(), is(1L));
+    }
+
+    @Test
+    public void testRestoreSkipsExpiredTokens() throws Exception
+    {
+        AuthenticationToken expired = new AuthenticationToken()
+            .setTokenId(otherTokenId)
+            .setTimeOfExpiration(one(pastInstants()).toEpochMilli());
+
+        CacheSnapshotFile.write(file, Collections.singletonList(expired), System.currentTimeMillis());
+
+        assertThat(instance.restore(), is(0));
+        verifyZeroInteractions(delegate);
+    }
+
+    @Test
+    public void testRestoreSkipsDeletedTokens() throws Exception
+    {
+        when(delegate.getToken(tokenId)).thenThrow(new InvalidTokenException());
+
+        CacheSnapshotFile.write(file, Collections.singletonList(token), System.currentTimeMillis());
+
+        assertThat(instance.restore(), is(0));
+        assertThat(cache.size(), is(0L));
+    }
+
+    @Test
+    public void testRestoreWithoutSnapshot() throws Exception
+    {
+        assertThat(instance.restore(), is(0));
+        verifyZeroInteractions(delegate);
+    }
+
+    @Test
+    public void testRestoreWithDamagedSnapshot() throws Exception
+    {
+        CacheSnapshotFile.write(file, Collections.singletonList(token), System.currentTimeMillis());
+
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0x01;
+        Files.write(file, bytes);
+
+        assertThrows(() -> CacheSnapshotFile.read(file))
+            .isInstanceOf(IOException.class);
+
+        assertThat(instance.restore(), is(0));
+        verifyZeroInteractions(delegate);
+    }
+
+    @Test
+    public void testReadWhatWasWritten() throws Exception
+    {
+        AuthenticationToken other = new AuthenticationToken()
+            .setTokenId(otherTokenId)
+            .setTimeOfExpiration(one(futureInstants()).toEpochMilli());
+
+        int written = CacheSnapshotFile.write(file, Arrays.asList(token, other, new AuthenticationToken()), System.currentTimeMillis());
+        assertThat(written, is(2));
+
+        List<AuthenticationToken> read = CacheSnapshotFile.read(file);
+        assertThat(read.size(), is(2));
+        assertThat(read.get(0).tokenId, is(tokenId));
+        assertThat(read.get(0).timeOfExpiration, is(token.timeOfExpiration));
+        assertThat(read.get(1).tokenId, is(otherTokenId));
+        assertThat(read.get(1).timeOfExpiration, is(other.timeOfExpiration));
+
+        CacheSnapshotFile.write(file, Collections.emptyList(), System.currentTimeMillis());
+        assertThat(CacheSnapshotFile.read(file), empty());
+    }
+
+    @DontRepeat
+    @Test
+    public void testWriteIsOwnerOnly() throws Exception
+    {
+        if (!file.getFileSystem().supportedFileAttributeViews().contains("posix"))
+        {
+            return;
+        }
+
+        CacheSnapshotFile.write(file, Collections.singletonList(token), System.currentTimeMillis());
+
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file)), is("rw-------"));
+    }
+
+    @DontRepeat
+    @Test
+    public void testReadRejectsOtherFiles() throws Exception
+    {
+        Files.write(file, new byte[64]);
+
+        assertThrows(() -> CacheSnapshotFile.read(file))
+            .isInstanceOf(IOException.class);
+    }
+
+    @DontRepeat
+    @Test
+    public void testDisabled() throws Exception
+    {
+        CacheSnapshots disabled = CacheSnapshots.disabled();
+        assertThat(disabled.isEnabled(), is(false));
+
+        disabled.save();
+        assertThat(disabled.restoreInBackground().join(), is(0));
+    }
+
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.MetricRegistry;
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenStatus;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.StringGenerators.uuids;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.futureInstants;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.pastInstants;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class CachingTokenRepositoryTest
+{
+
+    @Mock
+    private TokenRepository delegate;
+
+    private MetricRegistry metrics;
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    @GenerateString(UUID)
+    private String ownerId;
+
+    private AuthenticationToken token;
+
+    private CachingTokenRepository instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        metrics = new MetricRegistry();
+        instance = new CachingTokenRepository(delegate, 100, Duration.ofMinutes(1), metrics);
+        verifyZeroInteractions(delegate);
+
+        token = one(authenticationTokens())
+            .setTokenId(tokenId)
+            .setOwnerId(ownerId)
+            .setTimeOfExpiration(one(futureInstants()).toEpochMilli())
+            .setStatus(TokenStatus.ACTIVE);
+
+        when(delegate.getToken(tokenId)).thenReturn(token);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor() throws Exception
+    {
+        assertThrows(() -> new CachingTokenRepository(null, 100, Duration.ofMinutes(1), metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CachingTokenRepository(delegate, 0, Duration.ofMinutes(1), metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CachingTokenRepository(delegate, 100, null, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testGetTokenIsReadOnce() throws Exception
+    {
+        AuthenticationToken first = instance.getToken(tokenId);
+        AuthenticationToken second = instance.getToken(tokenId);
+
+        assertThat(first, is(token));
+        assertThat(second, is(token));
+        verify(delegate, times(1)).getToken(tokenId);
+
+        assertThat(hits(), is(1L));
+        assertThat(misses(), is(1L));
+    }
+
+    @Test
+    public void testGetTokenReturnsCopies() throws Exception
+    {
+        instance.getToken(tokenId);
+
+        AuthenticationToken result = instance.getToken(tokenId);
+        result.setStatus(TokenStatus.EXPIRED);
+
+        assertThat(instance.getToken(tokenId).status, is(TokenStatus.ACTIVE));
+    }
+
+    @Test
+    public void testExpiredTokensAreNotCached() throws Exception
+    {
+        token.setTimeOfExpiration(one(pastInstants()).toEpochMilli());
+
+        instance.getToken(tokenId);
+        instance.getToken(tokenId);
+
+        verify(delegate, times(2)).getToken(tokenId);
+        assertThat(instance.size(), is(0L));
+    }
+
+    @Test
+    public void testSaveTokenInvalidates() throws Exception
+    {
+        instance.getToken(tokenId);
+        instance.saveToken(token);
+        instance.getToken(tokenId);
+
+        verify(delegate).saveToken(token);
+        verify(delegate, times(2)).getToken(tokenId);
+    }
+
+    @Test
+    public void testDeleteTokenInvalidates() throws Exception
+    {
+        instance.getToken(tokenId);
+        instance.deleteToken(tokenId);
+
+        when(delegate.getToken(tokenId)).thenThrow(new InvalidTokenException());
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(InvalidTokenException.class);
+
+        verify(delegate).deleteToken(tokenId);
+    }
+
+    @Test
+    public void testDeleteTokenInvalidatesEvenWhenDelegateFails() throws Exception
+    {
+        instance.getToken(tokenId);
+
+        doThrow(new RuntimeException()).when(delegate).deleteToken(tokenId);
+
+        assertThrows(() -> instance.deleteToken(tokenId));
+        assertThat(instance.size(), is(0L));
+    }
+
+    @Test
+    public void testContainsTokenWhenCached() throws Exception
+    {
+        instance.getToken(tokenId);
+
+        assertThat(instance.containsToken(tokenId), is(true));
+        verify(delegate, never()).containsToken(tokenId);
+    }
+
+    @Test
+    public void testDoesTokenBelongToUsesCache() throws Exception
+    {
+        instance.getToken(tokenId);
+
+        assertThat(instance.doesTokenBelongTo(tokenId, ownerId), is(true));
+        verify(delegate, times(1)).getToken(tokenId);
+    }
+
+    @DontRepeat
+    @Test
+    public void testEvictions() throws Exception
+    {
+        instance = new CachingTokenRepository(delegate, 1, Duration.ofMinutes(1), new MetricRegistry());
+
+        for (int i = 0; i < 10; ++i)
+        {
+            AuthenticationToken other = token.deepCopy().setTokenId(java.util.UUID.randomUUID().toString());
+            when(delegate.getToken(other.tokenId)).thenReturn(other);
+            instance.getToken(other.tokenId);
+        }
+
+        assertThat(instance.size(), lessThanOrEqualTo(1L));
+    }
+
+    @Test
+    public void testGetTokenAsyncSharesEntriesWithGetToken() throws Exception
+    {
+        AuthenticationToken first = instance.getTokenAsync(tokenId).join();
+        AuthenticationToken second = instance.getToken(tokenId);
+        AuthenticationToken third = instance.getTokenAsync(tokenId).join();
+
+        assertThat(first, is(token));
+        assertThat(second, is(token));
+        assertThat(third, is(token));
+        verify(delegate, times(1)).getToken(tokenId);
+
+        assertThat(hits(), is(2L));
+        assertThat(misses(), is(1L));
+    }
+
+    @Test
+    public void testSaveTokenAsyncInvalidates() throws Exception
+    {
+        instance.getTokenAsync(tokenId).join();
+        instance.saveTokenAsync(token).join();
+        instance.getTokenAsync(tokenId).join();
+
+        verify(delegate).saveToken(token);
+        verify(delegate, times(2)).getToken(tokenId);
+    }
+
+    @Test
+    public void testDeleteTokenAsyncInvalidatesEvenWhenDelegateFails() throws Exception
+    {
+        instance.getTokenAsync(tokenId).join();
+
+        doThrow(new RuntimeException()).when(delegate).deleteToken(tokenId);
+
+        assertThrows(instance.deleteTokenAsync(tokenId)::join)
+            .isInstanceOf(CompletionException.class);
+
+        assertThat(instance.size(), is(0L));
+    }
+
+    @Test
+    public void testOnTokenInvalidated() throws Exception
+    {
+        instance.getToken(tokenId);
+        instance.onTokenInvalidated(tokenId, token.timeOfExpiration);
+        instance.getToken(tokenId);
+
+        verify(delegate, times(2)).getToken(tokenId);
+    }
+
+    @Test
+    public void testInvalidationDuringReadIsNotCached() throws Exception
+    {
+        when(delegate.getToken(tokenId)).thenAnswer(invocation ->
+        {
+            instance.invalidate(tokenId);
+            return token;
+        });
+
+        instance.getToken(tokenId);
+
+        assertThat(instance.size(), is(0L));
+    }
+
+    @Test
+    public void testInvalidationOfAnotherTokenDuringReadIsCached() throws Exception
+    {
+        String otherTokenId = one(uuids);
+
+        while (CachingTokenRepository.stripeOf(otherTokenId) == CachingTokenRepository.stripeOf(tokenId))
+        {
+            otherTokenId = one(uuids);
+        }
+
+        String invalidated = otherTokenId;
+
+        when(delegate.getToken(tokenId)).thenAnswer(invocation ->
+        {
+            instance.invalidate(invalidated);
+            return token;
+        });
+
+        instance.getToken(tokenId);
+
+        assertThat(instance.size(), is(1L));
+    }
+
+    @Test
+    public void testOnOwnerInvalidated() throws Exception
+    {
+        AuthenticationToken otherToken = one(authenticationTokens())
+            .setTimeOfExpiration(one(futureInstants()).toEpochMilli());
+        when(delegate.getToken(otherToken.tokenId)).thenReturn(otherToken);
+
+        instance.getToken(tokenId);
+        instance.getToken(otherToken.tokenId);
+
+        instance.onOwnerInvalidated(ownerId);
+
+        assertThat(instance.size(), is(1L));
+        instance.getToken(tokenId);
+        verify(delegate, times(2)).getToken(tokenId);
+    }
+
+    @Test
+    public void testOnInvalidationsMissed() throws Exception
+    {
+        instance.getToken(tokenId);
+        instance.onInvalidationsMissed();
+
+        assertThat(instance.size(), is(0L));
+    }
+
+    private long hits()
+    {
+        return metrics.counter(MetricRegistry.name(CachingTokenRepository.class, "hits")).getCount();
+    }
+
+    private long misses()
+    {
+        return metrics.counter(MetricRegistry.name(CachingTokenRepository.class, "misses")).getCount();
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static tech.aroma.authentication.service.data.CircuitBreaker.State.*;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+
+/**
+ *
+ * @author SirWellington
+ */
+@RunWith(AlchemyTestRunner.class)
+public class CircuitBreakerTest
+{
+
+    private static final int THRESHOLD = 3;
+    private static final Duration OPEN_DURATION = Duration.ofSeconds(10);
+
+    private AtomicLong tick;
+    private Clock clock;
+
+    private CircuitBreaker instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        tick = new AtomicLong();
+
+        clock = new Clock()
+        {
+            @Override
+            public long getTick()
+            {
+                return tick.get();
+            }
+        };
+
+        instance = new CircuitBreaker(THRESHOLD, OPEN_DURATION, clock);
+    }
+
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new CircuitBreaker(0, OPEN_DURATION, clock))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CircuitBreaker(THRESHOLD, Duration.ZERO, clock))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CircuitBreaker(THRESHOLD, null, clock))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CircuitBreaker(THRESHOLD, OPEN_DURATION, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testStartsClosed()
+    {
+        assertThat(instance.state(), is(CLOSED));
+        assertThat(instance.allowRequest(), is(true));
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures()
+    {
+        fail(THRESHOLD - 1);
+        assertThat(instance.state(), is(CLOSED));
+
+        fail(1);
+        assertThat(instance.state(), is(OPEN));
+        assertThat(instance.allowRequest(), is(false));
+    }
+
+    @Test
+    public void testSuccessResetsTheFailures()
+    {
+        fail(THRESHOLD - 1);
+        instance.onSuccess();
+        fail(THRESHOLD - 1);
+
+        assertThat(instance.state(), is(CLOSED));
+    }
+
+    @Test
+    public void testLetsOneTrialThroughOnceTheOpenDurationPasses()
+    {
+        fail(THRESHOLD);
+
+        tick.addAndGet(OPEN_DURATION.toNanos() - 1);
+        assertThat(instance.allowRequest(), is(false));
+
+        tick.addAndGet(1);
+        assertThat(instance.allowRequest(), is(true));
+        assertThat(instance.state(), is(HALF_OPEN));
+        assertThat(instance.allowRequest(), is(false));
+    }
+
+    @Test
+    public void testClosesWhenTheTrialSucceeds()
+    {
+        fail(THRESHOLD);
+        tick.addAndGet(OPEN_DURATION.toNanos());
+
+        assertThat(instance.allowRequest(), is(true));
+        instance.onSuccess();
+
+        assertThat(instance.state(), is(CLOSED));
+        assertThat(instance.allowRequest(), is(true));
+    }
+
+    @Test
+    public void testOpensAgainWhenTheTrialFails()
+    {
+        fail(THRESHOLD);
+        tick.addAndGet(OPEN_DURATION.toNanos());
+
+        assertThat(instance.allowRequest(), is(true));
+        instance.onFailure();
+
+        assertThat(instance.state(), is(OPEN));
+        assertThat(instance.allowRequest(), is(false));
+
+        tick.addAndGet(OPEN_DURATION.toNanos());
+        assertThat(instance.allowRequest(), is(true));
+    }
+
+    private void fail(int times)
+    {
+        for (int i = 0; i < times; ++i)
+        {
+            assertThat(instance.allowRequest(), is(true));
+            instance.onFailure();
+        }
+    }
+
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.aroma.authentication.service.data.CircuitBreaker.State.*;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class CircuitBreakingTokenRepositoryTest
+{
+
+    private static final int THRESHOLD = 2;
+    private static final Duration OPEN_DURATION = Duration.ofSeconds(10);
+    private static final Duration GRACE_WINDOW = Duration.ofMinutes(10);
+
+    @Mock
+    private TokenRepository delegate;
+
+    @Mock
+    private AsyncTokenRepository asyncDelegate;
+
+    private AtomicLong tick;
+    private CircuitBreaker breaker;
+    private MetricRegistry metrics;
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    private AuthenticationToken token;
+
+    private CircuitBreakingTokenRepository instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        tick = new AtomicLong();
+
+        Clock clock = new Clock()
+        {
+            @Override
+            public long getTick()
+            {
+                return tick.get();
+            }
+        };
+
+        breaker = new CircuitBreaker(THRESHOLD, OPEN_DURATION, clock);
+        metrics = new MetricRegistry();
+        instance = new CircuitBreakingTokenRepository(delegate, asyncDelegate, breaker, 1_000, GRACE_WINDOW, metrics);
+
+        token = one(authenticationTokens())
+            .setTokenId(tokenId)
+            .setTimeOfExpiration(Instant.now().plus(Duration.ofHours(1)).toEpochMilli());
+
+        when(delegate.getToken(tokenId)).thenReturn(token);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new CircuitBreakingTokenRepository(null, breaker, GRACE_WINDOW, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CircuitBreakingTokenRepository(delegate, null, GRACE_WINDOW, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CircuitBreakingTokenRepository(delegate, breaker, null, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CircuitBreakingTokenRepository(delegate, breaker, Duration.ofSeconds(-1), metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CircuitBreakingTokenRepository(delegate, asyncDelegate, breaker, 0, GRACE_WINDOW, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CircuitBreakingTokenRepository(delegate, breaker, GRACE_WINDOW, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testGetToken() throws Exception
+    {
+        assertThat(instance.getToken(tokenId), is(token));
+        assertThat(instance.state(), is(CLOSED));
+        assertThat(staleAnswers(), is(0L));
+    }
+
+    @Test
+    public void testGetTokenWhenStorageFailsAnswersTheLastKnownToken() throws Exception
+    {
+        instance.getToken(tokenId);
+        storageFails();
+
+        AuthenticationToken result = instance.getToken(tokenId);
+        assertThat(result, is(token));
+        assertThat(result, not(sameInstance(token)));
+        assertThat(staleAnswers(), is(1L));
+    }
+
+    @Test
+    public void testGetTokenWhenStorageFailsForAnUnknownToken() throws Exception
+    {
+        storageFails();
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(OperationFailedException.class);
+
+        assertThat(staleAnswers(), is(0L));
+    }
+
+    @Test
+    public void testStorageTimeoutsBecomeOperationFailed() throws Exception
+    {
+        when(delegate.getToken(tokenId)).thenThrow(new RuntimeException());
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(OperationFailedException.class);
+    }
+
+    @Test
+    public void testOpensAfterRepeatedFailures() throws Exception
+    {
+        instance.getToken(tokenId);
+        storageFails();
+
+        for (int i = 0; i < THRESHOLD; ++i)
+        {
+            instance.getToken(tokenId);
+        }
+
+        assertThat(instance.state(), is(OPEN));
+
+        assertThat(instance.getToken(tokenId), is(token));
+        verify(delegate, times(THRESHOLD + 1)).getToken(tokenId);
+
+        assertThrows(() -> instance.getTokensBelongingTo(token.ownerId))
+            .isInstanceOf(OperationFailedException.class);
+        verify(delegate, never()).getTokensBelongingTo(any());
+    }
+
+    @Test
+    public void testClosesOnceStorageRecovers() throws Exception
+    {
+        storageFails();
+        openBreaker();
+
+        reset(delegate);
+        when(delegate.getToken(tokenId)).thenReturn(token);
+        tick.addAndGet(OPEN_DURATION.toNanos());
+
+        assertThat(instance.getToken(tokenId), is(token));
+        assertThat(instance.state(), is(CLOSED));
+    }
+
+    @Test
+    public void testMissingTokensDoNotOpenTheBreaker() throws Exception
+    {
+        when(delegate.getToken(tokenId)).thenThrow(new InvalidTokenException());
+
+        for (int i = 0; i < THRESHOLD * 2; ++i)
+        {
+            assertThrows(() -> instance.getToken(tokenId))
+                .isInstanceOf(InvalidTokenException.class);
+        }
+
+        assertThat(instance.state(), is(CLOSED));
+    }
+
+    @Test
+    public void testExpiredTokensAreNotAnswered() throws Exception
+    {
+        token.setTimeOfExpiration(Instant.now().minusSeconds(1).toEpochMilli());
+        instance.getToken(tokenId);
+        storageFails();
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(OperationFailedException.class);
+    }
+
+    @Test
+    public void testDeletedTokensAreNotAnswered() throws Exception
+    {
+        instance.getToken(tokenId);
+        storageFails();
+        doThrow(new OperationFailedException()).when(delegate).deleteToken(tokenId);
+
+        assertThrows(() -> instance.deleteToken(tokenId))
+            .isInstanceOf(OperationFailedException.class);
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(OperationFailedException.class);
+    }
+
+    @Test
+    public void testTokensInvalidatedElsewhereAreNotAnswered() throws Exception
+    {
+        instance.getToken(tokenId);
+        storageFails();
+
+        instance.onTokenInvalidated(tokenId, token.timeOfExpiration);
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(OperationFailedException.class);
+    }
+
+    @Test
+    public void testOwnersInvalidatedElsewhereAreNotAnswered() throws Exception
+    {
+        instance.getToken(tokenId);
+        storageFails();
+
+        instance.onOwnerInvalidated(token.ownerId);
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(OperationFailedException.class);
+    }
+
+    @Test
+    public void testMissedInvalidationsForgetEveryToken() throws Exception
+    {
+        instance.getToken(tokenId);
+        storageFails();
+
+        instance.onInvalidationsMissed();
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(OperationFailedException.class);
+    }
+
+    @Test
+    public void testSavedTokensAreAnswered() throws Exception
+    {
+        instance.saveToken(token);
+        storageFails();
+
+        assertThat(instance.getToken(tokenId), is(token));
+    }
+
+    @Test
+    public void testContainsTokenWhenStorageFails() throws Exception
+    {
+        instance.getToken(tokenId);
+        when(delegate.containsToken(tokenId)).thenThrow(new OperationFailedException());
+
+        assertThat(instance.containsToken(tokenId), is(true));
+    }
+
+    @Test
+    public void testWithoutGraceWindow() throws Exception
+    {
+        instance = new CircuitBreakingTokenRepository(delegate, asyncDelegate, breaker, 1_000, Duration.ZERO, metrics);
+
+        instance.getToken(tokenId);
+        storageFails();
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(OperationFailedException.class);
+    }
+
+    @Test
+    public void testGetTokenAsyncWhenStorageFails() throws Exception
+    {
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(CompletableFuture.completedFuture(token));
+        assertThat(instance.getTokenAsync(tokenId).join(), is(token));
+
+        CompletableFuture<AuthenticationToken> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new RuntimeException());
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(failed);
+
+        assertThat(instance.getTokenAsync(tokenId).join(), is(token));
+        assertThat(staleAnswers(), is(1L));
+    }
+
+    @Test
+    public void testGetTokenAsyncWhenOpen() throws Exception
+    {
+        storageFails();
+        openBreaker();
+
+        assertThrows(instance.getTokenAsync(tokenId)::join)
+            .hasCauseThatIsExactly(OperationFailedException.class);
+
+        verifyZeroInteractions(asyncDelegate);
+    }
+
+    @DontRepeat
+    @Test
+    public void testMetrics() throws Exception
+    {
+        storageFails();
+        openBreaker();
+
+        Object state = metrics.getGauges()
+            .get(MetricRegistry.name(CircuitBreakingTokenRepository.class, "state"))
+            .getValue();
+
+        assertThat(state, is("OPEN"));
+    }
+
+    private long staleAnswers()
+    {
+        return metrics.counter(MetricRegistry.name(CircuitBreakingTokenRepository.class, "stale")).getCount();
+    }
+
+    private void storageFails() throws Exception
+    {
+        when(delegate.getToken(tokenId)).thenThrow(new OperationFailedException());
+    }
+
+    private void openBreaker()
+    {
+        for (int i = 0; i < THRESHOLD; ++i)
+        {
+            assertThrows(() -> instance.getToken(tokenId))
+                .isInstanceOf(OperationFailedException.class);
+        }
+
+        assertThat(instance.state(), is(OPEN));
+    }
+
+}
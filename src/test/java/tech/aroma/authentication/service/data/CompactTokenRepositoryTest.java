@@ -0,0 +1,349 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenStatus;
+import tech.aroma.thrift.exceptions.InvalidArgumentException;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.StringGenerators.uuids;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.futureInstants;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.ALPHABETIC;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class CompactTokenRepositoryTest
+{
+
+    private MetricRegistry metrics;
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    @GenerateString(UUID)
+    private String ownerId;
+
+    @GenerateString(UUID)
+    private String otherOwnerId;
+
+    @GenerateString(ALPHABETIC)
+    private String badId;
+
+    private AuthenticationToken token;
+
+    private CompactTokenRepository instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        metrics = new MetricRegistry();
+
+        //A small capacity, so that the tests also cover growth.
+        instance = new CompactTokenRepository(metrics, 2);
+
+        token = createToken(tokenId, ownerId);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor() throws Exception
+    {
+        assertThrows(() -> new CompactTokenRepository(null, 2))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CompactTokenRepository(new MetricRegistry(), 0))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testClose() throws Exception
+    {
+        instance = new CompactTokenRepository(new MetricRegistry());
+        instance.saveToken(token);
+
+        instance.close();
+        instance.close();
+
+        assertThat(instance.getToken(tokenId), is(token));
+    }
+
+    @Test
+    public void testSaveToken() throws Exception
+    {
+        instance.saveToken(token);
+
+        assertThat(instance.containsToken(tokenId), is(true));
+        assertThat(instance.getToken(tokenId), is(token));
+        assertThat(instance.size(), is(1L));
+    }
+
+    @Test
+    public void testSaveTokenWithoutNames() throws Exception
+    {
+        token.unsetOrganizationId();
+        token.unsetOwnerName();
+        token.unsetOrganizationName();
+
+        instance.saveToken(token);
+
+        assertThat(instance.getToken(tokenId), is(token));
+    }
+
+    @Test
+    public void testSaveTokenKeepsIdsAsSaved() throws Exception
+    {
+        String upperCaseTokenId = tokenId.toUpperCase(Locale.ROOT);
+        String upperCaseOwnerId = ownerId.toUpperCase(Locale.ROOT);
+
+        token = createToken(upperCaseTokenId, upperCaseOwnerId);
+
+        instance.saveToken(token);
+
+        assertThat(instance.getToken(upperCaseTokenId), is(token));
+        assertThat(instance.getTokensBelongingTo(upperCaseOwnerId), contains(token));
+    }
+
+    @Test
+    public void testSaveTokenReplacesExisting() throws Exception
+    {
+        instance.saveToken(token);
+
+        AuthenticationToken replacement = createToken(tokenId, otherOwnerId)
+            .setStatus(TokenStatus.EXPIRED);
+        instance.saveToken(replacement);
+
+        assertThat(instance.getToken(tokenId), is(replacement));
+        assertThat(instance.size(), is(1L));
+        assertThat(instance.getTokensBelongingTo(ownerId), is(empty()));
+        assertThat(instance.getTokensBelongingTo(otherOwnerId), contains(replacement));
+    }
+
+    @Test
+    public void testSaveTokenWithBadArgs() throws Exception
+    {
+        assertThrows(() -> instance.saveToken(null))
+            .isInstanceOf(InvalidArgumentException.class);
+
+        AuthenticationToken badToken = new AuthenticationToken(token).setTokenId(badId);
+        assertThrows(() -> instance.saveToken(badToken))
+            .isInstanceOf(InvalidArgumentException.class);
+
+        AuthenticationToken badOwner = new AuthenticationToken(token).setOwnerId(badId);
+        assertThrows(() -> instance.saveToken(badOwner))
+            .isInstanceOf(InvalidArgumentException.class);
+
+        assertThat(instance.size(), is(0L));
+    }
+
+    @Test
+    public void testGetTokenWhenMissing() throws Exception
+    {
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(InvalidTokenException.class);
+
+        assertThat(instance.containsToken(tokenId), is(false));
+    }
+
+    @Test
+    public void testGetTokenWithBadId() throws Exception
+    {
+        assertThrows(() -> instance.getToken(badId))
+            .isInstanceOf(InvalidArgumentException.class);
+
+        assertThrows(() -> instance.getToken(""))
+            .isInstanceOf(InvalidArgumentException.class);
+
+        assertThrows(() -> instance.getToken(null))
+            .isInstanceOf(InvalidArgumentException.class);
+    }
+
+    @Test
+    public void testDeleteToken() throws Exception
+    {
+        instance.saveToken(token);
+
+        instance.deleteToken(tokenId);
+
+        assertThat(instance.containsToken(tokenId), is(false));
+        assertThat(instance.getTokensBelongingTo(ownerId), is(empty()));
+        assertThat(instance.size(), is(0L));
+    }
+
+    @Test
+    public void testDeleteTokenWhenMissing() throws Exception
+    {
+        instance.deleteToken(tokenId);
+
+        assertThat(instance.size(), is(0L));
+    }
+
+    @Test
+    public void testGetTokensBelongingTo() throws Exception
+    {
+        List<AuthenticationToken> tokens = saveTokensOf(ownerId, 100);
+        saveTokensOf(otherOwnerId, 10);
+
+        List<AuthenticationToken> result = instance.getTokensBelongingTo(ownerId);
+
+        assertThat(result, containsInAnyOrder(tokens.toArray()));
+    }
+
+    @Test
+    public void testGetTokensBelongingToWhenNone() throws Exception
+    {
+        assertThat(instance.getTokensBelongingTo(ownerId), is(empty()));
+    }
+
+    @Test
+    public void testDoesTokenBelongTo() throws Exception
+    {
+        instance.saveToken(token);
+
+        assertThat(instance.doesTokenBelongTo(tokenId, ownerId), is(true));
+        assertThat(instance.doesTokenBelongTo(tokenId, otherOwnerId), is(false));
+    }
+
+    @Test
+    public void testDoesTokenBelongToWhenMissing() throws Exception
+    {
+        assertThrows(() -> instance.doesTokenBelongTo(tokenId, ownerId))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testDeleteTokensBelongingTo() throws Exception
+    {
+        List<AuthenticationToken> tokens = saveTokensOf(ownerId, 100);
+        List<AuthenticationToken> otherTokens = saveTokensOf(otherOwnerId, 10);
+
+        instance.deleteTokensBelongingTo(ownerId);
+
+        assertThat(instance.getTokensBelongingTo(ownerId), is(empty()));
+        assertThat(instance.getTokensBelongingTo(otherOwnerId), containsInAnyOrder(otherTokens.toArray()));
+        assertThat(instance.size(), is(10L));
+
+        for (AuthenticationToken deleted : tokens)
+        {
+            assertThat(instance.containsToken(deleted.tokenId), is(false));
+        }
+
+        for (AuthenticationToken kept : otherTokens)
+        {
+            assertThat(instance.getToken(kept.tokenId), is(kept));
+        }
+    }
+
+    @Test
+    public void testDeletedSpaceIsReused() throws Exception
+    {
+        List<AuthenticationToken> tokens = saveTokensOf(ownerId, 100);
+
+        for (AuthenticationToken deleted : tokens.subList(0, 50))
+        {
+            instance.deleteToken(deleted.tokenId);
+        }
+
+        List<AuthenticationToken> kept = new ArrayList<>(tokens.subList(50, 100));
+        kept.addAll(saveTokensOf(ownerId, 50));
+
+        assertThat(instance.getTokensBelongingTo(ownerId), containsInAnyOrder(kept.toArray()));
+
+        for (AuthenticationToken expected : kept)
+        {
+            assertThat(instance.getToken(expected.tokenId), is(expected));
+        }
+    }
+
+    @Test
+    public void testRemoveExpired() throws Exception
+    {
+        long now = System.currentTimeMillis();
+
+        List<AuthenticationToken> tokens = saveTokensOf(ownerId, 20);
+        List<AuthenticationToken> expired = tokens.subList(0, 10);
+
+        for (AuthenticationToken expiredToken : expired)
+        {
+            expiredToken.setTimeOfExpiration(now - 1);
+            instance.saveToken(expiredToken);
+        }
+
+        int removed = instance.removeExpired(now);
+
+        assertThat(removed, is(10));
+        assertThat(instance.size(), is(10L));
+        assertThat(instance.getTokensBelongingTo(ownerId), containsInAnyOrder(tokens.subList(10, 20).toArray()));
+
+        for (AuthenticationToken expiredToken : expired)
+        {
+            assertThat(instance.containsToken(expiredToken.tokenId), is(false));
+        }
+    }
+
+    @DontRepeat
+    @Test
+    public void testTokenCountIsMeasured() throws Exception
+    {
+        saveTokensOf(ownerId, 5);
+
+        Object count = metrics.getGauges().values().iterator().next().getValue();
+        assertThat(count, is(5L));
+    }
+
+    private List<AuthenticationToken> saveTokensOf(String owner, int count) throws Exception
+    {
+        List<AuthenticationToken> tokens = new ArrayList<>();
+
+        for (int i = 0; i < count; ++i)
+        {
+            AuthenticationToken newToken = createToken(one(uuids), owner);
+            instance.saveToken(newToken);
+            tokens.add(newToken);
+        }
+
+        return tokens;
+    }
+
+    private static AuthenticationToken createToken(String tokenId, String ownerId)
+    {
+        return one(authenticationTokens())
+            .setTokenId(tokenId)
+            .setOwnerId(ownerId)
+            .setTimeOfExpiration(one(futureInstants()).toEpochMilli())
+            .setStatus(TokenStatus.ACTIVE);
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.CollectionGenerators.listOf;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class ConcurrencyLimitedTokenRepositoryTest
+{
+
+    @Mock
+    private TokenRepository delegate;
+
+    @Mock
+    private AsyncTokenRepository asyncDelegate;
+
+    private static final int MAX_LIMIT = 10;
+    private static final Duration WINDOW = Duration.ofSeconds(1);
+
+    private AtomicLong tick;
+
+    private AdaptiveLimit limit;
+
+    private MetricRegistry metrics;
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    @GenerateString(UUID)
+    private String ownerId;
+
+    private AuthenticationToken token;
+
+    private ConcurrencyLimitedTokenRepository instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        tick = new AtomicLong();
+
+        Clock clock = new Clock()
+        {
+            @Override
+            public long getTick()
+            {
+                return tick.get();
+            }
+        };
+
+        limit = new AdaptiveLimit(1, MAX_LIMIT, 2.0, WINDOW, clock);
+
+        //So that the first call to complete ends the window, and moves the limit.
+        tick.addAndGet(WINDOW.toNanos());
+
+        metrics = new MetricRegistry();
+        instance = new ConcurrencyLimitedTokenRepository(delegate, asyncDelegate, limit, metrics);
+
+        token = one(authenticationTokens()).setTokenId(tokenId);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new ConcurrencyLimitedTokenRepository(null, limit, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new ConcurrencyLimitedTokenRepository(delegate, null, limit, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new ConcurrencyLimitedTokenRepository(delegate, asyncDelegate, null, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new ConcurrencyLimitedTokenRepository(delegate, asyncDelegate, limit, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testGetToken() throws Exception
+    {
+        when(delegate.getToken(tokenId)).thenReturn(token);
+
+        assertThat(instance.getToken(tokenId), is(token));
+        assertReleased(false);
+    }
+
+    @Test
+    public void testGetTokenWhenOverloaded() throws Exception
+    {
+        occupyEveryCall();
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(OperationFailedException.class);
+
+        verifyZeroInteractions(delegate);
+        assertThat(limit.inFlight(), is(MAX_LIMIT));
+        assertThat(rejections(), is(1L));
+    }
+
+    @Test
+    public void testGetTokenWhenNotFound() throws Exception
+    {
+        when(delegate.getToken(tokenId)).thenThrow(new InvalidTokenException());
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(InvalidTokenException.class);
+
+        assertReleased(false);
+    }
+
+    @Test
+    public void testGetTokenWhenStorageFails() throws Exception
+    {
+        when(delegate.getToken(tokenId)).thenThrow(new OperationFailedException());
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(OperationFailedException.class);
+
+        assertReleased(true);
+    }
+
+    @Test
+    public void testGetTokenWhenStorageTimesOut() throws Exception
+    {
+        when(delegate.getToken(tokenId)).thenThrow(new RuntimeException());
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(RuntimeException.class);
+
+        assertReleased(true);
+    }
+
+    @Test
+    public void testContainsToken() throws Exception
+    {
+        when(delegate.containsToken(tokenId)).thenReturn(true);
+
+        assertThat(instance.containsToken(tokenId), is(true));
+        assertReleased(false);
+    }
+
+    @Test
+    public void testSaveToken() throws Exception
+    {
+        instance.saveToken(token);
+
+        verify(delegate).saveToken(token);
+        assertReleased(false);
+    }
+
+    @Test
+    public void testGetTokensBelongingTo() throws Exception
+    {
+        List<AuthenticationToken> tokens = listOf(authenticationTokens());
+        when(delegate.getTokensBelongingTo(ownerId)).thenReturn(tokens);
+
+        assertThat(instance.getTokensBelongingTo(ownerId), is(tokens));
+        assertReleased(false);
+    }
+
+    @Test
+    public void testDeleteToken() throws Exception
+    {
+        instance.deleteToken(tokenId);
+
+        verify(delegate).deleteToken(tokenId);
+        assertReleased(false);
+    }
+
+    @Test
+    public void testGetTokenAsync() throws Exception
+    {
+        CompletableFuture<AuthenticationToken> pending = new CompletableFuture<>();
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(pending);
+
+        CompletableFuture<AuthenticationToken> result = instance.getTokenAsync(tokenId);
+        assertThat(limit.inFlight(), is(1));
+
+        pending.complete(token);
+        assertThat(result.join(), is(token));
+        assertReleased(false);
+    }
+
+    @Test
+    public void testGetTokenAsyncWhenOverloaded() throws Exception
+    {
+        occupyEveryCall();
+
+        CompletableFuture<AuthenticationToken> result = instance.getTokenAsync(tokenId);
+
+        assertThrows(result::join)
+            .isInstanceOf(CompletionException.class);
+
+        assertThat(result.handle((value, ex) -> ex.getCause()).join(), instanceOf(OperationFailedException.class));
+        verifyZeroInteractions(asyncDelegate);
+        assertThat(rejections(), is(1L));
+    }
+
+    @Test
+    public void testGetTokenAsyncWhenStorageFails() throws Exception
+    {
+        CompletableFuture<AuthenticationToken> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new OperationFailedException());
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(failed);
+
+        instance.getTokenAsync(tokenId);
+
+        assertReleased(true);
+    }
+
+    @Test
+    public void testDeleteTokenAsync() throws Exception
+    {
+        when(asyncDelegate.deleteTokenAsync(tokenId)).thenReturn(CompletableFuture.completedFuture(null));
+
+        instance.deleteTokenAsync(tokenId).join();
+
+        verify(asyncDelegate).deleteTokenAsync(tokenId);
+        assertReleased(false);
+    }
+
+    @DontRepeat
+    @Test
+    public void testMetrics()
+    {
+        occupyEveryCall();
+
+        assertThat(gauge("limit"), is(MAX_LIMIT));
+        assertThat(gauge("in-flight"), is(MAX_LIMIT));
+    }
+
+    private void occupyEveryCall()
+    {
+        for (int i = 0; i < MAX_LIMIT; ++i)
+        {
+            limit.tryAcquire();
+        }
+    }
+
+    /**
+     * A call that failed from overload shrinks the limit once the window ends. Any other leaves it alone.
+     */
+    private void assertReleased(boolean failed)
+    {
+        assertThat(limit.inFlight(), is(0));
+        assertThat(limit.limit(), is(failed ? MAX_LIMIT * 9 / 10 : MAX_LIMIT));
+    }
+
+    private Object gauge(String name)
+    {
+        return metrics.getGauges()
+            .get(MetricRegistry.name(ConcurrencyLimitedTokenRepository.class, name))
+            .getValue();
+    }
+
+    private long rejections()
+    {
+        return metrics.counter(MetricRegistry.name(ConcurrencyLimitedTokenRepository.class, "rejections")).getCount();
+    }
+
+}
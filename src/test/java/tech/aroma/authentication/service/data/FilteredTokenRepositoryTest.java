@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.CompletionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class FilteredTokenRepositoryTest
+{
+
+    @Mock
+    private TokenRepository delegate;
+
+    private TokenIdFilter filter;
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    @GenerateString(UUID)
+    private String unknownTokenId;
+
+    private AuthenticationToken token;
+
+    private FilteredTokenRepository instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        filter = new TokenIdFilter(consumer -> consumer.accept(tokenId), 1_000, 0.000_001, new MetricRegistry());
+        filter.rebuild();
+
+        instance = new FilteredTokenRepository(delegate, filter, true, new MetricRegistry());
+
+        token = one(authenticationTokens()).setTokenId(tokenId);
+
+        when(delegate.getToken(tokenId)).thenReturn(token);
+        when(delegate.containsToken(tokenId)).thenReturn(true);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new FilteredTokenRepository(null, filter, true, new MetricRegistry()))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new FilteredTokenRepository(delegate, null, true, new MetricRegistry()))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testGetTokenWhenKnown() throws Exception
+    {
+        assertThat(instance.getToken(tokenId), is(token));
+    }
+
+    @Test
+    public void testGetTokenWhenUnknown() throws Exception
+    {
+        assertThrows(() -> instance.getToken(unknownTokenId))
+            .isInstanceOf(InvalidTokenException.class);
+
+        verifyZeroInteractions(delegate);
+    }
+
+    @Test
+    public void testContainsTokenWhenUnknown() throws Exception
+    {
+        assertThat(instance.containsToken(unknownTokenId), is(false));
+        verifyZeroInteractions(delegate);
+    }
+
+    @Test
+    public void testGetTokenWhenCreatedElsewhere() throws Exception
+    {
+        instance = new FilteredTokenRepository(delegate, filter, false, new MetricRegistry());
+
+        AuthenticationToken newToken = token.deepCopy().setTokenId(unknownTokenId);
+        when(delegate.getToken(unknownTokenId)).thenReturn(newToken);
+
+        assertThat(instance.getToken(unknownTokenId), is(newToken));
+        assertThat(filter.mightContain(unknownTokenId), is(true));
+    }
+
+    @Test
+    public void testContainsTokenWhenUnknownAndNotSingleNode() throws Exception
+    {
+        instance = new FilteredTokenRepository(delegate, filter, false, new MetricRegistry());
+
+        assertThat(instance.containsToken(unknownTokenId), is(false));
+        verify(delegate).containsToken(unknownTokenId);
+        assertThat(filter.mightContain(unknownTokenId), is(false));
+    }
+
+    @Test
+    public void testGetTokenAsyncWhenCreatedElsewhere() throws Exception
+    {
+        instance = new FilteredTokenRepository(delegate, filter, false, new MetricRegistry());
+
+        AuthenticationToken newToken = token.deepCopy().setTokenId(unknownTokenId);
+        when(delegate.getToken(unknownTokenId)).thenReturn(newToken);
+
+        assertThat(instance.getTokenAsync(unknownTokenId).join(), is(newToken));
+        assertThat(filter.mightContain(unknownTokenId), is(true));
+    }
+
+    @Test
+    public void testSaveTokenAddsToFilter() throws Exception
+    {
+        AuthenticationToken newToken = token.deepCopy().setTokenId(unknownTokenId);
+        instance.saveToken(newToken);
+
+        verify(delegate).saveToken(newToken);
+        assertThat(filter.mightContain(unknownTokenId), is(true));
+    }
+
+    @Test
+    public void testSaveTokenWhenDelegateFails() throws Exception
+    {
+        AuthenticationToken newToken = token.deepCopy().setTokenId(unknownTokenId);
+        doThrow(new RuntimeException()).when(delegate).saveToken(newToken);
+
+        assertThrows(() -> instance.saveToken(newToken));
+        assertThat(filter.mightContain(unknownTokenId), is(false));
+    }
+
+    @Test
+    public void testDeleteToken() throws Exception
+    {
+        instance.deleteToken(tokenId);
+        verify(delegate).deleteToken(tokenId);
+    }
+
+    @Test
+    public void testGetTokenAsyncWhenUnknown() throws Exception
+    {
+        assertThrows(instance.getTokenAsync(unknownTokenId)::join)
+            .isInstanceOf(CompletionException.class)
+            .hasCauseThatIsExactly(InvalidTokenException.class);
+
+        verifyZeroInteractions(delegate);
+    }
+
+    @Test
+    public void testSaveTokenAsyncAddsToFilter() throws Exception
+    {
+        AuthenticationToken newToken = token.deepCopy().setTokenId(unknownTokenId);
+        instance.saveTokenAsync(newToken).join();
+
+        verify(delegate).saveToken(newToken);
+        assertThat(filter.mightContain(unknownTokenId), is(true));
+    }
+
+}
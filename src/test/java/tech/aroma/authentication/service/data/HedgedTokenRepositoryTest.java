@@ -0,0 +1,330 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(20)
+@RunWith(AlchemyTestRunner.class)
+public class HedgedTokenRepositoryTest
+{
+
+    private static final double HEDGE_RATE = 0.1;
+
+    @Mock
+    private TokenRepository delegate;
+
+    @Mock
+    private AsyncTokenRepository asyncDelegate;
+
+    @Mock
+    private ScheduledExecutorService scheduler;
+
+    @Mock
+    private ScheduledFuture<?> scheduledHedge;
+
+    private AtomicLong tick;
+    private Clock clock;
+    private MetricRegistry metrics;
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    private AuthenticationToken token;
+
+    private HedgedTokenRepository instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        tick = new AtomicLong();
+
+        clock = new Clock()
+        {
+            @Override
+            public long getTick()
+            {
+                return tick.get();
+            }
+        };
+
+        metrics = new MetricRegistry();
+        instance = new HedgedTokenRepository(delegate, asyncDelegate, HEDGE_RATE, scheduler, clock, metrics);
+
+        token = one(authenticationTokens()).setTokenId(tokenId);
+
+        doReturn(scheduledHedge).when(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new HedgedTokenRepository(null, asyncDelegate, HEDGE_RATE, scheduler, clock, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new HedgedTokenRepository(delegate, null, HEDGE_RATE, scheduler, clock, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new HedgedTokenRepository(delegate, asyncDelegate, 0, scheduler, clock, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new HedgedTokenRepository(delegate, asyncDelegate, 0.5, scheduler, clock, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new HedgedTokenRepository(delegate, asyncDelegate, HEDGE_RATE, null, clock, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new HedgedTokenRepository(delegate, asyncDelegate, HEDGE_RATE, scheduler, null, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new HedgedTokenRepository(delegate, asyncDelegate, HEDGE_RATE, scheduler, clock, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testGetToken() throws Exception
+    {
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(CompletableFuture.completedFuture(token));
+
+        assertThat(instance.getToken(tokenId), is(token));
+        verifyZeroInteractions(delegate, scheduler);
+    }
+
+    @Test
+    public void testGetTokenWhenMissing() throws Exception
+    {
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(failed(new InvalidTokenException()));
+
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testDoesNotHedgeBeforeThereIsAPercentile() throws Exception
+    {
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(new CompletableFuture<>());
+
+        instance.getTokenAsync(tokenId);
+
+        assertThat(instance.hedgeDelay(), is(0L));
+        verifyZeroInteractions(scheduler);
+    }
+
+    @Test
+    public void testHedgeWins() throws Exception
+    {
+        warmUp();
+
+        CompletableFuture<AuthenticationToken> first = new CompletableFuture<>();
+        CompletableFuture<AuthenticationToken> second = new CompletableFuture<>();
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(first, second);
+
+        CompletableFuture<AuthenticationToken> result = instance.getTokenAsync(tokenId);
+        runHedge();
+
+        verify(asyncDelegate, times(2)).getTokenAsync(tokenId);
+
+        second.complete(token);
+        assertThat(result.join(), is(token));
+        assertThat(count("hedges", "won"), is(1L));
+
+        first.complete(one(authenticationTokens()));
+        assertThat(result.join(), is(token));
+    }
+
+    @Test
+    public void testFirstReadWins() throws Exception
+    {
+        warmUp();
+
+        CompletableFuture<AuthenticationToken> first = new CompletableFuture<>();
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(first);
+
+        CompletableFuture<AuthenticationToken> result = instance.getTokenAsync(tokenId);
+        first.complete(token);
+
+        assertThat(result.join(), is(token));
+        verify(scheduledHedge).cancel(false);
+        assertThat(count("hedges"), is(0L));
+    }
+
+    @Test
+    public void testFailureWaitsForTheOtherRead() throws Exception
+    {
+        warmUp();
+
+        CompletableFuture<AuthenticationToken> first = new CompletableFuture<>();
+        CompletableFuture<AuthenticationToken> second = new CompletableFuture<>();
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(first, second);
+
+        CompletableFuture<AuthenticationToken> result = instance.getTokenAsync(tokenId);
+        runHedge();
+
+        first.completeExceptionally(new OperationFailedException());
+        assertThat(result.isDone(), is(false));
+
+        second.complete(token);
+        assertThat(result.join(), is(token));
+    }
+
+    @Test
+    public void testWhenBothReadsFail() throws Exception
+    {
+        warmUp();
+
+        CompletableFuture<AuthenticationToken> first = new CompletableFuture<>();
+        CompletableFuture<AuthenticationToken> second = new CompletableFuture<>();
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(first, second);
+
+        CompletableFuture<AuthenticationToken> result = instance.getTokenAsync(tokenId);
+        runHedge();
+
+        first.completeExceptionally(new OperationFailedException());
+        second.completeExceptionally(new OperationFailedException());
+
+        assertThrows(result::join)
+            .isInstanceOf(CompletionException.class)
+            .hasCauseThatIsExactly(OperationFailedException.class);
+    }
+
+    @Test
+    public void testMissingTokenIsAnAnswer() throws Exception
+    {
+        warmUp();
+
+        CompletableFuture<AuthenticationToken> first = new CompletableFuture<>();
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(first);
+
+        CompletableFuture<AuthenticationToken> result = instance.getTokenAsync(tokenId);
+        first.completeExceptionally(new InvalidTokenException());
+
+        assertThrows(result::join)
+            .hasCauseThatIsExactly(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testHedgesAreCapped() throws Exception
+    {
+        warmUp();
+
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(new CompletableFuture<>());
+
+        ArgumentCaptor<Runnable> hedges = ArgumentCaptor.forClass(Runnable.class);
+        int reads = 20;
+
+        for (int i = 0; i < reads; ++i)
+        {
+            instance.getTokenAsync(tokenId);
+        }
+
+        verify(scheduler, times(reads)).schedule(hedges.capture(), anyLong(), any(TimeUnit.class));
+        hedges.getAllValues().forEach(Runnable::run);
+
+        //At most 10 hedges may be saved up.
+        assertThat(count("hedges"), is(10L));
+        assertThat(count("hedges", "denied"), is(10L));
+    }
+
+    @Test
+    public void testOtherCallsAreNotHedged() throws Exception
+    {
+        instance.saveToken(token);
+        verify(delegate).saveToken(token);
+
+        instance.deleteToken(tokenId);
+        verify(delegate).deleteToken(tokenId);
+
+        when(delegate.containsToken(tokenId)).thenReturn(true);
+        assertThat(instance.containsToken(tokenId), is(true));
+
+        List<AuthenticationToken> tokens = new ArrayList<>();
+        when(delegate.getTokensBelongingTo(token.ownerId)).thenReturn(tokens);
+        assertThat(instance.getTokensBelongingTo(token.ownerId), sameInstance(tokens));
+
+        verifyZeroInteractions(scheduler);
+    }
+
+    /**
+     * Reads enough Tokens for there to be a percentile to hedge after, at the smallest delay.
+     */
+    private void warmUp() throws Exception
+    {
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(CompletableFuture.completedFuture(token));
+
+        for (int i = 0; i < HedgedTokenRepository.MIN_SAMPLES; ++i)
+        {
+            instance.getTokenAsync(tokenId).join();
+        }
+
+        tick.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertThat(instance.hedgeDelay(), is(HedgedTokenRepository.MIN_DELAY_NANOS));
+
+        reset(asyncDelegate);
+    }
+
+    private void runHedge()
+    {
+        ArgumentCaptor<Runnable> hedge = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(hedge.capture(), eq(HedgedTokenRepository.MIN_DELAY_NANOS), eq(TimeUnit.NANOSECONDS));
+        hedge.getValue().run();
+    }
+
+    private long count(String... names)
+    {
+        return metrics.counter(MetricRegistry.name(HedgedTokenRepository.class, names)).getCount();
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable ex)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(ex);
+        return future;
+    }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenStatus;
+import tech.aroma.thrift.exceptions.InvalidArgumentException;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.StringGenerators.uuids;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.futureInstants;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(10)
+@RunWith(AlchemyTestRunner.class)
+public class MappedTokenRepositoryTest
+{
+
+    /** Small regions, so that the tests also cover records moving on to the next region. */
+    private static final int REGION_SIZE = 4096;
+
+    private Path directory;
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    @GenerateString(UUID)
+    private String ownerId;
+
+    @GenerateString(UUID)
+    private String otherOwnerId;
+
+    private AuthenticationToken token;
+
+    private MappedTokenRepository instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = Files.createTempDirectory("tokens");
+        instance = new MappedTokenRepository(directory, REGION_SIZE);
+
+        token = createToken(tokenId, ownerId);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        instance.close();
+
+        try (Stream<Path> files = Files.walk(directory))
+        {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor() throws Exception
+    {
+        assertThrows(() -> new MappedTokenRepository(null, REGION_SIZE))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testSaveToken() throws Exception
+    {
+        instance.saveToken(token);
+
+        assertThat(instance.containsToken(tokenId), is(true));
+        assertThat(instance.getToken(tokenId), is(token));
+    }
+
+    @Test
+    public void testSaveTokenReplacesExisting() throws Exception
+    {
+        instance.saveToken(token);
+
+        AuthenticationToken replacement = createToken(tokenId, otherOwnerId)
+            .setStatus(TokenStatus.EXPIRED);
+        instance.saveToken(replacement);
+
+        assertThat(instance.getToken(tokenId), is(replacement));
+        assertThat(instance.getTokensBelongingTo(ownerId), is(empty()));
+        assertThat(instance.getTokensBelongingTo(otherOwnerId), contains(replacement));
+    }
+
+    @Test
+    public void testSaveTokenWithBadArgs() throws Exception
+    {
+        assertThrows(() -> instance.saveToken(null))
+            .isInstanceOf(InvalidArgumentException.class);
+
+        AuthenticationToken tooLarge = new AuthenticationToken(token).setOwnerName(new String(new char[REGION_SIZE]));
+        assertThrows(() -> instance.saveToken(tooLarge))
+            .isInstanceOf(InvalidArgumentException.class);
+    }
+
+    @Test
+    public void testGetTokenWhenMissing() throws Exception
+    {
+        assertThrows(() -> instance.getToken(tokenId))
+            .isInstanceOf(InvalidTokenException.class);
+
+        assertThat(instance.containsToken(tokenId), is(false));
+    }
+
+    @Test
+    public void testGetTokenWhenExpired() throws Exception
+    {
+        token.setTimeOfExpiration(System.currentTimeMillis() - 1);
+        instance.saveToken(token);
+
+        assertThat(instance.containsToken(tokenId), is(true));
+        assertThat(instance.getToken(tokenId), is(token));
+        assertThat(instance.getTokensBelongingTo(ownerId), contains(token));
+
+        instance.compact();
+
+        assertThat(instance.containsToken(tokenId), is(false));
+        assertThat(instance.getTokensBelongingTo(ownerId), is(empty()));
+    }
+
+    @Test
+    public void testGetTokenWithBadId() throws Exception
+    {
+        assertThrows(() -> instance.getToken(""))
+            .isInstanceOf(InvalidArgumentException.class);
+
+        assertThrows(() -> instance.getToken(null))
+            .isInstanceOf(InvalidArgumentException.class);
+    }
+
+    @Test
+    public void testDeleteToken() throws Exception
+    {
+        instance.saveToken(token);
+
+        instance.deleteToken(tokenId);
+
+        assertThat(instance.containsToken(tokenId), is(false));
+        assertThat(instance.getTokensBelongingTo(ownerId), is(empty()));
+    }
+
+    @Test
+    public void testGetTokensBelongingTo() throws Exception
+    {
+        List<AuthenticationToken> tokens = saveTokensOf(ownerId, 50);
+        saveTokensOf(otherOwnerId, 10);
+
+        assertThat(instance.getTokensBelongingTo(ownerId), containsInAnyOrder(tokens.toArray()));
+    }
+
+    @Test
+    public void testDoesTokenBelongTo() throws Exception
+    {
+        instance.saveToken(token);
+
+        assertThat(instance.doesTokenBelongTo(tokenId, ownerId), is(true));
+        assertThat(instance.doesTokenBelongTo(tokenId, otherOwnerId), is(false));
+
+        assertThrows(() -> instance.doesTokenBelongTo(one(uuids), ownerId))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testDeleteTokensBelongingTo() throws Exception
+    {
+        List<AuthenticationToken> tokens = saveTokensOf(ownerId, 50);
+        List<AuthenticationToken> otherTokens = saveTokensOf(otherOwnerId, 10);
+
+        instance.deleteTokensBelongingTo(ownerId);
+
+        assertThat(instance.getTokensBelongingTo(ownerId), is(empty()));
+        assertThat(instance.getTokensBelongingTo(otherOwnerId), containsInAnyOrder(otherTokens.toArray()));
+
+        for (AuthenticationToken deleted : tokens)
+        {
+            assertThat(instance.containsToken(deleted.tokenId), is(false));
+        }
+    }
+
+    @Test
+    public void testTokensSurviveRestart() throws Exception
+    {
+        List<AuthenticationToken> tokens = saveTokensOf(ownerId, 50);
+        instance.deleteToken(tokens.get(0).tokenId);
+
+        reopen();
+
+        assertThat(instance.containsToken(tokens.get(0).tokenId), is(false));
+        assertThat(instance.getTokensBelongingTo(ownerId), containsInAnyOrder(tokens.subList(1, 50).toArray()));
+    }
+
+    @Test
+    public void testIndexIsRebuiltWhenMissing() throws Exception
+    {
+        List<AuthenticationToken> tokens = saveTokensOf(ownerId, 50);
+        instance.deleteToken(tokens.get(0).tokenId);
+
+        instance.close();
+        Files.delete(directory.resolve(MappedTokenRepository.INDEX_FILE));
+        instance = new MappedTokenRepository(directory, REGION_SIZE);
+
+        assertThat(instance.containsToken(tokens.get(0).tokenId), is(false));
+        assertThat(instance.getTokensBelongingTo(ownerId), containsInAnyOrder(tokens.subList(1, 50).toArray()));
+    }
+
+    @Test
+    public void testIncompleteRecordIsDropped() throws Exception
+    {
+        instance.saveToken(token);
+        long end = instance.logBytes();
+        instance.close();
+
+        //A record that was cut short, with a length but nothing else.
+        try (RandomAccessFile log = new RandomAccessFile(directory.resolve(MappedTokenRepository.LOG_FILE).toFile(), "rw"))
+        {
+            log.seek(end);
+            log.writeInt(64);
+        }
+
+        instance = new MappedTokenRepository(directory, REGION_SIZE);
+
+        assertThat(instance.getToken(tokenId), is(token));
+        assertThat(instance.logBytes(), is(end));
+
+        AuthenticationToken next = createToken(one(uuids), ownerId);
+        instance.saveToken(next);
+        reopen();
+
+        assertThat(instance.getTokensBelongingTo(ownerId), containsInAnyOrder(token, next));
+    }
+
+    @Test
+    public void testCompact() throws Exception
+    {
+        List<AuthenticationToken> tokens = saveTokensOf(ownerId, 50);
+
+        for (AuthenticationToken deleted : tokens.subList(0, 25))
+        {
+            instance.deleteToken(deleted.tokenId);
+        }
+
+        long before = instance.logBytes();
+        assertThat(instance.garbageBytes(), greaterThan(0L));
+
+        instance.compact();
+
+        assertThat(instance.logBytes(), lessThan(before));
+        assertThat(instance.garbageBytes(), is(0L));
+        assertThat(instance.getTokensBelongingTo(ownerId), containsInAnyOrder(tokens.subList(25, 50).toArray()));
+
+        reopen();
+        assertThat(instance.getTokensBelongingTo(ownerId), containsInAnyOrder(tokens.subList(25, 50).toArray()));
+    }
+
+    @DontRepeat
+    @Test
+    public void testIndexGrows() throws Exception
+    {
+        List<AuthenticationToken> tokens = saveTokensOf(ownerId, MappedTokenIndex.MIN_CAPACITY * 2);
+
+        reopen();
+
+        for (AuthenticationToken expected : tokens)
+        {
+            assertThat(instance.getToken(expected.tokenId), is(expected));
+        }
+    }
+
+    @DontRepeat
+    @Test
+    public void testIndexDoesNotGrowForDeletedTokens() throws Exception
+    {
+        for (int i = 0; i < MappedTokenIndex.MIN_CAPACITY * 3; ++i)
+        {
+            AuthenticationToken newToken = createToken(one(uuids), ownerId);
+            instance.saveToken(newToken);
+            instance.deleteToken(newToken.tokenId);
+        }
+
+        instance.saveToken(token);
+
+        assertThat(instance.indexCapacity(), is(MappedTokenIndex.MIN_CAPACITY));
+        assertThat(instance.getToken(tokenId), is(token));
+    }
+
+    private void reopen() throws IOException
+    {
+        instance.close();
+        instance = new MappedTokenRepository(directory, REGION_SIZE);
+    }
+
+    private List<AuthenticationToken> saveTokensOf(String owner, int count) throws Exception
+    {
+        List<AuthenticationToken> tokens = new ArrayList<>();
+
+        for (int i = 0; i < count; ++i)
+        {
+            AuthenticationToken newToken = createToken(one(uuids), owner);
+            instance.saveToken(newToken);
+            tokens.add(newToken);
+        }
+
+        return tokens;
+    }
+
+    private static AuthenticationToken createToken(String tokenId, String ownerId)
+    {
+        return one(authenticationTokens())
+            .setTokenId(tokenId)
+            .setOwnerId(ownerId)
+            .setTimeOfExpiration(one(futureInstants()).toEpochMilli())
+            .setStatus(TokenStatus.ACTIVE);
+    }
+
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.data.memory.ModuleMemoryDataRepositories;
+import tech.sirwellington.alchemy.annotations.testing.IntegrationTest;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+
+/**
+ *
+ * @author SirWellington
+ */
+@IntegrationTest
+@RunWith(AlchemyTestRunner.class)
+public class ModuleTokenRepositoryTest
+{
+
+    private ModuleMemoryDataRepositories dataModule;
+
+    private ModuleTokenRepository instance;
+
+    @Before
+    public void setUp()
+    {
+        dataModule = new ModuleMemoryDataRepositories();
+        instance = new ModuleTokenRepository(dataModule);
+    }
+
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new ModuleTokenRepository(null))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new ModuleTokenRepository(dataModule, -1, Duration.ZERO))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testWithConcurrencyLimit()
+    {
+        assertThrows(() -> instance.withConcurrencyLimit(-1))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThat(instance.withConcurrencyLimit(0), sameInstance(instance));
+    }
+
+    @Test
+    public void testWithStaleGraceWindow()
+    {
+        assertThrows(() -> instance.withStaleGraceWindow(null))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> instance.withStaleGraceWindow(Duration.ofSeconds(-1)))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThat(instance.withStaleGraceWindow(Duration.ZERO), sameInstance(instance));
+    }
+
+    @Test
+    public void testWithHedgedReads()
+    {
+        assertThrows(() -> instance.withHedgedReads(-0.1))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> instance.withHedgedReads(0.5))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThat(instance.withHedgedReads(0.05), sameInstance(instance));
+    }
+
+    @Test
+    public void testWithInvalidationBus()
+    {
+        InetSocketAddress address = new InetSocketAddress(0);
+        List<InetSocketAddress> peers = Collections.singletonList(address);
+
+        assertThrows(() -> instance.withInvalidationBus(null, peers))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> instance.withInvalidationBus(address, null))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> instance.withInvalidationBus(address, Collections.emptyList()))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThat(instance.withInvalidationBus(address, peers), sameInstance(instance));
+    }
+
+    @Test
+    public void testWithCacheSnapshot()
+    {
+        assertThrows(() -> instance.withCacheSnapshot(null))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThat(instance.withCacheSnapshot(Paths.get("cache.snapshot")), sameInstance(instance));
+    }
+
+    @Test
+    public void testConfigure()
+    {
+        Injector injector = Guice.createInjector(instance, metricsModule);
+
+        TokenRepository repository = injector.getInstance(TokenRepository.class);
+        assertThat(repository, instanceOf(CachingTokenRepository.class));
+    }
+
+    @Test
+    public void testConfigureWithCacheDisabled()
+    {
+        instance = new ModuleTokenRepository(dataModule, 0, Duration.ZERO);
+        Injector injector = Guice.createInjector(instance, metricsModule);
+
+        TokenRepository repository = injector.getInstance(TokenRepository.class);
+        assertThat(repository, notNullValue());
+        assertThat(repository, not(instanceOf(CachingTokenRepository.class)));
+    }
+
+    @Test
+    public void testConfigureSharesTheCacheWithAsyncCalls()
+    {
+        Injector injector = Guice.createInjector(instance, metricsModule);
+
+        TokenRepository repository = injector.getInstance(TokenRepository.class);
+        AsyncTokenRepository asyncRepository = injector.getInstance(AsyncTokenRepository.class);
+        assertThat(asyncRepository, sameInstance(repository));
+    }
+
+    @Test
+    public void testConfigureCoalescesReads()
+    {
+        instance = new ModuleTokenRepository(dataModule, 0, Duration.ZERO);
+        Injector injector = Guice.createInjector(instance, metricsModule);
+
+        TokenRepository repository = injector.getInstance(TokenRepository.class);
+        assertThat(repository, instanceOf(SingleFlightTokenRepository.class));
+
+        AsyncTokenRepository asyncRepository = injector.getInstance(AsyncTokenRepository.class);
+        assertThat(asyncRepository, sameInstance(repository));
+    }
+
+    @Test
+    public void testConfigureWithAsyncStorage()
+    {
+        instance = new ModuleTokenRepository(new ModuleMemoryTokenStorage(), 0, Duration.ZERO);
+        Injector injector = Guice.createInjector(instance, metricsModule);
+
+        AsyncTokenRepository first = injector.getInstance(AsyncTokenRepository.class);
+        AsyncTokenRepository second = injector.getInstance(AsyncTokenRepository.class);
+        assertThat(first, sameInstance(second));
+    }
+
+    @Test
+    public void testConfigureLimitsStorageConcurrency()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Injector injector = Guice.createInjector(instance, binderOf(metrics));
+        injector.getInstance(TokenRepository.class);
+
+        assertThat(metrics.getGauges().keySet(), hasItem(MetricRegistry.name(ConcurrencyLimitedTokenRepository.class, "limit")));
+    }
+
+    @Test
+    public void testConfigureWithConcurrencyLimitDisabled()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Injector injector = Guice.createInjector(instance.withConcurrencyLimit(0), binderOf(metrics));
+        injector.getInstance(TokenRepository.class);
+
+        assertThat(metrics.getGauges().keySet(), not(hasItem(MetricRegistry.name(ConcurrencyLimitedTokenRepository.class, "limit"))));
+    }
+
+    @Test
+    public void testConfigureBreaksTheCircuitToStorage()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Injector injector = Guice.createInjector(instance, binderOf(metrics));
+        injector.getInstance(TokenRepository.class);
+
+        assertThat(metrics.getGauges().keySet(), hasItem(MetricRegistry.name(CircuitBreakingTokenRepository.class, "state")));
+    }
+
+    @Test
+    public void testConfigureWithHedgedReads()
+    {
+        MetricRegistry metrics = new MetricRegistry();
+        Injector injector = Guice.createInjector(instance.withHedgedReads(0.05), binderOf(metrics));
+        injector.getInstance(TokenRepository.class);
+
+        assertThat(metrics.getTimers().keySet(), hasItem(MetricRegistry.name(HedgedTokenRepository.class, "latency")));
+    }
+
+    @Test
+    public void testConfigureWithoutCacheSnapshot()
+    {
+        Injector injector = Guice.createInjector(instance, metricsModule);
+
+        assertThat(injector.getInstance(CacheSnapshots.class).isEnabled(), is(false));
+    }
+
+    @Test
+    public void testConfigureWithCacheSnapshot()
+    {
+        Injector injector = Guice.createInjector(instance.withCacheSnapshot(Paths.get("cache.snapshot")), metricsModule);
+
+        CacheSnapshots snapshots = injector.getInstance(CacheSnapshots.class);
+        assertThat(snapshots.isEnabled(), is(true));
+        assertThat(injector.getInstance(CacheSnapshots.class), sameInstance(snapshots));
+    }
+
+    @Test
+    public void testConfigureWithCacheSnapshotAndCacheDisabled()
+    {
+        instance = new ModuleTokenRepository(dataModule, 0, Duration.ZERO);
+        Injector injector = Guice.createInjector(instance.withCacheSnapshot(Paths.get("cache.snapshot")), metricsModule);
+
+        assertThat(injector.getInstance(CacheSnapshots.class).isEnabled(), is(false));
+    }
+
+    @Test
+    public void testConfigureWithoutInvalidationBus()
+    {
+        Injector injector = Guice.createInjector(instance, metricsModule);
+
+        assertThat(injector.getInstance(InvalidationBus.class), instanceOf(StandaloneInvalidationBus.class));
+    }
+
+    @Test
+    public void testConfigureWithInvalidationBus() throws Exception
+    {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        instance.withInvalidationBus(address, Collections.singletonList(address));
+
+        Injector injector = Guice.createInjector(instance,
+                                                 metricsModule,
+                                                 binder -> binder.bind(SignedTokens.class).toInstance(SignedTokens.disabled()));
+
+        InvalidationBus bus = injector.getInstance(InvalidationBus.class);
+        assertThat(bus, instanceOf(UdpInvalidationBus.class));
+        assertThat(injector.getInstance(InvalidationBus.class), sameInstance(bus));
+
+        ((UdpInvalidationBus) bus).close();
+    }
+
+    private static Module binderOf(MetricRegistry metrics)
+    {
+        return binder -> binder.bind(MetricRegistry.class).toInstance(metrics);
+    }
+
+    private final Module metricsModule = new AbstractModule()
+    {
+        @Override
+        protected void configure()
+        {
+            bind(MetricRegistry.class).toInstance(new MetricRegistry());
+        }
+    };
+
+}
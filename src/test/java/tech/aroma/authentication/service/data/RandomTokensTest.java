@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+import tech.sirwellington.alchemy.test.junit.runners.DontRepeat;
+import tech.sirwellington.alchemy.test.junit.runners.Repeat;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(100)
+@RunWith(AlchemyTestRunner.class)
+public class RandomTokensTest
+{
+
+    @Test
+    public void testUuid()
+    {
+        String uuid = RandomTokens.uuid();
+
+        UUID parsed = UUID.fromString(uuid);
+        assertThat(parsed.toString(), is(uuid));
+        assertThat(parsed.version(), is(4));
+        assertThat(parsed.variant(), is(2));
+    }
+
+    @Test
+    public void testHex()
+    {
+        String hex = RandomTokens.hex(5000);
+
+        assertThat(hex.length(), is(5000));
+        assertThat(hex.matches("[0-9a-f]+"), is(true));
+    }
+
+    @DontRepeat
+    @Test
+    public void testHexWithBadLength()
+    {
+        assertThrows(() -> RandomTokens.hex(-2))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> RandomTokens.hex(3))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @DontRepeat
+    @Test
+    public void testUniqueAcrossThreads() throws Exception
+    {
+        int threads = 8;
+        int perThread = 10_000;
+        Set<String> uuids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int i = 0; i < threads; ++i)
+        {
+            executor.submit(() ->
+            {
+                for (int j = 0; j < perThread; ++j)
+                {
+                    uuids.add(RandomTokens.uuid());
+                }
+            });
+        }
+
+        executor.shutdown();
+        assertThat(executor.awaitTermination(1, TimeUnit.MINUTES), is(true));
+        assertThat(uuids.size(), is(threads * perThread));
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenType;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.BinaryGenerators.binary;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.futureInstants;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.pastInstants;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class SignedTokensTest
+{
+
+    private static final String KEY_ID = "k1";
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    @GenerateString(UUID)
+    private String ownerId;
+
+    private byte[] key;
+
+    private AuthenticationToken token;
+
+    private SignedTokens instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        key = one(binary(32));
+        instance = new SignedTokens(KEY_ID, Collections.singletonMap(KEY_ID, key));
+
+        token = one(authenticationTokens())
+            .setTokenId(tokenId)
+            .setOwnerId(ownerId)
+            .setTokenType(TokenType.APPLICATION)
+            .setTimeOfExpiration(one(futureInstants()).toEpochMilli());
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor() throws Exception
+    {
+        assertThrows(() -> new SignedTokens(null, Collections.singletonMap(KEY_ID, key)))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new SignedTokens("k2", Collections.singletonMap(KEY_ID, key)))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new SignedTokens("k.1", Collections.singletonMap("k.1", key)))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new SignedTokens(KEY_ID, Collections.singletonMap(KEY_ID, new byte[16])))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new SignedTokens(KEY_ID, Collections.singletonMap(KEY_ID, key), Duration.ofSeconds(-1)))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testSignAndCheck() throws Exception
+    {
+        String signed = instance.sign(token);
+
+        assertThat(instance.isSigned(signed), is(true));
+        assertThat(instance.isSigned(tokenId), is(false));
+
+        SignedTokens.Claims claims = instance.checkValid(signed);
+        assertThat(claims.getStorageId(), is(tokenId));
+        assertThat(claims.getOwnerId(), is(ownerId));
+        assertThat(claims.getTokenType(), is(TokenType.APPLICATION));
+        assertThat(claims.getTimeOfCreation(), is(token.timeOfCreation));
+        assertThat(claims.getTimeOfExpiration(), is(token.timeOfExpiration));
+    }
+
+    @Test
+    public void testWhenTampered() throws Exception
+    {
+        String signed = instance.sign(token);
+        String otherOwner = instance.sign(token.deepCopy().setOwnerId(java.util.UUID.randomUUID().toString()));
+
+        String claimsOfOther = otherOwner.split("\\.")[2];
+        String[] parts = signed.split("\\.");
+        String tampered = parts[0] + "." + parts[1] + "." + claimsOfOther + "." + parts[3];
+
+        assertThrows(() -> instance.checkValid(tampered))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testWhenSignedWithOtherKey() throws Exception
+    {
+        SignedTokens other = new SignedTokens(KEY_ID, Collections.singletonMap(KEY_ID, one(binary(32))));
+        String signed = other.sign(token);
+
+        assertThrows(() -> instance.checkValid(signed))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testWhenKeyIsUnknown() throws Exception
+    {
+        SignedTokens other = new SignedTokens("k2", Collections.singletonMap("k2", key));
+        String signed = other.sign(token);
+
+        assertThrows(() -> instance.checkValid(signed))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testAcceptsRotatedKeys() throws Exception
+    {
+        String signedWithOldKey = instance.sign(token);
+
+        Map<String, byte[]> keys = new HashMap<>();
+        keys.put(KEY_ID, key);
+        keys.put("k2", one(binary(32)));
+        SignedTokens rotated = new SignedTokens("k2", keys);
+
+        assertThat(rotated.checkValid(signedWithOldKey).getStorageId(), is(tokenId));
+        assertThat(rotated.sign(token), startsWith(SignedTokens.PREFIX + ".k2."));
+    }
+
+    @Test
+    public void testWhenExpired() throws Exception
+    {
+        token.setTimeOfExpiration(one(pastInstants()).toEpochMilli());
+        String signed = instance.sign(token);
+
+        assertThrows(() -> instance.checkValid(signed))
+            .isInstanceOf(InvalidTokenException.class);
+
+        assertThat(instance.verify(signed).getStorageId(), is(tokenId));
+    }
+
+    @Test
+    public void testWhenRevoked() throws Exception
+    {
+        String signed = instance.sign(token);
+
+        instance.revoke(tokenId, token.timeOfExpiration);
+        assertThat(instance.isRevoked(tokenId), is(true));
+
+        assertThrows(() -> instance.checkValid(signed))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testMayHaveMissedRevocation() throws Exception
+    {
+        token.setTimeOfCreation(one(pastInstants()).toEpochMilli());
+        assertThat(instance.mayHaveMissedRevocation(instance.verify(instance.sign(token))), is(true));
+
+        token.setTimeOfCreation(System.currentTimeMillis());
+        SignedTokens.Claims claims = instance.verify(instance.sign(token));
+        assertThat(instance.mayHaveMissedRevocation(claims), is(false));
+
+        Thread.sleep(2);
+        instance.revocationsMissed();
+        assertThat(instance.mayHaveMissedRevocation(claims), is(true));
+    }
+
+    @Test
+    public void testMayHaveMissedRevocationOutsideTrustWindow() throws Exception
+    {
+        SignedTokens untrusting = new SignedTokens(KEY_ID, Collections.singletonMap(KEY_ID, key), Duration.ZERO);
+
+        token.setTimeOfCreation(System.currentTimeMillis());
+        SignedTokens.Claims claims = untrusting.verify(untrusting.sign(token));
+
+        Thread.sleep(2);
+        assertThat(untrusting.mayHaveMissedRevocation(claims), is(true));
+        assertThat(instance.mayHaveMissedRevocation(claims), is(false));
+    }
+
+    @Test
+    public void testStorageIdOf() throws Exception
+    {
+        String signed = instance.sign(token);
+
+        assertThat(instance.storageIdOf(signed), is(tokenId));
+        assertThat(instance.storageIdOf(tokenId), is(tokenId));
+
+        assertThrows(() -> instance.storageIdOf(signed + "A"))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @DontRepeat
+    @Test
+    public void testFromKeys() throws Exception
+    {
+        String keys = KEY_ID + ":" + Base64.getEncoder().encodeToString(key);
+        SignedTokens fromKeys = SignedTokens.fromKeys(KEY_ID, keys);
+
+        assertThat(fromKeys.checkValid(instance.sign(token)).getStorageId(), is(tokenId));
+
+        assertThrows(() -> SignedTokens.fromKeys(KEY_ID, "no-secret"))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @DontRepeat
+    @Test
+    public void testDisabled() throws Exception
+    {
+        SignedTokens disabled = SignedTokens.disabled();
+        assertThat(disabled.isEnabled(), is(false));
+
+        String signed = instance.sign(token);
+
+        assertThrows(() -> disabled.checkValid(signed))
+            .isInstanceOf(InvalidTokenException.class);
+
+        assertThrows(() -> disabled.sign(token))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenStatus;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(20)
+@RunWith(AlchemyTestRunner.class)
+public class SingleFlightTokenRepositoryTest
+{
+
+    private static final int CALLERS = 8;
+
+    @Mock
+    private TokenRepository delegate;
+
+    @Mock
+    private AsyncTokenRepository asyncDelegate;
+
+    private MetricRegistry metrics;
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    private AuthenticationToken token;
+
+    private ExecutorService callers;
+
+    private SingleFlightTokenRepository instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        metrics = new MetricRegistry();
+        callers = Executors.newFixedThreadPool(CALLERS);
+        instance = new SingleFlightTokenRepository(delegate, asyncDelegate, metrics);
+
+        token = one(authenticationTokens())
+            .setTokenId(tokenId)
+            .setStatus(TokenStatus.ACTIVE);
+
+        when(delegate.getToken(tokenId)).thenReturn(token);
+    }
+
+    @After
+    public void tearDown()
+    {
+        callers.shutdownNow();
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new SingleFlightTokenRepository(null, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new SingleFlightTokenRepository(delegate, null, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new SingleFlightTokenRepository(delegate, asyncDelegate, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testGetToken() throws Exception
+    {
+        assertThat(instance.getToken(tokenId), is(token));
+        assertThat(instance.getToken(tokenId), is(token));
+
+        verify(delegate, times(2)).getToken(tokenId);
+        assertThat(instance.flightsInProgress(), is(0));
+    }
+
+    @Test
+    public void testConcurrentReadsAreCoalesced() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+
+        when(delegate.getToken(tokenId)).thenAnswer(invocation ->
+        {
+            release.await();
+            return token;
+        });
+
+        List<Future<AuthenticationToken>> results = new ArrayList<>();
+
+        for (int i = 0; i < CALLERS; ++i)
+        {
+            results.add(callers.submit(() -> instance.getToken(tokenId)));
+        }
+
+        awaitCoalesced(CALLERS - 1);
+        release.countDown();
+
+        List<AuthenticationToken> tokens = new ArrayList<>();
+
+        for (Future<AuthenticationToken> result : results)
+        {
+            tokens.add(result.get(5, SECONDS));
+        }
+
+        verify(delegate, times(1)).getToken(tokenId);
+
+        for (AuthenticationToken result : tokens)
+        {
+            assertThat(result, is(token));
+        }
+
+        //Every caller receives its own copy.
+        tokens.get(0).setStatus(TokenStatus.EXPIRED);
+        assertThat(tokens.get(1).status, is(TokenStatus.ACTIVE));
+    }
+
+    @Test
+    public void testFailuresReachEveryCaller() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+
+        when(delegate.getToken(tokenId)).thenAnswer(invocation ->
+        {
+            release.await();
+            throw new InvalidTokenException();
+        });
+
+        Future<AuthenticationToken> first = callers.submit(() -> instance.getToken(tokenId));
+        Future<AuthenticationToken> second = callers.submit(() -> instance.getToken(tokenId));
+
+        awaitCoalesced(1);
+        release.countDown();
+
+        assertThrows(() -> first.get(5, SECONDS))
+            .hasCauseThatIsExactly(InvalidTokenException.class);
+
+        assertThrows(() -> second.get(5, SECONDS))
+            .hasCauseThatIsExactly(InvalidTokenException.class);
+
+        verify(delegate, times(1)).getToken(tokenId);
+        assertThat(instance.flightsInProgress(), is(0));
+    }
+
+    @Test
+    public void testErrorsReachEveryCaller() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+
+        when(delegate.getToken(tokenId)).thenAnswer(invocation ->
+        {
+            release.await();
+            throw new NoClassDefFoundError();
+        });
+
+        Future<AuthenticationToken> first = callers.submit(() -> instance.getToken(tokenId));
+        Future<AuthenticationToken> second = callers.submit(() -> instance.getToken(tokenId));
+
+        awaitCoalesced(1);
+        release.countDown();
+
+        assertThrows(() -> first.get(5, SECONDS))
+            .hasCauseThatIsExactly(NoClassDefFoundError.class);
+
+        assertThrows(() -> second.get(5, SECONDS))
+            .isInstanceOf(ExecutionException.class);
+
+        assertThat(instance.flightsInProgress(), is(0));
+    }
+
+    @Test
+    public void testAsyncReadsJoinTheSameFlight() throws Exception
+    {
+        CompletableFuture<AuthenticationToken> read = new CompletableFuture<>();
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(read);
+
+        CompletableFuture<AuthenticationToken> first = instance.getTokenAsync(tokenId);
+        CompletableFuture<AuthenticationToken> second = instance.getTokenAsync(tokenId);
+
+        verify(asyncDelegate, times(1)).getTokenAsync(tokenId);
+        assertThat(first.isDone(), is(false));
+
+        read.complete(token);
+
+        assertThat(first.join(), is(token));
+        assertThat(second.join(), is(token));
+        assertThat(first.join(), not(sameInstance(second.join())));
+        assertThat(instance.flightsInProgress(), is(0));
+    }
+
+    @Test
+    public void testAsyncFailuresReachEveryCaller() throws Exception
+    {
+        CompletableFuture<AuthenticationToken> read = new CompletableFuture<>();
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(read);
+
+        CompletableFuture<AuthenticationToken> first = instance.getTokenAsync(tokenId);
+        CompletableFuture<AuthenticationToken> second = instance.getTokenAsync(tokenId);
+
+        read.completeExceptionally(new InvalidTokenException());
+
+        assertThrows(first::join)
+            .isInstanceOf(CompletionException.class)
+            .hasCauseThatIsExactly(InvalidTokenException.class);
+
+        assertThrows(second::join)
+            .isInstanceOf(CompletionException.class)
+            .hasCauseThatIsExactly(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testDeleteEndsTheFlight() throws Exception
+    {
+        CompletableFuture<AuthenticationToken> read = new CompletableFuture<>();
+        when(asyncDelegate.getTokenAsync(tokenId)).thenReturn(read);
+
+        instance.getTokenAsync(tokenId);
+        instance.deleteToken(tokenId);
+
+        assertThat(instance.flightsInProgress(), is(0));
+
+        instance.getTokenAsync(tokenId);
+        verify(asyncDelegate, times(2)).getTokenAsync(tokenId);
+    }
+
+    private void awaitCoalesced(long count) throws InterruptedException
+    {
+        String name = MetricRegistry.name(SingleFlightTokenRepository.class, "coalesced");
+
+        while (metrics.counter(name).getCount() < count)
+        {
+            Thread.sleep(1);
+        }
+    }
+
+}
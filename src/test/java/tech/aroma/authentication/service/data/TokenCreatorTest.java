@@ -23,6 +23,9 @@ import org.junit.runner.RunWith;
 import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
 import tech.sirwellington.alchemy.test.junit.runners.Repeat;
 
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
 import static tech.sirwellington.alchemy.arguments.Arguments.checkThat;
 import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.nonEmptyString;
 import static tech.sirwellington.alchemy.arguments.assertions.StringAssertions.validUUID;
@@ -51,6 +54,19 @@ public class TokenCreatorTest
             .is(validUUID());
     }
     
+    @Test
+    public void testBufferedUuid()
+    {
+        String tokenId = TokenCreator.BUFFERED_UUID.create();
+
+        checkThat(tokenId)
+            .throwing(AssertionFailedError.class)
+            .is(validUUID());
+
+        assertThat(java.util.UUID.fromString(tokenId).version(), is(4));
+        assertThat(TokenCreator.BUFFERED_UUID.create(), not(tokenId));
+    }
+    
     @Test
     public void testUuidPlusHex()
     {
@@ -59,6 +75,8 @@ public class TokenCreatorTest
         checkThat(tokenId)
             .throwing(AssertionFailedError.class)
             .is(nonEmptyString());
+
+        assertThat(tokenId.length(), is(36 + 2000));
     }
 
 
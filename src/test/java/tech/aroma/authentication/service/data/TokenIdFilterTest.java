@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.CollectionGenerators.listOf;
+import static tech.sirwellington.alchemy.generator.StringGenerators.uuids;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(10)
+@RunWith(AlchemyTestRunner.class)
+public class TokenIdFilterTest
+{
+
+    private List<String> storedIds;
+
+    @GenerateString(UUID)
+    private String newTokenId;
+
+    private TokenIdFilter instance;
+
+    @Before
+    public void setUp()
+    {
+        storedIds = listOf(uuids, 1_000);
+        instance = new TokenIdFilter(storedIds::forEach, 10_000, 0.01, new MetricRegistry());
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new TokenIdFilter(null, 100, 0.01, new MetricRegistry()))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new TokenIdFilter(TokenIdScanner.NONE, 0, 0.01, new MetricRegistry()))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new TokenIdFilter(TokenIdScanner.NONE, 100, 1.5, new MetricRegistry()))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testAllowsEverythingBeforeRebuild()
+    {
+        assertThat(instance.isReady(), is(false));
+        assertThat(instance.mightContain(newTokenId), is(true));
+    }
+
+    @Test
+    public void testNoFalseNegatives() throws Exception
+    {
+        instance.rebuild();
+        assertThat(instance.isReady(), is(true));
+
+        for (String tokenId : storedIds)
+        {
+            assertThat(instance.mightContain(tokenId), is(true));
+        }
+    }
+
+    @Test
+    public void testAdd() throws Exception
+    {
+        instance.rebuild();
+
+        instance.add(newTokenId);
+        assertThat(instance.mightContain(newTokenId), is(true));
+    }
+
+    @Test
+    public void testRejectsMostUnknownIds() throws Exception
+    {
+        instance.rebuild();
+
+        List<String> unknownIds = listOf(uuids, 1_000);
+        long falsePositives = unknownIds.stream().filter(instance::mightContain).count();
+
+        assertThat(falsePositives, lessThan(50L));
+    }
+
+    @Test
+    public void testRebuildDropsDeletedIds() throws Exception
+    {
+        instance.rebuild();
+        instance.add(newTokenId);
+
+        instance.rebuild();
+        assertThat(instance.approximateCount(), lessThanOrEqualTo((long) storedIds.size()));
+    }
+
+    @DontRepeat
+    @Test
+    public void testRebuildWhenScanFails() throws Exception
+    {
+        instance.rebuild();
+
+        TokenIdFilter failing = new TokenIdFilter(consumer -> { throw new RuntimeException(); },
+                                                  100,
+                                                  0.01,
+                                                  new MetricRegistry());
+
+        assertThrows(failing::rebuild);
+        assertThat(failing.isReady(), is(false));
+        assertThat(failing.mightContain(newTokenId), is(true));
+    }
+
+    @Test
+    public void testMetrics() throws Exception
+    {
+        instance.rebuild();
+
+        assertThat(instance.sizeInBytes(), greaterThan(0L));
+        assertThat(instance.currentFalsePositiveRate(), lessThan(0.01));
+    }
+
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.data;
+
+import com.codahale.metrics.MetricRegistry;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.NumberGenerators.positiveLongs;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(10)
+@RunWith(AlchemyTestRunner.class)
+public class UdpInvalidationBusTest
+{
+
+    private static final long TIMEOUT_MILLIS = 2_000;
+
+    @Mock
+    private InvalidationListener firstListener;
+
+    @Mock
+    private InvalidationListener secondListener;
+
+    private MetricRegistry metrics;
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    @GenerateString(UUID)
+    private String ownerId;
+
+    private long timeOfExpiration;
+
+    private UdpInvalidationBus first;
+    private UdpInvalidationBus second;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        metrics = new MetricRegistry();
+        timeOfExpiration = one(positiveLongs());
+
+        DatagramChannel firstChannel = openChannel();
+        DatagramChannel secondChannel = openChannel();
+
+        //Every node is given the same peers, itself included.
+        List<InetSocketAddress> peers = Arrays.asList((InetSocketAddress) firstChannel.getLocalAddress(),
+                                                      (InetSocketAddress) secondChannel.getLocalAddress());
+
+        first = new UdpInvalidationBus(firstChannel, peers, firstListener, metrics).start();
+        second = new UdpInvalidationBus(secondChannel, peers, secondListener, new MetricRegistry()).start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        first.close();
+        second.close();
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor() throws Exception
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        List<InetSocketAddress> peers = Collections.emptyList();
+
+        assertThrows(() -> new UdpInvalidationBus(null, peers, firstListener, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new UdpInvalidationBus(channel, null, firstListener, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new UdpInvalidationBus(channel, peers, null, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new UdpInvalidationBus(channel, peers, firstListener, null))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        channel.close();
+    }
+
+    @Test
+    public void testPublishToken() throws Exception
+    {
+        first.publishToken(tokenId, timeOfExpiration);
+
+        verify(secondListener, timeout(TIMEOUT_MILLIS)).onTokenInvalidated(tokenId, timeOfExpiration);
+        verify(secondListener, never()).onInvalidationsMissed();
+        verifyZeroInteractions(firstListener);
+    }
+
+    @Test
+    public void testPublishOwner() throws Exception
+    {
+        second.publishOwner(ownerId);
+
+        verify(firstListener, timeout(TIMEOUT_MILLIS)).onOwnerInvalidated(ownerId);
+        verifyZeroInteractions(secondListener);
+    }
+
+    @Test
+    public void testPublishMany() throws Exception
+    {
+        int count = 500;
+
+        for (int i = 0; i < count; ++i)
+        {
+            first.publishToken(tokenId + i, timeOfExpiration);
+        }
+
+        verify(secondListener, timeout(TIMEOUT_MILLIS)).onTokenInvalidated(tokenId + (count - 1), timeOfExpiration);
+        verify(secondListener, times(count)).onTokenInvalidated(anyString(), eq(timeOfExpiration));
+
+        assertThat(metrics.counter(MetricRegistry.name(UdpInvalidationBus.class, "published")).getCount(), is((long) count));
+    }
+
+    @Test
+    public void testPublishWithEmptyId() throws Exception
+    {
+        first.publishToken("", timeOfExpiration);
+        first.publishOwner(null);
+
+        assertThat(metrics.counter(MetricRegistry.name(UdpInvalidationBus.class, "published")).getCount(), is(0L));
+    }
+
+    @Test
+    public void testReceive() throws Exception
+    {
+        long node = one(positiveLongs());
+
+        first.receive(datagram(node, 1, tokenId));
+        first.receive(datagram(node, 2, tokenId));
+
+        verify(firstListener, times(2)).onTokenInvalidated(tokenId, timeOfExpiration);
+        verify(firstListener, never()).onInvalidationsMissed();
+    }
+
+    @Test
+    public void testReceiveAfterALostBatch() throws Exception
+    {
+        long node = one(positiveLongs());
+
+        first.receive(datagram(node, 1, tokenId));
+        first.receive(datagram(node, 3, tokenId));
+
+        verify(firstListener).onInvalidationsMissed();
+        verify(firstListener, times(2)).onTokenInvalidated(tokenId, timeOfExpiration);
+        assertThat(metrics.counter(MetricRegistry.name(UdpInvalidationBus.class, "missed")).getCount(), is(1L));
+    }
+
+    @Test
+    public void testReceiveDuplicateAndLateBatches() throws Exception
+    {
+        long node = one(positiveLongs());
+
+        first.receive(datagram(node, 1, tokenId));
+        first.receive(datagram(node, 2, tokenId));
+        first.receive(datagram(node, 2, tokenId));
+        first.receive(datagram(node, 1, tokenId));
+
+        verify(firstListener, never()).onInvalidationsMissed();
+        verify(firstListener, times(4)).onTokenInvalidated(tokenId, timeOfExpiration);
+    }
+
+    @Test
+    public void testReceiveHeartbeat() throws Exception
+    {
+        long node = one(positiveLongs());
+
+        first.receive(datagram(node, 1, tokenId));
+        first.receive(heartbeat(node, 1));
+
+        verify(firstListener, never()).onInvalidationsMissed();
+    }
+
+    @Test
+    public void testReceiveHeartbeatAfterALostBatch() throws Exception
+    {
+        long node = one(positiveLongs());
+
+        first.receive(datagram(node, 1, tokenId));
+        first.receive(heartbeat(node, 2));
+
+        verify(firstListener).onInvalidationsMissed();
+
+        first.receive(heartbeat(node, 2));
+        verify(firstListener).onInvalidationsMissed();
+    }
+
+    @Test
+    public void testReceiveMalformed() throws Exception
+    {
+        ByteBuffer truncated = datagram(one(positiveLongs()), 1, tokenId);
+        truncated.limit(truncated.limit() - 1);
+
+        first.receive(truncated);
+        first.receive(ByteBuffer.wrap(tokenId.getBytes(UTF_8)));
+
+        verifyZeroInteractions(firstListener);
+        assertThat(metrics.counter(MetricRegistry.name(UdpInvalidationBus.class, "rejected")).getCount(), is(2L));
+    }
+
+    private ByteBuffer datagram(long node, long sequence, String tokenId)
+    {
+        byte[] id = tokenId.getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(64 + id.length);
+
+        buffer.putInt(0x41524D41)
+            .put((byte) 1)
+            .putLong(node)
+            .putLong(sequence)
+            .putShort((short) 1)
+            .put((byte) 1)
+            .putShort((short) id.length)
+            .put(id)
+            .putLong(timeOfExpiration);
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private ByteBuffer heartbeat(long node, long sequence)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        buffer.putInt(0x41524D41)
+            .put((byte) 1)
+            .putLong(node)
+            .putLong(sequence)
+            .putShort((short) 0);
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private static DatagramChannel openChannel() throws Exception
+    {
+        return DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.slf4j.Logger;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class AccessLogTest
+{
+
+    private static final int CAPACITY = 4;
+
+    @Mock
+    private Logger output;
+
+    @GenerateString(UUID)
+    private String tokenId;
+
+    private MetricRegistry metrics;
+
+    private AccessLog instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        metrics = new MetricRegistry();
+        instance = new AccessLog(1.0, CAPACITY, output, metrics);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new AccessLog(-0.1, CAPACITY, output, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new AccessLog(1.1, CAPACITY, output, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new AccessLog(1.0, 0, output, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new AccessLog(1.0, CAPACITY, null, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new AccessLog(1.0, CAPACITY, output, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testRecordAndDrain()
+    {
+        instance.record("VerifyToken", tokenId, 412_000, AccessLog.SUCCESS);
+
+        verifyZeroInteractions(output);
+        assertThat(instance.pendingCount(), is(1));
+
+        assertThat(instance.drain(), is(1));
+        assertThat(instance.pendingCount(), is(0));
+
+        verify(output).info(anyString(),
+                            any(),
+                            eq("VerifyToken"),
+                            eq(AccessLog.hashOf(tokenId)),
+                            eq(412L),
+                            eq(AccessLog.SUCCESS));
+    }
+
+    @Test
+    public void testTokenIdsAreHashed()
+    {
+        String hash = AccessLog.hashOf(tokenId);
+
+        assertThat(hash, not(containsString(tokenId)));
+        assertThat(hash.length(), is(8));
+        assertThat(AccessLog.hashOf(tokenId), is(hash));
+    }
+
+    @DontRepeat
+    @Test
+    public void testHashOfMissingTokenId()
+    {
+        assertThat(AccessLog.hashOf(null), is("-"));
+        assertThat(AccessLog.hashOf(""), is("-"));
+    }
+
+    @Test
+    public void testDropsRecordsWhenFull()
+    {
+        for (int i = 0; i < CAPACITY + 2; ++i)
+        {
+            instance.record("VerifyToken", tokenId, 1_000, AccessLog.SUCCESS);
+        }
+
+        assertThat(instance.pendingCount(), is(CAPACITY));
+        assertThat(metrics.counter(MetricRegistry.name(AccessLog.class, "dropped")).getCount(), is(2L));
+
+        assertThat(instance.drain(), is(CAPACITY));
+
+        instance.record("VerifyToken", tokenId, 1_000, AccessLog.SUCCESS);
+        assertThat(instance.drain(), is(1));
+    }
+
+    @DontRepeat
+    @Test
+    public void testSample()
+    {
+        assertThat(instance.sample(), is(true));
+        assertThat(AccessLog.disabled().sample(), is(false));
+    }
+
+}
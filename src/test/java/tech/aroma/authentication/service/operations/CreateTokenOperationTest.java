@@ -16,8 +16,13 @@
 
 package tech.aroma.authentication.service.operations;
 
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Function;
 
 import junit.framework.AssertionFailedError;
@@ -25,6 +30,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.*;
+import tech.aroma.authentication.service.data.AsyncTokenRepository;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.authentication.service.data.TokenCreator;
 import tech.aroma.data.TokenRepository;
 import tech.aroma.thrift.LengthOfTime;
@@ -41,9 +48,11 @@ import static java.time.Instant.now;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.*;
+import static tech.aroma.authentication.service.operations.CompletableFutures.failed;
 import static tech.sirwellington.alchemy.arguments.Arguments.*;
 import static tech.sirwellington.alchemy.arguments.assertions.TimeAssertions.epochNowWithinDelta;
 import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.BinaryGenerators.binary;
 import static tech.sirwellington.alchemy.generator.NumberGenerators.longs;
 import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
 import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
@@ -64,6 +73,9 @@ public class CreateTokenOperationTest
     @Mock
     private TokenRepository repository;
 
+    @Mock
+    private AsyncTokenRepository asyncRepository;
+
     @GeneratePojo
     private CreateTokenRequest request;
 
@@ -82,7 +94,7 @@ public class CreateTokenOperationTest
     @Before
     public void setUp()
     {
-        instance = new CreateTokenOperation(lengthOfTimeConverter, tokenCreator, repository);
+        instance = new CreateTokenOperation(lengthOfTimeConverter, tokenCreator, repository, asyncRepository, SignedTokens.disabled(), CreationQuotas.unlimited());
         verifyZeroInteractions(tokenCreator, repository);
         
         request.lifetime.setValue(one(longs(1, 100_000)));
@@ -138,4 +150,98 @@ public class CreateTokenOperationTest
             .isInstanceOf(OperationFailedException.class);
     }
 
+    @Test
+    public void testProcessWhenOverQuota() throws Exception
+    {
+        KeyedRateLimiter owners = new KeyedRateLimiter(1, 1, 16, Clock.defaultClock());
+        CreationQuotas quotas = new CreationQuotas(owners, KeyedRateLimiter.unlimited(), new MetricRegistry());
+        instance = new CreateTokenOperation(lengthOfTimeConverter, tokenCreator, repository, asyncRepository, SignedTokens.disabled(), quotas);
+
+        instance.process(request);
+
+        assertThrows(() -> instance.process(request))
+            .isInstanceOf(OperationFailedException.class);
+
+        verify(repository, times(1)).saveToken(any());
+    }
+
+    @Test
+    public void testWithSignedTokens() throws Exception
+    {
+        SignedTokens signedTokens = new SignedTokens("k1", Collections.singletonMap("k1", one(binary(32))));
+        instance = new CreateTokenOperation(lengthOfTimeConverter, tokenCreator, repository, asyncRepository, signedTokens, CreationQuotas.unlimited());
+
+        CreateTokenResponse response = instance.process(request);
+
+        verify(repository).saveToken(tokenCaptor.capture());
+        assertThat(tokenCaptor.getValue().getTokenId(), is(tokenId));
+
+        String signedTokenId = response.getToken().getTokenId();
+        assertThat(signedTokens.isSigned(signedTokenId), is(true));
+
+        SignedTokens.Claims claims = signedTokens.checkValid(signedTokenId);
+        assertThat(claims.getStorageId(), is(tokenId));
+        assertThat(claims.getOwnerId(), is(ownerId));
+        assertThat(claims.getTimeOfExpiration(), is(response.getToken().getTimeOfExpiration()));
+    }
+
+    @Repeat(100)
+    @Test
+    public void testProcessAsync() throws Exception
+    {
+        when(asyncRepository.saveTokenAsync(any()))
+            .thenReturn(CompletableFuture.completedFuture(null));
+
+        CreateTokenResponse response = instance.processAsync(request).join();
+        assertThat(response, notNullValue());
+
+        verify(asyncRepository).saveTokenAsync(tokenCaptor.capture());
+        verifyZeroInteractions(repository);
+
+        AuthenticationToken savedToken = tokenCaptor.getValue();
+        assertThat(savedToken.getTokenId(), is(tokenId));
+        assertThat(savedToken.getOwnerId(), is(ownerId));
+        assertThat(response.getToken(), is(savedToken));
+    }
+
+    @Test
+    public void testProcessAsyncWhenRepositoryFails() throws Exception
+    {
+        when(asyncRepository.saveTokenAsync(any()))
+            .thenReturn(failed(new OperationFailedException()));
+
+        CompletableFuture<CreateTokenResponse> response = instance.processAsync(request);
+
+        assertThrows(response::join)
+            .isInstanceOf(CompletionException.class)
+            .hasCauseThatIsExactly(OperationFailedException.class);
+    }
+
+    @Test
+    public void testProcessAsyncWhenOverQuota() throws Exception
+    {
+        KeyedRateLimiter owners = new KeyedRateLimiter(1, 1, 16, Clock.defaultClock());
+        CreationQuotas quotas = new CreationQuotas(owners, KeyedRateLimiter.unlimited(), new MetricRegistry());
+        instance = new CreateTokenOperation(lengthOfTimeConverter, tokenCreator, repository, asyncRepository, SignedTokens.disabled(), quotas);
+
+        when(asyncRepository.saveTokenAsync(any()))
+            .thenReturn(CompletableFuture.completedFuture(null));
+
+        instance.processAsync(request).join();
+
+        assertThrows(instance.processAsync(request)::join)
+            .hasCauseThatIsExactly(OperationFailedException.class);
+
+        verify(asyncRepository, times(1)).saveTokenAsync(any());
+    }
+
+    @Test
+    public void testProcessAsyncWithBadRequest() throws Exception
+    {
+        assertThrows(instance.processAsync(null)::join)
+            .hasCauseThatIsExactly(InvalidArgumentException.class);
+
+        verifyZeroInteractions(asyncRepository);
+    }
+
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.StringGenerators.uuids;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class CreationQuotasTest
+{
+
+    private MetricRegistry metrics;
+
+    @GenerateString(UUID)
+    private String ownerId;
+
+    @GenerateString(UUID)
+    private String otherOwnerId;
+
+    @GenerateString(UUID)
+    private String organizationId;
+
+    private CreationQuotas instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        metrics = new MetricRegistry();
+
+        instance = new CreationQuotas(new KeyedRateLimiter(1, 1, 1_024, Clock.defaultClock()),
+                                      new KeyedRateLimiter(1, 2, 1_024, Clock.defaultClock()),
+                                      metrics);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new CreationQuotas(null, KeyedRateLimiter.unlimited(), metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CreationQuotas(KeyedRateLimiter.unlimited(), null, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CreationQuotas(KeyedRateLimiter.unlimited(), KeyedRateLimiter.unlimited(), null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testOwnerQuota() throws Exception
+    {
+        instance.checkQuotas(ownerId, null);
+
+        assertThrows(() -> instance.checkQuotas(ownerId, null))
+            .isInstanceOf(OperationFailedException.class);
+
+        assertThat(rejections("owner"), is(1L));
+    }
+
+    @Test
+    public void testOrganizationQuota() throws Exception
+    {
+        instance.checkQuotas(ownerId, organizationId);
+        instance.checkQuotas(otherOwnerId, organizationId);
+
+        assertThrows(() -> instance.checkQuotas(one(uuids), organizationId))
+            .isInstanceOf(OperationFailedException.class);
+
+        assertThat(rejections("organization"), is(1L));
+        assertThat(rejections("owner"), is(0L));
+    }
+
+    @Test
+    public void testWithoutOrganization() throws Exception
+    {
+        instance.checkQuotas(ownerId, null);
+        instance.checkQuotas(otherOwnerId, "");
+        instance.checkQuotas(one(uuids), null);
+
+        assertThat(rejections("organization"), is(0L));
+    }
+
+    @DontRepeat
+    @Test
+    public void testUnlimited() throws Exception
+    {
+        instance = CreationQuotas.unlimited();
+
+        for (int i = 0; i < 1_000; ++i)
+        {
+            instance.checkQuotas(ownerId, organizationId);
+        }
+    }
+
+    private long rejections(String of)
+    {
+        return metrics.counter(MetricRegistry.name(CreationQuotas.class, "rejected", of)).getCount();
+    }
+
+}
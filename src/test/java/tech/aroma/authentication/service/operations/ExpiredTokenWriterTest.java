@@ -0,0 +1,220 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.List;
+import org.apache.thrift.TException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenStatus;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+import tech.sirwellington.alchemy.test.junit.runners.DontRepeat;
+import tech.sirwellington.alchemy.test.junit.runners.Repeat;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.CollectionGenerators.listOf;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class ExpiredTokenWriterTest
+{
+
+    private static final int MAX_PENDING = 100;
+    private static final int BATCH_SIZE = 10;
+
+    @Mock
+    private TokenRepository repository;
+
+    @Captor
+    private ArgumentCaptor<AuthenticationToken> captor;
+
+    private MetricRegistry metrics;
+
+    private AuthenticationToken token;
+
+    private ExpiredTokenWriter instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        metrics = new MetricRegistry();
+        instance = new ExpiredTokenWriter(repository, metrics, MAX_PENDING, BATCH_SIZE);
+
+        token = one(authenticationTokens());
+        token.setStatus(TokenStatus.ACTIVE);
+
+        when(repository.containsToken(anyString())).thenReturn(true);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor() throws Exception
+    {
+        assertThrows(() -> new ExpiredTokenWriter(null, metrics, MAX_PENDING, BATCH_SIZE))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new ExpiredTokenWriter(repository, null, MAX_PENDING, BATCH_SIZE))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new ExpiredTokenWriter(repository, new MetricRegistry(), 0, BATCH_SIZE))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new ExpiredTokenWriter(repository, new MetricRegistry(), MAX_PENDING, 0))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testMarkExpired() throws Exception
+    {
+        instance.markExpired(token);
+
+        assertThat(token.status, is(TokenStatus.EXPIRED));
+        verifyZeroInteractions(repository);
+
+        instance.flush();
+
+        verify(repository).saveToken(captor.capture());
+
+        AuthenticationToken saved = captor.getValue();
+        assertThat(saved, is(token));
+        assertThat(saved, not(sameInstance(token)));
+        assertThat(saved.status, is(TokenStatus.EXPIRED));
+    }
+
+    @Test
+    public void testCloseWritesWhatIsWaiting() throws Exception
+    {
+        instance.markExpired(token);
+
+        instance.close();
+
+        verify(repository).saveToken(token);
+        assertThat(instance.pendingCount(), is(0));
+    }
+
+    @Test
+    public void testCancel() throws Exception
+    {
+        instance.markExpired(token);
+
+        instance.cancel(token.tokenId);
+        assertThat(instance.pendingCount(), is(0));
+
+        instance.flush();
+        verify(repository, never()).saveToken(any());
+    }
+
+    @Test
+    public void testFlushSkipsDeletedTokens() throws Exception
+    {
+        when(repository.containsToken(token.tokenId)).thenReturn(false);
+
+        instance.markExpired(token);
+        instance.flush();
+
+        verify(repository, never()).saveToken(any());
+        assertThat(instance.pendingCount(), is(0));
+    }
+
+    @Test
+    public void testMarkExpiredDeduplicates() throws Exception
+    {
+        instance.markExpired(token);
+        instance.markExpired(token);
+        instance.markExpired(token.deepCopy());
+
+        assertThat(instance.pendingCount(), is(1));
+
+        instance.flush();
+
+        verify(repository, times(1)).saveToken(token);
+        assertThat(instance.pendingCount(), is(0));
+    }
+
+    @Test
+    public void testFlushWritesEveryBatch() throws Exception
+    {
+        List<AuthenticationToken> tokens = listOf(authenticationTokens(), BATCH_SIZE * 3 + 1);
+        tokens.forEach(instance::markExpired);
+
+        instance.flush();
+
+        verify(repository, times(tokens.size())).saveToken(any());
+        assertThat(metrics.counter(MetricRegistry.name(ExpiredTokenWriter.class, "written")).getCount(),
+                   is((long) tokens.size()));
+    }
+
+    @DontRepeat
+    @Test
+    public void testWhenFull() throws Exception
+    {
+        List<AuthenticationToken> tokens = listOf(authenticationTokens(), MAX_PENDING);
+        tokens.forEach(instance::markExpired);
+
+        instance.markExpired(token);
+
+        assertThat(instance.pendingCount(), is(MAX_PENDING));
+        assertThat(token.status, is(TokenStatus.EXPIRED));
+        assertThat(metrics.counter(MetricRegistry.name(ExpiredTokenWriter.class, "dropped")).getCount(), is(1L));
+
+        instance.flush();
+        verify(repository, never()).saveToken(token);
+    }
+
+    @Test
+    public void testWhenRepositoryFails() throws Exception
+    {
+        AuthenticationToken other = one(authenticationTokens());
+
+        doThrow(new TException()).when(repository).saveToken(token);
+
+        instance.markExpired(token);
+        instance.markExpired(other);
+        instance.flush();
+
+        verify(repository).saveToken(other);
+        assertThat(instance.pendingCount(), is(0));
+        assertThat(metrics.counter(MetricRegistry.name(ExpiredTokenWriter.class, "failures")).getCount(), is(1L));
+    }
+
+    @DontRepeat
+    @Test
+    public void testMarkExpiredWithBadArgs() throws Exception
+    {
+        assertThrows(() -> instance.markExpired(null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+}
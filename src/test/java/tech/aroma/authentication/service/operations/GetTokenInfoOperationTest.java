@@ -16,16 +16,23 @@
 
 package tech.aroma.authentication.service.operations;
 
+import com.codahale.metrics.MetricRegistry;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.*;
+import tech.aroma.authentication.service.data.AsyncTokenRepository;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.data.TokenRepository;
 import tech.aroma.thrift.authentication.AuthenticationToken;
 import tech.aroma.thrift.authentication.TokenStatus;
+import tech.aroma.thrift.authentication.TokenType;
 import tech.aroma.thrift.authentication.service.GetTokenInfoRequest;
 import tech.aroma.thrift.authentication.service.GetTokenInfoResponse;
 import tech.aroma.thrift.exceptions.InvalidArgumentException;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
 import tech.aroma.thrift.exceptions.OperationFailedException;
 import tech.sirwellington.alchemy.test.junit.runners.*;
 
@@ -33,8 +40,12 @@ import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.*;
+import static tech.aroma.authentication.service.operations.CompletableFutures.failed;
 import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
 import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.BinaryGenerators.binary;
+import static tech.sirwellington.alchemy.generator.StringGenerators.uuids;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.futureInstants;
 import static tech.sirwellington.alchemy.generator.TimeGenerators.pastInstants;
 import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
 
@@ -48,12 +59,17 @@ public class GetTokenInfoOperationTest
 {
     @Mock
     private TokenRepository repository;
+
+    @Mock
+    private AsyncTokenRepository asyncRepository;
     
     @GeneratePojo
     private GetTokenInfoRequest request;
     
     private AuthenticationToken token;
     
+    private ExpiredTokenWriter expiredTokens;
+    
     private GetTokenInfoOperation instance;
     
     @Captor
@@ -62,7 +78,8 @@ public class GetTokenInfoOperationTest
     @Before
     public void setUp() throws Exception
     {
-        instance = new GetTokenInfoOperation(repository);
+        expiredTokens = new ExpiredTokenWriter(repository, new MetricRegistry(), 100, 10);
+        instance = new GetTokenInfoOperation(repository, asyncRepository, expiredTokens, SignedTokens.disabled());
         verifyZeroInteractions(repository);
         
         token = one(authenticationTokens());
@@ -115,17 +132,79 @@ public class GetTokenInfoOperationTest
     {
         long pastTimestamp = one(pastInstants()).toEpochMilli();
         token.setTimeOfExpiration(pastTimestamp);
+        when(repository.containsToken(token.tokenId)).thenReturn(true);
         
         assertThat(token.status, is(TokenStatus.ACTIVE));
         
         GetTokenInfoResponse response = instance.process(request);
         assertThat(response.token, is(token));
         assertThat(response.token.status, is(TokenStatus.EXPIRED));
+        verify(repository, never()).saveToken(any());
      
+        expiredTokens.flush();
         verify(repository).saveToken(captor.capture());
         
         AuthenticationToken savedToken = captor.getValue();
         assertThat(savedToken, is(token));
         assertThat(savedToken.status, is(TokenStatus.EXPIRED));
     }
+
+    @Test
+    public void testWithSignedToken() throws Exception
+    {
+        SignedTokens signedTokens = new SignedTokens("k1", Collections.singletonMap("k1", one(binary(32))));
+        instance = new GetTokenInfoOperation(repository, asyncRepository, expiredTokens, signedTokens);
+
+        token.setTokenId(one(uuids))
+            .setOwnerId(one(uuids))
+            .setTokenType(TokenType.USER)
+            .setTimeOfExpiration(one(futureInstants()).toEpochMilli());
+
+        when(repository.getToken(token.tokenId)).thenReturn(token);
+
+        String signedTokenId = signedTokens.sign(token);
+        request.setTokenId(signedTokenId);
+
+        GetTokenInfoResponse response = instance.process(request);
+        assertThat(response.token.tokenId, is(signedTokenId));
+        assertThat(response.token.ownerId, is(token.ownerId));
+
+        request.setTokenId(signedTokenId + "A");
+        assertThrows(() -> instance.process(request))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testProcessAsync() throws Exception
+    {
+        when(asyncRepository.getTokenAsync(token.getTokenId()))
+            .thenReturn(CompletableFuture.completedFuture(token));
+
+        GetTokenInfoResponse response = instance.processAsync(request).join();
+        assertThat(response.token, is(token));
+
+        verify(repository, never()).getToken(any());
+    }
+
+    @DontRepeat
+    @Test
+    public void testProcessAsyncWhenRepositoryFails() throws Exception
+    {
+        when(asyncRepository.getTokenAsync(token.getTokenId()))
+            .thenReturn(failed(new RuntimeException()));
+
+        assertThrows(instance.processAsync(request)::join)
+            .hasCauseThatIsExactly(OperationFailedException.class);
+    }
+
+    @DontRepeat
+    @Test
+    public void testProcessAsyncWithBadRequest() throws Exception
+    {
+        assertThrows(instance.processAsync(null)::join)
+            .hasCauseThatIsExactly(InvalidArgumentException.class);
+
+        verifyZeroInteractions(asyncRepository);
+    }
+
 }
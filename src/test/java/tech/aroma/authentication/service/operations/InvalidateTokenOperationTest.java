@@ -16,23 +16,37 @@
 
 package tech.aroma.authentication.service.operations;
 
+import com.codahale.metrics.MetricRegistry;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import tech.aroma.authentication.service.data.AsyncTokenRepository;
+import tech.aroma.authentication.service.data.InvalidationBus;
+import tech.aroma.authentication.service.data.OwnerTokenPager;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.data.TokenRepository;
 import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenType;
 import tech.aroma.thrift.authentication.service.InvalidateTokenRequest;
 import tech.aroma.thrift.authentication.service.InvalidateTokenResponse;
 import tech.aroma.thrift.exceptions.InvalidArgumentException;
 import tech.aroma.thrift.exceptions.OperationFailedException;
 import tech.sirwellington.alchemy.test.junit.runners.*;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.*;
+import static tech.aroma.authentication.service.operations.CompletableFutures.failed;
 import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
 import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.BinaryGenerators.binary;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.futureInstants;
 import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
 import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
 
@@ -47,6 +61,18 @@ public class InvalidateTokenOperationTest
     @Mock
     private TokenRepository tokenRepo;
 
+    @Mock
+    private AsyncTokenRepository asyncRepository;
+
+    @Mock
+    private InvalidationBus invalidationBus;
+
+    @Mock
+    private OwnerTokenPager pager;
+
+    @Mock
+    private ScheduledExecutorService scheduler;
+
     @GeneratePojo
     private InvalidateTokenRequest request;
     
@@ -59,17 +85,37 @@ public class InvalidateTokenOperationTest
     @GenerateString(UUID)
     private String ownerId;
 
+    private SignedTokens signedTokens;
+
+    private ExpiredTokenWriter expiredTokens;
+
+    private OwnerTokenDeletions ownerDeletions;
+
     private InvalidateTokenOperation instance;
 
     @Before
     public void setUp()
     {
-        instance = new InvalidateTokenOperation(tokenRepo);
+        signedTokens = new SignedTokens("k1", Collections.singletonMap("k1", one(binary(32))));
+        expiredTokens = new ExpiredTokenWriter(tokenRepo, new MetricRegistry(), 100, 10);
+        ownerDeletions = new OwnerTokenDeletions(pager,
+                                                 asyncRepository,
+                                                 expiredTokens,
+                                                 signedTokens,
+                                                 invalidationBus,
+                                                 OwnerTokenDeletions.DEFAULT_PARALLELISM,
+                                                 null,
+                                                 scheduler,
+                                                 new MetricRegistry());
+
+        instance = new InvalidateTokenOperation(tokenRepo, asyncRepository, expiredTokens, signedTokens, invalidationBus, ownerDeletions);
         verifyZeroInteractions(tokenRepo);
 
         authenticationToken = one(authenticationTokens());
         authenticationToken.tokenId = tokenId;
         authenticationToken.ownerId = ownerId;
+        authenticationToken.tokenType = TokenType.USER;
+        authenticationToken.timeOfExpiration = one(futureInstants()).toEpochMilli();
         
         request.setToken(authenticationToken);
         request.unsetBelongingTo();
@@ -78,7 +124,22 @@ public class InvalidateTokenOperationTest
     @Test
     public void testConstructor()
     {
-        assertThrows(() -> new InvalidateTokenOperation(null))
+        assertThrows(() -> new InvalidateTokenOperation(null, asyncRepository, expiredTokens, signedTokens, invalidationBus, ownerDeletions))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new InvalidateTokenOperation(tokenRepo, null, expiredTokens, signedTokens, invalidationBus, ownerDeletions))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new InvalidateTokenOperation(tokenRepo, asyncRepository, null, signedTokens, invalidationBus, ownerDeletions))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new InvalidateTokenOperation(tokenRepo, asyncRepository, expiredTokens, null, invalidationBus, ownerDeletions))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new InvalidateTokenOperation(tokenRepo, asyncRepository, expiredTokens, signedTokens, null, ownerDeletions))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new InvalidateTokenOperation(tokenRepo, asyncRepository, expiredTokens, signedTokens, invalidationBus, null))
             .isInstanceOf(IllegalArgumentException.class);
     }
 
@@ -90,6 +151,18 @@ public class InvalidateTokenOperationTest
         assertThat(response, notNullValue());
 
         verify(tokenRepo).deleteToken(tokenId);
+        verify(invalidationBus).publishToken(tokenId, 0L);
+    }
+
+    @Test
+    public void testCancelsExpiredTokenWrite() throws Exception
+    {
+        expiredTokens.markExpired(authenticationToken.deepCopy());
+
+        instance.process(request);
+
+        assertThat(expiredTokens.pendingCount(), is(0));
+        verify(tokenRepo, never()).saveToken(any());
     }
 
     @Test
@@ -108,6 +181,9 @@ public class InvalidateTokenOperationTest
 
         assertThrows(() -> instance.process(request))
             .isInstanceOf(OperationFailedException.class);
+
+        //Other nodes may hold the Token in memory whether or not it was deleted.
+        verify(invalidationBus).publishToken(tokenId, 0L);
     }
 
     @Test
@@ -139,14 +215,132 @@ public class InvalidateTokenOperationTest
     @Test
     public void testWithDeleteBelongingTo() throws Exception
     {
+        setupOwnerTokens();
+
         request.belongingTo = ownerId;
         request.unsetToken();
         request.unsetMultipleTokens();
         
         InvalidateTokenResponse response = instance.process(request);
         assertThat(response, notNullValue());
+        assertThat(response.message, containsString("Deleted 1 Tokens"));
         
-        verify(tokenRepo).deleteTokensBelongingTo(ownerId);
+        verify(asyncRepository).deleteTokenAsync(tokenId);
+        verify(invalidationBus).publishOwner(ownerId);
+        verifyZeroInteractions(tokenRepo);
+    }
+
+    @Test
+    public void testWithDeleteBelongingToWhenRepositoryFails() throws Exception
+    {
+        setupOwnerTokens();
+
+        when(asyncRepository.deleteTokenAsync(tokenId))
+            .thenReturn(failed(new RuntimeException()));
+
+        request.belongingTo = ownerId;
+        request.unsetToken();
+        request.unsetMultipleTokens();
+
+        assertThrows(() -> instance.process(request))
+            .isInstanceOf(OperationFailedException.class);
+    }
+
+    @Test
+    public void testWithSignedToken() throws Exception
+    {
+        String signedTokenId = signedTokens.sign(authenticationToken);
+        request.setToken(authenticationToken.deepCopy().setTokenId(signedTokenId));
+
+        instance.process(request);
+
+        verify(tokenRepo).deleteToken(tokenId);
+        assertThat(signedTokens.isRevoked(tokenId), is(true));
+
+        long timeOfExpiration = signedTokens.verify(signedTokenId).getTimeOfExpiration();
+        verify(invalidationBus).publishToken(tokenId, timeOfExpiration);
+    }
+
+    @Test
+    public void testWithDeleteBelongingToRevokesSignedTokens() throws Exception
+    {
+        setupOwnerTokens();
+
+        request.belongingTo = ownerId;
+        request.unsetToken();
+        request.unsetMultipleTokens();
+
+        instance.process(request);
+
+        verify(asyncRepository).deleteTokenAsync(tokenId);
+        assertThat(signedTokens.isRevoked(tokenId), is(true));
+
+        verify(invalidationBus).publishToken(tokenId, authenticationToken.timeOfExpiration);
+        verify(invalidationBus).publishOwner(ownerId);
+    }
+
+    @Repeat(50)
+    @Test
+    public void testProcessAsync() throws Exception
+    {
+        when(asyncRepository.deleteTokenAsync(tokenId))
+            .thenReturn(CompletableFuture.completedFuture(null));
+
+        InvalidateTokenResponse response = instance.processAsync(request).join();
+        assertThat(response, notNullValue());
+
+        verify(asyncRepository).deleteTokenAsync(tokenId);
+        verifyZeroInteractions(tokenRepo);
+        verify(invalidationBus).publishToken(tokenId, 0L);
+    }
+
+    @Test
+    public void testProcessAsyncWhenRepositoryFails() throws Exception
+    {
+        when(asyncRepository.deleteTokenAsync(tokenId))
+            .thenReturn(failed(new RuntimeException()));
+
+        assertThrows(instance.processAsync(request)::join)
+            .hasCauseThatIsExactly(OperationFailedException.class);
+    }
+
+    @Test
+    public void testProcessAsyncWithDeleteBelongingToRevokesSignedTokens() throws Exception
+    {
+        setupOwnerTokens();
+
+        request.belongingTo = ownerId;
+        request.unsetToken();
+        request.unsetMultipleTokens();
+
+        InvalidateTokenResponse response = instance.processAsync(request).join();
+        assertThat(response.message, containsString(ownerId));
+
+        verify(asyncRepository).deleteTokenAsync(tokenId);
+        assertThat(signedTokens.isRevoked(tokenId), is(true));
+
+        verify(invalidationBus).publishToken(tokenId, authenticationToken.timeOfExpiration);
+        verify(invalidationBus).publishOwner(ownerId);
+    }
+
+    @Test
+    public void testProcessAsyncWithMissingToken() throws Exception
+    {
+        request.token = null;
+
+        assertThrows(instance.processAsync(request)::join)
+            .hasCauseThatIsExactly(InvalidArgumentException.class);
+
+        verifyZeroInteractions(asyncRepository, invalidationBus);
+    }
+
+    private void setupOwnerTokens()
+    {
+        when(pager.getPage(ownerId, null))
+            .thenReturn(CompletableFuture.completedFuture(new OwnerTokenPager.Page(Collections.singletonList(authenticationToken), null)));
+
+        when(asyncRepository.deleteTokenAsync(tokenId))
+            .thenReturn(CompletableFuture.completedFuture(null));
     }
 
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.Clock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class KeyedRateLimiterTest
+{
+
+    private static final int TOKENS_PER_MINUTE = 60;
+    private static final int BURST = 10;
+
+    private AtomicLong tick;
+    private Clock clock;
+
+    @GenerateString(UUID)
+    private String key;
+
+    @GenerateString(UUID)
+    private String otherKey;
+
+    private KeyedRateLimiter instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        tick = new AtomicLong(System.nanoTime());
+
+        clock = new Clock()
+        {
+            @Override
+            public long getTick()
+            {
+                return tick.get();
+            }
+        };
+
+        instance = new KeyedRateLimiter(TOKENS_PER_MINUTE, BURST, KeyedRateLimiter.DEFAULT_BUCKETS, clock);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new KeyedRateLimiter(-1, BURST, 16, clock))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new KeyedRateLimiter(TOKENS_PER_MINUTE, 0, 16, clock))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new KeyedRateLimiter(TOKENS_PER_MINUTE, BURST, 0, clock))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new KeyedRateLimiter(TOKENS_PER_MINUTE, BURST, 16, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testAllowsTheBurst()
+    {
+        for (int i = 0; i < BURST; ++i)
+        {
+            assertThat(instance.tryAcquire(key), is(true));
+        }
+
+        assertThat(instance.tryAcquire(key), is(false));
+    }
+
+    @Test
+    public void testRefillsOverTime()
+    {
+        spend(key);
+
+        tick.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertThat(instance.tryAcquire(key), is(false));
+
+        tick.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertThat(instance.tryAcquire(key), is(true));
+        assertThat(instance.tryAcquire(key), is(false));
+    }
+
+    @Test
+    public void testRefillsNoMoreThanTheBurst()
+    {
+        tick.addAndGet(TimeUnit.HOURS.toNanos(1));
+
+        spend(key);
+        assertThat(instance.tryAcquire(key), is(false));
+    }
+
+    @Test
+    public void testKeysAreLimitedSeparately()
+    {
+        spend(key);
+
+        assertThat(instance.tryAcquire(otherKey), is(true));
+    }
+
+    @DontRepeat
+    @Test
+    public void testMostKeysAreUnaffectedByCollisions()
+    {
+        instance = new KeyedRateLimiter(TOKENS_PER_MINUTE, BURST, 1_024, clock);
+
+        //Empties about a tenth of the buckets.
+        for (int i = 0; i < 50; ++i)
+        {
+            spend("noisy-" + i);
+        }
+
+        int allowed = 0;
+
+        for (int i = 0; i < 1_000; ++i)
+        {
+            if (instance.tryAcquire("quiet-" + i))
+            {
+                ++allowed;
+            }
+        }
+
+        assertThat(allowed, greaterThan(900));
+    }
+
+    @DontRepeat
+    @Test
+    public void testUnlimited()
+    {
+        instance = new KeyedRateLimiter(0, 1, 16, clock);
+        assertThat(instance.isEnabled(), is(false));
+
+        for (int i = 0; i < 1_000; ++i)
+        {
+            assertThat(instance.tryAcquire(key), is(true));
+        }
+
+        assertThat(KeyedRateLimiter.unlimited().tryAcquire(key), is(true));
+    }
+
+    private void spend(String key)
+    {
+        for (int i = 0; i < BURST; ++i)
+        {
+            instance.tryAcquire(key);
+        }
+    }
+
+}
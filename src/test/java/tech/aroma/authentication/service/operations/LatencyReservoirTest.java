@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Snapshot;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.NumberGenerators.longs;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class LatencyReservoirTest
+{
+
+    private static final Duration WINDOW = Duration.ofSeconds(60);
+
+    private AtomicLong tick;
+
+    private LatencyReservoir instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        tick = new AtomicLong();
+
+        Clock clock = new Clock()
+        {
+            @Override
+            public long getTick()
+            {
+                return tick.get();
+            }
+        };
+
+        instance = new LatencyReservoir(WINDOW, clock);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new LatencyReservoir(null, Clock.defaultClock()))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new LatencyReservoir(WINDOW, null))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new LatencyReservoir(Duration.ZERO, Clock.defaultClock()))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testBucketsHoldTheirValues()
+    {
+        long value = one(longs(0, Long.MAX_VALUE));
+        int bucket = LatencyReservoir.bucketOf(value);
+
+        assertThat(value, greaterThanOrEqualTo(LatencyReservoir.lowestValueIn(bucket)));
+        assertThat(value, lessThanOrEqualTo(LatencyReservoir.highestValueIn(bucket)));
+    }
+
+    @Test
+    public void testValuesAreWithinPrecision()
+    {
+        long value = one(longs(64, Long.MAX_VALUE / 2));
+        long reported = LatencyReservoir.valueOf(LatencyReservoir.bucketOf(value));
+
+        assertThat(Math.abs(reported - value), lessThanOrEqualTo(value / 32));
+    }
+
+    @DontRepeat
+    @Test
+    public void testSmallValuesAreExact()
+    {
+        for (long value = 0; value < 64; ++value)
+        {
+            assertThat(LatencyReservoir.valueOf(LatencyReservoir.bucketOf(value)), is(value));
+        }
+    }
+
+    @DontRepeat
+    @Test
+    public void testGetSnapshot()
+    {
+        for (long value = 1; value <= 100; ++value)
+        {
+            instance.update(value * 1_000);
+        }
+
+        Snapshot snapshot = instance.getSnapshot();
+
+        assertThat(snapshot.size(), is(100));
+        assertThat(snapshot.getMedian(), closeTo(50_000.0, 50_000 / 32.0));
+        assertThat(snapshot.get99thPercentile(), closeTo(99_000.0, 99_000 / 32.0));
+        assertThat((double) snapshot.getMin(), closeTo(1_000.0, 1_000 / 32.0));
+        assertThat((double) snapshot.getMax(), closeTo(100_000.0, 100_000 / 32.0));
+        assertThat(snapshot.getMean(), closeTo(50_500.0, 50_500 / 32.0));
+
+        long[] values = snapshot.getValues();
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        assertThat(values, is(sorted));
+    }
+
+    @DontRepeat
+    @Test
+    public void testEmptySnapshot()
+    {
+        Snapshot snapshot = instance.getSnapshot();
+
+        assertThat(snapshot.size(), is(0));
+        assertThat(snapshot.get99thPercentile(), is(0.0));
+        assertThat(snapshot.getMax(), is(0L));
+        assertThat(snapshot.getValues().length, is(0));
+    }
+
+    @DontRepeat
+    @Test
+    public void testGetValueWithBadQuantile()
+    {
+        Snapshot snapshot = instance.getSnapshot();
+
+        assertThrows(() -> snapshot.getValue(-0.1))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> snapshot.getValue(Double.NaN))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @DontRepeat
+    @Test
+    public void testKeepsTheLastTwoWindows()
+    {
+        instance.update(1);
+
+        tick.addAndGet(WINDOW.toNanos());
+        instance.update(2);
+        assertThat(instance.size(), is(2));
+
+        tick.addAndGet(WINDOW.toNanos());
+        assertThat(instance.size(), is(1));
+
+        tick.addAndGet(2 * WINDOW.toNanos());
+        assertThat(instance.size(), is(0));
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.slf4j.Logger;
+import tech.aroma.thrift.authentication.service.VerifyTokenRequest;
+import tech.aroma.thrift.authentication.service.VerifyTokenResponse;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.test.junit.runners.*;
+import tech.sirwellington.alchemy.thrift.operations.ThriftOperation;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static tech.aroma.authentication.service.operations.CompletableFutures.failed;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
+
+/**
+ *
+ * @author SirWellington
+ */
+@RunWith(AlchemyTestRunner.class)
+public class MeasuredOperationTest
+{
+
+    @Mock
+    private ThriftOperation<VerifyTokenRequest, VerifyTokenResponse> operation;
+
+    @Mock
+    private AsyncThriftOperation<VerifyTokenRequest, VerifyTokenResponse> asyncOperation;
+
+    @Mock
+    private Logger accessLogOutput;
+
+    @GeneratePojo
+    private VerifyTokenRequest request;
+
+    @GeneratePojo
+    private VerifyTokenResponse response;
+
+    private MetricRegistry metrics;
+
+    private MeasuredOperation<VerifyTokenRequest, VerifyTokenResponse> instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        metrics = new MetricRegistry();
+        instance = new MeasuredOperation<>(operation, asyncOperation, metrics);
+
+        when(operation.process(request)).thenReturn(response);
+        when(asyncOperation.processAsync(request)).thenReturn(CompletableFuture.completedFuture(response));
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new MeasuredOperation<>(null, asyncOperation, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new MeasuredOperation<>(operation, null, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new MeasuredOperation<>(operation, asyncOperation, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testProcess() throws Exception
+    {
+        assertThat(instance.process(request), is(response));
+
+        verify(operation).process(request);
+        assertThat(latencyCount(), is(1L));
+        assertThat(metrics.getCounters().keySet(), is(empty()));
+    }
+
+    @Test
+    public void testProcessWhenOperationFails() throws Exception
+    {
+        when(operation.process(request)).thenThrow(new InvalidTokenException());
+
+        assertThrows(() -> instance.process(request))
+            .isInstanceOf(InvalidTokenException.class);
+
+        assertThat(latencyCount(), is(1L));
+        assertThat(errorCount(InvalidTokenException.class), is(1L));
+        assertThat(errorCount(OperationFailedException.class), is(0L));
+    }
+
+    @Test
+    public void testProcessAsync() throws Exception
+    {
+        assertThat(instance.processAsync(request).join(), is(response));
+
+        verify(asyncOperation).processAsync(request);
+        verifyZeroInteractions(operation);
+        assertThat(latencyCount(), is(1L));
+    }
+
+    @Test
+    public void testProcessAsyncIsTimedUntilItCompletes() throws Exception
+    {
+        CompletableFuture<VerifyTokenResponse> pending = new CompletableFuture<>();
+        when(asyncOperation.processAsync(request)).thenReturn(pending);
+
+        CompletableFuture<VerifyTokenResponse> result = instance.processAsync(request);
+        assertThat(latencyCount(), is(0L));
+
+        pending.complete(response);
+        assertThat(result.join(), is(response));
+        assertThat(latencyCount(), is(1L));
+    }
+
+    @Test
+    public void testProcessAsyncWhenOperationFails() throws Exception
+    {
+        when(asyncOperation.processAsync(request)).thenReturn(failed(new OperationFailedException()));
+
+        assertThrows(() -> instance.processAsync(request).join())
+            .hasCauseThatIsExactly(OperationFailedException.class);
+
+        assertThat(latencyCount(), is(1L));
+        assertThat(errorCount(OperationFailedException.class), is(1L));
+    }
+
+    @Test
+    public void testInstancesShareMetrics() throws Exception
+    {
+        MeasuredOperation<VerifyTokenRequest, VerifyTokenResponse> second = new MeasuredOperation<>(operation,
+                                                                                                    asyncOperation,
+                                                                                                    metrics);
+        instance.process(request);
+        second.process(request);
+
+        assertThat(latencyCount(), is(2L));
+    }
+
+    @Test
+    public void testCallsAreWrittenToTheAccessLog() throws Exception
+    {
+        AccessLog accessLog = new AccessLog(1.0, 16, accessLogOutput, new MetricRegistry());
+        instance = new MeasuredOperation<>(operation, asyncOperation, (req, res) -> req.tokenId, accessLog, metrics);
+
+        instance.process(request);
+        assertThat(accessLog.drain(), is(1));
+
+        verify(accessLogOutput).info(anyString(),
+                                     any(),
+                                     anyString(),
+                                     eq(AccessLog.hashOf(request.tokenId)),
+                                     anyLong(),
+                                     eq(AccessLog.SUCCESS));
+    }
+
+    @Test
+    public void testFailuresAreWrittenToTheAccessLog() throws Exception
+    {
+        AccessLog accessLog = new AccessLog(1.0, 16, accessLogOutput, new MetricRegistry());
+        instance = new MeasuredOperation<>(operation, asyncOperation, (req, res) -> req.tokenId, accessLog, metrics);
+
+        when(asyncOperation.processAsync(request)).thenReturn(failed(new InvalidTokenException()));
+
+        assertThrows(() -> instance.processAsync(request).join())
+            .hasCauseThatIsExactly(InvalidTokenException.class);
+
+        assertThat(accessLog.drain(), is(1));
+
+        verify(accessLogOutput).info(anyString(),
+                                     any(),
+                                     anyString(),
+                                     anyString(),
+                                     anyLong(),
+                                     eq(InvalidTokenException.class.getSimpleName()));
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructorWithAccessLog()
+    {
+        assertThrows(() -> new MeasuredOperation<>(operation, asyncOperation, null, AccessLog.disabled(), metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new MeasuredOperation<>(operation, asyncOperation, (req, res) -> null, null, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private long latencyCount()
+    {
+        return metrics.getTimers().get(MetricRegistry.name(operation.getClass(), "latency")).getCount();
+    }
+
+    private long errorCount(Class<? extends Exception> type)
+    {
+        return metrics.counter(MetricRegistry.name(operation.getClass(), "errors", type.getSimpleName())).getCount();
+    }
+
+}
@@ -16,20 +16,37 @@
 
 package tech.aroma.authentication.service.operations;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.Module;
 import com.google.inject.Provides;
+import com.google.inject.TypeLiteral;
+import java.time.Duration;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.authentication.service.data.TokenCreator;
 import tech.aroma.data.memory.ModuleMemoryDataRepositories;
+import tech.aroma.thrift.authentication.service.InvalidateTokenRequest;
+import tech.aroma.thrift.authentication.service.InvalidateTokenResponse;
+import tech.aroma.thrift.authentication.service.VerifyTokenRequest;
+import tech.aroma.thrift.authentication.service.VerifyTokenResponse;
 import tech.sirwellington.alchemy.annotations.testing.IntegrationTest;
 import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+import tech.sirwellington.alchemy.test.junit.runners.GenerateString;
+import tech.sirwellington.alchemy.thrift.operations.ThriftOperation;
 
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.mock;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
 
 /**
  *
@@ -42,6 +59,12 @@ public class ModuleAuthenticationOperationsTest
     private ModuleMemoryDataRepositories dataModule;
 
     private ModuleAuthenticationOperations module;
+
+    @GenerateString(UUID)
+    private String ownerId;
+
+    @GenerateString(UUID)
+    private String organizationId;
     
     @Before
     public void setUp()
@@ -56,13 +79,113 @@ public class ModuleAuthenticationOperationsTest
         Injector injector = Guice.createInjector(dataModule,
                                                  module,
                                                  tokenCreatorModule);
+        
+        BatchTokenVerifier verifier = injector.getInstance(BatchTokenVerifier.class);
+        assertThat(verifier, notNullValue());
     }
     
+    @Test
+    public void testOperationsAreMeasured()
+    {
+        Injector injector = Guice.createInjector(dataModule,
+                                                 module,
+                                                 tokenCreatorModule);
+
+        ThriftOperation<VerifyTokenRequest, VerifyTokenResponse> operation =
+            injector.getInstance(Key.get(new TypeLiteral<ThriftOperation<VerifyTokenRequest, VerifyTokenResponse>>() {}));
+
+        AsyncThriftOperation<VerifyTokenRequest, VerifyTokenResponse> asyncOperation =
+            injector.getInstance(Key.get(new TypeLiteral<AsyncThriftOperation<VerifyTokenRequest, VerifyTokenResponse>>() {}));
+
+        assertThat(operation, instanceOf(MeasuredOperation.class));
+        assertThat(asyncOperation, sameInstance(operation));
+    }
+
+    @Test
+    public void testWithAccessLog()
+    {
+        assertThat(module.withAccessLog(0.5), sameInstance(module));
+
+        assertThrows(() -> module.withAccessLog(-1))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> module.withAccessLog(2))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testWithQuotas()
+    {
+        assertThat(module.withOwnerQuota(0, 1), sameInstance(module));
+        assertThat(module.withOrganizationQuota(60, 10), sameInstance(module));
+
+        assertThrows(() -> module.withOwnerQuota(-1, 1))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> module.withOwnerQuota(60, 0))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> module.withOrganizationQuota(-1, 1))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> module.withOrganizationQuota(60, 0))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testQuotasAreOffByDefault() throws Exception
+    {
+        Injector injector = Guice.createInjector(dataModule,
+                                                 module,
+                                                 tokenCreatorModule);
+
+        CreationQuotas quotas = injector.getInstance(CreationQuotas.class);
+
+        for (int i = 0; i < ModuleAuthenticationOperations.DEFAULT_OWNER_BURST * 2; ++i)
+        {
+            quotas.checkQuotas(ownerId, organizationId);
+        }
+    }
+
+    @Test
+    public void testWithOwnerDeletion()
+    {
+        assertThat(module.withOwnerDeletionParallelism(4), sameInstance(module));
+        assertThat(module.withBackgroundOwnerDeletion(Duration.ZERO), sameInstance(module));
+        assertThat(module.withoutOwnerDeletionLog(), sameInstance(module));
+
+        assertThrows(() -> module.withOwnerDeletionParallelism(0))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> module.withBackgroundOwnerDeletion(null))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> module.withBackgroundOwnerDeletion(Duration.ofSeconds(-1)))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testConfigureWithBackgroundOwnerDeletion()
+    {
+        module.withBackgroundOwnerDeletion(Duration.ofSeconds(1));
+
+        Injector injector = Guice.createInjector(dataModule,
+                                                 module,
+                                                 tokenCreatorModule);
+
+        AsyncThriftOperation<InvalidateTokenRequest, InvalidateTokenResponse> operation =
+            injector.getInstance(Key.get(new TypeLiteral<AsyncThriftOperation<InvalidateTokenRequest, InvalidateTokenResponse>>() {}));
+
+        assertThat(operation, notNullValue());
+        assertThat(injector.getInstance(OwnerTokenDeletions.class), sameInstance(injector.getInstance(OwnerTokenDeletions.class)));
+    }
+
     private Module tokenCreatorModule = new AbstractModule()
     {
         @Override
         protected void configure()
         {
+            bind(SignedTokens.class).toInstance(SignedTokens.disabled());
         }
         
         @Provides
@@ -70,6 +193,12 @@ public class ModuleAuthenticationOperationsTest
         {
             return mock(TokenCreator.class);
         }
+        
+        @Provides
+        MetricRegistry provideMetricRegistry()
+        {
+            return new MetricRegistry();
+        }
     };
 
 }
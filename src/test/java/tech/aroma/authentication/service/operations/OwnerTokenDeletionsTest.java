@@ -0,0 +1,407 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.slf4j.Logger;
+import tech.aroma.authentication.service.data.AsyncTokenRepository;
+import tech.aroma.authentication.service.data.InvalidationBus;
+import tech.aroma.authentication.service.data.OwnerTokenPager;
+import tech.aroma.authentication.service.data.SignedTokens;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.exceptions.InvalidArgumentException;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+import tech.sirwellington.alchemy.test.junit.runners.GenerateString;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static tech.aroma.authentication.service.operations.CompletableFutures.failed;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@RunWith(AlchemyTestRunner.class)
+public class OwnerTokenDeletionsTest
+{
+
+    private static final int PARALLELISM = 4;
+
+    @Mock
+    private OwnerTokenPager pager;
+
+    @Mock
+    private AsyncTokenRepository repository;
+
+    @Mock
+    private TokenRepository storage;
+
+    @Mock
+    private InvalidationBus invalidationBus;
+
+    @Mock
+    private ScheduledExecutorService scheduler;
+
+    @Mock
+    private Logger log;
+
+    @Captor
+    private ArgumentCaptor<Runnable> captor;
+
+    @GenerateString(UUID)
+    private String ownerId;
+
+    private SignedTokens signedTokens;
+
+    private ExpiredTokenWriter expiredTokens;
+
+    private MetricRegistry metrics;
+
+    private OwnerTokenDeletions instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        signedTokens = SignedTokens.disabled();
+        metrics = new MetricRegistry();
+        expiredTokens = new ExpiredTokenWriter(storage, metrics, 100, 10);
+        instance = newInstance(null);
+
+        when(repository.deleteTokenAsync(anyString()))
+            .thenReturn(CompletableFuture.completedFuture(null));
+    }
+
+    private OwnerTokenDeletions newInstance(Duration maxWait)
+    {
+        return new OwnerTokenDeletions(pager,
+                                       repository,
+                                       expiredTokens,
+                                       signedTokens,
+                                       invalidationBus,
+                                       PARALLELISM,
+                                       maxWait,
+                                       scheduler,
+                                       new MetricRegistry());
+    }
+
+    @Test
+    public void testConstructor() throws Exception
+    {
+        assertThrows(() -> new OwnerTokenDeletions(null, repository, expiredTokens, signedTokens, invalidationBus, PARALLELISM, null, scheduler, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new OwnerTokenDeletions(pager, null, expiredTokens, signedTokens, invalidationBus, PARALLELISM, null, scheduler, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new OwnerTokenDeletions(pager, repository, null, signedTokens, invalidationBus, PARALLELISM, null, scheduler, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new OwnerTokenDeletions(pager, repository, expiredTokens, signedTokens, invalidationBus, 0, null, scheduler, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new OwnerTokenDeletions(pager, repository, expiredTokens, signedTokens, invalidationBus, PARALLELISM, Duration.ofSeconds(-1), scheduler, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new OwnerTokenDeletions(pager, repository, expiredTokens, signedTokens, invalidationBus, PARALLELISM, null, scheduler, null, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testRecordsFinishedJobsInTheLog() throws Exception
+    {
+        instance = new OwnerTokenDeletions(pager, repository, expiredTokens, signedTokens, invalidationBus, PARALLELISM, null, scheduler, log, metrics);
+
+        when(pager.getPage(ownerId, null)).thenReturn(page(tokens(2), null));
+
+        instance.deleteTokensBelongingTo(ownerId).join();
+
+        verify(log).info(eq("Deleted {}"), (Object) any());
+    }
+
+    @Test
+    public void testDeletesEveryPage() throws Exception
+    {
+        List<AuthenticationToken> first = tokens(10);
+        List<AuthenticationToken> second = tokens(3);
+
+        when(pager.getPage(ownerId, null)).thenReturn(page(first, "page-2"));
+        when(pager.getPage(ownerId, "page-2")).thenReturn(page(second, null));
+
+        String message = instance.deleteTokensBelongingTo(ownerId).join();
+        assertThat(message, containsString("Deleted 13 Tokens belonging to " + ownerId));
+
+        for (AuthenticationToken token : first)
+        {
+            verify(repository).deleteTokenAsync(token.tokenId);
+        }
+
+        for (AuthenticationToken token : second)
+        {
+            verify(repository).deleteTokenAsync(token.tokenId);
+        }
+
+        verify(invalidationBus, times(2)).publishOwner(ownerId);
+    }
+
+    @Test
+    public void testCancelsExpiredTokenWrites() throws Exception
+    {
+        List<AuthenticationToken> tokens = tokens(3);
+        tokens.forEach(expiredTokens::markExpired);
+
+        when(pager.getPage(ownerId, null)).thenReturn(page(tokens, null));
+
+        instance.deleteTokensBelongingTo(ownerId).join();
+
+        assertThat(expiredTokens.pendingCount(), is(0));
+        verify(storage, never()).saveToken(any());
+    }
+
+    @Test
+    public void testDeletesAtMostParallelismAtOnce() throws Exception
+    {
+        List<AuthenticationToken> tokens = tokens(PARALLELISM * 3);
+        List<CompletableFuture<Void>> deletions = new ArrayList<>();
+
+        when(pager.getPage(ownerId, null)).thenReturn(page(tokens, null));
+        when(repository.deleteTokenAsync(anyString())).thenAnswer(invocation ->
+        {
+            CompletableFuture<Void> deletion = new CompletableFuture<>();
+            deletions.add(deletion);
+            return deletion;
+        });
+
+        CompletableFuture<String> result = instance.deleteTokensBelongingTo(ownerId);
+        assertThat(deletions.size(), is(PARALLELISM));
+
+        deletions.get(0).complete(null);
+        assertThat(deletions.size(), is(PARALLELISM + 1));
+
+        for (int i = 1; i < deletions.size(); ++i)
+        {
+            deletions.get(i).complete(null);
+        }
+
+        assertThat(deletions.size(), is(tokens.size()));
+        assertThat(result.join(), containsString("Deleted " + tokens.size()));
+    }
+
+    @Test
+    public void testResumesFromWhereItFailed() throws Exception
+    {
+        List<AuthenticationToken> first = tokens(5);
+        List<AuthenticationToken> second = tokens(5);
+        AuthenticationToken failing = second.get(2);
+
+        when(pager.getPage(ownerId, null)).thenReturn(page(first, "page-2"));
+        when(pager.getPage(ownerId, "page-2")).thenReturn(page(second, null));
+        when(repository.deleteTokenAsync(failing.tokenId)).thenReturn(failed(new RuntimeException()));
+
+        assertThrows(instance.deleteTokensBelongingTo(ownerId)::join)
+            .hasCauseThatIsExactly(OperationFailedException.class);
+
+        when(repository.deleteTokenAsync(failing.tokenId)).thenReturn(CompletableFuture.completedFuture(null));
+
+        instance.deleteTokensBelongingTo(ownerId).join();
+
+        //The first page was emptied before the failure, so it is not read again.
+        verify(pager, times(1)).getPage(ownerId, null);
+        verify(pager, times(2)).getPage(ownerId, "page-2");
+
+        for (AuthenticationToken token : first)
+        {
+            verify(repository, times(1)).deleteTokenAsync(token.tokenId);
+        }
+
+        verify(repository, times(2)).deleteTokenAsync(failing.tokenId);
+    }
+
+    @Test
+    public void testStartsOverOnceDone() throws Exception
+    {
+        when(pager.getPage(ownerId, null)).thenReturn(page(tokens(2), null));
+
+        instance.deleteTokensBelongingTo(ownerId).join();
+        instance.deleteTokensBelongingTo(ownerId).join();
+
+        verify(pager, times(2)).getPage(ownerId, null);
+    }
+
+    @Test
+    public void testJoinsRunningJob() throws Exception
+    {
+        CompletableFuture<OwnerTokenPager.Page> firstPage = new CompletableFuture<>();
+        when(pager.getPage(ownerId, null)).thenReturn(firstPage);
+
+        CompletableFuture<String> first = instance.deleteTokensBelongingTo(ownerId);
+        CompletableFuture<String> second = instance.deleteTokensBelongingTo(ownerId);
+
+        firstPage.complete(new OwnerTokenPager.Page(tokens(3), null));
+
+        assertThat(first.join(), is(second.join()));
+        verify(pager, times(1)).getPage(ownerId, null);
+        verify(repository, times(3)).deleteTokenAsync(anyString());
+    }
+
+    @Test
+    public void testCountsRunningJobsUntilTheyFinish() throws Exception
+    {
+        MetricRegistry registry = new MetricRegistry();
+        instance = new OwnerTokenDeletions(pager,
+                                           repository,
+                                           expiredTokens,
+                                           signedTokens,
+                                           invalidationBus,
+                                           PARALLELISM,
+                                           null,
+                                           scheduler,
+                                           registry);
+
+        Gauge<?> running = registry.getGauges().get(MetricRegistry.name(OwnerTokenDeletions.class, "running"));
+
+        CompletableFuture<OwnerTokenPager.Page> firstPage = new CompletableFuture<>();
+        when(pager.getPage(ownerId, null)).thenReturn(firstPage);
+
+        CompletableFuture<String> result = instance.deleteTokensBelongingTo(ownerId);
+        assertThat((Long) running.getValue(), is(1L));
+
+        firstPage.complete(new OwnerTokenPager.Page(tokens(3), null));
+        result.join();
+
+        assertThat((Long) running.getValue(), is(0L));
+    }
+
+    @Test
+    public void testIgnoresTokensAlreadyDeleted() throws Exception
+    {
+        List<AuthenticationToken> tokens = tokens(2);
+        when(pager.getPage(ownerId, null)).thenReturn(page(tokens, null));
+        when(repository.deleteTokenAsync(tokens.get(0).tokenId)).thenReturn(failed(new InvalidTokenException()));
+
+        String message = instance.deleteTokensBelongingTo(ownerId).join();
+        assertThat(message, containsString("Deleted 1 Tokens"));
+    }
+
+    @Test
+    public void testWithLargePage() throws Exception
+    {
+        when(pager.getPage(ownerId, null)).thenReturn(page(tokens(20_000), null));
+
+        String message = instance.deleteTokensBelongingTo(ownerId).join();
+        assertThat(message, containsString("Deleted 20000 Tokens"));
+    }
+
+    @Test
+    public void testWithBadOwner() throws Exception
+    {
+        when(pager.getPage(ownerId, null)).thenReturn(failed(new InvalidArgumentException()));
+
+        assertThrows(instance.deleteTokensBelongingTo(ownerId)::join)
+            .hasCauseThatIsExactly(InvalidArgumentException.class);
+    }
+
+    @Test
+    public void testRevokesSignedTokens() throws Exception
+    {
+        signedTokens = new SignedTokens("k1", Collections.singletonMap("k1", new byte[32]));
+        instance = newInstance(null);
+
+        AuthenticationToken token = tokens(1).get(0).setTimeOfExpiration(System.currentTimeMillis() + 60_000);
+        when(pager.getPage(ownerId, null)).thenReturn(page(Collections.singletonList(token), null));
+
+        instance.deleteTokensBelongingTo(ownerId).join();
+
+        assertThat(signedTokens.isRevoked(token.tokenId), is(true));
+        verify(invalidationBus).publishToken(token.tokenId, token.timeOfExpiration);
+        verify(invalidationBus).publishOwner(ownerId);
+    }
+
+    @Test
+    public void testAnswersAfterMaxWait() throws Exception
+    {
+        instance = newInstance(Duration.ofSeconds(5));
+
+        CompletableFuture<OwnerTokenPager.Page> firstPage = new CompletableFuture<>();
+        when(pager.getPage(ownerId, null)).thenReturn(firstPage);
+
+        CompletableFuture<String> result = instance.deleteTokensBelongingTo(ownerId);
+        assertThat(result.isDone(), is(false));
+
+        verify(scheduler).schedule(captor.capture(), eq(5_000L), eq(MILLISECONDS));
+        captor.getValue().run();
+
+        assertThat(result.join(), containsString("Still running"));
+
+        //The job carries on in the background.
+        firstPage.complete(new OwnerTokenPager.Page(tokens(2), null));
+        verify(repository, times(2)).deleteTokenAsync(anyString());
+    }
+
+    @Test
+    public void testDoesNotWaitWhenDone() throws Exception
+    {
+        instance = newInstance(Duration.ofSeconds(5));
+        when(pager.getPage(ownerId, null)).thenReturn(page(tokens(1), null));
+
+        assertThat(instance.deleteTokensBelongingTo(ownerId).join(), containsString("Deleted 1 Tokens"));
+        verify(scheduler, never()).schedule(any(Runnable.class), anyLong(), any());
+    }
+
+    private List<AuthenticationToken> tokens(int count)
+    {
+        List<AuthenticationToken> tokens = new ArrayList<>();
+
+        for (int i = 0; i < count; ++i)
+        {
+            tokens.add(new AuthenticationToken()
+                .setTokenId(java.util.UUID.randomUUID().toString())
+                .setOwnerId(ownerId));
+        }
+
+        return tokens;
+    }
+
+    private static CompletableFuture<OwnerTokenPager.Page> page(List<AuthenticationToken> tokens, String next)
+    {
+        return CompletableFuture.completedFuture(new OwnerTokenPager.Page(tokens, next));
+    }
+
+}
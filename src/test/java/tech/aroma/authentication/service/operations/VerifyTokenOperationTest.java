@@ -16,14 +16,21 @@
 
 package tech.aroma.authentication.service.operations;
 
+import com.codahale.metrics.MetricRegistry;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import org.apache.thrift.TException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.*;
+import tech.aroma.authentication.service.data.AsyncTokenRepository;
+import tech.aroma.authentication.service.data.SignedTokens;
 import tech.aroma.data.TokenRepository;
 import tech.aroma.thrift.authentication.AuthenticationToken;
 import tech.aroma.thrift.authentication.TokenStatus;
+import tech.aroma.thrift.authentication.TokenType;
 import tech.aroma.thrift.authentication.service.VerifyTokenRequest;
 import tech.aroma.thrift.authentication.service.VerifyTokenResponse;
 import tech.aroma.thrift.exceptions.*;
@@ -34,9 +41,13 @@ import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
+import static tech.aroma.authentication.service.operations.CompletableFutures.failed;
 import static tech.aroma.thrift.authentication.TokenStatus.EXPIRED;
 import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
 import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.BinaryGenerators.binary;
+import static tech.sirwellington.alchemy.generator.StringGenerators.uuids;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.futureInstants;
 import static tech.sirwellington.alchemy.generator.TimeGenerators.pastInstants;
 import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.*;
 import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
@@ -52,6 +63,9 @@ public class VerifyTokenOperationTest
     @Mock
     private TokenRepository repository;
 
+    @Mock
+    private AsyncTokenRepository asyncRepository;
+
     private AuthenticationToken token;
     
     @GeneratePojo
@@ -63,6 +77,10 @@ public class VerifyTokenOperationTest
     @GenerateString(UUID)
     private String ownerId;
     
+    private ExpiredTokenWriter expiredTokens;
+
+    private SignedTokens signedTokens;
+
     private VerifyTokenOperation instance;
 
     @Captor
@@ -71,7 +89,9 @@ public class VerifyTokenOperationTest
     @Before
     public void setUp() throws TException
     {
-        instance = new VerifyTokenOperation(repository);
+        expiredTokens = new ExpiredTokenWriter(repository, new MetricRegistry(), 100, 10);
+        signedTokens = new SignedTokens("k1", Collections.singletonMap("k1", one(binary(32))));
+        instance = new VerifyTokenOperation(repository, asyncRepository, expiredTokens, signedTokens);
         verifyZeroInteractions(repository);
         
         token = one(authenticationTokens());
@@ -83,12 +103,22 @@ public class VerifyTokenOperationTest
         when(repository.containsToken(tokenId)).thenReturn(true);
         when(repository.doesTokenBelongTo(tokenId, ownerId)).thenReturn(true);
         when(repository.getToken(tokenId)).thenReturn(token);
+        when(asyncRepository.getTokenAsync(tokenId)).thenReturn(CompletableFuture.completedFuture(token));
     }
 
     @Test
     public void testConstructor()
     {
-        assertThrows(() -> new VerifyTokenOperation(null))
+        assertThrows(() -> new VerifyTokenOperation(null, asyncRepository, expiredTokens, signedTokens))
+            .isInstanceOf(IllegalArgumentException.class);
+        
+        assertThrows(() -> new VerifyTokenOperation(repository, null, expiredTokens, signedTokens))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new VerifyTokenOperation(repository, asyncRepository, null, signedTokens))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new VerifyTokenOperation(repository, asyncRepository, expiredTokens, null))
             .isInstanceOf(IllegalArgumentException.class);
     }
     
@@ -185,6 +215,9 @@ public class VerifyTokenOperationTest
         
         assertThrows(() -> instance.process(request));
         
+        verify(repository, never()).saveToken(Mockito.any());
+        
+        expiredTokens.flush();
         verify(repository).saveToken(captor.capture());
         
         AuthenticationToken savedToken = captor.getValue();
@@ -193,4 +226,188 @@ public class VerifyTokenOperationTest
         
     }
 
+    @Repeat
+    @Test
+    public void testWithSignedToken() throws Exception
+    {
+        request.tokenId = signedTokens.sign(activeToken());
+
+        VerifyTokenResponse response = instance.process(request);
+        assertThat(response, notNullValue());
+
+        verifyZeroInteractions(repository);
+    }
+
+    @Repeat
+    @Test
+    public void testWithSignedTokenWhenOwnerMismatch() throws Exception
+    {
+        request.tokenId = signedTokens.sign(activeToken());
+        request.ownerId = one(uuids);
+
+        assertThrows(() -> instance.process(request))
+            .isInstanceOf(InvalidTokenException.class);
+
+        verifyZeroInteractions(repository);
+    }
+
+    @Test
+    public void testWithSignedTokenWhenRevoked() throws Exception
+    {
+        AuthenticationToken activeToken = activeToken();
+        request.tokenId = signedTokens.sign(activeToken);
+        signedTokens.revoke(tokenId, activeToken.timeOfExpiration);
+
+        assertThrows(() -> instance.process(request))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testWithSignedTokenWhenExpired() throws Exception
+    {
+        AuthenticationToken expiredToken = activeToken().setTimeOfExpiration(one(pastInstants()).toEpochMilli());
+        request.tokenId = signedTokens.sign(expiredToken);
+
+        assertThrows(() -> instance.process(request))
+            .isInstanceOf(InvalidTokenException.class);
+
+        verifyZeroInteractions(repository);
+    }
+
+    @Test
+    public void testWithSignedTokenIssuedBeforeStart() throws Exception
+    {
+        request.tokenId = signedTokens.sign(activeToken().setTimeOfCreation(one(pastInstants()).toEpochMilli()));
+
+        VerifyTokenResponse response = instance.process(request);
+        assertThat(response, notNullValue());
+
+        verify(repository).containsToken(tokenId);
+    }
+
+    @Test
+    public void testWithSignedTokenIssuedBeforeStartWhenInvalidated() throws Exception
+    {
+        request.tokenId = signedTokens.sign(activeToken().setTimeOfCreation(one(pastInstants()).toEpochMilli()));
+        when(repository.containsToken(tokenId)).thenReturn(false);
+
+        assertThrows(() -> instance.process(request))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testWithSignedTokenWhenRevocationsMissed() throws Exception
+    {
+        request.tokenId = signedTokens.sign(activeToken());
+        when(repository.containsToken(tokenId)).thenReturn(false);
+
+        Thread.sleep(2);
+        signedTokens.revocationsMissed();
+
+        assertThrows(() -> instance.process(request))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    private AuthenticationToken activeToken()
+    {
+        return token.deepCopy()
+            .setTokenType(TokenType.USER)
+            .setTimeOfCreation(System.currentTimeMillis())
+            .setTimeOfExpiration(one(futureInstants()).toEpochMilli());
+    }
+
+    @Repeat(100)
+    @Test
+    public void testProcessAsync() throws Exception
+    {
+        VerifyTokenResponse response = instance.processAsync(request).join();
+        assertThat(response, notNullValue());
+
+        verifyZeroInteractions(repository);
+    }
+
+    @Repeat
+    @Test
+    public void testProcessAsyncWhenTokenOwnerMismatch() throws Exception
+    {
+        request.ownerId = one(uuids);
+
+        CompletableFuture<VerifyTokenResponse> response = instance.processAsync(request);
+
+        assertThrows(response::join)
+            .isInstanceOf(CompletionException.class)
+            .hasCauseThatIsExactly(InvalidTokenException.class);
+    }
+
+    @Repeat
+    @Test
+    public void testProcessAsyncWhenTokenDoesNotExist() throws Exception
+    {
+        when(asyncRepository.getTokenAsync(tokenId))
+            .thenReturn(failed(new InvalidTokenException()));
+
+        CompletableFuture<VerifyTokenResponse> response = instance.processAsync(request);
+
+        assertThrows(response::join)
+            .isInstanceOf(CompletionException.class)
+            .hasCauseThatIsExactly(InvalidTokenException.class);
+    }
+
+    @Test
+    public void testProcessAsyncWhenTokenHasRecentlyExpired() throws Exception
+    {
+        token.setTimeOfExpiration(one(pastInstants()).toEpochMilli());
+
+        assertThrows(instance.processAsync(request)::join)
+            .hasCauseThatIsExactly(InvalidTokenException.class);
+
+        assertThat(expiredTokens.pendingCount(), is(1));
+    }
+
+    @Test
+    public void testProcessAsyncWithBadRequests() throws Exception
+    {
+        assertThrows(instance.processAsync(null)::join)
+            .hasCauseThatIsExactly(InvalidArgumentException.class);
+
+        assertThrows(instance.processAsync(new VerifyTokenRequest())::join)
+            .hasCauseThatIsExactly(InvalidArgumentException.class);
+
+        verifyZeroInteractions(asyncRepository);
+    }
+
+    @Repeat
+    @Test
+    public void testProcessAsyncWithSignedToken() throws Exception
+    {
+        request.tokenId = signedTokens.sign(activeToken());
+
+        VerifyTokenResponse response = instance.processAsync(request).join();
+        assertThat(response, notNullValue());
+
+        verifyZeroInteractions(asyncRepository);
+    }
+
+    @Test
+    public void testProcessAsyncWithSignedTokenIssuedBeforeStart() throws Exception
+    {
+        request.tokenId = signedTokens.sign(activeToken().setTimeOfCreation(one(pastInstants()).toEpochMilli()));
+
+        VerifyTokenResponse response = instance.processAsync(request).join();
+        assertThat(response, notNullValue());
+
+        verify(asyncRepository).getTokenAsync(tokenId);
+    }
+
+    @Test
+    public void testProcessAsyncWithSignedTokenIssuedBeforeStartWhenInvalidated() throws Exception
+    {
+        request.tokenId = signedTokens.sign(activeToken().setTimeOfCreation(one(pastInstants()).toEpochMilli()));
+        when(asyncRepository.getTokenAsync(tokenId))
+            .thenReturn(failed(new InvalidTokenException()));
+
+        assertThrows(instance.processAsync(request)::join)
+            .hasCauseThatIsExactly(InvalidTokenException.class);
+    }
+
 }
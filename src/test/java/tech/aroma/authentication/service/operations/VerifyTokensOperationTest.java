@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.operations;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.aroma.authentication.service.data.SignedTokens;
+import tech.aroma.data.TokenRepository;
+import tech.aroma.thrift.authentication.AuthenticationToken;
+import tech.aroma.thrift.authentication.TokenStatus;
+import tech.aroma.thrift.authentication.TokenType;
+import tech.aroma.thrift.authentication.service.VerifyTokenRequest;
+import tech.aroma.thrift.exceptions.InvalidArgumentException;
+import tech.aroma.thrift.exceptions.InvalidTokenException;
+import tech.aroma.thrift.exceptions.OperationFailedException;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+import tech.sirwellington.alchemy.test.junit.runners.DontRepeat;
+import tech.sirwellington.alchemy.test.junit.runners.GenerateString;
+import tech.sirwellington.alchemy.test.junit.runners.Repeat;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.aroma.thrift.generators.TokenGenerators.authenticationTokens;
+import static tech.sirwellington.alchemy.generator.AlchemyGenerator.Get.one;
+import static tech.sirwellington.alchemy.generator.BinaryGenerators.binary;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.futureInstants;
+import static tech.sirwellington.alchemy.generator.TimeGenerators.pastInstants;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class VerifyTokensOperationTest
+{
+
+    @Mock
+    private TokenRepository repository;
+
+    @GenerateString(UUID)
+    private String otherOwnerId;
+
+    private ExpiredTokenWriter expiredTokens;
+
+    private SignedTokens signedTokens;
+
+    private AuthenticationToken first;
+
+    private AuthenticationToken second;
+
+    private VerifyTokensOperation instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        expiredTokens = new ExpiredTokenWriter(repository, new MetricRegistry(), 100, 10);
+        signedTokens = new SignedTokens("k1", Collections.singletonMap("k1", one(binary(32))));
+        instance = new VerifyTokensOperation(repository, expiredTokens, signedTokens, Runnable::run);
+
+        first = one(authenticationTokens());
+        first.setStatus(TokenStatus.ACTIVE);
+        second = one(authenticationTokens());
+        second.setStatus(TokenStatus.ACTIVE);
+
+        when(repository.getToken(first.tokenId)).thenReturn(first);
+        when(repository.getToken(second.tokenId)).thenReturn(second);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor() throws Exception
+    {
+        assertThrows(() -> new VerifyTokensOperation(null, expiredTokens, signedTokens))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new VerifyTokensOperation(repository, null, signedTokens))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new VerifyTokensOperation(repository, expiredTokens, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testVerifyTokens() throws Exception
+    {
+        List<TokenVerification> results = instance.verifyTokens(Arrays.asList(requestFor(first), requestFor(second)));
+
+        assertThat(results.size(), is(2));
+        assertThat(results.get(0), is(TokenVerification.valid(first.tokenId)));
+        assertThat(results.get(1), is(TokenVerification.valid(second.tokenId)));
+    }
+
+    @Test
+    public void testReadsEachTokenOnce() throws Exception
+    {
+        List<VerifyTokenRequest> requests = Arrays.asList(requestFor(first),
+                                                          requestFor(first).setOwnerId(null),
+                                                          requestFor(second));
+
+        List<TokenVerification> results = instance.verifyTokens(requests);
+
+        assertThat(results.size(), is(3));
+        results.forEach(result -> assertThat(result.isValid(), is(true)));
+
+        verify(repository, times(1)).getToken(first.tokenId);
+        verify(repository, times(1)).getToken(second.tokenId);
+        verify(repository, never()).doesTokenBelongTo(anyString(), anyString());
+    }
+
+    @Test
+    public void testDoesNotReadSignedTokens() throws Exception
+    {
+        second.setTokenId(java.util.UUID.randomUUID().toString())
+            .setOwnerId(otherOwnerId)
+            .setTokenType(TokenType.USER)
+            .setTimeOfCreation(System.currentTimeMillis())
+            .setTimeOfExpiration(one(futureInstants()).toEpochMilli());
+
+        String signedTokenId = signedTokens.sign(second);
+        VerifyTokenRequest signed = new VerifyTokenRequest().setTokenId(signedTokenId).setOwnerId(otherOwnerId);
+        VerifyTokenRequest wrongOwner = new VerifyTokenRequest().setTokenId(signedTokenId).setOwnerId(first.ownerId);
+
+        List<TokenVerification> results = instance.verifyTokens(Arrays.asList(requestFor(first), signed, wrongOwner));
+
+        assertThat(results.get(0).isValid(), is(true));
+        assertThat(results.get(1), is(TokenVerification.valid(signedTokenId)));
+        assertThat(results.get(2).getFailure(), instanceOf(InvalidTokenException.class));
+
+        verify(repository).getToken(first.tokenId);
+        verify(repository, never()).getToken(second.tokenId);
+        verify(repository, never()).getToken(signedTokenId);
+    }
+
+    @Test
+    public void testReadsSignedTokensIssuedBeforeStart() throws Exception
+    {
+        second.setTokenId(java.util.UUID.randomUUID().toString())
+            .setOwnerId(otherOwnerId)
+            .setTokenType(TokenType.USER)
+            .setTimeOfCreation(one(pastInstants()).toEpochMilli())
+            .setTimeOfExpiration(one(futureInstants()).toEpochMilli());
+
+        String signedTokenId = signedTokens.sign(second);
+        String invalidatedTokenId = signedTokens.sign(second.deepCopy().setTokenId(java.util.UUID.randomUUID().toString()));
+        when(repository.getToken(second.tokenId)).thenReturn(second);
+        when(repository.getToken(signedTokens.storageIdOf(invalidatedTokenId))).thenThrow(new InvalidTokenException());
+
+        VerifyTokenRequest signed = new VerifyTokenRequest().setTokenId(signedTokenId);
+        VerifyTokenRequest invalidated = new VerifyTokenRequest().setTokenId(invalidatedTokenId);
+
+        List<TokenVerification> results = instance.verifyTokens(Arrays.asList(signed, invalidated));
+
+        assertThat(results.get(0), is(TokenVerification.valid(signedTokenId)));
+        assertThat(results.get(1).getFailure(), instanceOf(InvalidTokenException.class));
+
+        verify(repository).getToken(second.tokenId);
+        verify(repository, never()).getToken(signedTokenId);
+    }
+
+    @Test
+    public void testWhenOwnerDoesNotMatch() throws Exception
+    {
+        VerifyTokenRequest mismatch = requestFor(second).setOwnerId(otherOwnerId);
+
+        List<TokenVerification> results = instance.verifyTokens(Arrays.asList(requestFor(first), mismatch));
+
+        assertThat(results.get(0).isValid(), is(true));
+        assertThat(results.get(1).isValid(), is(false));
+        assertThat(results.get(1).getFailure(), instanceOf(InvalidTokenException.class));
+    }
+
+    @Test
+    public void testWhenTokenHasRecentlyExpired() throws Exception
+    {
+        second.setTimeOfExpiration(one(pastInstants()).toEpochMilli());
+        when(repository.containsToken(second.tokenId)).thenReturn(true);
+
+        List<TokenVerification> results = instance.verifyTokens(Arrays.asList(requestFor(first), requestFor(second)));
+
+        assertThat(results.get(0).isValid(), is(true));
+        assertThat(results.get(1).getFailure(), instanceOf(InvalidTokenException.class));
+
+        verify(repository, never()).saveToken(any());
+        expiredTokens.flush();
+        verify(repository).saveToken(second);
+    }
+
+    @Test
+    public void testWhenTokenIsMarkedExpired() throws Exception
+    {
+        first.setStatus(TokenStatus.EXPIRED);
+
+        List<TokenVerification> results = instance.verifyTokens(Collections.singletonList(requestFor(first)));
+
+        assertThat(results.get(0).getFailure(), instanceOf(InvalidTokenException.class));
+    }
+
+    @Test
+    public void testWhenTokenDoesNotExist() throws Exception
+    {
+        when(repository.getToken(second.tokenId)).thenThrow(new InvalidTokenException());
+
+        List<TokenVerification> results = instance.verifyTokens(Arrays.asList(requestFor(first), requestFor(second)));
+
+        assertThat(results.get(0).isValid(), is(true));
+        assertThat(results.get(1).getFailure(), instanceOf(InvalidTokenException.class));
+    }
+
+    @Test
+    public void testWhenRepositoryFails() throws Exception
+    {
+        when(repository.getToken(second.tokenId)).thenThrow(new RuntimeException());
+
+        List<TokenVerification> results = instance.verifyTokens(Arrays.asList(requestFor(first), requestFor(second)));
+
+        assertThat(results.get(0).isValid(), is(true));
+        assertThat(results.get(1).getFailure(), instanceOf(OperationFailedException.class));
+    }
+
+    @Test
+    public void testWithBadRequestsInBatch() throws Exception
+    {
+        List<VerifyTokenRequest> requests = Arrays.asList(requestFor(first), null, new VerifyTokenRequest());
+
+        List<TokenVerification> results = instance.verifyTokens(requests);
+
+        assertThat(results.get(0).isValid(), is(true));
+        assertThat(results.get(1).getTokenId(), is(nullValue()));
+        assertThat(results.get(1).getFailure(), instanceOf(InvalidArgumentException.class));
+        assertThat(results.get(2).getFailure(), instanceOf(InvalidArgumentException.class));
+    }
+
+    @DontRepeat
+    @Test
+    public void testWithBadArgs() throws Exception
+    {
+        assertThrows(() -> instance.verifyTokens(null))
+            .isInstanceOf(InvalidArgumentException.class);
+
+        List<VerifyTokenRequest> tooMany = new ArrayList<>();
+        for (int i = 0; i <= VerifyTokensOperation.MAX_BATCH_SIZE; ++i)
+        {
+            tooMany.add(requestFor(first));
+        }
+
+        assertThrows(() -> instance.verifyTokens(tooMany))
+            .isInstanceOf(InvalidArgumentException.class);
+    }
+
+    private VerifyTokenRequest requestFor(AuthenticationToken token)
+    {
+        return new VerifyTokenRequest()
+            .setTokenId(token.tokenId)
+            .setOwnerId(token.ownerId);
+    }
+
+}
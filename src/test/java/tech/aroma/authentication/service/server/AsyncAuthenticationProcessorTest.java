@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import org.apache.thrift.AsyncProcessFunction;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.aroma.thrift.authentication.service.AuthenticationService;
+import tech.aroma.thrift.authentication.service.VerifyTokenRequest;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+import tech.sirwellington.alchemy.test.junit.runners.GeneratePojo;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author SirWellington
+ */
+@RunWith(AlchemyTestRunner.class)
+public class AsyncAuthenticationProcessorTest
+{
+
+    @Mock
+    private AuthenticationService.AsyncIface service;
+
+    @Mock
+    private AsyncMethodCallback callback;
+
+    @GeneratePojo
+    private VerifyTokenRequest request;
+
+    private AsyncAuthenticationProcessor instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        instance = new AsyncAuthenticationProcessor(service);
+    }
+
+    @Test
+    public void testHandlesEveryMethod() throws Exception
+    {
+        assertThat(instance.getProcessMapView().keySet(), containsInAnyOrder("getApiVersion",
+                                                                             "createToken",
+                                                                             "getTokenInfo",
+                                                                             "invalidateToken",
+                                                                             "verifyToken"));
+    }
+
+    @Test
+    public void testStartCallsService() throws Exception
+    {
+        AsyncProcessFunction function = instance.getProcessMapView().get("verifyToken");
+
+        Object args = function.getEmptyArgsInstance();
+        assertThat(args, instanceOf(AuthenticationService.verifyToken_args.class));
+
+        function.start(service, new AuthenticationService.verifyToken_args(request), callback);
+
+        verify(service).verifyToken(request, callback);
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.codahale.metrics.MetricRegistry;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TProtocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+
+/**
+ *
+ * @author SirWellington
+ */
+@RunWith(AlchemyTestRunner.class)
+public class ConcurrencyLimitedProcessorTest
+{
+
+    @Mock
+    private TProcessor delegate;
+
+    @Mock
+    private TProtocol in;
+
+    @Mock
+    private TProtocol out;
+
+    private MetricRegistry metrics;
+
+    private ExecutorService async;
+
+    private ConcurrencyLimitedProcessor instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        metrics = new MetricRegistry();
+        async = Executors.newSingleThreadExecutor();
+        instance = new ConcurrencyLimitedProcessor(delegate, 1, Duration.ofMillis(10), metrics);
+
+        when(delegate.process(in, out)).thenReturn(true);
+    }
+
+    @After
+    public void tearDown()
+    {
+        async.shutdownNow();
+    }
+
+    @Test
+    public void testConstructor() throws Exception
+    {
+        assertThrows(() -> new ConcurrencyLimitedProcessor(null, 1, Duration.ZERO, new MetricRegistry()))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new ConcurrencyLimitedProcessor(delegate, 0, Duration.ZERO, new MetricRegistry()))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new ConcurrencyLimitedProcessor(delegate, 1, null, new MetricRegistry()))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testProcess() throws Exception
+    {
+        assertThat(instance.process(in, out), is(true));
+        verify(delegate).process(in, out);
+        assertThat(instance.inFlight(), is(0));
+    }
+
+    @Test
+    public void testReleasesPermitWhenDelegateFails() throws Exception
+    {
+        when(delegate.process(in, out)).thenThrow(new TException());
+
+        assertThrows(() -> instance.process(in, out))
+            .isInstanceOf(TException.class);
+
+        assertThat(instance.inFlight(), is(0));
+    }
+
+    @Test
+    public void testWhenAtLimit() throws Exception
+    {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        when(delegate.process(in, out)).thenAnswer(invocation ->
+        {
+            started.countDown();
+            release.await();
+            return true;
+        });
+
+        async.submit(() -> instance.process(in, out));
+        started.await(5, SECONDS);
+
+        assertThat(instance.inFlight(), is(1));
+
+        assertThrows(() -> instance.process(in, out))
+            .isInstanceOf(TException.class);
+
+        assertThat(metrics.counter(MetricRegistry.name(ConcurrencyLimitedProcessor.class, "rejections")).getCount(), is(1L));
+
+        release.countDown();
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TTransport;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+import tech.sirwellington.alchemy.test.junit.runners.DontRepeat;
+import tech.sirwellington.alchemy.test.junit.runners.GenerateBinary;
+import tech.sirwellington.alchemy.test.junit.runners.Repeat;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+
+/**
+ *
+ * @author SirWellington
+ */
+@Repeat(50)
+@RunWith(AlchemyTestRunner.class)
+public class CountingTransportTest
+{
+
+    @GenerateBinary
+    private byte[] data;
+
+    private TMemoryBuffer buffer;
+
+    private MetricRegistry metrics;
+
+    private Meter bytesReceived;
+
+    private Meter bytesSent;
+
+    private CountingTransport instance;
+
+    @Before
+    public void setUp()
+    {
+        buffer = new TMemoryBuffer(data.length);
+        metrics = new MetricRegistry();
+        bytesReceived = metrics.meter("received");
+        bytesSent = metrics.meter("sent");
+
+        instance = new CountingTransport(buffer, bytesReceived, bytesSent);
+    }
+
+    @DontRepeat
+    @Test
+    public void testConstructor()
+    {
+        assertThrows(() -> new CountingTransport(null, bytesReceived, bytesSent))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new CountingTransport(buffer, null, bytesSent))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testWriteThenRead() throws Exception
+    {
+        instance.write(data);
+        assertThat(bytesSent.getCount(), is((long) data.length));
+        assertThat(bytesReceived.getCount(), is(0L));
+
+        byte[] read = new byte[data.length];
+        instance.readAll(read, 0, read.length);
+
+        assertThat(read, is(data));
+        assertThat(bytesReceived.getCount(), is((long) data.length));
+    }
+
+    @Test
+    public void testReadWhenEmpty() throws Exception
+    {
+        int read = instance.read(new byte[1], 0, 1);
+
+        assertThat(read, is(0));
+        assertThat(bytesReceived.getCount(), is(0L));
+    }
+
+    @DontRepeat
+    @Test
+    public void testFactory() throws Exception
+    {
+        CountingTransport.Factory factory = new CountingTransport.Factory(WireProtocol.COMPACT, metrics);
+
+        TTransport transport = factory.getTransport(buffer);
+        assertThat(transport, instanceOf(CountingTransport.class));
+
+        transport.write(data);
+
+        String name = MetricRegistry.name(CountingTransport.class, "compact", "bytes-sent");
+        assertThat(metrics.meter(name).getCount(), is((long) data.length));
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+
+/**
+ *
+ * @author SirWellington
+ */
+@RunWith(AlchemyTestRunner.class)
+public class RequestExecutorsTest
+{
+
+    @Test
+    public void testNewVirtualThreadPerTaskExecutor() throws Exception
+    {
+        boolean hasVirtualThreads = Arrays.stream(Executors.class.getMethods())
+            .anyMatch(method -> method.getName().equals("newVirtualThreadPerTaskExecutor"));
+
+        if (!hasVirtualThreads)
+        {
+            assertThrows(() -> RequestExecutors.newVirtualThreadPerTaskExecutor())
+                .isInstanceOf(IllegalStateException.class);
+            return;
+        }
+
+        ExecutorService executor = RequestExecutors.newVirtualThreadPerTaskExecutor();
+
+        try
+        {
+            assertThat(executor.submit(() -> true).get(), is(true));
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+import tech.sirwellington.alchemy.test.junit.runners.GenerateString;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@RunWith(AlchemyTestRunner.class)
+public class ServerModeTest
+{
+
+    @GenerateString(UUID)
+    private String badName;
+
+    @Test
+    public void testFromName()
+    {
+        assertThat(ServerMode.fromName("threadpool"), is(ServerMode.THREAD_POOL));
+        assertThat(ServerMode.fromName("threaded-selector"), is(ServerMode.THREADED_SELECTOR));
+        assertThat(ServerMode.fromName("HSHA"), is(ServerMode.HSHA));
+    }
+
+    @Test
+    public void testFromNameRoundTrips()
+    {
+        for (ServerMode mode : ServerMode.values())
+        {
+            assertThat(ServerMode.fromName(mode.toString()), is(mode));
+        }
+    }
+
+    @Test
+    public void testFromNameWithBadName()
+    {
+        assertThrows(() -> ServerMode.fromName(badName))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> ServerMode.fromName(null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import org.apache.thrift.protocol.TProtocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+import tech.sirwellington.alchemy.test.junit.runners.GenerateString;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.ALPHABETIC;
+
+/**
+ *
+ * @author SirWellington
+ */
+@RunWith(AlchemyTestRunner.class)
+public class ServerTelemetryTest
+{
+
+    @Mock
+    private TProtocol in;
+
+    @Mock
+    private TProtocol out;
+
+    @GenerateString(ALPHABETIC)
+    private String serverName;
+
+    private MetricRegistry metrics;
+
+    private ExecutorService pool;
+
+    private ServerTelemetry instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        metrics = new MetricRegistry();
+        pool = Executors.newFixedThreadPool(2);
+        instance = new ServerTelemetry(serverName, metrics);
+    }
+
+    @After
+    public void tearDown()
+    {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testConstructor() throws Exception
+    {
+        assertThrows(() -> new ServerTelemetry("", metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new ServerTelemetry(serverName, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testCountsConnections() throws Exception
+    {
+        instance.createContext(in, out);
+        instance.createContext(in, out);
+        instance.deleteContext(null, in, out);
+
+        assertThat(metrics.meter(nameOf("connections", "accepted")).getCount(), is(2L));
+        assertThat(metrics.counter(nameOf("connections", "open")).getCount(), is(1L));
+    }
+
+    @Test
+    public void testInstrument() throws Exception
+    {
+        assertThat(instance.instrument(pool), sameInstance(pool));
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+
+        for (int i = 0; i < 3; ++i)
+        {
+            pool.submit(() ->
+            {
+                started.countDown();
+                release.await();
+                return null;
+            });
+        }
+
+        started.await();
+
+        try
+        {
+            assertThat(gauge("workers", "busy"), is((Object) 2));
+            assertThat(gauge("workers", "queue-depth"), is((Object) 1));
+            assertThat(gauge("workers", "occupancy"), is((Object) 1.0));
+        }
+        finally
+        {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testInstrumentWithOtherExecutors() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try
+        {
+            assertThat(executor, not(instanceOf(ThreadPoolExecutor.class)));
+            assertThat(instance.instrument(executor), sameInstance(executor));
+            assertThat(metrics.getGauges().keySet(), is(empty()));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInstrumentWithNull() throws Exception
+    {
+        assertThrows(() -> instance.instrument(null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private Object gauge(String... names)
+    {
+        Gauge<?> gauge = metrics.getGauges().get(nameOf(names));
+        return gauge.getValue();
+    }
+
+    private String nameOf(String... names)
+    {
+        return MetricRegistry.name(TcpServer.class.getName() + "." + serverName, names);
+    }
+
+}
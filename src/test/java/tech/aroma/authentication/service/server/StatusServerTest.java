@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+import tech.sirwellington.alchemy.test.junit.runners.GenerateString;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.ALPHABETIC;
+
+/**
+ *
+ * @author SirWellington
+ */
+@RunWith(AlchemyTestRunner.class)
+public class StatusServerTest
+{
+
+    @GenerateString(ALPHABETIC)
+    private String checkName;
+
+    private MetricRegistry metrics;
+
+    private StatusServer instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        metrics = new MetricRegistry();
+        instance = new StatusServer(0, metrics);
+        instance.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        instance.stop();
+    }
+
+    @Test
+    public void testConstructor() throws Exception
+    {
+        assertThrows(() -> new StatusServer(-1, metrics))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new StatusServer(0, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testAddReadinessCheckWithBadArgs() throws Exception
+    {
+        assertThrows(() -> instance.addReadinessCheck("", () -> true))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> instance.addReadinessCheck(checkName, null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testHealth() throws Exception
+    {
+        instance.addReadinessCheck(checkName, () -> false);
+
+        HttpURLConnection connection = get("/health");
+
+        assertThat(connection.getResponseCode(), is(200));
+        assertThat(bodyOf(connection), is("OK\n"));
+    }
+
+    @Test
+    public void testReady() throws Exception
+    {
+        AtomicBoolean ready = new AtomicBoolean();
+        instance.addReadinessCheck(checkName, ready::get);
+
+        HttpURLConnection connection = get("/ready");
+        assertThat(connection.getResponseCode(), is(503));
+        assertThat(bodyOf(connection), is(checkName + " not ready\n"));
+
+        ready.set(true);
+
+        connection = get("/ready");
+        assertThat(connection.getResponseCode(), is(200));
+        assertThat(bodyOf(connection), is(checkName + " ready\n"));
+    }
+
+    @Test
+    public void testReadyWhenCheckFails() throws Exception
+    {
+        instance.addReadinessCheck(checkName, () ->
+        {
+            throw new IllegalStateException();
+        });
+
+        assertThat(get("/ready").getResponseCode(), is(503));
+    }
+
+    @Test
+    public void testMetrics() throws Exception
+    {
+        metrics.register("tokens", (Gauge<Long>) () -> 42L);
+        metrics.counter("deleted").inc(3);
+        metrics.timer("latency").update(2, MILLISECONDS);
+
+        HttpURLConnection connection = get("/metrics");
+
+        assertThat(connection.getResponseCode(), is(200));
+        assertThat(connection.getContentType(), startsWith("text/plain"));
+
+        String body = bodyOf(connection);
+        assertThat(body, containsString("tokens 42\n"));
+        assertThat(body, containsString("deleted 3\n"));
+        assertThat(body, containsString("latency.count 1\n"));
+        assertThat(body, containsString("latency.ms.max 2.0\n"));
+    }
+
+    @Test
+    public void testUnknownPath() throws Exception
+    {
+        assertThat(get("/" + checkName).getResponseCode(), is(404));
+    }
+
+    @Test
+    public void testPost() throws Exception
+    {
+        HttpURLConnection connection = get("/health");
+        connection.setRequestMethod("POST");
+
+        assertThat(connection.getResponseCode(), is(405));
+    }
+
+    private HttpURLConnection get(String path) throws IOException
+    {
+        URL url = new URL("http", "127.0.0.1", instance.port(), path);
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private static String bodyOf(HttpURLConnection connection) throws IOException
+    {
+        InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+        StringBuilder body = new StringBuilder();
+        byte[] buffer = new byte[1024];
+
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+        {
+            body.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+        }
+
+        in.close();
+        return body.toString();
+    }
+
+}
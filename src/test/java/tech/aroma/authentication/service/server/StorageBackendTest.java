@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Session;
+import com.google.inject.Injector;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+import tech.sirwellington.alchemy.test.junit.runners.GenerateString;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+import static tech.sirwellington.alchemy.test.junit.runners.GenerateString.Type.UUID;
+
+/**
+ *
+ * @author SirWellington
+ */
+@RunWith(AlchemyTestRunner.class)
+public class StorageBackendTest
+{
+
+    @GenerateString(UUID)
+    private String badName;
+
+    @Mock
+    private Injector injector;
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Session.State state;
+
+    @Mock
+    private Host host;
+
+    @Test
+    public void testFromName()
+    {
+        assertThat(StorageBackend.fromName("cassandra"), is(StorageBackend.CASSANDRA));
+        assertThat(StorageBackend.fromName("MEMORY"), is(StorageBackend.MEMORY));
+    }
+
+    @Test
+    public void testFromNameRoundTrips()
+    {
+        for (StorageBackend backend : StorageBackend.values())
+        {
+            assertThat(StorageBackend.fromName(backend.toString()), is(backend));
+        }
+    }
+
+    @Test
+    public void testFromNameWithBadName()
+    {
+        assertThrows(() -> StorageBackend.fromName(badName))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> StorageBackend.fromName(null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testCreateReachabilityCheckWhenInProcess()
+    {
+        assertThat(StorageBackend.MEMORY.createReachabilityCheck(injector).getAsBoolean(), is(true));
+        assertThat(StorageBackend.FILE.createReachabilityCheck(injector).getAsBoolean(), is(true));
+        verifyZeroInteractions(injector);
+    }
+
+    @Test
+    public void testCreateReachabilityCheckWithCassandra()
+    {
+        when(injector.getInstance(Session.class)).thenReturn(session);
+        when(session.getState()).thenReturn(state);
+        when(state.getConnectedHosts()).thenReturn(Collections.singletonList(host));
+
+        assertThat(StorageBackend.CASSANDRA.createReachabilityCheck(injector).getAsBoolean(), is(true));
+
+        when(state.getConnectedHosts()).thenReturn(Collections.emptyList());
+        assertThat(StorageBackend.CASSANDRA.createReachabilityCheck(injector).getAsBoolean(), is(false));
+    }
+
+}
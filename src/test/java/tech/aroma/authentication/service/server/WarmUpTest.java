@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 RedRoma, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tech.aroma.authentication.service.server;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import tech.aroma.authentication.service.data.SignedTokens;
+import tech.aroma.thrift.authentication.service.AuthenticationService;
+import tech.sirwellington.alchemy.test.junit.runners.AlchemyTestRunner;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static tech.sirwellington.alchemy.test.junit.ThrowableAssertion.assertThrows;
+
+/**
+ *
+ * @author SirWellington
+ */
+@RunWith(AlchemyTestRunner.class)
+public class WarmUpTest
+{
+
+    private static final String TIME_TO_STEADY_STATE = MetricRegistry.name(WarmUp.class, "time-to-steady-state");
+
+    private Injector injector;
+
+    private TProcessor processor;
+
+    private AuthenticationService.AsyncIface asyncService;
+
+    private TProtocolFactory protocolFactory;
+
+    private MetricRegistry metrics;
+
+    private AtomicInteger compilationReads;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        injector = WarmUp.createIsolatedInjector(SignedTokens.disabled());
+        processor = new AuthenticationService.Processor<>(injector.getInstance(AuthenticationService.Iface.class));
+        asyncService = injector.getInstance(AuthenticationService.AsyncIface.class);
+        protocolFactory = WireProtocol.BINARY.createFactory();
+        metrics = new MetricRegistry();
+        compilationReads = new AtomicInteger();
+    }
+
+    @Test
+    public void testConstructor() throws Exception
+    {
+        assertThrows(() -> new WarmUp(null, null, protocolFactory, Duration.ofSeconds(1), () -> 0))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new WarmUp(processor, null, null, Duration.ofSeconds(1), () -> 0))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new WarmUp(processor, null, protocolFactory, Duration.ZERO, () -> 0))
+            .isInstanceOf(IllegalArgumentException.class);
+
+        assertThrows(() -> new WarmUp(processor, null, protocolFactory, Duration.ofSeconds(1), null))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testRunStopsWhenCompilationSettles() throws Exception
+    {
+        WarmUp instance = new WarmUp(processor, null, protocolFactory, Duration.ofMinutes(1), () ->
+        {
+            compilationReads.incrementAndGet();
+            return 100;
+        });
+
+        Duration result = instance.run(metrics);
+
+        //Once at the start, then once per round.
+        assertThat(compilationReads.get(), is(1 + WarmUp.IDLE_ROUNDS));
+        assertThat(result, lessThan(Duration.ofMinutes(1)));
+        assertThat(metrics.getGauges().get(TIME_TO_STEADY_STATE).getValue(), is((Object) result.toMillis()));
+    }
+
+    @Test
+    public void testRunWhenCompilationNeverSettles() throws Exception
+    {
+        Duration maxDuration = Duration.ofMillis(200);
+        WarmUp instance = new WarmUp(processor, null, protocolFactory, maxDuration, () -> 1_000L * compilationReads.incrementAndGet());
+
+        Duration result = instance.run(metrics);
+
+        assertThat(result, greaterThanOrEqualTo(maxDuration));
+        assertThat(metrics.getGauges().containsKey(TIME_TO_STEADY_STATE), is(true));
+    }
+
+    @Test
+    public void testRunWhenCompilationTimeIsUnknown() throws Exception
+    {
+        WarmUp instance = new WarmUp(processor, null, protocolFactory, Duration.ofMinutes(1), () ->
+        {
+            compilationReads.incrementAndGet();
+            return -1;
+        });
+
+        instance.run(metrics);
+
+        assertThat(compilationReads.get(), is(1));
+        assertThat(metrics.getGauges().containsKey(TIME_TO_STEADY_STATE), is(true));
+    }
+
+    @Test
+    public void testRunWithAsyncService() throws Exception
+    {
+        WarmUp instance = new WarmUp(processor, asyncService, protocolFactory, Duration.ofMinutes(1), () -> 100);
+
+        Duration result = instance.run(metrics);
+
+        Gauge<?> gauge = metrics.getGauges().get(TIME_TO_STEADY_STATE);
+        assertThat(gauge.getValue(), is((Object) result.toMillis()));
+    }
+
+    @Test
+    public void testShutDown() throws Exception
+    {
+        Closeable closeable = mock(Closeable.class);
+        Injector injector = Guice.createInjector(binder -> binder.bind(Closeable.class).toInstance(closeable));
+
+        WarmUp.shutDown(injector);
+
+        verify(closeable).close();
+    }
+
+    @Test
+    public void testShutDownWhenCloseFails() throws Exception
+    {
+        Closeable closeable = mock(Closeable.class);
+        doThrow(new IOException()).when(closeable).close();
+        Injector injector = Guice.createInjector(binder -> binder.bind(Closeable.class).toInstance(closeable));
+
+        WarmUp.shutDown(injector);
+
+        verify(closeable).close();
+    }
+
+    @Test
+    public void testCreateIsolatedInjectorWithSignedTokens() throws Exception
+    {
+        SignedTokens signedTokens = new SignedTokens("key", Collections.singletonMap("key", new byte[32]));
+
+        Injector result = WarmUp.createIsolatedInjector(signedTokens);
+
+        SignedTokens warmUpTokens = result.getInstance(SignedTokens.class);
+        assertThat(warmUpTokens.isEnabled(), is(true));
+        assertThat(warmUpTokens, not(sameInstance(signedTokens)));
+    }
+
+}